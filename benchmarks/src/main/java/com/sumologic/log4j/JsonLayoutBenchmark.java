@@ -0,0 +1,111 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j;
+
+import org.apache.logging.log4j.core.Layout;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.core.layout.JsonLayout;
+import org.apache.logging.log4j.message.ParameterizedMessage;
+import org.apache.logging.log4j.util.SortedArrayStringMap;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of encoding one event with {@link SumoJsonLayout} and with Log4j's {@link JsonLayout}, both into a byte array
+ * and into the reusable destination of the garbage-free append path. Run with {@code -prof gc} for the allocation rate.
+ * In this package to reach the package-private {@link ReusableByteBufferDestination}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JsonLayoutBenchmark {
+
+    @Param({"JSON", "SUMO_JSON"})
+    public String layout;
+
+    @Param({"false", "true"})
+    public boolean withContext;
+
+    private Layout<? extends Serializable> jsonLayout;
+    private ReusableByteBufferDestination destination;
+    private LogEvent event;
+
+    @Setup
+    public void setUp() {
+        if ("JSON".equals(layout)) {
+            jsonLayout = JsonLayout.newBuilder().setCompact(true).setEventEol(true).setProperties(true).build();
+        } else {
+            jsonLayout = SumoJsonLayout.newBuilder().build();
+        }
+        destination = new ReusableByteBufferDestination();
+        Log4jLogEvent.Builder builder = Log4jLogEvent.newBuilder()
+                .setLoggerName("com.sumologic.log4j.JsonLayoutBenchmark")
+                .setLevel(org.apache.logging.log4j.Level.INFO)
+                .setThreadName("main")
+                .setTimeMillis(System.currentTimeMillis())
+                .setMessage(new ParameterizedMessage("Processed request {} for customer {} in {} ms with status {}",
+                        42, 1234, 17, "OK"));
+        if (withContext) {
+            Map<String, String> context = new HashMap<String, String>();
+            context.put("requestId", "5f0c3a2e-93b1-4c6e-8d0a-7b2e4f1c9a10");
+            context.put("tenant", "acme");
+            builder.setContextData(new SortedArrayStringMap(context));
+        }
+        event = builder.build();
+    }
+
+    @Benchmark
+    public byte[] toByteArray() {
+        return jsonLayout.toByteArray(event);
+    }
+
+    @Benchmark
+    public int encode() {
+        jsonLayout.encode(event, destination);
+        int length = destination.length();
+        destination.clear();
+        return length;
+    }
+}
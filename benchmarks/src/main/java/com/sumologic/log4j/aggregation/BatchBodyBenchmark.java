@@ -0,0 +1,91 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j.aggregation;
+
+import com.sumologic.log4j.queue.Utf8;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Assembly of a request body from drained messages, as done by {@link BufferFlusher} for every request, and
+ * its encoding to UTF-8 as the transports do.
+ * In this package to reach the package-private {@link BufferFlusher#aggregate}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BatchBodyBenchmark {
+
+    @Param({"100", "1000"})
+    public int messages;
+
+    @Param({"100", "1000"})
+    public int messageLength;
+
+    private List<String> batch;
+    private byte[] encoded;
+
+    @Setup
+    public void setUp() {
+        batch = new ArrayList<String>(messages);
+        StringBuilder message = new StringBuilder(messageLength);
+        for (int i = 0; i < messageLength - 1; i++) {
+            message.append((char) ('a' + i % 26));
+        }
+        message.append('\n');
+        for (int i = 0; i < messages; i++) {
+            batch.add(message.toString());
+        }
+        encoded = new byte[messages * messageLength];
+    }
+
+    @Benchmark
+    public CharSequence aggregate() {
+        return BufferFlusher.aggregate(batch, 0, batch.size());
+    }
+
+    @Benchmark
+    public int aggregateAndEncode() {
+        return Utf8.encode(BufferFlusher.aggregate(batch, 0, batch.size()), encoded, 0);
+    }
+}
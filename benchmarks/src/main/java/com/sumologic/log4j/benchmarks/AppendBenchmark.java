@@ -0,0 +1,124 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j.benchmarks;
+
+import com.sumologic.log4j.SumoJsonLayout;
+import com.sumologic.log4j.SumoLogicAppender;
+import com.sumologic.log4j.queue.QueueType;
+import org.apache.logging.log4j.core.Layout;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.core.layout.JsonLayout;
+import org.apache.logging.log4j.core.layout.PatternLayout;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.Serializable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of {@link SumoLogicAppender#append} with the whole pipeline running against {@link HttpStub}.
+ * Run with {@code -t} for the number of logging threads and {@code -prof gc} for the allocation rate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AppendBenchmark {
+
+    @Param({"PATTERN", "JSON", "SUMO_JSON"})
+    public String layout;
+
+    @Param({"FIFO", "RING", "LOCKFREE"})
+    public QueueType queueType;
+
+    @Param({"false", "true"})
+    public boolean garbageFree;
+
+    private HttpStub stub;
+    private SumoLogicAppender appender;
+    private LogEvent event;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        stub = new HttpStub();
+        stub.start(2);
+        appender = SumoLogicAppender.newBuilder()
+                .setName("AppendBenchmark")
+                .setUrl(stub.url())
+                .setLayout(newLayout())
+                .setQueueType(queueType)
+                .setGarbageFree(garbageFree)
+                .setMessagesPerRequest(1000)
+                .setMaxFlushInterval(100)
+                .setMaxQueueSizeBytes(10000000)
+                .setJmxEnabled(false)
+                .build();
+        appender.start();
+        event = Log4jLogEvent.newBuilder()
+                .setLoggerName("com.sumologic.log4j.benchmarks.AppendBenchmark")
+                .setLevel(org.apache.logging.log4j.Level.INFO)
+                .setThreadName("main")
+                .setMessage(new SimpleMessage("Processed request 42 for customer 1234 in 17 ms with status OK"))
+                .build();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        appender.stop(1, TimeUnit.SECONDS);
+        stub.stop();
+    }
+
+    @Benchmark
+    public void append() {
+        appender.append(event);
+    }
+
+    private Layout<? extends Serializable> newLayout() {
+        if ("JSON".equals(layout)) {
+            return JsonLayout.newBuilder().setCompact(true).setEventEol(true).build();
+        }
+        if ("SUMO_JSON".equals(layout)) {
+            return SumoJsonLayout.newBuilder().build();
+        }
+        return PatternLayout.newBuilder().withPattern("%d{yyyy-MM-dd HH:mm:ss,SSS Z} [%t] %-5p %c - %m%n").build();
+    }
+}
@@ -0,0 +1,289 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j.benchmarks;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Local collector for load tests that can be told to misbehave. Every request can be delayed, answered
+ * with 503 or 429 at a given rate, or have its connection closed without a response after its events were
+ * accepted, which makes the sender retry events that were already delivered.
+ * <p>
+ * Events are lines that start with a numeric id and the {@link System#nanoTime()} at which they were
+ * logged, as written by {@link SoakDriver}. Delivered ids are tracked in a bit set to count duplicates,
+ * and the time from logging to arrival is recorded in a {@link LatencyHistogram}. All counters are
+ * thread-safe, so the collector can run with many handler threads.
+ */
+public class FaultInjectingCollector implements HttpHandler {
+
+    private final AtomicLongArray delivered;
+    private final long maxEvents;
+    private final LatencyHistogram latencies = new LatencyHistogram();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong serverErrors = new AtomicLong();
+    private final AtomicLong throttled = new AtomicLong();
+    private final AtomicLong resets = new AtomicLong();
+    private final AtomicLong uniqueEvents = new AtomicLong();
+    private final AtomicLong duplicateEvents = new AtomicLong();
+    private final AtomicLong malformedLines = new AtomicLong();
+    private final ThreadLocal<Body> bodies = new ThreadLocal<Body>() {
+        @Override
+        protected Body initialValue() {
+            return new Body();
+        }
+    };
+    private volatile long latencyMs;
+    private volatile double serverErrorRate;
+    private volatile double throttleRate;
+    private volatile double resetRate;
+    private HttpServer server;
+    private ExecutorService executor;
+
+    /**
+     * @param maxEvents ids from 0 up to this are tracked; other lines are counted as malformed
+     */
+    public FaultInjectingCollector(long maxEvents) {
+        this.maxEvents = maxEvents;
+        this.delivered = new AtomicLongArray((int) ((maxEvents + 63) / 64));
+    }
+
+    public void start(int threads) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+        server.createContext("/", this);
+        executor = Executors.newFixedThreadPool(threads);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    public String url() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/receiver";
+    }
+
+    public void stop() {
+        if (server != null) {
+            server.stop(0);
+        }
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    // Delay before every response
+    public void setLatencyMs(long latencyMs) {
+        this.latencyMs = latencyMs;
+    }
+
+    // Fraction of requests rejected with 503
+    public void setServerErrorRate(double serverErrorRate) {
+        this.serverErrorRate = serverErrorRate;
+    }
+
+    // Fraction of requests rejected with 429
+    public void setThrottleRate(double throttleRate) {
+        this.throttleRate = throttleRate;
+    }
+
+    // Fraction of requests whose events are accepted but whose connection is closed without a response
+    public void setResetRate(double resetRate) {
+        this.resetRate = resetRate;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        Body body = readBody(exchange);
+        if (latencyMs > 0) {
+            try {
+                Thread.sleep(latencyMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        double draw = ThreadLocalRandom.current().nextDouble();
+        if (draw < serverErrorRate) {
+            serverErrors.incrementAndGet();
+            respond(exchange, 503);
+            return;
+        }
+        draw -= serverErrorRate;
+        if (draw < throttleRate) {
+            throttled.incrementAndGet();
+            respond(exchange, 429);
+            return;
+        }
+        draw -= throttleRate;
+        recordEvents(body);
+        if (draw < resetRate) {
+            resets.incrementAndGet();
+            // The HTTP server closes the connection of an exchange whose handler throws
+            throw new IOException("Injected connection reset");
+        }
+        respond(exchange, 200);
+    }
+
+    private Body readBody(HttpExchange exchange) throws IOException {
+        InputStream in = exchange.getRequestBody();
+        String contentEncoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+        if ("gzip".equals(contentEncoding)) {
+            in = new GZIPInputStream(in);
+        } else if ("deflate".equals(contentEncoding)) {
+            in = new InflaterInputStream(in);
+        }
+        Body body = bodies.get();
+        body.reset();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            body.write(buffer, 0, read);
+        }
+        return body;
+    }
+
+    private void respond(HttpExchange exchange, int statusCode) throws IOException {
+        exchange.sendResponseHeaders(statusCode, -1);
+        exchange.close();
+    }
+
+    // Parses "<id> <nanoTime> ..." lines straight from the bytes
+    private void recordEvents(Body body) {
+        byte[] bytes = body.array();
+        int length = body.size();
+        long now = System.nanoTime();
+        int position = 0;
+        while (position < length) {
+            int end = position;
+            while (end < length && bytes[end] != '\n') {
+                end++;
+            }
+            long id = -1;
+            long loggedAt = 0;
+            int i = position;
+            if (i < end && isDigit(bytes[i])) {
+                id = 0;
+                while (i < end && isDigit(bytes[i])) {
+                    id = id * 10 + (bytes[i++] - '0');
+                }
+                boolean negative = ++i < end && bytes[i] == '-';
+                if (negative) {
+                    i++;
+                }
+                while (i < end && isDigit(bytes[i])) {
+                    loggedAt = loggedAt * 10 + (bytes[i++] - '0');
+                }
+                loggedAt = negative ? -loggedAt : loggedAt;
+            }
+            if (id >= 0 && id < maxEvents) {
+                if (markDelivered(id)) {
+                    uniqueEvents.incrementAndGet();
+                    latencies.record(TimeUnit.NANOSECONDS.toMicros(now - loggedAt));
+                } else {
+                    duplicateEvents.incrementAndGet();
+                }
+            } else if (end > position) {
+                malformedLines.incrementAndGet();
+            }
+            position = end + 1;
+        }
+    }
+
+    private boolean markDelivered(long id) {
+        int word = (int) (id >>> 6);
+        long bit = 1L << (id & 63);
+        long current;
+        do {
+            current = delivered.get(word);
+            if ((current & bit) != 0) {
+                return false;
+            }
+        } while (!delivered.compareAndSet(word, current, current | bit));
+        return true;
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    public LatencyHistogram getLatencies() {
+        return latencies;
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getServerErrors() {
+        return serverErrors.get();
+    }
+
+    public long getThrottled() {
+        return throttled.get();
+    }
+
+    public long getResets() {
+        return resets.get();
+    }
+
+    public long getUniqueEvents() {
+        return uniqueEvents.get();
+    }
+
+    public long getDuplicateEvents() {
+        return duplicateEvents.get();
+    }
+
+    public long getMalformedLines() {
+        return malformedLines.get();
+    }
+
+    // Request body buffer that is reused by its handler thread and read in place
+    private static final class Body extends ByteArrayOutputStream {
+        Body() {
+            super(64 * 1024);
+        }
+
+        byte[] array() {
+            return buf;
+        }
+    }
+}
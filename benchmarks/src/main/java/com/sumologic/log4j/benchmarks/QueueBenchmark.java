@@ -0,0 +1,181 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j.benchmarks;
+
+import com.sumologic.http.queue.BufferWithEviction;
+import com.sumologic.http.queue.BufferWithFifoEviction;
+import com.sumologic.http.queue.CostBoundedConcurrentQueue;
+import com.sumologic.log4j.queue.ByteArrayRingBuffer;
+import com.sumologic.log4j.queue.CostAwareFifoBuffer;
+import com.sumologic.log4j.queue.LockFreeRingBuffer;
+import com.sumologic.log4j.queue.OffHeapSegmentedBuffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of adding to and draining from each queue type, and from {@code BufferWithFifoEviction}, the
+ * queue the appender used before there was a choice. {@code addThenDrain} measures a single thread
+ * filling and draining a batch; the {@code producersN} groups have N producers and one flusher, so
+ * they include the cost of contention and of evicting when the flusher falls behind. Select one with,
+ * for example, {@code QueueBenchmark.producers64}.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class QueueBenchmark {
+
+    private static final CostBoundedConcurrentQueue.CostAssigner<String> STRING_COST =
+            new CostBoundedConcurrentQueue.CostAssigner<String>() {
+                @Override
+                public long cost(String e) {
+                    return e.length();
+                }
+            };
+
+    private static final String MESSAGE =
+            "2024-01-01 12:00:00,000 +0000 [main] INFO  com.example.Service - Processed request 42 in 17 ms\n";
+
+    // BASELINE is BufferWithFifoEviction, the others are QueueType names
+    @Param({"BASELINE", "FIFO", "RING", "OFFHEAP", "LOCKFREE"})
+    public String queueType;
+
+    @Param({"100"})
+    public int batchSize;
+
+    private BufferWithEviction<String> queue;
+    private List<String> drained;
+
+    @Setup
+    public void setUp() {
+        long capacity = 10000000;
+        if ("BASELINE".equals(queueType)) {
+            queue = new BufferWithFifoEviction<String>(capacity, STRING_COST);
+        } else if ("RING".equals(queueType)) {
+            queue = new ByteArrayRingBuffer(capacity);
+        } else if ("OFFHEAP".equals(queueType)) {
+            queue = new OffHeapSegmentedBuffer(capacity);
+        } else if ("LOCKFREE".equals(queueType)) {
+            queue = new LockFreeRingBuffer<String>(capacity, STRING_COST);
+        } else {
+            queue = new CostAwareFifoBuffer<String>(capacity, STRING_COST);
+        }
+        drained = new ArrayList<String>(batchSize);
+    }
+
+    @Benchmark
+    @Group("single")
+    public int addThenDrain() {
+        for (int i = 0; i < batchSize; i++) {
+            queue.add(MESSAGE);
+        }
+        drained.clear();
+        return queue.drainTo(drained, batchSize);
+    }
+
+    @Benchmark
+    @Group("producers1")
+    @GroupThreads(1)
+    public boolean add1() {
+        return add();
+    }
+
+    @Benchmark
+    @Group("producers1")
+    @GroupThreads(1)
+    public int drain1() {
+        return drain();
+    }
+
+    @Benchmark
+    @Group("producers8")
+    @GroupThreads(8)
+    public boolean add8() {
+        return add();
+    }
+
+    @Benchmark
+    @Group("producers8")
+    @GroupThreads(1)
+    public int drain8() {
+        return drain();
+    }
+
+    @Benchmark
+    @Group("producers32")
+    @GroupThreads(32)
+    public boolean add32() {
+        return add();
+    }
+
+    @Benchmark
+    @Group("producers32")
+    @GroupThreads(1)
+    public int drain32() {
+        return drain();
+    }
+
+    @Benchmark
+    @Group("producers64")
+    @GroupThreads(64)
+    public boolean add64() {
+        return add();
+    }
+
+    @Benchmark
+    @Group("producers64")
+    @GroupThreads(1)
+    public int drain64() {
+        return drain();
+    }
+
+    private boolean add() {
+        return queue.add(MESSAGE);
+    }
+
+    private int drain() {
+        drained.clear();
+        return queue.drainTo(drained, batchSize);
+    }
+}
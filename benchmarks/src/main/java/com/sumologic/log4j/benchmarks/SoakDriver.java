@@ -0,0 +1,208 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j.benchmarks;
+
+import com.sumologic.log4j.SumoLogicAppender;
+import com.sumologic.log4j.metrics.AppenderMetrics;
+import com.sumologic.log4j.queue.OverflowPolicy;
+import com.sumologic.log4j.queue.QueueType;
+import com.sumologic.log4j.sender.Compression;
+import com.sumologic.log4j.sender.TransportType;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.core.layout.PatternLayout;
+import org.apache.logging.log4j.message.SimpleMessage;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Load and soak test of the whole appender against a {@link FaultInjectingCollector}. Logging threads
+ * append numbered events as fast as possible or at a fixed total rate; progress, queue size and heap use
+ * are printed periodically, and when done the driver reports how many events were delivered, lost and
+ * duplicated, and percentiles of the time from logging to arrival at the collector.
+ * <p>
+ * Settings are system properties, for example:
+ * <pre>
+ * java -Dsoak.threads=16 -Dsoak.events=50000000 -Dsoak.rate=100000 -Dsoak.serverErrorRate=0.01 \
+ *      -cp target/benchmarks.jar com.sumologic.log4j.benchmarks.SoakDriver
+ * </pre>
+ */
+public final class SoakDriver {
+
+    private static final long MB = 1024 * 1024;
+
+    private SoakDriver() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        final int threads = Integer.getInteger("soak.threads", 8);
+        final long events = Long.getLong("soak.events", 1000000);
+        final long rate = Long.getLong("soak.rate", 0);                       // events per second in total, unlimited if not positive
+        final int messageBytes = Integer.getInteger("soak.messageBytes", 200);
+        long reportIntervalMs = Long.getLong("soak.reportIntervalMs", 5000);
+        long drainTimeoutMs = Long.getLong("soak.drainTimeoutMs", 60000);
+
+        FaultInjectingCollector collector = new FaultInjectingCollector(events);
+        collector.setLatencyMs(Long.getLong("soak.latencyMs", 0));
+        collector.setServerErrorRate(doubleProperty("soak.serverErrorRate", 0));
+        collector.setThrottleRate(doubleProperty("soak.throttleRate", 0));
+        collector.setResetRate(doubleProperty("soak.resetRate", 0));
+        collector.start(Integer.getInteger("soak.collectorThreads", 8));
+
+        final SumoLogicAppender appender = SumoLogicAppender.newBuilder()
+                .setName("SoakDriver")
+                .setUrl(collector.url())
+                .setLayout(PatternLayout.newBuilder().withPattern("%m%n").build())
+                .setQueueType(QueueType.valueOf(System.getProperty("soak.queueType", "FIFO")))
+                .setTransport(TransportType.valueOf(System.getProperty("soak.transport", "BLOCKING")))
+                .setCompression(Compression.valueOf(System.getProperty("soak.compression", "NONE")))
+                .setOverflowPolicy(OverflowPolicy.valueOf(System.getProperty("soak.overflowPolicy", "DROP_OLDEST")))
+                .setMaxQueueSizeBytes(Long.getLong("soak.maxQueueSizeBytes", 100000000))
+                .setMessagesPerRequest(Integer.getInteger("soak.messagesPerRequest", 1000))
+                .setMaxFlushInterval(Long.getLong("soak.maxFlushInterval", 100))
+                .setSenderThreads(Integer.getInteger("soak.senderThreads", 4))
+                .setRetryInterval(Integer.getInteger("soak.retryInterval", 100))
+                .setRetryableHttpCodeRegex("^(5..|429)$")
+                .setFlushAllBeforeStopping(true)
+                .build();
+        appender.start();
+        AppenderMetrics metrics = appender.getMetrics();
+
+        System.out.printf(Locale.ROOT, "Logging %d events of %d bytes from %d threads to %s%n",
+                events, messageBytes, threads, collector.url());
+        final LongAdder produced = new LongAdder();
+        final CountDownLatch done = new CountDownLatch(threads);
+        final long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            final int first = t;
+            Thread producer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        produce(appender, first, threads, events, rate, messageBytes, start, produced);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }, "SoakProducer-" + t);
+            producer.setDaemon(true);
+            producer.start();
+        }
+
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        long peakHeap = 0;
+        long nextReport = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(reportIntervalMs);
+        long drainDeadline = 0;
+        boolean producing = true;
+        while (true) {
+            if (producing) {
+                producing = !done.await(Math.max(nextReport - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+                if (!producing) {
+                    drainDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(drainTimeoutMs);
+                }
+            } else {
+                Thread.sleep(10);
+            }
+            long heap = memory.getHeapMemoryUsage().getUsed();
+            peakHeap = Math.max(peakHeap, heap);
+            if (System.nanoTime() - nextReport >= 0) {
+                nextReport += TimeUnit.MILLISECONDS.toNanos(reportIntervalMs);
+                System.out.printf(Locale.ROOT,
+                        "%6ds produced=%d delivered=%d duplicated=%d queued=%d (%d MB) evicted=%d dropped=%d " +
+                                "requests=%d 5xx=%d 429=%d resets=%d heap=%d MB%n",
+                        TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start),
+                        produced.sum(), collector.getUniqueEvents(), collector.getDuplicateEvents(),
+                        metrics.getQueueSize(), metrics.getQueueBytes() / MB,
+                        metrics.getEvictedMessages(), metrics.getDroppedMessages(),
+                        collector.getRequests(), collector.getServerErrors(), collector.getThrottled(),
+                        collector.getResets(), heap / MB);
+            }
+            // Done once every event has arrived or is known to be lost
+            long lost = metrics.getEvictedMessages() + metrics.getDroppedMessages();
+            if (!producing && (collector.getUniqueEvents() + lost >= events || System.nanoTime() - drainDeadline > 0)) {
+                break;
+            }
+        }
+        long elapsedNanos = System.nanoTime() - start;
+        appender.stop(drainTimeoutMs, TimeUnit.MILLISECONDS);
+        collector.stop();
+
+        LatencyHistogram latencies = collector.getLatencies();
+        long delivered = collector.getUniqueEvents();
+        System.out.printf(Locale.ROOT, "%nEvents:    produced=%d delivered=%d lost=%d duplicated=%d malformed=%d%n",
+                produced.sum(), delivered, events - delivered, collector.getDuplicateEvents(),
+                collector.getMalformedLines());
+        System.out.printf(Locale.ROOT, "Appender:  evicted=%d dropped=%d batches=%d retries=%d%n",
+                metrics.getEvictedMessages(), metrics.getDroppedMessages(), metrics.getBatchesSent(),
+                metrics.getRetries());
+        System.out.printf(Locale.ROOT, "Collector: requests=%d 5xx=%d 429=%d resets=%d%n",
+                collector.getRequests(), collector.getServerErrors(), collector.getThrottled(), collector.getResets());
+        System.out.printf(Locale.ROOT, "Latency:   p50=%.1f ms p90=%.1f ms p99=%.1f ms p99.9=%.1f ms max=%.1f ms%n",
+                latencies.percentile(50) / 1000.0, latencies.percentile(90) / 1000.0,
+                latencies.percentile(99) / 1000.0, latencies.percentile(99.9) / 1000.0,
+                latencies.percentile(100) / 1000.0);
+        System.out.printf(Locale.ROOT, "Rate:      %.0f events/s delivered, peak heap %d MB%n",
+                delivered * 1e9 / elapsedNanos, peakHeap / MB);
+    }
+
+    // Logs the ids first, first + stride, ... so that every thread's events are distinct
+    private static void produce(SumoLogicAppender appender, int first, int stride, long events, long rate,
+                                int messageBytes, long start, LongAdder produced) {
+        long nanosPerEvent = rate > 0 ? TimeUnit.SECONDS.toNanos(1) / rate : 0;
+        StringBuilder message = new StringBuilder(messageBytes + 40);
+        for (long id = first; id < events; id += stride) {
+            if (nanosPerEvent > 0) {
+                long due = start + id * nanosPerEvent;
+                long wait;
+                while ((wait = due - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+            }
+            message.setLength(0);
+            message.append(id).append(' ').append(System.nanoTime()).append(' ');
+            while (message.length() < messageBytes) {
+                message.append('x');
+            }
+            appender.append(Log4jLogEvent.newBuilder()
+                    .setLevel(Level.INFO)
+                    .setMessage(new SimpleMessage(message.toString()))
+                    .build());
+            produced.increment();
+        }
+    }
+
+    private static double doubleProperty(String name, double defaultValue) {
+        String value = System.getProperty(name);
+        return value == null ? defaultValue : Double.parseDouble(value);
+    }
+}
@@ -0,0 +1,114 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j.benchmarks;
+
+import com.sumologic.log4j.queue.DurableBuffer;
+import com.sumologic.log4j.queue.FsyncPolicy;
+import com.sumologic.log4j.queue.WriteAheadLogBuffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Append throughput of the write-ahead log under each {@link FsyncPolicy}, with several logging threads
+ * sharing group commits and one flusher draining and acknowledging. Results depend on the disk the
+ * temporary directory is on.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WriteAheadLogBenchmark {
+
+    private static final byte[] MESSAGE =
+            "2024-01-01 12:00:00,000 +0000 [main] INFO  com.example.Service - Processed request 42 in 17 ms\n"
+                    .getBytes(StandardCharsets.UTF_8);
+
+    @Param({"BATCH", "INTERVAL", "NEVER"})
+    public FsyncPolicy fsync;
+
+    private File directory;
+    private WriteAheadLogBuffer wal;
+    private List<String> drained;
+
+    @Setup
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("sumo-wal-benchmark").toFile();
+        wal = new WriteAheadLogBuffer("benchmark", directory, 100000000, fsync, 100);
+        drained = new ArrayList<String>(1000);
+    }
+
+    @TearDown
+    public void tearDown() {
+        wal.close();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Benchmark
+    @Group("wal")
+    @GroupThreads(4)
+    public boolean append() {
+        return wal.add(MESSAGE, 0, MESSAGE.length);
+    }
+
+    @Benchmark
+    @Group("wal")
+    @GroupThreads(1)
+    public int drain() {
+        drained.clear();
+        DurableBuffer.Receipt receipt = wal.drainUnacknowledged(drained, 1000);
+        receipt.acknowledge();
+        return drained.size();
+    }
+}
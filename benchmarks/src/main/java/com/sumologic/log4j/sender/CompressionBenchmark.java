@@ -0,0 +1,99 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j.sender;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+/**
+ * Cost of encoding a request body with each {@link Compression}, where {@code NONE} is the plain UTF-8
+ * encoding that is sent without compression. In this package to reach {@link Compressor}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompressionBenchmark {
+
+    @Param({"NONE", "GZIP", "DEFLATE"})
+    public Compression compression;
+
+    @Param({"1000"})
+    public int messages;
+
+    private Compressor compressor;
+    private String body;
+
+    @Setup
+    public void setUp() {
+        if (compression != Compression.NONE) {
+            compressor = new Compressor(compression, Deflater.DEFAULT_COMPRESSION);
+        }
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < messages; i++) {
+            builder.append("2024-01-01 12:00:").append(i % 60)
+                    .append(",000 +0000 [worker-").append(i % 8)
+                    .append("] INFO  com.example.Service - Processed request ").append(i)
+                    .append(" in ").append(i % 100).append(" ms\n");
+        }
+        body = builder.toString();
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (compressor != null) {
+            compressor.end();
+        }
+    }
+
+    @Benchmark
+    public void encode(Blackhole blackhole) {
+        if (compressor == null) {
+            blackhole.consume(body.getBytes(StandardCharsets.UTF_8));
+        } else {
+            blackhole.consume(compressor.compress(body));
+            blackhole.consume(compressor.buffer());
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j;
+
+import org.apache.logging.log4j.core.layout.ByteBufferDestination;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+/**
+ * Heap-backed {@link ByteBufferDestination} that a single thread reuses for every event it encodes.
+ * The buffer grows when a layout drains it and is only reallocated again if a single event
+ * outgrows it, so steady-state encoding does not allocate.
+ */
+final class ReusableByteBufferDestination implements ByteBufferDestination {
+
+    private static final int INITIAL_CAPACITY = 1024;
+    // Buffers grown beyond this size by an unusually large event are not kept around.
+    private static final int MAX_RETAINED_CAPACITY = 256 * 1024;
+
+    private ByteBuffer buffer = ByteBuffer.allocate(INITIAL_CAPACITY);
+
+    @Override
+    public ByteBuffer getByteBuffer() {
+        return buffer;
+    }
+
+    @Override
+    public ByteBuffer drain(ByteBuffer buf) {
+        // Called by encoders when the buffer is full; nothing is consumed here, so make room instead.
+        ensureCapacity(buffer.capacity());
+        return buffer;
+    }
+
+    @Override
+    public void writeBytes(ByteBuffer data) {
+        ensureCapacity(data.remaining());
+        buffer.put(data);
+    }
+
+    @Override
+    public void writeBytes(byte[] data, int offset, int length) {
+        ensureCapacity(length);
+        buffer.put(data, offset, length);
+    }
+
+    byte[] array() {
+        return buffer.array();
+    }
+
+    int length() {
+        return buffer.position();
+    }
+
+    void clear() {
+        if (buffer.capacity() > MAX_RETAINED_CAPACITY) {
+            buffer = ByteBuffer.allocate(INITIAL_CAPACITY);
+        } else {
+            // Cast for Java 8, where Buffer.clear and Buffer.flip do not return ByteBuffer
+            ((Buffer) buffer).clear();
+        }
+    }
+
+    private void ensureCapacity(int additional) {
+        if (buffer.remaining() >= additional) {
+            return;
+        }
+        int newCapacity = Math.max(buffer.capacity() * 2, buffer.position() + additional);
+        ByteBuffer grown = ByteBuffer.allocate(newCapacity);
+        ((Buffer) buffer).flip();
+        grown.put(buffer);
+        buffer = grown;
+    }
+}
@@ -0,0 +1,107 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j;
+
+import com.sumologic.log4j.aggregation.FlushScheduler;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.status.StatusLogger;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Flush scheduler and HTTP connection pool shared by the appenders of a logger context that set
+ * {@code shareResources}. They are created by the first appender to acquire them, with its sizes, and shut down
+ * when the last one releases them, so appenders that are replaced on reconfiguration keep using the same ones.
+ */
+final class SharedResources {
+
+    private static final Logger logger = StatusLogger.getLogger();
+
+    // Pooled connections are not reused after this long, so that the sockets opened for a burst do not stay open
+    private static final long CONNECTION_TIME_TO_LIVE_SECONDS = 60;
+
+    private static final Map<Object, SharedResources> byContext = new IdentityHashMap<Object, SharedResources>();
+
+    private final Object context;
+    private final int flushThreads;
+    private final int maxConnections;
+    private final FlushScheduler flushScheduler;
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private int references;
+
+    private SharedResources(Object context, int flushThreads, int maxConnections) {
+        this.context = context;
+        this.flushThreads = flushThreads;
+        this.maxConnections = maxConnections;
+        this.flushScheduler = new FlushScheduler("shared", flushThreads);
+        this.connectionManager = new PoolingHttpClientConnectionManager(CONNECTION_TIME_TO_LIVE_SECONDS,
+                TimeUnit.SECONDS);
+        connectionManager.setMaxTotal(Math.max(maxConnections, 1));
+        connectionManager.setDefaultMaxPerRoute(Math.max(maxConnections, 1));
+        connectionManager.setValidateAfterInactivity((int) TimeUnit.SECONDS.toMillis(2));
+    }
+
+    /**
+     * @param context logger context the resources are shared in, may be null for appenders built without a configuration
+     */
+    static SharedResources acquire(Object context, int flushThreads, int maxConnections) {
+        synchronized (byContext) {
+            SharedResources resources = byContext.get(context);
+            if (resources == null) {
+                resources = new SharedResources(context, flushThreads, maxConnections);
+                byContext.put(context, resources);
+            } else if (resources.flushThreads != flushThreads || resources.maxConnections != maxConnections) {
+                logger.warn("Shared resources already use {} flush threads and {} connections, ignoring {} and {}",
+                        resources.flushThreads, resources.maxConnections, flushThreads, maxConnections);
+            }
+            resources.references++;
+            return resources;
+        }
+    }
+
+    FlushScheduler flushScheduler() {
+        return flushScheduler;
+    }
+
+    PoolingHttpClientConnectionManager connectionManager() {
+        return connectionManager;
+    }
+
+    void release() {
+        synchronized (byContext) {
+            if (--references > 0) {
+                return;
+            }
+            byContext.remove(context);
+        }
+        flushScheduler.stop();
+        connectionManager.shutdown();
+    }
+}
@@ -0,0 +1,411 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.Layout;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.config.Node;
+import org.apache.logging.log4j.core.config.plugins.Plugin;
+import org.apache.logging.log4j.core.config.plugins.PluginBuilderAttribute;
+import org.apache.logging.log4j.core.config.plugins.PluginBuilderFactory;
+import org.apache.logging.log4j.core.layout.AbstractStringLayout;
+import org.apache.logging.log4j.core.layout.ByteBufferDestination;
+import org.apache.logging.log4j.message.Message;
+import org.apache.logging.log4j.util.ReadOnlyStringMap;
+import org.apache.logging.log4j.util.StringBuilderFormattable;
+import org.apache.logging.log4j.util.TriConsumer;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+
+/**
+ * Writes each event as one line of JSON with its timestamp, level, logger, thread, message, thread context and
+ * exception:
+ * <pre>
+ * {"timestamp":"2024-05-01T12:00:00.123Z","level":"INFO","logger":"com.example.App","thread":"main","message":"Started","context":{"user":"42"}}
+ * </pre>
+ * Events are encoded into a reusable per-thread byte array, writing UTF-8 with JSON escaping straight from the
+ * characters. Keys and level values are encoded once, and the timestamp up to the second is encoded once per second and
+ * thread, so {@link #encode(LogEvent, ByteBufferDestination)} does not allocate for messages that can format themselves
+ * into a {@link StringBuilder}. Timestamps are in UTC.
+ */
+@Plugin(name = "SumoJsonLayout", category = Node.CATEGORY, elementType = Layout.ELEMENT_TYPE, printObject = true)
+public final class SumoJsonLayout extends AbstractStringLayout {
+
+    private static final byte[] TIMESTAMP_KEY = ascii("{\"timestamp\":\"");
+    private static final byte[] LEVEL_KEY = ascii("Z\",\"level\":");
+    private static final byte[] LOGGER_KEY = ascii(",\"logger\":");
+    private static final byte[] THREAD_KEY = ascii(",\"thread\":");
+    private static final byte[] MESSAGE_KEY = ascii(",\"message\":");
+    private static final byte[] CONTEXT_KEY = ascii(",\"context\":{");
+    private static final byte[] EXCEPTION_KEY = ascii(",\"exception\":");
+    private static final byte[] END = ascii("}\n");
+    private static final byte[] NULL = ascii("null");
+    private static final byte[] HEX = ascii("0123456789abcdef");
+
+    private static final Level[] STANDARD_LEVELS = {
+            Level.OFF, Level.FATAL, Level.ERROR, Level.WARN, Level.INFO, Level.DEBUG, Level.TRACE, Level.ALL
+    };
+    private static final byte[][] STANDARD_LEVEL_VALUES = new byte[STANDARD_LEVELS.length][];
+
+    static {
+        for (int i = 0; i < STANDARD_LEVELS.length; i++) {
+            STANDARD_LEVEL_VALUES[i] = ascii("\"" + STANDARD_LEVELS[i].name() + "\"");
+        }
+    }
+
+    private static final TriConsumer<String, Object, Encoder> CONTEXT_WRITER = new TriConsumer<String, Object, Encoder>() {
+        @Override
+        public void accept(String key, Object value, Encoder encoder) {
+            if (encoder.contextEntries++ > 0) {
+                encoder.write((byte) ',');
+            }
+            encoder.writeString(key);
+            encoder.write((byte) ':');
+            if (value == null) {
+                encoder.write(NULL);
+            } else {
+                encoder.writeString(value instanceof String ? (String) value : String.valueOf(value));
+            }
+        }
+    };
+
+    private final boolean includeContext;
+    private final boolean includeStackTrace;
+    private final ThreadLocal<Encoder> encoders = new ThreadLocal<Encoder>();
+
+    private SumoJsonLayout(boolean includeContext, boolean includeStackTrace) {
+        super(StandardCharsets.UTF_8);
+        this.includeContext = includeContext;
+        this.includeStackTrace = includeStackTrace;
+    }
+
+    @PluginBuilderFactory
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    public static class Builder implements org.apache.logging.log4j.core.util.Builder<SumoJsonLayout> {
+        @PluginBuilderAttribute
+        private boolean includeContext = true;
+        @PluginBuilderAttribute
+        private boolean includeStackTrace = true;
+
+        public Builder setIncludeContext(final boolean includeContext) {
+            this.includeContext = includeContext;
+            return this;
+        }
+
+        public Builder setIncludeStackTrace(final boolean includeStackTrace) {
+            this.includeStackTrace = includeStackTrace;
+            return this;
+        }
+
+        @Override
+        public SumoJsonLayout build() {
+            return new SumoJsonLayout(includeContext, includeStackTrace);
+        }
+    }
+
+    @Override
+    public String getContentType() {
+        return "application/json; charset=UTF-8";
+    }
+
+    @Override
+    public String toSerializable(LogEvent event) {
+        Encoder encoder = encoded(event);
+        try {
+            return new String(encoder.bytes, 0, encoder.length, StandardCharsets.UTF_8);
+        } finally {
+            encoder.clear();
+        }
+    }
+
+    @Override
+    public byte[] toByteArray(LogEvent event) {
+        Encoder encoder = encoded(event);
+        try {
+            return Arrays.copyOf(encoder.bytes, encoder.length);
+        } finally {
+            encoder.clear();
+        }
+    }
+
+    @Override
+    public void encode(LogEvent event, ByteBufferDestination destination) {
+        Encoder encoder = encoded(event);
+        try {
+            destination.writeBytes(encoder.bytes, 0, encoder.length);
+        } finally {
+            encoder.clear();
+        }
+    }
+
+    // The encoder is busy until cleared by the caller
+    private Encoder encoded(LogEvent event) {
+        Encoder encoder = encoders.get();
+        if (encoder == null) {
+            encoder = new Encoder();
+            encoders.set(encoder);
+        } else if (encoder.busy) {
+            // Formatting an event logged another one on this thread, which must not write into the same encoder
+            encoder = new Encoder();
+        }
+        encoder.busy = true;
+        boolean written = false;
+        try {
+            write(event, encoder);
+            written = true;
+            return encoder;
+        } finally {
+            if (!written) {
+                encoder.clear();
+            }
+        }
+    }
+
+    private void write(LogEvent event, Encoder encoder) {
+        encoder.write(TIMESTAMP_KEY);
+        encoder.writeTimestamp(event.getTimeMillis());
+        encoder.write(LEVEL_KEY);
+        encoder.writeLevel(event.getLevel());
+        encoder.write(LOGGER_KEY);
+        encoder.writeString(event.getLoggerName());
+        encoder.write(THREAD_KEY);
+        encoder.writeString(event.getThreadName());
+        encoder.write(MESSAGE_KEY);
+        encoder.writeMessage(event.getMessage());
+        if (includeContext) {
+            ReadOnlyStringMap context = event.getContextData();
+            if (context != null && !context.isEmpty()) {
+                encoder.write(CONTEXT_KEY);
+                encoder.contextEntries = 0;
+                context.forEach(CONTEXT_WRITER, encoder);
+                encoder.write((byte) '}');
+            }
+        }
+        Throwable thrown = event.getThrown();
+        if (thrown != null) {
+            encoder.write(EXCEPTION_KEY);
+            if (includeStackTrace) {
+                StringWriter stackTrace = new StringWriter();
+                thrown.printStackTrace(new PrintWriter(stackTrace));
+                encoder.writeString(stackTrace.toString());
+            } else {
+                encoder.writeString(thrown.toString());
+            }
+        }
+        encoder.write(END);
+    }
+
+    private static byte[] ascii(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    // Per-thread output and scratch space; grows to fit the largest event and shrinks again after an outlier
+    private static final class Encoder {
+        private static final int INITIAL_CAPACITY = 1024;
+        private static final int MAX_RETAINED_CAPACITY = 256 * 1024;
+        // Length of "yyyy-MM-ddTHH:mm:ss."
+        private static final int SECOND_PREFIX_LENGTH = 20;
+
+        byte[] bytes = new byte[INITIAL_CAPACITY];
+        int length;
+        int contextEntries;
+        boolean busy;
+        private StringBuilder text = new StringBuilder(INITIAL_CAPACITY);
+        private final byte[] secondPrefix = new byte[SECOND_PREFIX_LENGTH];
+        private long cachedSecond = Long.MIN_VALUE;
+
+        void clear() {
+            length = 0;
+            busy = false;
+            if (bytes.length > MAX_RETAINED_CAPACITY) {
+                bytes = new byte[INITIAL_CAPACITY];
+            }
+            if (text.capacity() > MAX_RETAINED_CAPACITY) {
+                text = new StringBuilder(INITIAL_CAPACITY);
+            }
+        }
+
+        void write(byte value) {
+            ensureCapacity(1);
+            bytes[length++] = value;
+        }
+
+        void write(byte[] value) {
+            ensureCapacity(value.length);
+            System.arraycopy(value, 0, bytes, length, value.length);
+            length += value.length;
+        }
+
+        void writeLevel(Level level) {
+            for (int i = 0; i < STANDARD_LEVELS.length; i++) {
+                if (STANDARD_LEVELS[i] == level) {
+                    write(STANDARD_LEVEL_VALUES[i]);
+                    return;
+                }
+            }
+            writeString(level == null ? null : level.name());
+        }
+
+        void writeMessage(Message message) {
+            if (message == null) {
+                write(NULL);
+            } else if (message instanceof StringBuilderFormattable) {
+                text.setLength(0);
+                ((StringBuilderFormattable) message).formatTo(text);
+                writeString(text);
+            } else {
+                writeString(message.getFormattedMessage());
+            }
+        }
+
+        // Writes "yyyy-MM-ddTHH:mm:ss.SSS" in UTC, reusing the part up to the second
+        void writeTimestamp(long timeMillis) {
+            long second = Math.floorDiv(timeMillis, 1000L);
+            if (second != cachedSecond) {
+                LocalDateTime time = LocalDateTime.ofEpochSecond(second, 0, ZoneOffset.UTC);
+                writeDigits(secondPrefix, 0, time.getYear(), 4);
+                secondPrefix[4] = '-';
+                writeDigits(secondPrefix, 5, time.getMonthValue(), 2);
+                secondPrefix[7] = '-';
+                writeDigits(secondPrefix, 8, time.getDayOfMonth(), 2);
+                secondPrefix[10] = 'T';
+                writeDigits(secondPrefix, 11, time.getHour(), 2);
+                secondPrefix[13] = ':';
+                writeDigits(secondPrefix, 14, time.getMinute(), 2);
+                secondPrefix[16] = ':';
+                writeDigits(secondPrefix, 17, time.getSecond(), 2);
+                secondPrefix[19] = '.';
+                cachedSecond = second;
+            }
+            write(secondPrefix);
+            ensureCapacity(3);
+            writeDigits(bytes, length, (int) Math.floorMod(timeMillis, 1000L), 3);
+            length += 3;
+        }
+
+        // Writes a quoted JSON string, encoding UTF-8 and escaping as it goes
+        void writeString(CharSequence value) {
+            if (value == null) {
+                write(NULL);
+                return;
+            }
+            int chars = value.length();
+            // Enough for the quotes and any character but escaped control characters, checked again below
+            ensureCapacity(chars * 3 + 2);
+            byte[] out = bytes;
+            int position = length;
+            out[position++] = '"';
+            for (int i = 0; i < chars; i++) {
+                char c = value.charAt(i);
+                if (c >= 0x20 && c < 0x80 && c != '"' && c != '\\') {
+                    out[position++] = (byte) c;
+                } else if (c < 0x80) {
+                    length = position;
+                    ensureCapacity(6 + (chars - i) * 3 + 1);
+                    out = bytes;
+                    position = escape(out, length, c);
+                } else if (c < 0x800) {
+                    out[position++] = (byte) (0xc0 | (c >> 6));
+                    out[position++] = (byte) (0x80 | (c & 0x3f));
+                } else if (Character.isHighSurrogate(c) && i + 1 < chars && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                    // Four bytes for the two characters of the pair, which were budgeted six
+                    out[position++] = (byte) (0xf0 | (codePoint >> 18));
+                    out[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                    out[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                    out[position++] = (byte) (0x80 | (codePoint & 0x3f));
+                } else if (Character.isSurrogate(c)) {
+                    // Unpaired surrogates cannot be encoded
+                    out[position++] = '?';
+                } else {
+                    out[position++] = (byte) (0xe0 | (c >> 12));
+                    out[position++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                    out[position++] = (byte) (0x80 | (c & 0x3f));
+                }
+            }
+            out[position++] = '"';
+            length = position;
+        }
+
+        private static int escape(byte[] out, int position, char c) {
+            out[position++] = '\\';
+            switch (c) {
+                case '"':
+                    out[position++] = '"';
+                    break;
+                case '\\':
+                    out[position++] = '\\';
+                    break;
+                case '\n':
+                    out[position++] = 'n';
+                    break;
+                case '\r':
+                    out[position++] = 'r';
+                    break;
+                case '\t':
+                    out[position++] = 't';
+                    break;
+                case '\b':
+                    out[position++] = 'b';
+                    break;
+                case '\f':
+                    out[position++] = 'f';
+                    break;
+                default:
+                    out[position++] = 'u';
+                    out[position++] = '0';
+                    out[position++] = '0';
+                    out[position++] = HEX[c >> 4];
+                    out[position++] = HEX[c & 0xf];
+            }
+            return position;
+        }
+
+        private static void writeDigits(byte[] target, int offset, int value, int digits) {
+            for (int i = offset + digits - 1; i >= offset; i--) {
+                target[i] = (byte) ('0' + value % 10);
+                value /= 10;
+            }
+        }
+
+        private void ensureCapacity(int additional) {
+            if (bytes.length - length >= additional) {
+                return;
+            }
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + additional));
+        }
+    }
+}
@@ -26,25 +26,60 @@
 
 package com.sumologic.log4j;
 
-import com.sumologic.http.aggregation.SumoBufferFlusher;
 import com.sumologic.http.sender.ProxySettings;
-import com.sumologic.http.sender.SumoHttpSender;
 import com.sumologic.http.queue.BufferWithEviction;
-import com.sumologic.http.queue.BufferWithFifoEviction;
 import com.sumologic.http.queue.CostBoundedConcurrentQueue;
+import com.sumologic.log4j.aggregation.BufferFlusher;
+import com.sumologic.log4j.aggregation.DiskSpillover;
+import com.sumologic.log4j.aggregation.RateLimiter;
+import com.sumologic.log4j.aggregation.RepeatedMessageCollapser;
+import com.sumologic.log4j.aggregation.SourceRouting;
+import com.sumologic.log4j.metrics.AppenderMetrics;
+import com.sumologic.log4j.queue.ByteArrayRingBuffer;
+import com.sumologic.log4j.queue.CostAwareBuffer;
+import com.sumologic.log4j.queue.CostAwareFifoBuffer;
+import com.sumologic.log4j.queue.DurableBuffer;
+import com.sumologic.log4j.queue.EncodedMessageBuffer;
+import com.sumologic.log4j.queue.FsyncPolicy;
+import com.sumologic.log4j.queue.LevelPriorityBuffer;
+import com.sumologic.log4j.queue.LockFreeRingBuffer;
+import com.sumologic.log4j.queue.MappedSegmentStore;
+import com.sumologic.log4j.queue.OffHeapSegmentedBuffer;
+import com.sumologic.log4j.queue.OverflowPolicy;
+import com.sumologic.log4j.queue.QueueType;
+import com.sumologic.log4j.queue.Utf8;
+import com.sumologic.log4j.queue.WriteAheadLogBuffer;
+import com.sumologic.log4j.sender.AbstractTransport;
+import com.sumologic.log4j.sender.CircuitBreaker;
+import com.sumologic.log4j.sender.Compression;
+import com.sumologic.log4j.sender.HttpClientSender;
+import com.sumologic.log4j.sender.LoadBalancing;
+import com.sumologic.log4j.sender.NioHttpSender;
+import com.sumologic.log4j.sender.SenderPool;
+import com.sumologic.log4j.sender.TransportType;
+import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.core.Filter;
 import org.apache.logging.log4j.core.Layout;
 import org.apache.logging.log4j.core.LogEvent;
 import org.apache.logging.log4j.core.appender.AbstractAppender;
+import org.apache.logging.log4j.core.config.Configuration;
 import org.apache.logging.log4j.core.config.Property;
 import org.apache.logging.log4j.core.config.plugins.*;
 import org.apache.logging.log4j.core.config.plugins.validation.constraints.Required;
 import org.apache.logging.log4j.core.layout.PatternLayout;
+import org.apache.logging.log4j.core.lookup.Interpolator;
+import org.apache.logging.log4j.core.lookup.StrSubstitutor;
 import org.apache.logging.log4j.status.StatusLogger;
 
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
 import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Log4J 2 Appender that sends log messages to Sumo Logic.
@@ -58,19 +93,94 @@ public class SumoLogicAppender extends AbstractAppender {
     private static final int DEFAULT_CONNECTION_TIMEOUT = 1000;         // Connection timeout (ms)
     private static final int DEFAULT_SOCKET_TIMEOUT = 60000;            // Socket timeout (ms)
     private static final int DEFAULT_RETRY_INTERVAL = 10000;            // If a request fails, how often do we retry.
-    private static final int DEFAULT_MAX_NUMBER_OF_RETRIES = -1;        // Maximum number of retries for a single request, infinity if negative.
+    private static final int DEFAULT_MAX_NUMBER_OF_RETRIES = 10;        // Maximum number of retries for a single request, infinity if negative.
     private static final int DEFAULT_MESSAGES_PER_REQUEST = 100;        // How many messages need to be in the queue before we flush
     private static final long DEFAULT_MAX_FLUSH_INTERVAL = 10000;       // Maximum interval between flushes (ms)
-    private static final long DEFAULT_FLUSHING_ACCURACY = 250;          // How often the flushed thread looks into the message queue (ms)
+    private static final long DEFAULT_FLUSHING_ACCURACY = 250;          // No longer used, the flushing thread is woken up when there is work
     private static final long DEFAULT_MAX_QUEUE_SIZE_BYTES = 1000000;   // Maximum message queue size (bytes)
+    private static final long DEFAULT_MAX_BYTES_PER_REQUEST = 0;        // Maximum request body size (bytes), no limit if not positive
     private static final boolean FLUSH_ALL_MESSAGES_BEFORE_STOPPING = false;   // Flush Before Stoping irrespective of  flushingAccuracy
-    private static final String DEFAULT_RETRY_HTTP_CODE_REGEX = "^5.*"; // Retry for any 5xx HTTP response code
+    private static final String DEFAULT_RETRY_HTTP_CODE_REGEX = "^(5..|429)$"; // Retry for any 5xx HTTP response code and 429
+    private static final boolean DEFAULT_GARBAGE_FREE = false;          // Encode events into reusable buffers instead of Strings
+    private static final QueueType DEFAULT_QUEUE_TYPE = QueueType.FIFO; // Message queue implementation
+    private static final Compression DEFAULT_COMPRESSION = Compression.NONE; // Request body compression
+    private static final int DEFAULT_SENDER_THREADS = 1;                // Threads sending requests concurrently
+    private static final int DEFAULT_MAX_IN_FLIGHT_REQUESTS = 0;        // Requests being sent or waiting for a sender thread, senderThreads if not positive
+    private static final boolean DEFAULT_PRESERVE_ORDER = false;        // Send requests one at a time, in order
+    private static final TransportType DEFAULT_TRANSPORT = TransportType.BLOCKING; // HTTP client implementation
+    private static final long DEFAULT_SPILLOVER_MAX_BYTES = 100000000;  // Disk quota for spilled messages (bytes)
+    private static final double DEFAULT_SPILLOVER_HIGH_WATER_MARK = 0.8; // Fraction of maxQueueSizeBytes above which messages are spilled
+    private static final long DEFAULT_SPILLOVER_REPLAY_BYTES_PER_SECOND = 1000000; // Replay rate of spilled messages, unlimited if not positive
+    private static final FsyncPolicy DEFAULT_WAL_FSYNC = FsyncPolicy.BATCH; // When the write-ahead log is forced to disk
+    private static final long DEFAULT_WAL_FSYNC_INTERVAL = 1000;        // Interval between forcing the write-ahead log to disk (ms)
+    private static final OverflowPolicy DEFAULT_OVERFLOW_POLICY = OverflowPolicy.DROP_OLDEST; // What to do with messages that do not fit into the queue
+    private static final long DEFAULT_OVERFLOW_TIMEOUT = 100;           // How long to wait for room in the queue with the block policy (ms)
+    private static final long DEFAULT_PRIORITY_FLUSH_INTERVAL = 50;     // Maximum interval between flushes of priority messages (ms)
+    private static final long DEFAULT_PRIORITY_QUEUE_SIZE_BYTES = 100000; // Maximum priority message queue size (bytes)
+    private static final boolean DEFAULT_JMX_ENABLED = true;            // Register an MBean with the appender's metrics
+    private static final LoadBalancing DEFAULT_LOAD_BALANCING = LoadBalancing.ROUND_ROBIN; // How requests are spread over several URLs
+    private static final long DEFAULT_MAX_RETRY_INTERVAL = 60000;       // Upper bound of the exponential retry backoff (ms)
+    private static final int DEFAULT_CIRCUIT_BREAKER_THRESHOLD = 5;     // Failed attempts in a row that pause sending, never if not positive
+    private static final long DEFAULT_CIRCUIT_BREAKER_OPEN_INTERVAL = 10000; // How long sending is paused before probing (ms)
+    private static final long DEFAULT_RETRY_QUEUE_SIZE_BYTES = 1000000; // Budget of failed requests waiting to be retried (bytes), retried in line if not positive
+    private static final long DEFAULT_COLLAPSE_REPEATED_WINDOW = 0;     // Window in which repeated messages are collapsed (ms), disabled if not positive
+    private static final int DEFAULT_COLLAPSE_REPEATED_MAX_ENTRIES = 1000; // Distinct messages tracked for collapsing
+    private static final double DEFAULT_RATE_LIMIT_PER_SECOND = 0;      // Events per second allowed per rate limit key, unlimited if not positive
+    private static final int DEFAULT_RATE_LIMIT_BURST = 0;              // Events allowed in a burst per key, one second's worth if not positive
+    private static final double DEFAULT_RATE_LIMIT_SAMPLE_RATE = 0;     // Fraction of the events above the limit that are kept anyway
+    private static final long DEFAULT_RATE_LIMIT_SUMMARY_INTERVAL = 60000; // Interval of the suppressed events summaries (ms)
+    private static final boolean DEFAULT_SHARE_RESOURCES = false;       // Flush and connect through resources shared by the appenders of the logger context
+    private static final int DEFAULT_SHARED_FLUSH_THREADS = 2;          // Upper bound of the shared flush threads
+    private static final int DEFAULT_SHARED_MAX_CONNECTIONS = 20;       // Upper bound of the shared HTTP connections
+    private static final boolean DEFAULT_LAZY_START = false;            // Initialize the sender and start flushing in the background
+    private static final boolean DEFAULT_PREWARM_CONNECTIONS = false;   // Resolve and connect to the collector ahead of the first request
+    private static final long START_WAIT_WITHOUT_STOP_TIMEOUT = 10000;  // How long stopping waits for a lazy start if no stop timeout is given (ms)
 
-    private SumoHttpSender sender;
-    private SumoBufferFlusher flusher;
+    // How often a blocked append checks whether the queue has room
+    private static final long OVERFLOW_POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private AbstractTransport sender;
+    private SenderPool senderPool;
+    private volatile BufferFlusher flusher;
+    private final Level priorityLevel;
+    volatile private BufferWithEviction<String> priorityQueue;
+    private volatile BufferFlusher priorityFlusher;
+    private volatile DiskSpillover spillover;
     volatile private BufferWithEviction<String> queue;
+    private final boolean garbageFree;
+    private final OverflowPolicy overflowPolicy;
+    private final long overflowTimeoutNanos;
+    private volatile boolean droppingNewest;
+    private final boolean flushAllBeforeStopping;
+    private final AppenderMetrics metrics;
+    // Resolves source metadata per event, null unless one of them has a lookup
+    private final StrSubstitutor sourceSubstitutor;
+    private final String sourceNamePattern;
+    private final String sourceCategoryPattern;
+    private final String sourceHostPattern;
+    private final boolean jmxEnabled;
+    private final RepeatedMessageCollapser collapser;
+    private final RateLimiter rateLimiter;
+    private final SharedResources sharedResources;
+    // Counted down once the sender is initialized with lazy start, null otherwise
+    private final CountDownLatch starting;
+    // Runs the lazy start, null otherwise
+    private final Thread starter;
+    // Guards sendingStarted and startAbandoned, so that a lazy start either completes or is abandoned by stop
+    private final Object startLock = new Object();
+    private boolean sendingStarted;
+    private boolean startAbandoned;
+    private final ThreadLocal<ReusableByteBufferDestination> destinations = new ThreadLocal<ReusableByteBufferDestination>();
     private static final Logger logger = StatusLogger.getLogger();
     private static final String CLIENT_NAME = "log4j2-appender";
+    private static final CostBoundedConcurrentQueue.CostAssigner<String> STRING_COST = new CostBoundedConcurrentQueue.CostAssigner<String>() {
+        @Override
+        public long cost(String e) {
+            // Note: This is only an estimate for total byte usage, since in UTF-8 encoding,
+            // the size of one character may be > 1 byte.
+            return e.length();
+        }
+    };
 
     protected SumoLogicAppender(String name, Filter filter,
                                 Layout<? extends Serializable> layout, final boolean ignoreExceptions,
@@ -80,42 +190,376 @@ public class SumoLogicAppender extends AbstractAppender {
                                 String sourceCategory, String sourceHost,
                                 Long flushingAccuracy, Long maxQueueSizeBytes, Boolean flushAllBeforeStopping,
                                 String retryableHttpCodeRegex, String fields) {
-        super(name, filter, layout, ignoreExceptions, Property.EMPTY_ARRAY);
+        this(newBuilder()
+                .setName(name)
+                .setFilter(filter)
+                .setLayout(layout)
+                .setUrl(url)
+                .setRetryInterval(retryInterval)
+                .setMaxNumberOfRetries(maxNumberOfRetries)
+                .setConnectionTimeout(connectionTimeout)
+                .setSocketTimeout(socketTimeout)
+                .setMessagesPerRequest(messagesPerRequest)
+                .setMaxFlushInterval(maxFlushInterval)
+                .setSourceName(sourceName)
+                .setSourceCategory(sourceCategory)
+                .setSourceHost(sourceHost)
+                .setFlushingAccuracy(flushingAccuracy)
+                .setMaxQueueSizeBytes(maxQueueSizeBytes)
+                .setFlushAllBeforeStopping(flushAllBeforeStopping)
+                .setRetryableHttpCodeRegex(retryableHttpCodeRegex)
+                .setFields(fields), ignoreExceptions, proxySettings);
+    }
+
+    private SumoLogicAppender(Builder builder, final boolean ignoreExceptions, ProxySettings proxySettings) {
+        super(builder.name, builder.filter, builder.layout, ignoreExceptions, Property.EMPTY_ARRAY);
+        flushAllBeforeStopping = builder.flushAllBeforeStopping;
+        metrics = new AppenderMetrics(builder.name);
+        jmxEnabled = builder.jmxEnabled;
+        overflowTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(builder.overflowTimeout);
 
         // Initialize queue
-        queue = new BufferWithFifoEviction<String>(maxQueueSizeBytes, new CostBoundedConcurrentQueue.CostAssigner<String>() {
-         @Override
-         public long cost(String e) {
-             // Note: This is only an estimate for total byte usage, since in UTF-8 encoding,
-             // the size of one character may be > 1 byte.
-             return e.length();
-         }
+        if (builder.walDirectory != null) {
+            if (builder.queueType != DEFAULT_QUEUE_TYPE) {
+                logger.warn("Queue type {} is ignored when a write-ahead log is used", builder.queueType);
+            }
+            try {
+                queue = new WriteAheadLogBuffer(builder.name,
+                        new File(builder.walDirectory),
+                        builder.maxQueueSizeBytes,
+                        builder.walFsync,
+                        builder.walFsyncInterval);
+            } catch (IOException e) {
+                logger.error("Unable to use write-ahead log directory {}, continuing without it",
+                        builder.walDirectory, e);
+            } catch (IllegalArgumentException e) {
+                logger.error("Invalid write-ahead log settings, continuing without it", e);
+            }
+        }
+        OverflowPolicy policy = builder.overflowPolicy;
+        boolean encoded = builder.garbageFree;
+        if (policy == OverflowPolicy.LEVEL_PRIORITY) {
+            if (queue != null) {
+                logger.warn("Overflow policy {} is not supported with a write-ahead log, using {}",
+                        policy, OverflowPolicy.DROP_OLDEST);
+                policy = OverflowPolicy.DROP_OLDEST;
+            } else {
+                if (builder.queueType != DEFAULT_QUEUE_TYPE) {
+                    logger.warn("Queue type {} is ignored with overflow policy {}", builder.queueType, policy);
+                }
+                if (encoded) {
+                    logger.warn("Overflow policy {} does not support garbage-free mode", policy);
+                    encoded = false;
+                }
+                queue = new LevelPriorityBuffer(builder.maxQueueSizeBytes, STRING_COST);
+            }
+        }
+        overflowPolicy = policy;
+        garbageFree = encoded;
+
+        // Initialize priority queue
+        priorityLevel = builder.priorityLevel;
+        if (priorityLevel != null) {
+            if (queue instanceof WriteAheadLogBuffer) {
+                try {
+                    priorityQueue = new WriteAheadLogBuffer(builder.name + "-priority",
+                            new File(builder.walDirectory, "priority"),
+                            builder.priorityQueueSizeBytes,
+                            builder.walFsync,
+                            builder.walFsyncInterval);
+                } catch (IOException e) {
+                    logger.error("Unable to use a write-ahead log for priority messages, keeping them in memory", e);
+                }
+            }
+            if (priorityQueue == null) {
+                priorityQueue = garbageFree ? new ByteArrayRingBuffer(builder.priorityQueueSizeBytes)
+                        : new CostAwareFifoBuffer<String>(builder.priorityQueueSizeBytes, STRING_COST);
+            }
+        }
+        if (queue == null) {
+            QueueType queueType = builder.queueType;
+            if (garbageFree && queueType != QueueType.RING && queueType != QueueType.OFFHEAP) {
+                // Encoded events need a queue that stores bytes, so that they can be enqueued without a String.
+                if (queueType != QueueType.FIFO) {
+                    logger.warn("Queue type {} does not support garbage-free mode, using {}", queueType, QueueType.RING);
+                }
+                queueType = QueueType.RING;
+            }
+            switch (queueType) {
+                case RING:
+                    queue = new ByteArrayRingBuffer(builder.maxQueueSizeBytes);
+                    break;
+                case OFFHEAP:
+                    queue = new OffHeapSegmentedBuffer(builder.maxQueueSizeBytes);
+                    break;
+                case LOCKFREE:
+                    queue = new LockFreeRingBuffer<String>(builder.maxQueueSizeBytes, STRING_COST);
+                    break;
+                default:
+                    queue = new CostAwareFifoBuffer<String>(builder.maxQueueSizeBytes, STRING_COST);
+            }
+        }
+
+        // Initialize metrics
+        ((CostAwareBuffer) queue).setEvictionListener(metrics);
+        if (priorityQueue != null) {
+            ((CostAwareBuffer) priorityQueue).setEvictionListener(metrics);
+        }
+        metrics.setQueueGauge(new AppenderMetrics.QueueGauge() {
+            @Override
+            public int size() {
+                BufferWithEviction<String> currentPriorityQueue = priorityQueue;
+                return queue.size() + (currentPriorityQueue == null ? 0 : currentPriorityQueue.size());
+            }
+
+            @Override
+            public long bytes() {
+                CostAwareBuffer currentPriorityQueue = (CostAwareBuffer) priorityQueue;
+                return ((CostAwareBuffer) queue).cost() + (currentPriorityQueue == null ? 0 : currentPriorityQueue.cost());
+            }
         });
+        if (jmxEnabled) {
+            metrics.registerMBean();
+        }
+
+        // Initialize source routing
+        sourceNamePattern = builder.sourceName;
+        sourceCategoryPattern = builder.sourceCategory;
+        sourceHostPattern = builder.sourceHost;
+        if (hasLookup(sourceNamePattern) || hasLookup(sourceCategoryPattern) || hasLookup(sourceHostPattern)) {
+            sourceSubstitutor = builder.configuration != null ? builder.configuration.getStrSubstitutor()
+                    : new StrSubstitutor(new Interpolator());
+        } else {
+            sourceSubstitutor = null;
+        }
+
+        // Initialize resources shared with the other appenders of the logger context
+        if (builder.shareResources) {
+            sharedResources = SharedResources.acquire(
+                    builder.configuration != null ? builder.configuration.getLoggerContext() : null,
+                    builder.sharedFlushThreads,
+                    builder.sharedMaxConnections);
+        } else {
+            sharedResources = null;
+        }
 
         // Initialize sender
-        sender = new SumoHttpSender();
-        sender.setRetryIntervalMs(retryInterval);
-        sender.setMaxNumberOfRetries(maxNumberOfRetries);
-        sender.setConnectionTimeoutMs(connectionTimeout);
-        sender.setSocketTimeoutMs(socketTimeout);
-        sender.setUrl(url);
-        sender.setSourceName(sourceName);
-        sender.setSourceCategory(sourceCategory);
-        sender.setSourceHost(sourceHost);
+        TransportType transport = builder.transport;
+        if (transport == TransportType.NIO && proxySettings != null && proxySettings.getHostname() != null) {
+            logger.warn("Transport {} does not support proxies, using {}", transport, TransportType.BLOCKING);
+            transport = TransportType.BLOCKING;
+        } else if (transport == TransportType.NIO) {
+            logger.warn("Transport {} is experimental, {} is recommended for production", transport,
+                    TransportType.BLOCKING);
+        }
+        sender = transport == TransportType.NIO ? new NioHttpSender(builder.name) : new HttpClientSender(builder.name);
+        sender.setRetryIntervalMs(builder.retryInterval);
+        sender.setMaxRetryIntervalMs(builder.maxRetryInterval);
+        if (builder.preserveOrder) {
+            // Requests are retried in line, so that none overtakes a failing one
+            sender.setRetryQueueSizeBytes(0);
+        } else {
+            sender.setRetryQueueSizeBytes(builder.retryQueueSizeBytes);
+        }
+        sender.setMaxNumberOfRetries(builder.maxNumberOfRetries);
+        sender.setConnectionTimeoutMs(builder.connectionTimeout);
+        sender.setSocketTimeoutMs(builder.socketTimeout);
+        sender.setLoadBalancing(builder.loadBalancing);
+        sender.setUrl(builder.url);
+        // Used for messages queued without routing, e.g. in a write-ahead log written before routing was configured
+        sender.setSourceName(resolveSource(null, sourceNamePattern));
+        sender.setSourceCategory(resolveSource(null, sourceCategoryPattern));
+        sender.setSourceHost(resolveSource(null, sourceHostPattern));
         sender.setProxySettings(proxySettings);
         sender.setClientHeaderValue(CLIENT_NAME);
-        sender.setFieldsHeaderValue(fields);
-        sender.setRetryableHttpCodeRegex(retryableHttpCodeRegex);
-        sender.init();
+        sender.setFieldsHeaderValue(builder.fields);
+        sender.setRetryableHttpCodeRegex(builder.retryableHttpCodeRegex);
+        sender.setCompression(builder.compression);
+        sender.setMetrics(metrics);
+        if (builder.circuitBreakerThreshold > 0) {
+            sender.setCircuitBreaker(new CircuitBreaker(builder.circuitBreakerThreshold,
+                    builder.circuitBreakerOpenInterval));
+        }
+        if (sharedResources != null && sender instanceof HttpClientSender) {
+            ((HttpClientSender) sender).setSharedConnectionManager(sharedResources.connectionManager());
+        }
+        sender.setMaxConnections(SenderPool.connectionsNeeded(sender.isBlocking(),
+                builder.senderThreads, builder.maxInFlightRequests, builder.preserveOrder));
+        metrics.setRetryGauge(sender.getRetryQueue());
+        senderPool = new SenderPool(builder.name,
+                sender,
+                builder.senderThreads,
+                builder.maxInFlightRequests,
+                builder.preserveOrder);
+
+        // Initialize spillover
+        if (builder.spilloverDirectory != null && queue instanceof DurableBuffer) {
+            logger.warn("Spillover is not used with a write-ahead log, ignoring spilloverDirectory");
+        } else if (builder.spilloverDirectory != null) {
+            try {
+                MappedSegmentStore store = new MappedSegmentStore(new File(builder.spilloverDirectory),
+                        builder.spilloverMaxBytes);
+                spillover = new DiskSpillover(builder.name,
+                        store,
+                        queue,
+                        (long) (builder.maxQueueSizeBytes * builder.spilloverHighWaterMark),
+                        builder.messagesPerRequest,
+                        builder.maxBytesPerRequest,
+                        builder.spilloverReplayBytesPerSecond,
+                        senderPool);
+                spillover.setMetrics(metrics);
+                spillover.setSourceRouting(sourceSubstitutor != null);
+            } catch (IOException e) {
+                logger.error("Unable to use spillover directory {}, continuing without spillover",
+                        builder.spilloverDirectory, e);
+            } catch (IllegalArgumentException e) {
+                logger.error("Invalid spillover settings, continuing without spillover", e);
+            }
+        }
 
         // Initialize flusher
-        flusher = new SumoBufferFlusher(flushingAccuracy,
-                messagesPerRequest,
-                maxFlushInterval,
-                sender,
+        flusher = new BufferFlusher(builder.name,
+                builder.messagesPerRequest,
+                builder.maxBytesPerRequest,
+                builder.maxFlushInterval,
+                senderPool,
                 queue,
-                flushAllBeforeStopping);
+                builder.flushAllBeforeStopping);
+        flusher.setMetrics(metrics);
+        flusher.setSourceRouting(sourceSubstitutor != null);
+        if (sharedResources != null) {
+            flusher.setScheduler(sharedResources.flushScheduler());
+        }
+        if (priorityQueue != null) {
+            priorityFlusher = new BufferFlusher(builder.name + "-priority",
+                    builder.messagesPerRequest,
+                    builder.maxBytesPerRequest,
+                    builder.priorityFlushInterval,
+                    senderPool,
+                    priorityQueue,
+                    builder.flushAllBeforeStopping);
+            priorityFlusher.setMetrics(metrics);
+            priorityFlusher.setSourceRouting(sourceSubstitutor != null);
+            if (sharedResources != null) {
+                priorityFlusher.setScheduler(sharedResources.flushScheduler());
+            }
+        }
+
+        // Initialize collapsing of repeated messages
+        if (builder.collapseRepeatedWindow > 0) {
+            collapser = new RepeatedMessageCollapser(builder.name,
+                    builder.collapseRepeatedWindow,
+                    builder.collapseRepeatedMaxEntries,
+                    new RepeatedMessageCollapser.Output() {
+                        @Override
+                        public void append(LogEvent summary) {
+                            enqueue(summary);
+                        }
+                    });
+            collapser.start();
+        } else {
+            collapser = null;
+        }
+
+        // Initialize rate limiting
+        if (builder.rateLimitPerSecond > 0) {
+            final String keyPattern = builder.rateLimitKey;
+            final StrSubstitutor keySubstitutor = !hasLookup(keyPattern) ? null
+                    : builder.configuration != null ? builder.configuration.getStrSubstitutor()
+                    : new StrSubstitutor(new Interpolator());
+            int burst = builder.rateLimitBurst > 0 ? builder.rateLimitBurst
+                    : (int) Math.max(Math.ceil(builder.rateLimitPerSecond), 1);
+            rateLimiter = new RateLimiter(builder.name,
+                    builder.rateLimitPerSecond,
+                    burst,
+                    builder.rateLimitSampleRate,
+                    builder.rateLimitSummaryInterval,
+                    new RateLimiter.KeySelector() {
+                        @Override
+                        public String keyOf(LogEvent event) {
+                            if (keyPattern == null) {
+                                return event.getLoggerName();
+                            }
+                            return keySubstitutor == null ? keyPattern : keySubstitutor.replace(event, keyPattern);
+                        }
+                    },
+                    new RateLimiter.Output() {
+                        @Override
+                        public void append(LogEvent summary) {
+                            enqueue(summary);
+                        }
+                    });
+            rateLimiter.start();
+        } else {
+            rateLimiter = null;
+        }
+
+        // Start sending; with lazy start, events are queued meanwhile
+        final AbstractTransport transportToStart = sender;
+        final boolean prewarm = builder.prewarmConnections;
+        if (builder.lazyStart) {
+            final CountDownLatch latch = new CountDownLatch(1);
+            starting = latch;
+            Thread starterThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        transportToStart.init();
+                        synchronized (startLock) {
+                            if (!startAbandoned) {
+                                startFlushing();
+                                sendingStarted = true;
+                            }
+                        }
+                    } catch (Exception e) {
+                        logger.error("Unable to start sending to Sumo Logic", e);
+                    } finally {
+                        latch.countDown();
+                    }
+                    boolean abandoned;
+                    boolean started;
+                    synchronized (startLock) {
+                        abandoned = startAbandoned;
+                        started = sendingStarted;
+                    }
+                    if (abandoned) {
+                        // Stopping gave up on this start and left the sender to be closed here
+                        closeAbandoned(transportToStart);
+                    } else if (started && prewarm) {
+                        transportToStart.prewarm();
+                    }
+                }
+            }, "SumoStarter-" + builder.name);
+            starterThread.setDaemon(true);
+            starter = starterThread;
+            starterThread.start();
+        } else {
+            starting = null;
+            starter = null;
+            sender.init();
+            startFlushing();
+            if (prewarm) {
+                Thread prewarming = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        transportToStart.prewarm();
+                    }
+                }, "SumoPrewarm-" + builder.name);
+                prewarming.setDaemon(true);
+                prewarming.start();
+            }
+        }
+    }
+
+    // Starts the threads that drain the queues, once the sender is initialized
+    private void startFlushing() {
+        if (spillover != null) {
+            spillover.start();
+        }
         flusher.start();
+        if (priorityFlusher != null) {
+            priorityFlusher.start();
+        }
     }
 
     /**
@@ -149,25 +593,32 @@ public class SumoLogicAppender extends AbstractAppender {
             @PluginAttribute(value = "retryableHttpCodeRegex", defaultString = DEFAULT_RETRY_HTTP_CODE_REGEX) String retryableHttpCodeRegex,
             @PluginAttribute(value = "fields") String fields) {
 
-        if (name == null) {
-            logger.error("No name provided for SumoLogicAppender");
-            return null;
-        }
-
-        if (layout == null) {
-            layout = PatternLayout.createDefaultLayout();
-        }
-
-        if (url == null) {
-            logger.error("No url provided for SumoLogicAppender");
-            return null;
-        }
-
-        ProxySettings proxySettings = new ProxySettings(proxyHost, proxyPort, proxyAuth, proxyUser, proxyPassword, proxyDomain);
-
-        return new SumoLogicAppender(name, filter, layout, true, url, proxySettings, retryInterval, maxNumberOfRetries, connectionTimeout,
-                socketTimeout, messagesPerRequest, maxFlushInterval, sourceName, sourceCategory,
-                sourceHost, flushingAccuracy, maxQueueSizeBytes, flushAllBeforeStopping, retryableHttpCodeRegex, fields);
+        return newBuilder()
+                .setName(name)
+                .setLayout(layout)
+                .setFilter(filter)
+                .setUrl(url)
+                .setProxyAuth(proxyAuth)
+                .setProxyHost(proxyHost)
+                .setProxyPort(proxyPort)
+                .setProxyUser(proxyUser)
+                .setProxyPassword(proxyPassword)
+                .setProxyDomain(proxyDomain)
+                .setRetryInterval(retryInterval)
+                .setMaxNumberOfRetries(maxNumberOfRetries)
+                .setConnectionTimeout(connectionTimeout)
+                .setSocketTimeout(socketTimeout)
+                .setMessagesPerRequest(messagesPerRequest)
+                .setMaxFlushInterval(maxFlushInterval)
+                .setSourceName(sourceName)
+                .setSourceCategory(sourceCategory)
+                .setSourceHost(sourceHost)
+                .setFlushingAccuracy(flushingAccuracy)
+                .setMaxQueueSizeBytes(maxQueueSizeBytes)
+                .setFlushAllBeforeStopping(flushAllBeforeStopping)
+                .setRetryableHttpCodeRegex(retryableHttpCodeRegex)
+                .setFields(fields)
+                .build();
     }
 
     @PluginBuilderFactory
@@ -183,6 +634,8 @@ public class SumoLogicAppender extends AbstractAppender {
         private Layout<? extends Serializable> layout;
         @PluginElement("Filter")
         private Filter filter;
+        @PluginConfiguration
+        private Configuration configuration;
         @PluginBuilderAttribute
         @Required(message = "Url is required for SumoLogicAppender")
         private String url;
@@ -221,11 +674,87 @@ public class SumoLogicAppender extends AbstractAppender {
         @PluginBuilderAttribute
         private long maxQueueSizeBytes = DEFAULT_MAX_QUEUE_SIZE_BYTES;
         @PluginBuilderAttribute
+        private long maxBytesPerRequest = DEFAULT_MAX_BYTES_PER_REQUEST;
+        @PluginBuilderAttribute
         private boolean flushAllBeforeStopping = FLUSH_ALL_MESSAGES_BEFORE_STOPPING;
         @PluginBuilderAttribute
         private String retryableHttpCodeRegex = DEFAULT_RETRY_HTTP_CODE_REGEX;
         @PluginBuilderAttribute
         private String fields;
+        @PluginBuilderAttribute
+        private boolean garbageFree = DEFAULT_GARBAGE_FREE;
+        @PluginBuilderAttribute
+        private QueueType queueType = DEFAULT_QUEUE_TYPE;
+        @PluginBuilderAttribute
+        private Compression compression = DEFAULT_COMPRESSION;
+        @PluginBuilderAttribute
+        private int senderThreads = DEFAULT_SENDER_THREADS;
+        @PluginBuilderAttribute
+        private int maxInFlightRequests = DEFAULT_MAX_IN_FLIGHT_REQUESTS;
+        @PluginBuilderAttribute
+        private boolean preserveOrder = DEFAULT_PRESERVE_ORDER;
+        @PluginBuilderAttribute
+        private TransportType transport = DEFAULT_TRANSPORT;
+        @PluginBuilderAttribute
+        private String spilloverDirectory;
+        @PluginBuilderAttribute
+        private long spilloverMaxBytes = DEFAULT_SPILLOVER_MAX_BYTES;
+        @PluginBuilderAttribute
+        private double spilloverHighWaterMark = DEFAULT_SPILLOVER_HIGH_WATER_MARK;
+        @PluginBuilderAttribute
+        private long spilloverReplayBytesPerSecond = DEFAULT_SPILLOVER_REPLAY_BYTES_PER_SECOND;
+        @PluginBuilderAttribute
+        private String walDirectory;
+        @PluginBuilderAttribute
+        private FsyncPolicy walFsync = DEFAULT_WAL_FSYNC;
+        @PluginBuilderAttribute
+        private long walFsyncInterval = DEFAULT_WAL_FSYNC_INTERVAL;
+        @PluginBuilderAttribute
+        private OverflowPolicy overflowPolicy = DEFAULT_OVERFLOW_POLICY;
+        @PluginBuilderAttribute
+        private long overflowTimeout = DEFAULT_OVERFLOW_TIMEOUT;
+        @PluginBuilderAttribute
+        private Level priorityLevel;
+        @PluginBuilderAttribute
+        private long priorityFlushInterval = DEFAULT_PRIORITY_FLUSH_INTERVAL;
+        @PluginBuilderAttribute
+        private long priorityQueueSizeBytes = DEFAULT_PRIORITY_QUEUE_SIZE_BYTES;
+        @PluginBuilderAttribute
+        private boolean jmxEnabled = DEFAULT_JMX_ENABLED;
+        @PluginBuilderAttribute
+        private LoadBalancing loadBalancing = DEFAULT_LOAD_BALANCING;
+        @PluginBuilderAttribute
+        private long maxRetryInterval = DEFAULT_MAX_RETRY_INTERVAL;
+        @PluginBuilderAttribute
+        private int circuitBreakerThreshold = DEFAULT_CIRCUIT_BREAKER_THRESHOLD;
+        @PluginBuilderAttribute
+        private long circuitBreakerOpenInterval = DEFAULT_CIRCUIT_BREAKER_OPEN_INTERVAL;
+        @PluginBuilderAttribute
+        private long retryQueueSizeBytes = DEFAULT_RETRY_QUEUE_SIZE_BYTES;
+        @PluginBuilderAttribute
+        private long collapseRepeatedWindow = DEFAULT_COLLAPSE_REPEATED_WINDOW;
+        @PluginBuilderAttribute
+        private int collapseRepeatedMaxEntries = DEFAULT_COLLAPSE_REPEATED_MAX_ENTRIES;
+        @PluginBuilderAttribute
+        private double rateLimitPerSecond = DEFAULT_RATE_LIMIT_PER_SECOND;
+        @PluginBuilderAttribute
+        private int rateLimitBurst = DEFAULT_RATE_LIMIT_BURST;
+        @PluginBuilderAttribute
+        private double rateLimitSampleRate = DEFAULT_RATE_LIMIT_SAMPLE_RATE;
+        @PluginBuilderAttribute
+        private String rateLimitKey;
+        @PluginBuilderAttribute
+        private long rateLimitSummaryInterval = DEFAULT_RATE_LIMIT_SUMMARY_INTERVAL;
+        @PluginBuilderAttribute
+        private boolean shareResources = DEFAULT_SHARE_RESOURCES;
+        @PluginBuilderAttribute
+        private int sharedFlushThreads = DEFAULT_SHARED_FLUSH_THREADS;
+        @PluginBuilderAttribute
+        private int sharedMaxConnections = DEFAULT_SHARED_MAX_CONNECTIONS;
+        @PluginBuilderAttribute
+        private boolean lazyStart = DEFAULT_LAZY_START;
+        @PluginBuilderAttribute
+        private boolean prewarmConnections = DEFAULT_PREWARM_CONNECTIONS;
 
         public Builder setName(final String name) {
             this.name = name;
@@ -242,6 +771,11 @@ public class SumoLogicAppender extends AbstractAppender {
             return this;
         }
 
+        public Builder setConfiguration(final Configuration configuration) {
+            this.configuration = configuration;
+            return this;
+        }
+
         public Builder setUrl(final String url) {
             this.url = url;
             return this;
@@ -332,6 +866,11 @@ public class SumoLogicAppender extends AbstractAppender {
             return this;
         }
 
+        public Builder setMaxBytesPerRequest(final long maxBytesPerRequest) {
+            this.maxBytesPerRequest = maxBytesPerRequest;
+            return this;
+        }
+
         public Builder setFlushAllBeforeStopping(final boolean flushAllBeforeStopping) {
             this.flushAllBeforeStopping = flushAllBeforeStopping;
             return this;
@@ -347,11 +886,234 @@ public class SumoLogicAppender extends AbstractAppender {
             return this;
         }
 
+        public Builder setGarbageFree(final boolean garbageFree) {
+            this.garbageFree = garbageFree;
+            return this;
+        }
+
+        public Builder setQueueType(final QueueType queueType) {
+            this.queueType = queueType;
+            return this;
+        }
+
+        public Builder setCompression(final Compression compression) {
+            this.compression = compression;
+            return this;
+        }
+
+        public Builder setSenderThreads(final int senderThreads) {
+            this.senderThreads = senderThreads;
+            return this;
+        }
+
+        public Builder setMaxInFlightRequests(final int maxInFlightRequests) {
+            this.maxInFlightRequests = maxInFlightRequests;
+            return this;
+        }
+
+        public Builder setPreserveOrder(final boolean preserveOrder) {
+            this.preserveOrder = preserveOrder;
+            return this;
+        }
+
+        public Builder setTransport(final TransportType transport) {
+            this.transport = transport;
+            return this;
+        }
+
+        public Builder setSpilloverDirectory(final String spilloverDirectory) {
+            this.spilloverDirectory = spilloverDirectory;
+            return this;
+        }
+
+        public Builder setSpilloverMaxBytes(final long spilloverMaxBytes) {
+            this.spilloverMaxBytes = spilloverMaxBytes;
+            return this;
+        }
+
+        public Builder setSpilloverHighWaterMark(final double spilloverHighWaterMark) {
+            this.spilloverHighWaterMark = spilloverHighWaterMark;
+            return this;
+        }
+
+        public Builder setSpilloverReplayBytesPerSecond(final long spilloverReplayBytesPerSecond) {
+            this.spilloverReplayBytesPerSecond = spilloverReplayBytesPerSecond;
+            return this;
+        }
+
+        public Builder setWalDirectory(final String walDirectory) {
+            this.walDirectory = walDirectory;
+            return this;
+        }
+
+        public Builder setWalFsync(final FsyncPolicy walFsync) {
+            this.walFsync = walFsync;
+            return this;
+        }
+
+        public Builder setWalFsyncInterval(final long walFsyncInterval) {
+            this.walFsyncInterval = walFsyncInterval;
+            return this;
+        }
+
+        public Builder setOverflowPolicy(final OverflowPolicy overflowPolicy) {
+            this.overflowPolicy = overflowPolicy;
+            return this;
+        }
+
+        public Builder setOverflowTimeout(final long overflowTimeout) {
+            this.overflowTimeout = overflowTimeout;
+            return this;
+        }
+
+        public Builder setPriorityLevel(final Level priorityLevel) {
+            this.priorityLevel = priorityLevel;
+            return this;
+        }
+
+        public Builder setPriorityFlushInterval(final long priorityFlushInterval) {
+            this.priorityFlushInterval = priorityFlushInterval;
+            return this;
+        }
+
+        public Builder setPriorityQueueSizeBytes(final long priorityQueueSizeBytes) {
+            this.priorityQueueSizeBytes = priorityQueueSizeBytes;
+            return this;
+        }
+
+        public Builder setJmxEnabled(final boolean jmxEnabled) {
+            this.jmxEnabled = jmxEnabled;
+            return this;
+        }
+
+        public Builder setLoadBalancing(final LoadBalancing loadBalancing) {
+            this.loadBalancing = loadBalancing;
+            return this;
+        }
+
+        public Builder setMaxRetryInterval(final long maxRetryInterval) {
+            this.maxRetryInterval = maxRetryInterval;
+            return this;
+        }
+
+        public Builder setCircuitBreakerThreshold(final int circuitBreakerThreshold) {
+            this.circuitBreakerThreshold = circuitBreakerThreshold;
+            return this;
+        }
+
+        public Builder setCircuitBreakerOpenInterval(final long circuitBreakerOpenInterval) {
+            this.circuitBreakerOpenInterval = circuitBreakerOpenInterval;
+            return this;
+        }
+
+        public Builder setRetryQueueSizeBytes(final long retryQueueSizeBytes) {
+            this.retryQueueSizeBytes = retryQueueSizeBytes;
+            return this;
+        }
+
+        public Builder setCollapseRepeatedWindow(final long collapseRepeatedWindow) {
+            this.collapseRepeatedWindow = collapseRepeatedWindow;
+            return this;
+        }
+
+        public Builder setCollapseRepeatedMaxEntries(final int collapseRepeatedMaxEntries) {
+            this.collapseRepeatedMaxEntries = collapseRepeatedMaxEntries;
+            return this;
+        }
+
+        public Builder setRateLimitPerSecond(final double rateLimitPerSecond) {
+            this.rateLimitPerSecond = rateLimitPerSecond;
+            return this;
+        }
+
+        public Builder setRateLimitBurst(final int rateLimitBurst) {
+            this.rateLimitBurst = rateLimitBurst;
+            return this;
+        }
+
+        public Builder setRateLimitSampleRate(final double rateLimitSampleRate) {
+            this.rateLimitSampleRate = rateLimitSampleRate;
+            return this;
+        }
+
+        public Builder setRateLimitKey(final String rateLimitKey) {
+            this.rateLimitKey = rateLimitKey;
+            return this;
+        }
+
+        public Builder setRateLimitSummaryInterval(final long rateLimitSummaryInterval) {
+            this.rateLimitSummaryInterval = rateLimitSummaryInterval;
+            return this;
+        }
+
+        public Builder setShareResources(final boolean shareResources) {
+            this.shareResources = shareResources;
+            return this;
+        }
+
+        public Builder setSharedFlushThreads(final int sharedFlushThreads) {
+            this.sharedFlushThreads = sharedFlushThreads;
+            return this;
+        }
+
+        public Builder setSharedMaxConnections(final int sharedMaxConnections) {
+            this.sharedMaxConnections = sharedMaxConnections;
+            return this;
+        }
+
+        public Builder setLazyStart(final boolean lazyStart) {
+            this.lazyStart = lazyStart;
+            return this;
+        }
+
+        public Builder setPrewarmConnections(final boolean prewarmConnections) {
+            this.prewarmConnections = prewarmConnections;
+            return this;
+        }
+
         @Override
         public SumoLogicAppender build() {
-            return SumoLogicAppender.createAppender(name, layout, filter, url, proxyAuth, proxyHost, proxyPort, proxyUser,
-                    proxyPassword, proxyDomain, retryInterval, maxNumberOfRetries, connectionTimeout, socketTimeout, messagesPerRequest, maxFlushInterval,
-                    sourceName, sourceCategory, sourceHost, flushingAccuracy, maxQueueSizeBytes, flushAllBeforeStopping, retryableHttpCodeRegex, fields);
+            if (name == null) {
+                logger.error("No name provided for SumoLogicAppender");
+                return null;
+            }
+
+            if (layout == null) {
+                layout = PatternLayout.createDefaultLayout();
+            }
+
+            if (url == null) {
+                logger.error("No url provided for SumoLogicAppender");
+                return null;
+            }
+
+            if (queueType == null) {
+                queueType = DEFAULT_QUEUE_TYPE;
+            }
+
+            if (compression == null) {
+                compression = DEFAULT_COMPRESSION;
+            }
+
+            if (transport == null) {
+                transport = DEFAULT_TRANSPORT;
+            }
+
+            if (walFsync == null) {
+                walFsync = DEFAULT_WAL_FSYNC;
+            }
+
+            if (overflowPolicy == null) {
+                overflowPolicy = DEFAULT_OVERFLOW_POLICY;
+            }
+
+            if (loadBalancing == null) {
+                loadBalancing = DEFAULT_LOAD_BALANCING;
+            }
+
+            ProxySettings proxySettings = new ProxySettings(proxyHost, proxyPort, proxyAuth, proxyUser, proxyPassword, proxyDomain);
+
+            return new SumoLogicAppender(this, true, proxySettings);
         }
     }
 
@@ -360,17 +1122,155 @@ public class SumoLogicAppender extends AbstractAppender {
             logger.warn("Appender not initialized. Dropping log entry");
             return;
         }
+        if (collapser != null && !collapser.accept(event)) {
+            metrics.collapsed();
+            return;
+        }
+        if (rateLimiter != null && !rateLimiter.tryAcquire(event)) {
+            metrics.rateLimited();
+            return;
+        }
+        enqueue(event);
+    }
+
+    private void enqueue(LogEvent event) {
+        boolean priority = priorityLevel != null && event.getLevel().isMoreSpecificThan(priorityLevel);
+        if (garbageFree) {
+            appendEncoded(event, priority);
+            return;
+        }
 
         String message = new String(getLayout().toByteArray(event));
-        logger.debug("Sending message to Sumo: " + message);
+        if (sourceSubstitutor != null) {
+            message = sourcePrefix(event) + message;
+        }
+        logger.debug("Sending message to Sumo: {}", message);
+
+        try {
+            BufferWithEviction<String> target = priority ? priorityQueue : queue;
+            long cost = target instanceof EncodedMessageBuffer ?
+                    EncodedMessageBuffer.recordCost(Utf8.encodedLength(message)) : STRING_COST.cost(message);
+            boolean added;
+            if (target instanceof LevelPriorityBuffer) {
+                added = ((LevelPriorityBuffer) target).add(message, event.getLevel());
+            } else {
+                added = hasRoomFor(priority, cost) && target.add(message);
+            }
+            recordAdded(added, cost);
+            messageAdded(priority);
+        } catch (Exception e) {
+            logger.error("Unable to insert log entry into log queue. ", e);
+        }
+    }
 
+    // Encodes the event into this thread's reusable buffer and copies the bytes into the queue,
+    // so nothing is allocated per event once the buffer has grown to fit.
+    private void appendEncoded(LogEvent event, boolean priority) {
+        ReusableByteBufferDestination destination = destinations.get();
+        if (destination == null) {
+            destination = new ReusableByteBufferDestination();
+            destinations.set(destination);
+        }
         try {
-            queue.add(message);
+            if (sourceSubstitutor != null) {
+                byte[] prefix = sourcePrefix(event).getBytes(StandardCharsets.UTF_8);
+                destination.writeBytes(prefix, 0, prefix.length);
+            }
+            getLayout().encode(event, destination);
+            long cost = EncodedMessageBuffer.recordCost(destination.length());
+            boolean added = hasRoomFor(priority, cost) && ((EncodedMessageBuffer) (priority ? priorityQueue : queue))
+                    .add(destination.array(), 0, destination.length());
+            recordAdded(added, cost);
+            messageAdded(priority);
         } catch (Exception e) {
             logger.error("Unable to insert log entry into log queue. ", e);
+        } finally {
+            destination.clear();
         }
     }
 
+    // Applies the drop-newest and block overflow policies; the queue evicts for the others
+    private boolean hasRoomFor(boolean priority, long cost) {
+        if (overflowPolicy != OverflowPolicy.DROP_NEWEST && overflowPolicy != OverflowPolicy.BLOCK) {
+            return true;
+        }
+        BufferWithEviction<String> target = priority ? priorityQueue : queue;
+        boolean room = hasRoomFor(target, cost);
+        if (!room && overflowPolicy == OverflowPolicy.BLOCK) {
+            long deadline = System.nanoTime() + overflowTimeoutNanos;
+            messageAdded(priority);
+            while (!room && deadline - System.nanoTime() > 0) {
+                LockSupport.parkNanos(this, Math.min(OVERFLOW_POLL_NANOS, deadline - System.nanoTime()));
+                room = hasRoomFor(target, cost);
+            }
+        }
+        if (!room && !droppingNewest) {
+            logger.warn("Message queue is full, dropping new messages");
+        }
+        droppingNewest = !room;
+        return room;
+    }
+
+    // Encoded buffers know best, as their records may not be able to use all of the remaining capacity
+    private static boolean hasRoomFor(BufferWithEviction<String> target, long cost) {
+        if (target instanceof EncodedMessageBuffer) {
+            return ((EncodedMessageBuffer) target).hasRoomFor(cost);
+        }
+        return ((CostAwareBuffer) target).cost() + cost <= target.getCapacity();
+    }
+
+    private String sourcePrefix(LogEvent event) {
+        return SourceRouting.prefix(resolveSource(event, sourceNamePattern),
+                resolveSource(event, sourceCategoryPattern),
+                resolveSource(event, sourceHostPattern));
+    }
+
+    // Resolves lookups in source metadata; a value whose lookups cannot be resolved is left out
+    private String resolveSource(LogEvent event, String pattern) {
+        if (!hasLookup(pattern)) {
+            return pattern;
+        }
+        String resolved = event == null ? sourceSubstitutor.replace(pattern) : sourceSubstitutor.replace(event, pattern);
+        return hasLookup(resolved) ? null : resolved;
+    }
+
+    private static boolean hasLookup(String value) {
+        return value != null && value.contains("${");
+    }
+
+    private void recordAdded(boolean added, long cost) {
+        if (added) {
+            metrics.enqueued(cost);
+        } else {
+            metrics.dropped(cost);
+        }
+    }
+
+    private void messageAdded(boolean priority) {
+        if (priority) {
+            BufferFlusher currentFlusher = priorityFlusher;
+            if (currentFlusher != null) {
+                currentFlusher.messageAdded();
+            }
+            return;
+        }
+        BufferFlusher currentFlusher = flusher;
+        if (currentFlusher != null) {
+            currentFlusher.messageAdded();
+        }
+        DiskSpillover currentSpillover = spillover;
+        if (currentSpillover != null) {
+            currentSpillover.messageAdded();
+        }
+    }
+
+    /**
+     * @return counters of the appender's send pipeline, also registered as an MBean unless jmxEnabled is false
+     */
+    public AppenderMetrics getMetrics() {
+        return metrics;
+    }
+
     public void setSourceName(String sourceName) {
         if (sender != null)
             sender.setSourceName(sourceName);
@@ -394,13 +1294,62 @@ public class SumoLogicAppender extends AbstractAppender {
       setStopping();
       final boolean stopped = super.stop(timeout, timeUnit, false);
       try {
-          flusher.stop();
-          logger.debug("flusher has been stopped");
-          flusher = null;
+          // Stop what a lazy start has started, unless it is taking too long
+          boolean sending = starting == null || awaitStart(timeout, timeUnit);
+          if (collapser != null) {
+              // Summaries of open windows go out with the last messages
+              collapser.stop();
+          }
+          if (rateLimiter != null) {
+              rateLimiter.stop();
+          }
+          if (sending) {
+              flusher.stop();
+              logger.debug("flusher has been stopped");
 
-          sender.close();
+              if (priorityFlusher != null) {
+                  priorityFlusher.stop();
+              }
+
+              if (spillover != null) {
+                  spillover.stop();
+              }
+
+              senderPool.close(flushAllBeforeStopping);
+              sender.close();
+          } else {
+              // Nothing was started; the starter thread closes the sender of an abandoned start once its
+              // initialization returns, while the sender of a failed start is closed here
+              senderPool.close(false);
+              boolean abandoned;
+              synchronized (startLock) {
+                  abandoned = startAbandoned;
+              }
+              if (!abandoned) {
+                  sender.close();
+              }
+          }
+          flusher = null;
+          priorityFlusher = null;
+          spillover = null;
+          senderPool = null;
           sender = null;
 
+          if (sharedResources != null) {
+              sharedResources.release();
+          }
+
+          if (queue instanceof Closeable) {
+              ((Closeable) queue).close();
+          }
+          if (priorityQueue instanceof Closeable) {
+              ((Closeable) priorityQueue).close();
+          }
+
+          if (jmxEnabled) {
+              metrics.unregisterMBean();
+          }
+
       } catch (Exception e) {
         logger.error("Unable to close appender", e);
       }
@@ -409,10 +1358,47 @@ public class SumoLogicAppender extends AbstractAppender {
       return stopped;
   }
 
+  /**
+   * Waits for a lazy start for up to the stop timeout, or {@value #START_WAIT_WITHOUT_STOP_TIMEOUT} ms without one.
+   * If the sender is still initializing by then, the start is abandoned and the starter thread interrupted.
+   *
+   * @return true if sending started, false if the start failed or was abandoned, so that there is nothing to flush
+   */
+  private boolean awaitStart(long timeout, TimeUnit timeUnit) {
+      long waitMillis = timeout > 0 ? timeUnit.toMillis(timeout) : START_WAIT_WITHOUT_STOP_TIMEOUT;
+      try {
+          starting.await(waitMillis, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+      }
+      synchronized (startLock) {
+          if (starting.getCount() == 0) {
+              // The start has finished, though its initialization may have failed
+              return sendingStarted;
+          }
+          startAbandoned = true;
+      }
+      logger.warn("SumoLogicAppender {} did not start sending within {} ms, abandoning the start and its queued messages",
+              getName(), waitMillis);
+      starter.interrupt();
+      return false;
+  }
+
+  private static void closeAbandoned(AbstractTransport transport) {
+      // Clear the interrupt from stopping, which was meant for the initialization and not for closing
+      Thread.interrupted();
+      try {
+          transport.close();
+      } catch (Exception e) {
+          logger.debug("Unable to close the sender of an abandoned start", e);
+      }
+  }
+
   // Private bits.
 
   private boolean checkEntryConditions() {
-    return sender != null && sender.isInitialized();
+    // Events are queued while a lazy start is initializing the sender
+    return sender != null && (sender.isInitialized() || (starting != null && starting.getCount() > 0));
   }
 
 }
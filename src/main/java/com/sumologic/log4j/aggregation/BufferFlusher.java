@@ -0,0 +1,432 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j.aggregation;
+
+import com.sumologic.http.queue.BufferWithEviction;
+import com.sumologic.log4j.metrics.MetricsListener;
+import com.sumologic.log4j.queue.CostAwareBuffer;
+import com.sumologic.log4j.queue.DurableBuffer;
+import com.sumologic.log4j.queue.Utf8;
+import com.sumologic.log4j.sender.SenderPool;
+import com.sumologic.log4j.sender.SourceMetadata;
+import com.sumologic.log4j.sender.Transport;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.status.StatusLogger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sends batches of queued messages from a dedicated thread that only wakes up when there is work.
+ * <p>
+ * Producers call {@link #messageAdded()} after adding to the queue. The flushing thread is unparked
+ * as soon as a full batch is queued, or when the first message arrives at an empty queue. Otherwise it
+ * sleeps until {@code maxFlushInterval} has passed since the last flush, and while the queue stays
+ * empty it does not wake up at all.
+ * <p>
+ * A batch is full when it has {@code messagesPerRequest} messages or, if {@code maxBytesPerRequest} is
+ * positive and the queue reports its cost, when about that many bytes are queued. Drained messages are
+ * split into requests of at most {@code maxBytesPerRequest} UTF-8 bytes; a single larger message is
+ * sent on its own. Requests are handed to a {@link SenderPool}, which may send several at once, as a
+ * {@link MessageBatch} that the transport encodes straight from the drained messages.
+ * <p>
+ * Messages drained from a {@link DurableBuffer} are acknowledged once the transport has delivered all of
+ * their requests. If a request is not delivered, because sending was cut short by stopping or the request
+ * was given up on, they are never acknowledged and are sent again after a restart.
+ * <p>
+ * With {@link #setSourceRouting(boolean) source routing}, drained messages are first split by their
+ * {@link SourceRouting} prefix and every group is sent in requests of its own, with its own headers.
+ * <p>
+ * With a {@link #setScheduler(FlushScheduler) scheduler}, flushes run as tasks on its shared threads
+ * instead of a dedicated one. The same states decide when a task is submitted or scheduled, and only
+ * whoever moves the state to running runs the next flush, so flushes of one flusher never overlap.
+ */
+public class BufferFlusher implements Runnable {
+
+    private static final Logger logger = StatusLogger.getLogger();
+
+    // Flushing thread states, as seen by producers
+    private static final int RUNNING = 0;
+    private static final int WAITING_FOR_BATCH = 1;
+    private static final int WAITING_FOR_MESSAGES = 2;
+
+    private final String name;
+    private final BufferWithEviction<String> queue;
+    private final SenderPool sender;
+    private final int messagesPerRequest;
+    private final long maxBytesPerRequest;
+    private final CostAwareBuffer costAwareQueue;
+    private final DurableBuffer durableQueue;
+    private final long maxFlushIntervalNanos;
+    private final boolean flushBeforeStop;
+    private final AtomicInteger state = new AtomicInteger(RUNNING);
+    private volatile boolean running;
+    private volatile Thread thread;
+    private volatile MetricsListener metrics;
+    private volatile SourceRouting routing;
+    private FlushScheduler scheduler;
+    // Task of the scheduler that is flushing, interrupted when stopping
+    private Thread scheduledRunner;
+    // Wake-up after maxFlushInterval, only replaced by the task that is flushing
+    private ScheduledFuture<?> timer;
+    private long timeOfLastFlush;
+    private final Runnable scheduledFlush = new Runnable() {
+        @Override
+        public void run() {
+            runScheduled();
+        }
+    };
+    private final Runnable timedFlush = new Runnable() {
+        @Override
+        public void run() {
+            if (state.compareAndSet(WAITING_FOR_BATCH, RUNNING)) {
+                runScheduled();
+            }
+        }
+    };
+
+    public BufferFlusher(String name, int messagesPerRequest, long maxBytesPerRequest, long maxFlushIntervalMs,
+                         SenderPool sender, BufferWithEviction<String> queue, boolean flushBeforeStop) {
+        this.name = name;
+        this.messagesPerRequest = messagesPerRequest;
+        this.maxBytesPerRequest = maxBytesPerRequest > 0 ? maxBytesPerRequest : Long.MAX_VALUE;
+        this.costAwareQueue = queue instanceof CostAwareBuffer ? (CostAwareBuffer) queue : null;
+        this.durableQueue = queue instanceof DurableBuffer ? (DurableBuffer) queue : null;
+        this.maxFlushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(maxFlushIntervalMs);
+        this.sender = sender;
+        this.queue = queue;
+        this.flushBeforeStop = flushBeforeStop;
+    }
+
+    public void setMetrics(MetricsListener metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Whether queued messages carry a {@link SourceRouting} prefix. Set before starting.
+     */
+    public void setSourceRouting(boolean enabled) {
+        this.routing = enabled ? new SourceRouting() : null;
+    }
+
+    /**
+     * Runs flushes on the shared threads of the scheduler rather than a thread of this flusher. Set before starting.
+     */
+    public void setScheduler(FlushScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    public void start() {
+        timeOfLastFlush = System.nanoTime();
+        running = true;
+        if (scheduler != null) {
+            scheduler.execute(scheduledFlush);
+            return;
+        }
+        Thread flushingThread = new Thread(this, "SumoBufferFlusher-" + name);
+        flushingThread.setDaemon(true);
+        thread = flushingThread;
+        flushingThread.start();
+    }
+
+    /**
+     * Wakes up the flushing thread if the message just added completes a batch or is the first one
+     * in an empty queue. Cheap enough to call on every append.
+     */
+    public void messageAdded() {
+        int current = state.get();
+        if (current == RUNNING) {
+            return;
+        }
+        if ((current == WAITING_FOR_MESSAGES || batchIsFull())
+                && state.compareAndSet(current, RUNNING)) {
+            if (scheduler != null) {
+                scheduler.execute(scheduledFlush);
+            } else {
+                LockSupport.unpark(thread);
+            }
+        }
+    }
+
+    public void stop() {
+        if (scheduler != null) {
+            stopScheduled();
+        } else {
+            stopThread();
+        }
+        if (flushBeforeStop) {
+            flush(Integer.MAX_VALUE);
+        }
+    }
+
+    private void stopThread() {
+        running = false;
+        Thread flushingThread = thread;
+        if (flushingThread != null) {
+            // Interrupting also abandons a send that is waiting to retry
+            flushingThread.interrupt();
+            try {
+                flushingThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            thread = null;
+        }
+    }
+
+    private void stopScheduled() {
+        synchronized (this) {
+            running = false;
+            if (timer != null) {
+                timer.cancel(false);
+            }
+            if (scheduledRunner != null) {
+                // Interrupting also abandons a send that is waiting to retry
+                scheduledRunner.interrupt();
+            }
+        }
+        boolean interrupted = false;
+        while (true) {
+            synchronized (this) {
+                if (scheduledRunner == null) {
+                    break;
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                if (needsFlushing()) {
+                    flush(messagesPerRequest);
+                } else {
+                    waitForWork();
+                }
+            } catch (Exception e) {
+                logger.warn("Exception while attempting to flush and send", e);
+            }
+        }
+    }
+
+    // Flushes on a thread of the scheduler until there is no work, then arranges to be run again
+    private void runScheduled() {
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            scheduledRunner = Thread.currentThread();
+        }
+        try {
+            boolean flushing = true;
+            while (flushing && running) {
+                try {
+                    if (needsFlushing()) {
+                        flush(messagesPerRequest);
+                    } else {
+                        flushing = awaitScheduledWork();
+                    }
+                } catch (Exception e) {
+                    logger.warn("Exception while attempting to flush and send", e);
+                }
+            }
+        } finally {
+            synchronized (this) {
+                // The next task may already have started, once this one gave up the running state
+                if (scheduledRunner == Thread.currentThread()) {
+                    scheduledRunner = null;
+                }
+                // Clear an interrupt from stopping, which was meant for this flusher and not the shared thread
+                Thread.interrupted();
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Publishes the waiting state like {@link #waitForWork()}, but schedules a wake-up instead of parking.
+     *
+     * @return whether there is work again and this task keeps running
+     */
+    private boolean awaitScheduledWork() {
+        boolean empty = queue.size() == 0;
+        int waiting = empty ? WAITING_FOR_MESSAGES : WAITING_FOR_BATCH;
+        state.set(waiting);
+        // Check again after publishing the state, so that a message added in between is not missed
+        if (empty ? queue.size() != 0 : needsFlushing()) {
+            // Unless a producer has just taken over and submitted a task
+            return state.compareAndSet(waiting, RUNNING);
+        }
+        if (!empty) {
+            synchronized (this) {
+                if (running) {
+                    if (timer != null) {
+                        timer.cancel(false);
+                    }
+                    timer = scheduler.schedule(timedFlush, timeOfLastFlush + maxFlushIntervalNanos - System.nanoTime());
+                }
+            }
+        }
+        return false;
+    }
+
+    private boolean needsFlushing() {
+        return batchIsFull() ||
+                (queue.size() > 0 && System.nanoTime() - timeOfLastFlush >= maxFlushIntervalNanos);
+    }
+
+    private boolean batchIsFull() {
+        return queue.size() >= messagesPerRequest ||
+                (costAwareQueue != null && costAwareQueue.cost() >= maxBytesPerRequest);
+    }
+
+    private void waitForWork() {
+        boolean empty = queue.size() == 0;
+        state.set(empty ? WAITING_FOR_MESSAGES : WAITING_FOR_BATCH);
+        // Check again after publishing the state, so that a message added in between is not missed
+        if (empty ? queue.size() == 0 : !needsFlushing()) {
+            if (empty) {
+                LockSupport.park(this);
+            } else {
+                LockSupport.parkNanos(this, timeOfLastFlush + maxFlushIntervalNanos - System.nanoTime());
+            }
+        }
+        state.set(RUNNING);
+    }
+
+    private void flush(int maxMessagesPerRequest) {
+        List<String> messages = new ArrayList<String>(Math.min(queue.size(), maxMessagesPerRequest));
+        do {
+            messages.clear();
+            DurableBuffer.Receipt receipt = null;
+            if (durableQueue != null) {
+                receipt = durableQueue.drainUnacknowledged(messages, maxMessagesPerRequest);
+            } else {
+                queue.drainTo(messages, maxMessagesPerRequest);
+            }
+            if (!messages.isEmpty()) {
+                logger.debug("Flushing and sending out {} messages ({} messages left)", messages.size(), queue.size());
+                AcknowledgeWhenSent acknowledgement = receipt == null ? null : new AcknowledgeWhenSent(receipt);
+                SourceRouting currentRouting = routing;
+                if (currentRouting == null) {
+                    sendInRequestsOfMaxBytes(messages, null, acknowledgement);
+                } else {
+                    for (Map.Entry<SourceMetadata, List<String>> group : currentRouting.group(messages).entrySet()) {
+                        sendInRequestsOfMaxBytes(group.getValue(), group.getKey(), acknowledgement);
+                    }
+                }
+                if (acknowledgement != null) {
+                    acknowledgement.done(true);
+                }
+            } else if (receipt != null) {
+                receipt.acknowledge();
+            }
+        } while (!messages.isEmpty() && batchIsFull());
+        timeOfLastFlush = System.nanoTime();
+    }
+
+    private void sendInRequestsOfMaxBytes(List<String> messages, SourceMetadata metadata,
+                                          AcknowledgeWhenSent acknowledgement) {
+        int start = 0;
+        long bytes = 0;
+        for (int i = 0; i < messages.size(); i++) {
+            long messageBytes = Utf8.encodedLength(messages.get(i));
+            if (i > start && bytes + messageBytes > maxBytesPerRequest) {
+                batchSent(i - start, bytes);
+                send(aggregate(messages, start, i), metadata, acknowledgement);
+                start = i;
+                bytes = 0;
+            }
+            bytes += messageBytes;
+        }
+        batchSent(messages.size() - start, bytes);
+        send(aggregate(messages, start, messages.size()), metadata, acknowledgement);
+    }
+
+    private void send(CharSequence body, SourceMetadata metadata, AcknowledgeWhenSent acknowledgement) {
+        if (acknowledgement == null) {
+            sender.send(body, metadata);
+        } else {
+            acknowledgement.requests.incrementAndGet();
+            sender.send(body, metadata, acknowledgement);
+        }
+    }
+
+    private void batchSent(int messages, long bytes) {
+        MetricsListener listener = metrics;
+        if (listener != null) {
+            listener.batchSent(messages, bytes);
+        }
+    }
+
+    static CharSequence aggregate(List<String> messages, int from, int to) {
+        return new MessageBatch(messages, from, to);
+    }
+
+    // Acknowledges a receipt when the transport is done with every request of it. A request the transport
+    // gave up on while running was rejected for good or ran out of retries, so sending it again after a
+    // restart would not help, and keeping it would stop the write-ahead log from releasing later receipts.
+    // Requests dropped because the appender is stopping are kept, to be sent after the next start.
+    private final class AcknowledgeWhenSent implements Transport.Callback {
+        private final DurableBuffer.Receipt receipt;
+        // Starts at one until all requests have been handed to the sender
+        final AtomicInteger requests = new AtomicInteger(1);
+        private volatile boolean droppedWhenStopping;
+
+        AcknowledgeWhenSent(DurableBuffer.Receipt receipt) {
+            this.receipt = receipt;
+        }
+
+        @Override
+        public void done(boolean delivered) {
+            if (!delivered && !running) {
+                droppedWhenStopping = true;
+            }
+            if (requests.decrementAndGet() == 0) {
+                if (!droppedWhenStopping) {
+                    receipt.acknowledge();
+                } else {
+                    logger.warn("Keeping undelivered messages in the write-ahead log until the next start");
+                }
+            }
+        }
+    }
+}
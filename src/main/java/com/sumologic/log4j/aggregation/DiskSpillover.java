@@ -0,0 +1,281 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j.aggregation;
+
+import com.sumologic.http.queue.BufferWithEviction;
+import com.sumologic.log4j.metrics.MetricsListener;
+import com.sumologic.log4j.queue.CostAwareBuffer;
+import com.sumologic.log4j.queue.MappedSegmentStore;
+import com.sumologic.log4j.queue.Utf8;
+import com.sumologic.log4j.sender.SenderPool;
+import com.sumologic.log4j.sender.SourceMetadata;
+import com.sumologic.log4j.sender.Transport;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.status.StatusLogger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Moves the oldest queued messages to a {@link MappedSegmentStore} on disk while the queue holds more
+ * than {@code highWaterBytes}, so that they are kept instead of being evicted when the queue fills up,
+ * and replays them from a dedicated thread once the queue is below the mark again. Spilling is done by
+ * a thread of its own, which appending threads only wake up, so that logging never waits for the disk;
+ * a burst that fills the queue faster than that thread drains it still evicts.
+ * <p>
+ * Replayed messages are sent in batches of the usual size, one batch at a time and at no more than
+ * {@code replayBytesPerSecond}, so that a backlog does not swamp the collector after an outage. As with
+ * the write-ahead log, a batch is acknowledged, and its segment eventually deleted, when the transport is
+ * done with it, unless the transport dropped it because the appender is stopping; then it is replayed
+ * after the next start. Spilled messages arrive after messages that were queued later, because the queue
+ * keeps being flushed.
+ */
+public class DiskSpillover implements Runnable {
+
+    private static final Logger logger = StatusLogger.getLogger();
+
+    private static final long IDLE_CHECK_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final String name;
+    private final MappedSegmentStore store;
+    private final BufferWithEviction<String> queue;
+    private final CostAwareBuffer costAwareQueue;
+    private final long highWaterBytes;
+    private final int messagesPerRequest;
+    private final long maxBytesPerRequest;
+    private final long replayBytesPerSecond;
+    private final SenderPool sender;
+    // Set by appending threads when the queue is above the mark, cleared by the spilling thread
+    private final AtomicBoolean spillRequested = new AtomicBoolean();
+    private volatile MetricsListener metrics;
+    private volatile SourceRouting routing;
+    // Only used by the spilling thread
+    private final List<String> spillBatch = new ArrayList<String>();
+    private volatile boolean running;
+    private volatile Thread thread;
+    private volatile Thread spillThread;
+
+    public DiskSpillover(String name, MappedSegmentStore store, BufferWithEviction<String> queue, long highWaterBytes,
+                         int messagesPerRequest, long maxBytesPerRequest, long replayBytesPerSecond, SenderPool sender) {
+        if (!(queue instanceof CostAwareBuffer)) {
+            throw new IllegalArgumentException("Spillover needs a queue that reports its cost");
+        }
+        this.name = name;
+        this.store = store;
+        this.queue = queue;
+        this.costAwareQueue = (CostAwareBuffer) queue;
+        this.highWaterBytes = highWaterBytes;
+        this.messagesPerRequest = messagesPerRequest;
+        this.maxBytesPerRequest = maxBytesPerRequest > 0 ? maxBytesPerRequest : Long.MAX_VALUE;
+        this.replayBytesPerSecond = replayBytesPerSecond;
+        this.sender = sender;
+    }
+
+    public void setMetrics(MetricsListener metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Whether spilled messages carry a {@link SourceRouting} prefix. Set before starting.
+     */
+    public void setSourceRouting(boolean enabled) {
+        this.routing = enabled ? new SourceRouting() : null;
+    }
+
+    public void start() {
+        running = true;
+        Thread replayThread = new Thread(this, "SumoSpilloverReplay-" + name);
+        replayThread.setDaemon(true);
+        thread = replayThread;
+        Thread spillingThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                spillLoop();
+            }
+        }, "SumoSpillover-" + name);
+        spillingThread.setDaemon(true);
+        spillThread = spillingThread;
+        spillingThread.start();
+        replayThread.start();
+    }
+
+    /**
+     * Wakes up the spilling thread if the queue is above the high-water mark. Cheap enough to call on
+     * every append.
+     */
+    public void messageAdded() {
+        if (costAwareQueue.cost() > highWaterBytes && !spillRequested.get()
+                && spillRequested.compareAndSet(false, true)) {
+            LockSupport.unpark(spillThread);
+        }
+    }
+
+    private void spillLoop() {
+        while (running) {
+            if (!spillRequested.get()) {
+                LockSupport.parkNanos(this, IDLE_CHECK_NANOS);
+            }
+            spillRequested.set(false);
+            spill();
+        }
+    }
+
+    // Moves the oldest messages to disk until the queue is below the high-water mark
+    private void spill() {
+        int spilled = 0;
+        try {
+            while (costAwareQueue.cost() > highWaterBytes) {
+                spillBatch.clear();
+                if (queue.drainTo(spillBatch, messagesPerRequest) == 0) {
+                    break;
+                }
+                for (String message : spillBatch) {
+                    if (store.append(message)) {
+                        spilled++;
+                    }
+                }
+            }
+        } catch (Exception e) {
+            logger.error("Unable to spill messages to disk", e);
+        } finally {
+            spillBatch.clear();
+        }
+        if (spilled > 0) {
+            logger.debug("Spilled {} messages to disk", spilled);
+        }
+    }
+
+    /**
+     * Stops replaying. Messages that were not replayed yet stay on disk for the next start.
+     */
+    public void stop() {
+        running = false;
+        Thread spillingThread = spillThread;
+        if (spillingThread != null) {
+            LockSupport.unpark(spillingThread);
+            try {
+                spillingThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            spillThread = null;
+        }
+        Thread replayThread = thread;
+        if (replayThread != null) {
+            replayThread.interrupt();
+            try {
+                replayThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            thread = null;
+        }
+        store.close();
+    }
+
+    @Override
+    public void run() {
+        List<String> batch = new ArrayList<String>();
+        long nextReplay = System.nanoTime();
+        while (running) {
+            try {
+                if (store.isEmpty() || costAwareQueue.cost() > highWaterBytes) {
+                    LockSupport.parkNanos(this, IDLE_CHECK_NANOS);
+                    continue;
+                }
+                long now = System.nanoTime();
+                if (nextReplay - now > 0) {
+                    LockSupport.parkNanos(this, nextReplay - now);
+                    continue;
+                }
+                batch.clear();
+                MappedSegmentStore.Position position = store.read(batch, messagesPerRequest, maxBytesPerRequest);
+                if (batch.isEmpty()) {
+                    continue;
+                }
+                logger.debug("Replaying {} spilled messages", batch.size());
+                SourceRouting currentRouting = routing;
+                long bytes;
+                if (currentRouting == null) {
+                    bytes = replay(batch, null);
+                } else {
+                    bytes = 0;
+                    for (Map.Entry<SourceMetadata, List<String>> group : currentRouting.group(batch).entrySet()) {
+                        long groupBytes = replay(group.getValue(), group.getKey());
+                        if (groupBytes < 0) {
+                            bytes = -1;
+                            break;
+                        }
+                        bytes += groupBytes;
+                    }
+                }
+                if (bytes < 0) {
+                    break;
+                }
+                store.acknowledge(position);
+                if (replayBytesPerSecond > 0) {
+                    nextReplay = Math.max(nextReplay, now) + bytes * TimeUnit.SECONDS.toNanos(1) / replayBytesPerSecond;
+                }
+            } catch (Exception e) {
+                logger.warn("Exception while attempting to replay spilled messages", e);
+            }
+        }
+    }
+
+    /**
+     * @return bytes replayed, or -1 if stopping before the transport delivered them or gave up on them
+     */
+    private long replay(List<String> messages, SourceMetadata metadata) {
+        CharSequence body = BufferFlusher.aggregate(messages, 0, messages.size());
+        long bytes = Utf8.encodedLength(body);
+        MetricsListener listener = metrics;
+        if (listener != null) {
+            listener.batchSent(messages.size(), bytes);
+        }
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicBoolean kept = new AtomicBoolean();
+        sender.send(body, metadata, new Transport.Callback() {
+            @Override
+            public void done(boolean delivered) {
+                // A batch dropped because the appender is stopping stays on disk for the next start
+                kept.set(!delivered && !running);
+                done.countDown();
+            }
+        });
+        try {
+            done.await();
+            return kept.get() ? -1 : bytes;
+        } catch (InterruptedException e) {
+            return -1;
+        }
+    }
+}
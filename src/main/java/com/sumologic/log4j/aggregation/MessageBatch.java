@@ -0,0 +1,111 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j.aggregation;
+
+import com.sumologic.log4j.sender.ConcatenatedBody;
+
+import java.util.List;
+
+/**
+ * Request body made of consecutive drained messages, read in place rather than joined into one string.
+ * Transports encode it straight into their output, so the characters of a batch are not copied before
+ * being encoded, and can encode it one message at a time. Sequential reads are cheap; the message of the
+ * last read is remembered.
+ */
+final class MessageBatch implements ConcatenatedBody {
+
+    private final String[] messages;
+    // Index of the first character of every message, followed by the total length
+    private final int[] offsets;
+    // Message of the last read, kept without synchronization since any valid index is a correct hint
+    private int current;
+
+    MessageBatch(List<String> messages, int from, int to) {
+        this.messages = messages.subList(from, to).toArray(new String[to - from]);
+        this.offsets = new int[this.messages.length + 1];
+        for (int i = 0; i < this.messages.length; i++) {
+            offsets[i + 1] = offsets[i] + this.messages[i].length();
+        }
+    }
+
+    @Override
+    public int length() {
+        return offsets[messages.length];
+    }
+
+    @Override
+    public int parts() {
+        return messages.length;
+    }
+
+    @Override
+    public String part(int index) {
+        return messages[index];
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= length()) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for length " + length());
+        }
+        int message = current;
+        if (index < offsets[message] || index >= offsets[message + 1]) {
+            message = find(index);
+            current = message;
+        }
+        return messages[message].charAt(index - offsets[message]);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return toString().substring(start, end);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder(length());
+        for (String message : messages) {
+            builder.append(message);
+        }
+        return builder.toString();
+    }
+
+    // Message that contains the character, skipping empty messages
+    private int find(int index) {
+        int low = 0;
+        int high = messages.length - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (offsets[middle] <= index) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+}
@@ -0,0 +1,223 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j.aggregation;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.SimpleMessage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limits the rate of events per key, by default per logger, with a token bucket that allows
+ * {@code eventsPerSecond} on average and bursts of up to {@code burst} events. Events above the limit are
+ * suppressed, except for a random {@code sampleRate} fraction of them. Every {@code summaryIntervalMs}, a
+ * background thread emits a summary event per key saying how many events were suppressed.
+ * <p>
+ * Buckets are kept as a theoretical arrival time that is advanced with compare-and-set, so
+ * {@link #tryAcquire} takes no lock once the bucket of a key exists. At most {@value #MAX_KEYS} keys get a
+ * bucket of their own; further keys share one until idle buckets are removed.
+ */
+public class RateLimiter implements Runnable {
+
+    static final int MAX_KEYS = 10000;
+    private static final String OTHER_KEYS = "(other)";
+
+    /**
+     * Selects the bucket of an event.
+     */
+    public interface KeySelector {
+        String keyOf(LogEvent event);
+    }
+
+    /**
+     * Receives the summary events.
+     */
+    public interface Output {
+        void append(LogEvent summary);
+    }
+
+    private final String name;
+    private final long intervalNanos;
+    private final long burstNanos;
+    private final double sampleRate;
+    private final long summaryIntervalMs;
+    private final KeySelector keySelector;
+    private final Output output;
+    private final ConcurrentMap<String, Bucket> buckets = new ConcurrentHashMap<String, Bucket>();
+    private volatile boolean running;
+    private volatile Thread thread;
+
+    public RateLimiter(String name, double eventsPerSecond, int burst, double sampleRate, long summaryIntervalMs,
+                       KeySelector keySelector, Output output) {
+        this.name = name;
+        this.intervalNanos = Math.max((long) (TimeUnit.SECONDS.toNanos(1) / eventsPerSecond), 1);
+        this.burstNanos = intervalNanos * Math.max(burst, 1);
+        this.sampleRate = sampleRate;
+        this.summaryIntervalMs = Math.max(summaryIntervalMs, 1);
+        this.keySelector = keySelector;
+        this.output = output;
+    }
+
+    public void start() {
+        running = true;
+        Thread summarizingThread = new Thread(this, "SumoRateLimiter-" + name);
+        summarizingThread.setDaemon(true);
+        thread = summarizingThread;
+        summarizingThread.start();
+    }
+
+    /**
+     * Stops the background thread and emits the remaining summaries.
+     */
+    public void stop() {
+        running = false;
+        Thread summarizingThread = thread;
+        if (summarizingThread != null) {
+            summarizingThread.interrupt();
+            try {
+                summarizingThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            thread = null;
+        }
+        emit(summarize(System.nanoTime()));
+        buckets.clear();
+    }
+
+    /**
+     * @return whether the event is within the limit of its key or sampled, as opposed to suppressed
+     */
+    public boolean tryAcquire(LogEvent event) {
+        long now = System.nanoTime();
+        String key = keySelector.keyOf(event);
+        Bucket bucket = bucketFor(key == null ? "" : key, event.getLoggerName(), now);
+        if (bucket.tryAcquire(now, intervalNanos, burstNanos)) {
+            return true;
+        }
+        if (sampleRate > 0 && ThreadLocalRandom.current().nextDouble() < sampleRate) {
+            return true;
+        }
+        bucket.suppressed.increment();
+        return false;
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                Thread.sleep(summaryIntervalMs);
+            } catch (InterruptedException e) {
+                break;
+            }
+            emit(summarize(System.nanoTime()));
+        }
+    }
+
+    private Bucket bucketFor(String key, String loggerName, long now) {
+        Bucket bucket = buckets.get(key);
+        if (bucket != null) {
+            return bucket;
+        }
+        if (buckets.size() >= MAX_KEYS) {
+            key = OTHER_KEYS;
+            bucket = buckets.get(key);
+            if (bucket != null) {
+                return bucket;
+            }
+        }
+        Bucket created = new Bucket(key, loggerName, now);
+        bucket = buckets.putIfAbsent(key, created);
+        return bucket != null ? bucket : created;
+    }
+
+    // Takes the suppressed counts and removes buckets that have been idle long enough to be full again
+    private List<LogEvent> summarize(long now) {
+        List<LogEvent> summaries = new ArrayList<LogEvent>();
+        for (Map.Entry<String, Bucket> entry : buckets.entrySet()) {
+            Bucket bucket = entry.getValue();
+            long suppressed = bucket.suppressed.sumThenReset();
+            if (suppressed > 0) {
+                String text = suppressed + " events suppressed by rate limit for " + bucket.key + " in the last "
+                        + summaryIntervalMs + " ms";
+                summaries.add(Log4jLogEvent.newBuilder()
+                        .setLoggerName(bucket.loggerName)
+                        .setLevel(Level.WARN)
+                        .setMessage(new SimpleMessage(text))
+                        .setTimeMillis(System.currentTimeMillis())
+                        .build());
+            } else if (bucket.theoreticalArrival.get() - now <= 0) {
+                buckets.remove(entry.getKey(), bucket);
+            }
+        }
+        return summaries;
+    }
+
+    private void emit(List<LogEvent> summaries) {
+        for (int i = 0; i < summaries.size(); i++) {
+            output.append(summaries.get(i));
+        }
+    }
+
+    private static final class Bucket {
+        final String key;
+        // Logger of the first event, used for the summaries
+        final String loggerName;
+        // When the bucket is empty again at the configured rate; the bucket is full when this is in the past
+        final AtomicLong theoreticalArrival;
+        final LongAdder suppressed = new LongAdder();
+
+        Bucket(String key, String loggerName, long now) {
+            this.key = key;
+            this.loggerName = loggerName;
+            this.theoreticalArrival = new AtomicLong(now);
+        }
+
+        boolean tryAcquire(long now, long intervalNanos, long burstNanos) {
+            while (true) {
+                long current = theoreticalArrival.get();
+                long next = (current - now < 0 ? now : current) + intervalNanos;
+                if (next - now > burstNanos) {
+                    return false;
+                }
+                if (theoreticalArrival.compareAndSet(current, next)) {
+                    return true;
+                }
+            }
+        }
+    }
+}
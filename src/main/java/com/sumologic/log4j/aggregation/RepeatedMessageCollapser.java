@@ -0,0 +1,321 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j.aggregation;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.Message;
+import org.apache.logging.log4j.message.MessageFormatMessage;
+import org.apache.logging.log4j.message.ParameterizedMessage;
+import org.apache.logging.log4j.message.ReusableParameterizedMessage;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.apache.logging.log4j.message.StringFormattedMessage;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collapses repeated messages during log storms. Messages are fingerprinted by their template, logger and
+ * level. The first message of a fingerprint passes and opens a window of {@code windowMs}; further messages
+ * with the same fingerprint within the window are suppressed. Once the window has passed, a summary
+ * saying how many messages were suppressed is handed to the {@link Output}, ahead of the next message of
+ * the fingerprint if there is one.
+ * <p>
+ * Suppressing a repeat takes no lock and allocates nothing; only opening a window does. At most
+ * {@code maxEntries} fingerprints are tracked; the one whose window opened first is forgotten first, after
+ * its summary. A background thread emits the summaries of windows that have passed.
+ */
+public class RepeatedMessageCollapser implements Runnable {
+
+    /**
+     * Receives the summary events.
+     */
+    public interface Output {
+        void append(LogEvent summary);
+    }
+
+    // Repeats of a window that has been summarized; stays negative whatever late repeats add to it
+    private static final long CLOSED = Long.MIN_VALUE / 2;
+
+    private final String name;
+    private final long windowNanos;
+    private final int maxEntries;
+    private final Output output;
+    // Looked up without locking by accept()
+    private final ConcurrentHashMap<Fingerprint, Window> windows = new ConcurrentHashMap<Fingerprint, Window>();
+    // The same windows, opened first first; guarded by this, like every change to windows
+    private final LinkedHashMap<Fingerprint, Window> byOpening = new LinkedHashMap<Fingerprint, Window>();
+    // Reused to look up the window of an event
+    private final ThreadLocal<Fingerprint> probes = new ThreadLocal<Fingerprint>();
+    private volatile boolean running;
+    private volatile Thread thread;
+
+    public RepeatedMessageCollapser(String name, long windowMs, int maxEntries, Output output) {
+        this.name = name;
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMs);
+        this.maxEntries = Math.max(maxEntries, 1);
+        this.output = output;
+    }
+
+    public void start() {
+        running = true;
+        Thread sweepingThread = new Thread(this, "SumoRepeatCollapser-" + name);
+        sweepingThread.setDaemon(true);
+        thread = sweepingThread;
+        sweepingThread.start();
+    }
+
+    /**
+     * Stops the background thread and emits the summaries of all open windows.
+     */
+    public void stop() {
+        running = false;
+        Thread sweepingThread = thread;
+        if (sweepingThread != null) {
+            sweepingThread.interrupt();
+            try {
+                sweepingThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            thread = null;
+        }
+        List<LogEvent> summaries = new ArrayList<LogEvent>();
+        synchronized (this) {
+            for (Window window : byOpening.values()) {
+                summaries = add(summaries, window.close(System.currentTimeMillis()));
+            }
+            byOpening.clear();
+            windows.clear();
+        }
+        emit(summaries);
+    }
+
+    /**
+     * @return whether the event should be appended, as opposed to being suppressed as a repeat
+     */
+    public boolean accept(LogEvent event) {
+        Fingerprint probe = probes.get();
+        if (probe == null) {
+            probe = new Fingerprint();
+            probes.set(probe);
+        }
+        probe.set(event);
+        long now = System.nanoTime();
+        Window window = windows.get(probe);
+        if (window != null && now - window.start < windowNanos && window.suppress()) {
+            return false;
+        }
+        return open(probe.copy(), event, now);
+    }
+
+    // Opens a new window for the event, unless another thread just did
+    private boolean open(Fingerprint fingerprint, LogEvent event, long now) {
+        List<LogEvent> summaries = null;
+        synchronized (this) {
+            Window window = windows.get(fingerprint);
+            if (window != null && now - window.start < windowNanos && window.suppress()) {
+                return false;
+            }
+            if (window != null) {
+                summaries = add(summaries, window.close(event.getTimeMillis()));
+                byOpening.remove(fingerprint);
+            }
+            Window opened = new Window(event, now);
+            byOpening.put(fingerprint, opened);
+            windows.put(fingerprint, opened);
+            if (byOpening.size() > maxEntries) {
+                Iterator<Map.Entry<Fingerprint, Window>> eldest = byOpening.entrySet().iterator();
+                Map.Entry<Fingerprint, Window> evicted = eldest.next();
+                eldest.remove();
+                windows.remove(evicted.getKey());
+                summaries = add(summaries, evicted.getValue().close(event.getTimeMillis()));
+            }
+        }
+        if (summaries != null) {
+            emit(summaries);
+        }
+        return true;
+    }
+
+    @Override
+    public void run() {
+        long sweepIntervalMs = Math.max(TimeUnit.NANOSECONDS.toMillis(windowNanos), 1);
+        while (running) {
+            try {
+                Thread.sleep(sweepIntervalMs);
+            } catch (InterruptedException e) {
+                break;
+            }
+            emit(closeExpiredWindows(System.nanoTime()));
+        }
+    }
+
+    private synchronized List<LogEvent> closeExpiredWindows(long now) {
+        List<LogEvent> summaries = new ArrayList<LogEvent>();
+        Iterator<Map.Entry<Fingerprint, Window>> iterator = byOpening.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Fingerprint, Window> entry = iterator.next();
+            if (now - entry.getValue().start >= windowNanos) {
+                summaries = add(summaries, entry.getValue().close(System.currentTimeMillis()));
+                iterator.remove();
+                windows.remove(entry.getKey());
+            }
+        }
+        return summaries;
+    }
+
+    private static List<LogEvent> add(List<LogEvent> summaries, LogEvent summary) {
+        if (summary == null) {
+            return summaries;
+        }
+        List<LogEvent> list = summaries == null ? new ArrayList<LogEvent>(1) : summaries;
+        list.add(summary);
+        return list;
+    }
+
+    private void emit(List<LogEvent> summaries) {
+        for (int i = 0; i < summaries.size(); i++) {
+            output.append(summaries.get(i));
+        }
+    }
+
+    private static final class Fingerprint {
+        private String template;
+        private String loggerName;
+        private Level level;
+        private int hash;
+
+        // Formats nothing for messages with a template
+        void set(LogEvent event) {
+            Message message = event.getMessage();
+            String format = templateOf(message);
+            set(format != null ? format : (message == null ? "" : message.getFormattedMessage()),
+                    event.getLoggerName(), event.getLevel());
+        }
+
+        private void set(String template, String loggerName, Level level) {
+            this.template = template;
+            this.loggerName = loggerName;
+            this.level = level;
+            int h = template.hashCode();
+            h = 31 * h + (loggerName == null ? 0 : loggerName.hashCode());
+            h = 31 * h + (level == null ? 0 : level.hashCode());
+            this.hash = h;
+        }
+
+        Fingerprint copy() {
+            Fingerprint copy = new Fingerprint();
+            copy.set(template, loggerName, level);
+            return copy;
+        }
+
+        /**
+         * @return the unformatted pattern of a parameterized message, or null if the message has none. Only the
+         * concrete message types are asked, since {@link Message#getFormat()} itself is deprecated.
+         */
+        private static String templateOf(Message message) {
+            if (message instanceof ParameterizedMessage) {
+                return ((ParameterizedMessage) message).getFormat();
+            }
+            if (message instanceof ReusableParameterizedMessage) {
+                return ((ReusableParameterizedMessage) message).getFormat();
+            }
+            if (message instanceof StringFormattedMessage) {
+                return ((StringFormattedMessage) message).getFormat();
+            }
+            if (message instanceof MessageFormatMessage) {
+                return ((MessageFormatMessage) message).getFormat();
+            }
+            return null;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Fingerprint)) {
+                return false;
+            }
+            Fingerprint other = (Fingerprint) o;
+            return hash == other.hash && level == other.level && template.equals(other.template)
+                    && (loggerName == null ? other.loggerName == null : loggerName.equals(other.loggerName));
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private final class Window {
+        // Immutable copy of the message that opened the window
+        private final LogEvent first;
+        private final long start;
+        // Suppressed repeats, negative once the window is closed
+        private final AtomicLong repeats = new AtomicLong();
+
+        Window(LogEvent event, long now) {
+            first = event.toImmutable();
+            start = now;
+        }
+
+        /**
+         * @return whether the repeat was counted, as opposed to the window having been closed meanwhile
+         */
+        boolean suppress() {
+            return repeats.getAndIncrement() >= 0;
+        }
+
+        /**
+         * @return the summary of the suppressed repeats, or null if there were none
+         */
+        LogEvent close(long timeMillis) {
+            long count = repeats.getAndSet(CLOSED);
+            if (count <= 0) {
+                return null;
+            }
+            String text = "Message repeated " + count + " more times within "
+                    + TimeUnit.NANOSECONDS.toMillis(windowNanos) + " ms: " + first.getMessage().getFormattedMessage();
+            // Same logger, level, thread and context as the first message, without its stack trace
+            return new Log4jLogEvent.Builder(first)
+                    .setMessage(new SimpleMessage(text))
+                    .setThrown(null)
+                    .setThrownProxy(null)
+                    .setTimeMillis(timeMillis)
+                    .build();
+        }
+    }
+}
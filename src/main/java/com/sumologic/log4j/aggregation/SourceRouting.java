@@ -0,0 +1,137 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j.aggregation;
+
+import com.sumologic.log4j.sender.SourceMetadata;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Carries per-event source metadata through the queue as a prefix of the queued message, so that any
+ * queue, including the write-ahead log and spillover, keeps it without changes.
+ * <p>
+ * The prefix is {@code RS name US category US host RS}, with ASCII record and unit separators. Flushers
+ * split drained messages into groups by prefix and send each group with its own headers.
+ */
+public final class SourceRouting {
+
+    private static final char RECORD_SEPARATOR = '\u001e';
+    private static final char UNIT_SEPARATOR = '\u001f';
+    // Distinct prefixes remembered by a flusher before it starts over
+    private static final int MAX_CACHED_PREFIXES = 1000;
+
+    private final Map<String, SourceMetadata> parsed = new HashMap<String, SourceMetadata>();
+
+    /**
+     * @return the prefix that routes a message to the given source metadata
+     */
+    public static String prefix(String name, String category, String host) {
+        StringBuilder prefix = new StringBuilder(2 + length(name) + length(category) + length(host) + 2);
+        prefix.append(RECORD_SEPARATOR);
+        append(prefix, name).append(UNIT_SEPARATOR);
+        append(prefix, category).append(UNIT_SEPARATOR);
+        append(prefix, host).append(RECORD_SEPARATOR);
+        return prefix.toString();
+    }
+
+    /**
+     * Groups messages by their prefix, in order of each group's first message, with the prefixes removed.
+     * Messages without a prefix are grouped under a null key, for the configured metadata.
+     * Not thread-safe; every flusher has its own instance.
+     */
+    Map<SourceMetadata, List<String>> group(List<String> messages) {
+        Map<SourceMetadata, List<String>> groups = new LinkedHashMap<SourceMetadata, List<String>>();
+        for (String message : messages) {
+            SourceMetadata metadata = null;
+            int end = prefixEnd(message);
+            if (end > 0) {
+                metadata = parse(message.substring(0, end));
+                message = message.substring(end);
+            }
+            List<String> group = groups.get(metadata);
+            if (group == null) {
+                group = new ArrayList<String>();
+                groups.put(metadata, group);
+            }
+            group.add(message);
+        }
+        return groups;
+    }
+
+    // Index just past the prefix, or 0 if the message has none
+    private static int prefixEnd(String message) {
+        if (message.isEmpty() || message.charAt(0) != RECORD_SEPARATOR) {
+            return 0;
+        }
+        int end = message.indexOf(RECORD_SEPARATOR, 1);
+        return end < 0 ? 0 : end + 1;
+    }
+
+    private SourceMetadata parse(String prefix) {
+        SourceMetadata metadata = parsed.get(prefix);
+        if (metadata == null) {
+            int first = prefix.indexOf(UNIT_SEPARATOR, 1);
+            int second = first < 0 ? -1 : prefix.indexOf(UNIT_SEPARATOR, first + 1);
+            if (second < 0) {
+                return null;
+            }
+            metadata = new SourceMetadata(
+                    emptyToNull(prefix.substring(1, first)),
+                    emptyToNull(prefix.substring(first + 1, second)),
+                    emptyToNull(prefix.substring(second + 1, prefix.length() - 1)));
+            if (parsed.size() >= MAX_CACHED_PREFIXES) {
+                parsed.clear();
+            }
+            parsed.put(prefix, metadata);
+        }
+        return metadata;
+    }
+
+    private static StringBuilder append(StringBuilder prefix, String value) {
+        if (value == null) {
+            return prefix;
+        }
+        // Separators in a value would break the prefix apart
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            prefix.append(c == RECORD_SEPARATOR || c == UNIT_SEPARATOR ? ' ' : c);
+        }
+        return prefix;
+    }
+
+    private static int length(String value) {
+        return value == null ? 0 : value.length();
+    }
+
+    private static String emptyToNull(String value) {
+        return value.isEmpty() ? null : value;
+    }
+}
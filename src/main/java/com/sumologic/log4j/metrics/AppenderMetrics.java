@@ -0,0 +1,398 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j.metrics;
+
+import com.sumologic.log4j.sender.CircuitBreaker;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.status.StatusLogger;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters for one appender, kept in {@link LongAdder}s so that threads recording concurrently do not
+ * contend, and exposed over JMX as {@code com.sumologic.log4j:type=SumoLogicAppender,name=<name>}.
+ * Every event is also passed on to the listeners added with {@link #addListener(MetricsListener)}.
+ * <p>
+ * An appender that starts while another one of the same name is still running, as during a
+ * reconfiguration, takes the MBean name over. The other appender then leaves it alone when it stops.
+ */
+public class AppenderMetrics implements MetricsListener, AppenderMetricsMXBean {
+
+    private static final Logger logger = StatusLogger.getLogger();
+
+    private static final long[] BATCH_SIZE_BOUNDS = {1, 10, 50, 100, 500, 1000, 5000, 10000};
+    private static final long[] LATENCY_BOUNDS_MS = {5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000};
+
+    // Metrics registered under each MBean name by this class; also guards objectName
+    private static final Map<ObjectName, AppenderMetrics> registered = new HashMap<ObjectName, AppenderMetrics>();
+
+    /**
+     * Current size of the queues, read when the metrics are.
+     */
+    public interface QueueGauge {
+        int size();
+
+        long bytes();
+    }
+
+    /**
+     * Current state of the requests waiting to be retried, read when the metrics are.
+     */
+    public interface RetryGauge {
+        int size();
+
+        long bytes();
+
+        long oldestAgeNanos();
+    }
+
+    private final String name;
+    private final LongAdder enqueuedMessages = new LongAdder();
+    private final LongAdder enqueuedBytes = new LongAdder();
+    private final LongAdder evictedMessages = new LongAdder();
+    private final LongAdder evictedBytes = new LongAdder();
+    private final LongAdder droppedMessages = new LongAdder();
+    private final LongAdder droppedBytes = new LongAdder();
+    private final LongAdder collapsedMessages = new LongAdder();
+    private final LongAdder rateLimitedMessages = new LongAdder();
+    private final LongAdder batchesSent = new LongAdder();
+    private final LongAdder batchBytesSent = new LongAdder();
+    private final Histogram batchSizes = new Histogram(BATCH_SIZE_BOUNDS);
+    private final Histogram requestLatencies = new Histogram(LATENCY_BOUNDS_MS);
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder circuitBreakerOpenings = new LongAdder();
+    private volatile CircuitBreaker.State circuitBreakerState = CircuitBreaker.State.CLOSED;
+    private final ConcurrentMap<Integer, LongAdder> statusCodes = new ConcurrentHashMap<Integer, LongAdder>();
+    private volatile MetricsListener[] listeners = new MetricsListener[0];
+    private volatile QueueGauge queueGauge;
+    private volatile RetryGauge retryGauge;
+    private ObjectName objectName;
+
+    public AppenderMetrics(String name) {
+        this.name = name;
+    }
+
+    public synchronized void addListener(MetricsListener listener) {
+        MetricsListener[] updated = Arrays.copyOf(listeners, listeners.length + 1);
+        updated[listeners.length] = listener;
+        listeners = updated;
+    }
+
+    public synchronized void removeListener(MetricsListener listener) {
+        for (int i = 0; i < listeners.length; i++) {
+            if (listeners[i] == listener) {
+                MetricsListener[] updated = new MetricsListener[listeners.length - 1];
+                System.arraycopy(listeners, 0, updated, 0, i);
+                System.arraycopy(listeners, i + 1, updated, i, updated.length - i);
+                listeners = updated;
+                return;
+            }
+        }
+    }
+
+    public void setQueueGauge(QueueGauge queueGauge) {
+        this.queueGauge = queueGauge;
+    }
+
+    public void setRetryGauge(RetryGauge retryGauge) {
+        this.retryGauge = retryGauge;
+    }
+
+    public void registerMBean() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        synchronized (registered) {
+            try {
+                ObjectName candidate = new ObjectName("com.sumologic.log4j:type=SumoLogicAppender,name=" +
+                        ObjectName.quote(name));
+                if (registered.get(candidate) != null && server.isRegistered(candidate)) {
+                    // Still registered by an appender of the same name that is being replaced, e.g. by a reconfiguration
+                    server.unregisterMBean(candidate);
+                }
+                server.registerMBean(this, candidate);
+                registered.put(candidate, this);
+                objectName = candidate;
+            } catch (InstanceAlreadyExistsException e) {
+                logger.warn("Unable to register metrics MBean for appender {}, the name is taken by another MBean", name);
+            } catch (Exception e) {
+                logger.warn("Unable to register metrics MBean for appender {}", name, e);
+            }
+        }
+    }
+
+    /**
+     * Unregisters the MBean, unless another appender of the same name has taken it over since.
+     */
+    public void unregisterMBean() {
+        synchronized (registered) {
+            if (objectName == null) {
+                return;
+            }
+            if (registered.get(objectName) == this) {
+                registered.remove(objectName);
+                try {
+                    ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+                } catch (Exception e) {
+                    logger.debug("Unable to unregister metrics MBean {}", objectName, e);
+                }
+            }
+            objectName = null;
+        }
+    }
+
+    @Override
+    public void enqueued(long bytes) {
+        enqueuedMessages.increment();
+        enqueuedBytes.add(bytes);
+        MetricsListener[] current = listeners;
+        for (int i = 0; i < current.length; i++) {
+            current[i].enqueued(bytes);
+        }
+    }
+
+    @Override
+    public void evicted(int messages, long bytes) {
+        evictedMessages.add(messages);
+        evictedBytes.add(bytes);
+        MetricsListener[] current = listeners;
+        for (int i = 0; i < current.length; i++) {
+            current[i].evicted(messages, bytes);
+        }
+    }
+
+    @Override
+    public void dropped(long bytes) {
+        droppedMessages.increment();
+        droppedBytes.add(bytes);
+        MetricsListener[] current = listeners;
+        for (int i = 0; i < current.length; i++) {
+            current[i].dropped(bytes);
+        }
+    }
+
+    @Override
+    public void collapsed() {
+        collapsedMessages.increment();
+        MetricsListener[] current = listeners;
+        for (int i = 0; i < current.length; i++) {
+            current[i].collapsed();
+        }
+    }
+
+    @Override
+    public void rateLimited() {
+        rateLimitedMessages.increment();
+        MetricsListener[] current = listeners;
+        for (int i = 0; i < current.length; i++) {
+            current[i].rateLimited();
+        }
+    }
+
+    @Override
+    public void batchSent(int messages, long bytes) {
+        batchesSent.increment();
+        batchBytesSent.add(bytes);
+        batchSizes.record(messages);
+        MetricsListener[] current = listeners;
+        for (int i = 0; i < current.length; i++) {
+            current[i].batchSent(messages, bytes);
+        }
+    }
+
+    @Override
+    public void requestCompleted(int statusCode, long latencyNanos) {
+        requestLatencies.record(TimeUnit.NANOSECONDS.toMillis(latencyNanos));
+        LongAdder count = statusCodes.get(statusCode);
+        if (count == null) {
+            LongAdder added = new LongAdder();
+            count = statusCodes.putIfAbsent(statusCode, added);
+            if (count == null) {
+                count = added;
+            }
+        }
+        count.increment();
+        MetricsListener[] current = listeners;
+        for (int i = 0; i < current.length; i++) {
+            current[i].requestCompleted(statusCode, latencyNanos);
+        }
+    }
+
+    @Override
+    public void retried() {
+        retries.increment();
+        MetricsListener[] current = listeners;
+        for (int i = 0; i < current.length; i++) {
+            current[i].retried();
+        }
+    }
+
+    @Override
+    public void circuitBreakerStateChanged(CircuitBreaker.State state) {
+        circuitBreakerState = state;
+        if (state == CircuitBreaker.State.OPEN) {
+            circuitBreakerOpenings.increment();
+        }
+        MetricsListener[] current = listeners;
+        for (int i = 0; i < current.length; i++) {
+            current[i].circuitBreakerStateChanged(state);
+        }
+    }
+
+    @Override
+    public String getCircuitBreakerState() {
+        return circuitBreakerState.name();
+    }
+
+    @Override
+    public long getCircuitBreakerOpenings() {
+        return circuitBreakerOpenings.sum();
+    }
+
+    @Override
+    public long getEnqueuedMessages() {
+        return enqueuedMessages.sum();
+    }
+
+    @Override
+    public long getEnqueuedBytes() {
+        return enqueuedBytes.sum();
+    }
+
+    @Override
+    public long getEvictedMessages() {
+        return evictedMessages.sum();
+    }
+
+    @Override
+    public long getEvictedBytes() {
+        return evictedBytes.sum();
+    }
+
+    @Override
+    public long getDroppedMessages() {
+        return droppedMessages.sum();
+    }
+
+    @Override
+    public long getDroppedBytes() {
+        return droppedBytes.sum();
+    }
+
+    @Override
+    public long getCollapsedMessages() {
+        return collapsedMessages.sum();
+    }
+
+    @Override
+    public long getRateLimitedMessages() {
+        return rateLimitedMessages.sum();
+    }
+
+    @Override
+    public int getQueueSize() {
+        QueueGauge gauge = queueGauge;
+        return gauge == null ? 0 : gauge.size();
+    }
+
+    @Override
+    public long getQueueBytes() {
+        QueueGauge gauge = queueGauge;
+        return gauge == null ? 0 : gauge.bytes();
+    }
+
+    @Override
+    public int getRetryQueueSize() {
+        RetryGauge gauge = retryGauge;
+        return gauge == null ? 0 : gauge.size();
+    }
+
+    @Override
+    public long getRetryQueueBytes() {
+        RetryGauge gauge = retryGauge;
+        return gauge == null ? 0 : gauge.bytes();
+    }
+
+    @Override
+    public long getOldestRetryAgeMs() {
+        RetryGauge gauge = retryGauge;
+        return gauge == null ? 0 : TimeUnit.NANOSECONDS.toMillis(gauge.oldestAgeNanos());
+    }
+
+    @Override
+    public long getBatchesSent() {
+        return batchesSent.sum();
+    }
+
+    @Override
+    public long getBatchBytesSent() {
+        return batchBytesSent.sum();
+    }
+
+    @Override
+    public long[] getBatchSizeUpperBounds() {
+        return batchSizes.getUpperBounds();
+    }
+
+    @Override
+    public long[] getBatchSizeCounts() {
+        return batchSizes.getCounts();
+    }
+
+    @Override
+    public long[] getRequestLatencyUpperBoundsMs() {
+        return requestLatencies.getUpperBounds();
+    }
+
+    @Override
+    public long[] getRequestLatencyCounts() {
+        return requestLatencies.getCounts();
+    }
+
+    @Override
+    public long getRetries() {
+        return retries.sum();
+    }
+
+    @Override
+    public Map<Integer, Long> getStatusCodeCounts() {
+        Map<Integer, Long> counts = new TreeMap<Integer, Long>();
+        for (Map.Entry<Integer, LongAdder> entry : statusCodes.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().sum());
+        }
+        return counts;
+    }
+}
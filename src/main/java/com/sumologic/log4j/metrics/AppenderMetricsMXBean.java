@@ -0,0 +1,90 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j.metrics;
+
+import java.util.Map;
+
+/**
+ * JMX view of an appender's {@link AppenderMetrics}. Counters are totals since the appender was created.
+ */
+public interface AppenderMetricsMXBean {
+
+    long getEnqueuedMessages();
+
+    long getEnqueuedBytes();
+
+    long getEvictedMessages();
+
+    long getEvictedBytes();
+
+    long getDroppedMessages();
+
+    long getDroppedBytes();
+
+    long getCollapsedMessages();
+
+    long getRateLimitedMessages();
+
+    int getQueueSize();
+
+    long getQueueBytes();
+
+    int getRetryQueueSize();
+
+    long getRetryQueueBytes();
+
+    /**
+     * @return time since the first failure of the longest failing request in the retry queue, 0 if it is empty
+     */
+    long getOldestRetryAgeMs();
+
+    long getBatchesSent();
+
+    long getBatchBytesSent();
+
+    long[] getBatchSizeUpperBounds();
+
+    long[] getBatchSizeCounts();
+
+    long[] getRequestLatencyUpperBoundsMs();
+
+    long[] getRequestLatencyCounts();
+
+    long getRetries();
+
+    /**
+     * @return CLOSED while sending normally, OPEN while sending is paused and HALF_OPEN while probing
+     */
+    String getCircuitBreakerState();
+
+    long getCircuitBreakerOpenings();
+
+    /**
+     * @return number of request attempts by HTTP status code, with 0 for attempts without a response
+     */
+    Map<Integer, Long> getStatusCodeCounts();
+}
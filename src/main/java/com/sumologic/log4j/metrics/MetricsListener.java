@@ -0,0 +1,80 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j.metrics;
+
+import com.sumologic.log4j.queue.EvictionListener;
+import com.sumologic.log4j.sender.CircuitBreaker;
+
+/**
+ * Receives events from the appender's send pipeline. Methods are called on logging, flushing and
+ * sending threads and must be cheap and thread-safe; they must not log through the appender.
+ */
+public interface MetricsListener extends EvictionListener {
+
+    /**
+     * A message was added to a queue.
+     */
+    void enqueued(long bytes);
+
+    /**
+     * A message was not queued, because the queue was full or the message too large.
+     */
+    void dropped(long bytes);
+
+    /**
+     * A message was not queued, because it repeated an earlier one and was collapsed into a summary.
+     */
+    void collapsed();
+
+    /**
+     * A message was not queued, because its key was over the rate limit and it was not sampled.
+     */
+    void rateLimited();
+
+    /**
+     * A request body was handed to the sender.
+     */
+    void batchSent(int messages, long bytes);
+
+    /**
+     * An HTTP request attempt completed.
+     *
+     * @param statusCode   HTTP status code, or 0 if no response was received
+     * @param latencyNanos time from sending the request until the response or failure
+     */
+    void requestCompleted(int statusCode, long latencyNanos);
+
+    /**
+     * A failed request is going to be retried.
+     */
+    void retried();
+
+    /**
+     * The sender's circuit breaker changed state.
+     */
+    void circuitBreakerStateChanged(CircuitBreaker.State state);
+}
@@ -0,0 +1,178 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j.queue;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.status.StatusLogger;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+
+/**
+ * Message buffer that keeps UTF-8 encoded records in a single preallocated byte array.
+ * Each record is stored as a 4 byte length header followed by its payload, and both count
+ * towards the capacity, so the buffer never holds more than {@code capacity} bytes.
+ * When full, the oldest records are evicted. Adding encoded bytes does not allocate.
+ */
+public class ByteArrayRingBuffer extends EncodedMessageBuffer {
+
+    private static final Logger logger = StatusLogger.getLogger();
+
+    private final byte[] ring;
+    // Absolute read and write positions; the index into the ring is position modulo its length.
+    private long head;
+    private long tail;
+    private volatile int count;
+    private boolean evicting;
+
+    public ByteArrayRingBuffer(long capacity) {
+        super(capacity);
+        if (capacity < HEADER_BYTES + 1 || capacity > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Capacity must be between " + (HEADER_BYTES + 1) +
+                    " and " + (Integer.MAX_VALUE - 8) + " bytes");
+        }
+        this.ring = new byte[(int) capacity];
+    }
+
+    @Override
+    public synchronized boolean add(byte[] bytes, int offset, int length) {
+        long needed = HEADER_BYTES + (long) length;
+        if (!evict(needed)) {
+            logger.warn("Dropping message larger than the buffer capacity");
+            return false;
+        }
+        writeInt(tail, length);
+        write(tail + HEADER_BYTES, bytes, offset, length);
+        tail += needed;
+        count++;
+        return true;
+    }
+
+    @Override
+    public int size() {
+        return count;
+    }
+
+    @Override
+    public synchronized long cost() {
+        return tail - head;
+    }
+
+    @Override
+    public synchronized int drainTo(Collection<String> collection, int maxElements) {
+        int drained = 0;
+        while (drained < maxElements && count > 0) {
+            collection.add(readAndRemove());
+            drained++;
+        }
+        return drained;
+    }
+
+    @Override
+    protected synchronized String evict() {
+        if (count == 0) {
+            return null;
+        }
+        return readAndRemove();
+    }
+
+    @Override
+    protected synchronized boolean evict(long cost) {
+        if (cost > ring.length) {
+            return false;
+        }
+        int evicted = 0;
+        long evictedCost = 0;
+        while (ring.length - (tail - head) < cost) {
+            evictedCost += skip();
+            evicted++;
+        }
+        if (evicted > 0 && !evicting) {
+            logger.warn("Message buffer is full, evicting oldest messages");
+        }
+        evicting = evicted > 0;
+        if (evicting) {
+            evicted(evicted, evictedCost);
+        }
+        return true;
+    }
+
+    private String readAndRemove() {
+        int length = readInt(head);
+        int start = index(head + HEADER_BYTES);
+        String message;
+        if (start + length <= ring.length) {
+            message = new String(ring, start, length, StandardCharsets.UTF_8);
+        } else {
+            byte[] bytes = new byte[length];
+            read(head + HEADER_BYTES, bytes, length);
+            message = new String(bytes, StandardCharsets.UTF_8);
+        }
+        head += HEADER_BYTES + length;
+        count--;
+        return message;
+    }
+
+    private long skip() {
+        long skipped = HEADER_BYTES + readInt(head);
+        head += skipped;
+        count--;
+        return skipped;
+    }
+
+    private int index(long position) {
+        return (int) (position % ring.length);
+    }
+
+    private void write(long position, byte[] bytes, int offset, int length) {
+        int start = index(position);
+        int firstPart = Math.min(length, ring.length - start);
+        System.arraycopy(bytes, offset, ring, start, firstPart);
+        System.arraycopy(bytes, offset + firstPart, ring, 0, length - firstPart);
+    }
+
+    private void read(long position, byte[] target, int length) {
+        int start = index(position);
+        int firstPart = Math.min(length, ring.length - start);
+        System.arraycopy(ring, start, target, 0, firstPart);
+        System.arraycopy(ring, 0, target, firstPart, length - firstPart);
+    }
+
+    private void writeInt(long position, int value) {
+        for (int i = 0; i < HEADER_BYTES; i++) {
+            ring[index(position + i)] = (byte) (value >>> (24 - 8 * i));
+        }
+    }
+
+    private int readInt(long position) {
+        int value = 0;
+        for (int i = 0; i < HEADER_BYTES; i++) {
+            value = (value << 8) | (ring[index(position + i)] & 0xff);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,114 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j.queue;
+
+import com.sumologic.http.queue.BufferWithEviction;
+import com.sumologic.http.queue.CostBoundedConcurrentQueue;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.status.StatusLogger;
+
+import java.util.Collection;
+
+/**
+ * FIFO message buffer with the same eviction behavior as
+ * {@link com.sumologic.http.queue.BufferWithFifoEviction}, which also reports its current cost.
+ */
+public class CostAwareFifoBuffer<T> extends BufferWithEviction<T> implements CostAwareBuffer {
+
+    private static final Logger logger = StatusLogger.getLogger();
+
+    private final CostBoundedConcurrentQueue<T> queue;
+    private final CostBoundedConcurrentQueue.CostAssigner<T> costAssigner;
+    private volatile EvictionListener evictionListener;
+
+    public CostAwareFifoBuffer(long capacity, CostBoundedConcurrentQueue.CostAssigner<T> costAssigner) {
+        super(capacity);
+        if (costAssigner == null) {
+            throw new IllegalArgumentException("CostAssigner cannot be null");
+        }
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be at least 1");
+        }
+        this.queue = new CostBoundedConcurrentQueue<T>(capacity, costAssigner);
+        this.costAssigner = costAssigner;
+    }
+
+    @Override
+    public synchronized boolean add(T element) {
+        if (queue.offer(element)) {
+            return true;
+        }
+        return evict(costAssigner.cost(element)) && queue.offer(element);
+    }
+
+    @Override
+    public int size() {
+        return queue.size();
+    }
+
+    @Override
+    public long cost() {
+        return queue.cost();
+    }
+
+    @Override
+    public void setEvictionListener(EvictionListener listener) {
+        this.evictionListener = listener;
+    }
+
+    @Override
+    public int drainTo(Collection<T> collection, int maxElements) {
+        return queue.drainTo(collection, maxElements);
+    }
+
+    @Override
+    protected T evict() {
+        return queue.poll();
+    }
+
+    @Override
+    protected boolean evict(long cost) {
+        if (cost > getCapacity()) {
+            return false;
+        }
+        int evicted = 0;
+        long evictedCost = 0;
+        T element;
+        while (queue.cost() + cost > getCapacity() && (element = evict()) != null) {
+            evicted++;
+            evictedCost += costAssigner.cost(element);
+        }
+        if (evicted > 0) {
+            logger.warn("Evicted {} messages from buffer", evicted);
+            EvictionListener listener = evictionListener;
+            if (listener != null) {
+                listener.evicted(evicted, evictedCost);
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,47 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j.queue;
+
+import java.util.List;
+
+/**
+ * A message buffer that keeps drained messages until they are acknowledged, so that messages drained
+ * but not sent before the JVM stops are drained again after a restart.
+ */
+public interface DurableBuffer {
+
+    /**
+     * Drains like {@code drainTo}, but keeps the messages until the returned receipt is acknowledged.
+     * Receipts may be acknowledged in any order; messages are released up to the oldest receipt that
+     * was not acknowledged yet.
+     */
+    Receipt drainUnacknowledged(List<String> target, int maxElements);
+
+    interface Receipt {
+        void acknowledge();
+    }
+}
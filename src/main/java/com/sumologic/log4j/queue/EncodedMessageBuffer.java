@@ -0,0 +1,93 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j.queue;
+
+import com.sumologic.http.queue.BufferWithEviction;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Message buffer that stores UTF-8 encoded records rather than {@code String} objects, so that
+ * its cost is the exact number of bytes held and encoded events can be queued without copying
+ * them into a new object first.
+ */
+public abstract class EncodedMessageBuffer extends BufferWithEviction<String> implements CostAwareBuffer {
+
+    // Each record is stored as a big-endian length followed by its payload.
+    static final int HEADER_BYTES = 4;
+
+    private volatile EvictionListener evictionListener;
+
+    /**
+     * @return cost of a record of {@code length} encoded bytes, including its header
+     */
+    public static long recordCost(long length) {
+        return HEADER_BYTES + length;
+    }
+
+    public EncodedMessageBuffer(long capacity) {
+        super(capacity);
+    }
+
+    /**
+     * Adds an already encoded UTF-8 record, evicting older records if needed.
+     *
+     * @return false if the record could not be stored
+     */
+    public abstract boolean add(byte[] bytes, int offset, int length);
+
+    /**
+     * @return number of bytes currently held by the buffer, including record headers
+     */
+    @Override
+    public abstract long cost();
+
+    /**
+     * Tells whether a record of {@code cost} bytes, header included, can be added without evicting.
+     */
+    public boolean hasRoomFor(long cost) {
+        return cost() + cost <= getCapacity();
+    }
+
+    @Override
+    public void setEvictionListener(EvictionListener listener) {
+        this.evictionListener = listener;
+    }
+
+    protected void evicted(int messages, long cost) {
+        EvictionListener listener = evictionListener;
+        if (listener != null) {
+            listener.evicted(messages, cost);
+        }
+    }
+
+    @Override
+    public boolean add(String message) {
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        return add(bytes, 0, bytes.length);
+    }
+}
@@ -0,0 +1,211 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j.queue;
+
+import com.sumologic.http.queue.BufferWithEviction;
+import com.sumologic.http.queue.CostBoundedConcurrentQueue;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.status.StatusLogger;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+
+/**
+ * Message buffer that evicts by level when full: the oldest messages of the least severe level are
+ * evicted first, so that a flood of DEBUG messages cannot push out an ERROR. A message is never let in
+ * at the expense of a more severe one; it is dropped instead.
+ * <p>
+ * Messages are kept in a FIFO lane per standard level, with the cost of each lane accounted separately,
+ * and drained in the order they were added across all lanes. Custom levels share the lane of the next
+ * more severe standard level.
+ */
+public class LevelPriorityBuffer extends BufferWithEviction<String> implements CostAwareBuffer {
+
+    private static final Logger logger = StatusLogger.getLogger();
+
+    // OFF and FATAL, ERROR, WARN, INFO, DEBUG, TRACE and ALL, by Level.intLevel() / 100
+    private static final int LANES = 7;
+
+    private final CostBoundedConcurrentQueue.CostAssigner<String> costAssigner;
+    @SuppressWarnings("unchecked")
+    private final ArrayDeque<Entry>[] lanes = new ArrayDeque[LANES];
+    private final long[] laneCosts = new long[LANES];
+    private long cost;
+    private volatile int size;
+    private long nextSequence;
+    private boolean evicting;
+    private boolean dropping;
+    private volatile EvictionListener evictionListener;
+
+    public LevelPriorityBuffer(long capacity, CostBoundedConcurrentQueue.CostAssigner<String> costAssigner) {
+        super(capacity);
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be at least 1");
+        }
+        this.costAssigner = costAssigner;
+        for (int i = 0; i < LANES; i++) {
+            lanes[i] = new ArrayDeque<Entry>();
+        }
+    }
+
+    /**
+     * Adds a message without a level, which is treated as {@link Level#INFO}.
+     */
+    @Override
+    public boolean add(String message) {
+        return add(message, Level.INFO);
+    }
+
+    public synchronized boolean add(String message, Level level) {
+        long messageCost = costAssigner.cost(message);
+        int lane = laneOf(level);
+        boolean fits = evict(messageCost, lane);
+        if (!fits && !dropping) {
+            logger.warn("Message buffer is full of more severe messages, dropping {} messages", level);
+        }
+        dropping = !fits;
+        if (!fits) {
+            return false;
+        }
+        lanes[lane].addLast(new Entry(message, messageCost, nextSequence++));
+        laneCosts[lane] += messageCost;
+        cost += messageCost;
+        size++;
+        return true;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public synchronized long cost() {
+        return cost;
+    }
+
+    @Override
+    public void setEvictionListener(EvictionListener listener) {
+        this.evictionListener = listener;
+    }
+
+    /**
+     * @return cost of the queued messages that share the lane of {@code level}
+     */
+    public synchronized long cost(Level level) {
+        return laneCosts[laneOf(level)];
+    }
+
+    @Override
+    public synchronized int drainTo(Collection<String> collection, int maxElements) {
+        int drained = 0;
+        while (drained < maxElements) {
+            int oldest = -1;
+            for (int i = 0; i < LANES; i++) {
+                Entry head = lanes[i].peekFirst();
+                if (head != null && (oldest < 0 || head.sequence < lanes[oldest].peekFirst().sequence)) {
+                    oldest = i;
+                }
+            }
+            if (oldest < 0) {
+                break;
+            }
+            collection.add(remove(oldest).message);
+            drained++;
+        }
+        return drained;
+    }
+
+    @Override
+    protected synchronized String evict() {
+        for (int i = LANES - 1; i >= 0; i--) {
+            if (!lanes[i].isEmpty()) {
+                return remove(i).message;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    protected synchronized boolean evict(long cost) {
+        return evict(cost, 0);
+    }
+
+    // Evicts messages no more severe than the lane until cost fits, or returns false without evicting
+    private boolean evict(long messageCost, int lane) {
+        long evictable = 0;
+        for (int i = lane; i < LANES; i++) {
+            evictable += laneCosts[i];
+        }
+        long excess = cost + messageCost - getCapacity();
+        if (messageCost > getCapacity() || excess > evictable) {
+            return false;
+        }
+        int evicted = 0;
+        long evictedCost = 0;
+        for (int i = LANES - 1; i >= lane && cost + messageCost > getCapacity(); i--) {
+            while (!lanes[i].isEmpty() && cost + messageCost > getCapacity()) {
+                evictedCost += remove(i).cost;
+                evicted++;
+            }
+        }
+        if (evicted > 0 && !evicting) {
+            logger.warn("Message buffer is full, evicting the oldest of the least severe messages");
+        }
+        evicting = evicted > 0;
+        EvictionListener listener = evictionListener;
+        if (evicting && listener != null) {
+            listener.evicted(evicted, evictedCost);
+        }
+        return true;
+    }
+
+    private Entry remove(int lane) {
+        Entry entry = lanes[lane].pollFirst();
+        laneCosts[lane] -= entry.cost;
+        cost -= entry.cost;
+        size--;
+        return entry;
+    }
+
+    private static int laneOf(Level level) {
+        return Math.min(LANES - 1, Math.max(0, level.intLevel() / 100));
+    }
+
+    private static final class Entry {
+        final String message;
+        final long cost;
+        final long sequence;
+
+        Entry(String message, long cost, long sequence) {
+            this.message = message;
+            this.cost = cost;
+            this.sequence = sequence;
+        }
+    }
+}
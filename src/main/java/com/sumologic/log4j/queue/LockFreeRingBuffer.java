@@ -0,0 +1,214 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j.queue;
+
+import com.sumologic.http.queue.BufferWithEviction;
+import com.sumologic.http.queue.CostBoundedConcurrentQueue;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded, lock-free message buffer for many concurrent producers. Slots are claimed with a
+ * compare-and-set on a sequence number per slot, so producers never block each other on a lock.
+ * <p>
+ * The buffer keeps the FIFO eviction semantics of {@link com.sumologic.http.queue.BufferWithFifoEviction}:
+ * a producer that finds the buffer over its cost capacity, or out of free slots, removes the oldest
+ * entries itself. Because cost is reserved before evicting, the total cost may briefly exceed the
+ * capacity by the entries that are being added concurrently. The cost is kept in a {@link LongAdder},
+ * so that producers do not contend on a single counter.
+ * <p>
+ * A producer that is out of slots while the oldest one is still being written or read by another
+ * thread yields and tries again a few times, then drops its entry rather than wait for that thread.
+ */
+public class LockFreeRingBuffer<T> extends BufferWithEviction<T> implements CostAwareBuffer {
+
+    public static final int DEFAULT_SLOTS = 1 << 16;
+    // Attempts to find a free slot before an entry is dropped
+    static final int MAX_OFFER_ATTEMPTS = 64;
+
+    private final CostBoundedConcurrentQueue.CostAssigner<T> costAssigner;
+    private final int mask;
+    private final Object[] items;
+    private final AtomicLongArray sequences;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private final LongAdder cost = new LongAdder();
+    private volatile EvictionListener evictionListener;
+
+    public LockFreeRingBuffer(long capacity, CostBoundedConcurrentQueue.CostAssigner<T> costAssigner) {
+        this(capacity, DEFAULT_SLOTS, costAssigner);
+    }
+
+    public LockFreeRingBuffer(long capacity, int slots, CostBoundedConcurrentQueue.CostAssigner<T> costAssigner) {
+        super(capacity);
+        if (costAssigner == null) {
+            throw new IllegalArgumentException("CostAssigner cannot be null");
+        }
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be at least 1");
+        }
+        if (slots < 2 || Integer.bitCount(slots) != 1) {
+            throw new IllegalArgumentException("Number of slots must be a power of two");
+        }
+        this.costAssigner = costAssigner;
+        this.mask = slots - 1;
+        this.items = new Object[slots];
+        this.sequences = new AtomicLongArray(slots);
+        for (int i = 0; i < slots; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    @Override
+    public boolean add(T element) {
+        long elementCost = costAssigner.cost(element);
+        if (elementCost > getCapacity()) {
+            return false;
+        }
+        cost.add(elementCost);
+        T evicted;
+        while (cost.sum() > getCapacity() && (evicted = evict()) != null) {
+            // Dropped the oldest entry to make room
+            reportEviction(evicted);
+        }
+        for (int attempt = 1; !offer(element); attempt++) {
+            if (attempt == MAX_OFFER_ATTEMPTS) {
+                cost.add(-elementCost);
+                return false;
+            }
+            // Out of slots, drop the oldest entry and try again
+            evicted = evict();
+            if (evicted != null) {
+                reportEviction(evicted);
+            } else {
+                // The oldest slot is claimed but not yet published or freed by another thread
+                Thread.yield();
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int size() {
+        long size = tail.get() - head.get();
+        return (int) Math.max(0, Math.min(size, items.length));
+    }
+
+    @Override
+    public long cost() {
+        return cost.sum();
+    }
+
+    @Override
+    public void setEvictionListener(EvictionListener listener) {
+        this.evictionListener = listener;
+    }
+
+    @Override
+    public int drainTo(Collection<T> collection, int maxElements) {
+        int drained = 0;
+        T element;
+        while (drained < maxElements && (element = poll()) != null) {
+            collection.add(element);
+            drained++;
+        }
+        return drained;
+    }
+
+    @Override
+    protected T evict() {
+        return poll();
+    }
+
+    @Override
+    protected boolean evict(long cost) {
+        if (cost > getCapacity()) {
+            return false;
+        }
+        T evicted;
+        while (this.cost.sum() + cost > getCapacity() && (evicted = evict()) != null) {
+            // Dropped the oldest entry to make room
+            reportEviction(evicted);
+        }
+        return true;
+    }
+
+    private void reportEviction(T evicted) {
+        EvictionListener listener = evictionListener;
+        if (listener != null && evicted != null) {
+            listener.evicted(1, costAssigner.cost(evicted));
+        }
+    }
+
+    private boolean offer(T element) {
+        long position = tail.get();
+        while (true) {
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    items[index] = element;
+                    // Publishes the element to consumers
+                    sequences.set(index, position + 1);
+                    return true;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                return false;
+            } else {
+                position = tail.get();
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private T poll() {
+        long position = head.get();
+        while (true) {
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - (position + 1);
+            if (difference == 0) {
+                if (head.compareAndSet(position, position + 1)) {
+                    T element = (T) items[index];
+                    items[index] = null;
+                    // Hands the slot back to producers for the next lap
+                    sequences.set(index, position + mask + 1);
+                    cost.add(-costAssigner.cost(element));
+                    return element;
+                }
+                position = head.get();
+            } else if (difference < 0) {
+                return null;
+            } else {
+                position = head.get();
+            }
+        }
+    }
+}
@@ -0,0 +1,552 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j.queue;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.status.StatusLogger;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Append-only message store in fixed size, memory-mapped segment files in a directory. Appending only
+ * copies into the mapping and leaves writing the pages back to the operating system.
+ * <p>
+ * Each record is a 4 byte length header followed by its UTF-8 payload; the header is written last and a
+ * zero header marks the end of a segment, so a record that was interrupted halfway is never read.
+ * Messages are read in the order they were appended, and segments are deleted once everything in them
+ * has been acknowledged; until then, acknowledged records are marked by negating their header. When the
+ * store reaches its quota, the oldest segment is deleted whether it was acknowledged or not. Segments left
+ * behind by a previous run are picked up and read first; messages read but not acknowledged before a
+ * restart are read again.
+ * <p>
+ * Appended messages survive the JVM crashing as soon as {@code append} returns. A durable store also
+ * keeps segments mapped until {@link #force()} has written them to the device, so that they survive
+ * the operating system crashing as well.
+ */
+public class MappedSegmentStore implements Closeable {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+
+    private static final Logger logger = StatusLogger.getLogger();
+
+    private static final int HEADER_BYTES = 4;
+    private static final String SUFFIX = ".spill";
+
+    private final File directory;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final boolean durable;
+    // Oldest first; the last one is written to
+    private final ArrayDeque<Segment> segments = new ArrayDeque<Segment>();
+    private long nextSequence;
+    private long readSequence;
+    private int readOffset;
+    private long ackSequence;
+    private int ackOffset;
+    private byte[] scratch = new byte[1024];
+    // Messages and bytes, including headers, appended but not read yet
+    private volatile int unreadMessages;
+    private volatile long unreadBytes;
+    private volatile EvictionListener evictionListener;
+
+    public MappedSegmentStore(File directory, long maxBytes) throws IOException {
+        this(directory, maxBytes, segmentSizeFor(maxBytes));
+    }
+
+    public MappedSegmentStore(File directory, long maxBytes, int segmentSize) throws IOException {
+        this(directory, maxBytes, segmentSize, false);
+    }
+
+    public MappedSegmentStore(File directory, long maxBytes, int segmentSize, boolean durable) throws IOException {
+        if (segmentSize <= HEADER_BYTES || maxBytes < segmentSize) {
+            throw new IllegalArgumentException("Segment size must be between " + (HEADER_BYTES + 1) +
+                    " bytes and the store quota");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create directory " + directory);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSegments = (int) Math.max(2, Math.min(Integer.MAX_VALUE, maxBytes / segmentSize));
+        this.durable = durable;
+        recover();
+    }
+
+    static int segmentSizeFor(long maxBytes) {
+        return (int) Math.min(DEFAULT_SEGMENT_SIZE, Math.max(maxBytes / 2, HEADER_BYTES + 1));
+    }
+
+    /**
+     * @return whether the message was stored; it is not if it does not fit into a segment
+     */
+    public boolean append(String message) throws IOException {
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        return append(bytes, 0, bytes.length);
+    }
+
+    public synchronized boolean append(byte[] bytes, int offset, int length) throws IOException {
+        if (length == 0) {
+            return true;
+        }
+        if (HEADER_BYTES + length > segmentSize) {
+            logger.warn("Dropping message larger than the segment size");
+            return false;
+        }
+        Segment segment = segments.peekLast();
+        if (segment == null || segment.end + HEADER_BYTES + length > segmentSize) {
+            segment = newSegment();
+        }
+        ByteBuffer buffer = segment.map();
+        int next = segment.end + HEADER_BYTES + length;
+        // Cast for Java 8, where Buffer.position does not return ByteBuffer
+        ((Buffer) buffer).position(segment.end + HEADER_BYTES);
+        buffer.put(bytes, offset, length);
+        if (next + HEADER_BYTES <= segmentSize) {
+            // A segment that was started over may still hold older records after this one
+            buffer.putInt(next, 0);
+        }
+        buffer.putInt(segment.end, length);
+        segment.end = next;
+        segment.dirty = true;
+        unreadMessages++;
+        unreadBytes += HEADER_BYTES + length;
+        return true;
+    }
+
+    /**
+     * Reads the next messages after the ones read before, without removing them.
+     *
+     * @return the position to {@link #acknowledge(Position) acknowledge} once the messages are delivered
+     */
+    public synchronized Position read(List<String> target, int maxMessages, long maxBytes) {
+        long bytes = 0;
+        int read = 0;
+        while (read < maxMessages) {
+            Segment segment = readSegment();
+            if (segment == null || readOffset >= segment.end) {
+                break;
+            }
+            ByteBuffer buffer = segment.map();
+            int length = buffer.getInt(readOffset);
+            if (read > 0 && bytes + length > maxBytes) {
+                break;
+            }
+            if (scratch.length < length) {
+                scratch = new byte[Math.max(length, scratch.length * 2)];
+            }
+            ((Buffer) buffer).position(readOffset + HEADER_BYTES);
+            buffer.get(scratch, 0, length);
+            target.add(new String(scratch, 0, length, StandardCharsets.UTF_8));
+            readOffset += HEADER_BYTES + length;
+            bytes += length;
+            read++;
+            unreadMessages--;
+            unreadBytes -= HEADER_BYTES + length;
+        }
+        return new Position(readSequence, readOffset);
+    }
+
+    /**
+     * Deletes the segments whose messages have all been read up to {@code position}.
+     */
+    public synchronized void acknowledge(Position position) {
+        while (segments.size() > 1 && segments.peekFirst().sequence < position.sequence) {
+            delete(segments.pollFirst());
+        }
+        Segment first = segments.peekFirst();
+        if (first != null && first.sequence == position.sequence) {
+            int from = ackSequence == first.sequence ? ackOffset : 0;
+            markAcknowledged(first, from, position.offset);
+            ackSequence = first.sequence;
+            ackOffset = Math.max(from, position.offset);
+            first.unmapUnlessLast();
+        }
+        if (segments.size() == 1 && first.sequence == position.sequence && position.offset >= first.end
+                && readSequence == first.sequence && readOffset >= first.end) {
+            // Everything was delivered; start over at the beginning of the segment
+            first.end = 0;
+            first.map().putInt(0, 0);
+            readOffset = 0;
+            ackOffset = 0;
+        }
+    }
+
+    public synchronized boolean isEmpty() {
+        Segment segment = readSegment();
+        return segment == null || readOffset >= segment.end;
+    }
+
+    /**
+     * Reports unread messages deleted because the store reached its quota to {@code listener}.
+     */
+    public void setEvictionListener(EvictionListener listener) {
+        this.evictionListener = listener;
+    }
+
+    /**
+     * @return number of messages appended but not read yet
+     */
+    public int unreadMessages() {
+        return unreadMessages;
+    }
+
+    /**
+     * @return number of bytes, including record headers, appended but not read yet
+     */
+    public long unreadBytes() {
+        return unreadBytes;
+    }
+
+    /**
+     * Writes everything appended so far to the storage device. Appending and reading carry on while
+     * the segments are being forced.
+     */
+    public void force() {
+        List<Segment> forcing = new ArrayList<Segment>();
+        synchronized (this) {
+            for (Segment segment : segments) {
+                if (segment.dirty && segment.buffer != null) {
+                    segment.dirty = false;
+                    segment.pins++;
+                    forcing.add(segment);
+                }
+            }
+        }
+        try {
+            for (Segment segment : forcing) {
+                segment.buffer.force();
+            }
+        } finally {
+            synchronized (this) {
+                for (Segment segment : forcing) {
+                    segment.pins--;
+                    if (segment.unmapRequested) {
+                        segment.unmap();
+                    } else {
+                        // Kept mapped until now because it was dirty
+                        segment.unmapUnlessLast();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return number of bytes the segment files take up on disk
+     */
+    public synchronized long size() {
+        return (long) segments.size() * segmentSize;
+    }
+
+    @Override
+    public synchronized void close() {
+        for (Segment segment : segments) {
+            if (durable && segment.dirty && segment.buffer != null) {
+                segment.buffer.force();
+            }
+            segment.unmap();
+        }
+    }
+
+    // The segment the next message is read from, skipping segments that have been read completely
+    private Segment readSegment() {
+        Iterator<Segment> iterator = segments.iterator();
+        while (iterator.hasNext()) {
+            Segment segment = iterator.next();
+            if (segment.sequence < readSequence) {
+                continue;
+            }
+            if (segment.sequence > readSequence) {
+                readSequence = segment.sequence;
+                readOffset = 0;
+            }
+            if (readOffset < segment.end || !iterator.hasNext()) {
+                return segment;
+            }
+            readSequence = segment.sequence + 1;
+            readOffset = 0;
+            segment.unmapUnlessLast();
+        }
+        return null;
+    }
+
+    private Segment newSegment() throws IOException {
+        if (segments.size() >= maxSegments) {
+            Segment oldest = segments.pollFirst();
+            logger.warn("Quota of {} reached, deleting the oldest {} bytes of messages", directory, oldest.end);
+            if (oldest.sequence >= readSequence) {
+                int from = oldest.sequence == readSequence ? readOffset : 0;
+                int evicted = countRecords(oldest.map(), from, oldest.end);
+                unreadMessages -= evicted;
+                unreadBytes -= oldest.end - from;
+                EvictionListener listener = evictionListener;
+                if (listener != null && evicted > 0) {
+                    listener.evicted(evicted, oldest.end - from);
+                }
+            }
+            delete(oldest);
+        }
+        Segment last = segments.peekLast();
+        if (last != null) {
+            last.unmapUnlessRead();
+        }
+        Segment segment = new Segment(nextSequence++);
+        segments.addLast(segment);
+        return segment;
+    }
+
+    private void delete(Segment segment) {
+        segment.unmap();
+        if (!segment.file.delete()) {
+            logger.warn("Unable to delete segment {}", segment.file);
+        }
+    }
+
+    private void recover() throws IOException {
+        File[] files = directory.listFiles();
+        List<Long> sequences = new ArrayList<Long>();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.endsWith(SUFFIX)) {
+                    try {
+                        sequences.add(Long.parseLong(name.substring(0, name.length() - SUFFIX.length())));
+                    } catch (NumberFormatException ignore) {
+                    }
+                }
+            }
+        }
+        Long[] sorted = sequences.toArray(new Long[0]);
+        Arrays.sort(sorted);
+        for (Long sequence : sorted) {
+            Segment segment = new Segment(sequence);
+            if (segment.file.length() != segmentSize) {
+                // Written with a different segment size
+                logger.warn("Ignoring segment {} of unexpected size", segment.file);
+                continue;
+            }
+            segment.end = scanEnd(segment.map());
+            int start = segments.isEmpty() ? skipAcknowledged(segment.buffer, segment.end) : 0;
+            unreadMessages += countRecords(segment.buffer, start, segment.end);
+            unreadBytes += segment.end - start;
+            segment.unmap();
+            if (segment.end == start) {
+                delete(segment);
+                continue;
+            }
+            if (segments.isEmpty()) {
+                readSequence = ackSequence = sequence;
+                readOffset = ackOffset = start;
+            }
+            segments.addLast(segment);
+            nextSequence = sequence + 1;
+        }
+        if (!segments.isEmpty()) {
+            logger.info("Found {} segments in {}", segments.size(), directory);
+        }
+    }
+
+    private int scanEnd(ByteBuffer buffer) {
+        int offset = 0;
+        while (offset + HEADER_BYTES <= segmentSize) {
+            int length = Math.abs(buffer.getInt(offset));
+            if (length <= 0 || offset + HEADER_BYTES + length > segmentSize) {
+                break;
+            }
+            offset += HEADER_BYTES + length;
+        }
+        return offset;
+    }
+
+    private int skipAcknowledged(ByteBuffer buffer, int end) {
+        int offset = 0;
+        while (offset < end && buffer.getInt(offset) < 0) {
+            offset += HEADER_BYTES - buffer.getInt(offset);
+        }
+        return offset;
+    }
+
+    private void markAcknowledged(Segment segment, int from, int to) {
+        ByteBuffer buffer = segment.map();
+        int offset = from;
+        while (offset < to) {
+            int length = buffer.getInt(offset);
+            if (length > 0) {
+                buffer.putInt(offset, -length);
+            }
+            offset += HEADER_BYTES + Math.abs(length);
+        }
+    }
+
+    private int countRecords(ByteBuffer buffer, int from, int end) {
+        int count = 0;
+        for (int offset = from; offset < end; offset += HEADER_BYTES + Math.abs(buffer.getInt(offset))) {
+            if (buffer.getInt(offset) > 0) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Position in the store up to which messages have been read.
+     */
+    public static final class Position {
+        private final long sequence;
+        private final int offset;
+
+        private Position(long sequence, int offset) {
+            this.sequence = sequence;
+            this.offset = offset;
+        }
+    }
+
+    private final class Segment {
+        final long sequence;
+        final File file;
+        MappedByteBuffer buffer;
+        int end;
+        // Written to since it was last forced
+        boolean dirty;
+        // Being forced, so it must stay mapped
+        int pins;
+        boolean unmapRequested;
+
+        Segment(long sequence) {
+            this.sequence = sequence;
+            this.file = new File(directory, String.format("%019d%s", sequence, SUFFIX));
+        }
+
+        MappedByteBuffer map() {
+            unmapRequested = false;
+            if (buffer == null) {
+                try {
+                    FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                            StandardOpenOption.READ, StandardOpenOption.WRITE);
+                    try {
+                        // The mapping stays valid after the channel is closed
+                        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+                    } finally {
+                        channel.close();
+                    }
+                } catch (IOException e) {
+                    throw new IllegalStateException("Unable to map segment " + file, e);
+                }
+            }
+            return buffer;
+        }
+
+        void unmapUnlessLast() {
+            if (segments.peekLast() != this && sequence != readSequence) {
+                release();
+            }
+        }
+
+        void unmapUnlessRead() {
+            if (sequence != readSequence) {
+                release();
+            }
+        }
+
+        // Unmaps a segment that is still in use, unless it has to be forced first
+        private void release() {
+            if (!(durable && dirty)) {
+                unmap();
+            }
+        }
+
+        void unmap() {
+            if (pins > 0) {
+                unmapRequested = true;
+                return;
+            }
+            if (buffer != null) {
+                Unmapper.unmap(buffer);
+                buffer = null;
+            }
+        }
+    }
+
+    /**
+     * Releases mappings right away instead of when the garbage collector gets to them, so that the
+     * address space and, on some platforms, the files are freed. Best effort: without access to the
+     * JDK internals involved, mappings are left to the garbage collector.
+     */
+    private static final class Unmapper {
+        private static final Object UNSAFE;
+        private static final Method INVOKE_CLEANER;
+
+        static {
+            Object unsafe = null;
+            Method invokeCleaner = null;
+            try {
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                // Java 9 and later
+                invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+                Field field = unsafeClass.getDeclaredField("theUnsafe");
+                field.setAccessible(true);
+                unsafe = field.get(null);
+            } catch (Exception e) {
+                invokeCleaner = null;
+            }
+            UNSAFE = unsafe;
+            INVOKE_CLEANER = invokeCleaner;
+        }
+
+        static void unmap(MappedByteBuffer buffer) {
+            try {
+                if (INVOKE_CLEANER != null) {
+                    INVOKE_CLEANER.invoke(UNSAFE, buffer);
+                } else {
+                    // Java 8
+                    Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                    cleanerMethod.setAccessible(true);
+                    Object cleaner = cleanerMethod.invoke(buffer);
+                    if (cleaner != null) {
+                        cleaner.getClass().getMethod("clean").invoke(cleaner);
+                    }
+                }
+            } catch (Exception ignore) {
+            }
+        }
+    }
+}
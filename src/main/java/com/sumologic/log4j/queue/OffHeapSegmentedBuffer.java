@@ -0,0 +1,265 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j.queue;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.status.StatusLogger;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Collection;
+
+/**
+ * Message buffer that keeps UTF-8 encoded records outside the Java heap, in fixed size direct
+ * {@link ByteBuffer} segments. Large buffers therefore add nothing to the heap the garbage
+ * collector has to scan, and the reported cost is the exact number of record bytes held.
+ * <p>
+ * The segments never take more than {@code capacity} bytes of direct memory. When all of it is in
+ * use, the oldest segment is evicted as a whole and reused for new records. Records do not span
+ * segments; a record longer than a segment gets a segment of its own, sized to fit and released
+ * once drained, so that any record up to the capacity is accepted.
+ * <p>
+ * Unless given a segment size, the buffer splits its capacity into at least {@link #MIN_SEGMENTS}
+ * segments of at most {@link #DEFAULT_SEGMENT_SIZE} bytes, so that eviction only gives up a small
+ * part of the buffer and no more than a few bytes of the capacity go unused.
+ */
+public class OffHeapSegmentedBuffer extends EncodedMessageBuffer {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+    public static final int MIN_SEGMENTS = 8;
+    // Smaller capacities are not split any further than this
+    static final int MIN_SEGMENT_SIZE = 4096;
+
+    private static final Logger logger = StatusLogger.getLogger();
+
+    private final int segmentSize;
+    // Largest record that fits, header included; a direct buffer holds at most Integer.MAX_VALUE bytes
+    private final long maxRecordCost;
+    private final ArrayDeque<Segment> segments = new ArrayDeque<Segment>();
+    private final ArrayDeque<Segment> freeSegments = new ArrayDeque<Segment>();
+    private long allocatedBytes;
+    private long cost;
+    private volatile int count;
+    private byte[] scratch = new byte[1024];
+
+    public OffHeapSegmentedBuffer(long capacity) {
+        this(capacity, segmentSizeFor(capacity));
+    }
+
+    public OffHeapSegmentedBuffer(long capacity, int segmentSize) {
+        super(capacity);
+        if (segmentSize <= HEADER_BYTES || segmentSize > capacity) {
+            throw new IllegalArgumentException("Segment size must be between " + (HEADER_BYTES + 1) +
+                    " bytes and the buffer capacity");
+        }
+        this.segmentSize = segmentSize;
+        this.maxRecordCost = Math.min(capacity, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @return size of the segments a buffer of {@code capacity} bytes is split into by default
+     */
+    static int segmentSizeFor(long capacity) {
+        long segments = Math.max(MIN_SEGMENTS, (capacity + DEFAULT_SEGMENT_SIZE - 1) / DEFAULT_SEGMENT_SIZE);
+        long size = Math.max(capacity / segments, Math.min(capacity, MIN_SEGMENT_SIZE));
+        return (int) Math.min(size, DEFAULT_SEGMENT_SIZE);
+    }
+
+    @Override
+    public synchronized boolean add(byte[] bytes, int offset, int length) {
+        long needed = HEADER_BYTES + (long) length;
+        if (length < 0 || needed > maxRecordCost) {
+            logger.warn("Dropping message larger than the buffer capacity");
+            return false;
+        }
+        Segment tail = segments.peekLast();
+        if (tail == null || tail.remaining() < needed) {
+            tail = needed > segmentSize ? oversizedSegment((int) needed) : nextSegment();
+            segments.addLast(tail);
+        }
+        tail.data.putInt(tail.writePosition, length);
+        // Cast for Java 8, where Buffer.position does not return ByteBuffer
+        ((Buffer) tail.data).position(tail.writePosition + HEADER_BYTES);
+        tail.data.put(bytes, offset, length);
+        tail.writePosition += needed;
+        tail.records++;
+        cost += needed;
+        count++;
+        return true;
+    }
+
+    /**
+     * Tells whether a record of {@code cost} bytes, header included, can be added without evicting.
+     * Unlike comparing {@link #cost()} with the capacity, this accounts for the unused end of the
+     * last segment and for drained parts of the first one, which only become free with their segment.
+     */
+    @Override
+    public synchronized boolean hasRoomFor(long cost) {
+        if (cost > maxRecordCost) {
+            return false;
+        }
+        Segment tail = segments.peekLast();
+        if (tail != null && tail.remaining() >= cost) {
+            return true;
+        }
+        if (cost <= segmentSize) {
+            return !freeSegments.isEmpty() || allocatedBytes + segmentSize <= getCapacity();
+        }
+        // Free segments give up their memory to a record that needs a segment of its own
+        return allocatedBytes - (long) freeSegments.size() * segmentSize + cost <= getCapacity();
+    }
+
+    @Override
+    public int size() {
+        return count;
+    }
+
+    @Override
+    public synchronized long cost() {
+        return cost;
+    }
+
+    /**
+     * @return number of bytes of direct memory currently allocated for segments
+     */
+    public synchronized long allocatedBytes() {
+        return allocatedBytes;
+    }
+
+    @Override
+    public synchronized int drainTo(Collection<String> collection, int maxElements) {
+        int drained = 0;
+        while (drained < maxElements && count > 0) {
+            collection.add(readAndRemove());
+            drained++;
+        }
+        return drained;
+    }
+
+    @Override
+    protected synchronized String evict() {
+        if (count == 0) {
+            return null;
+        }
+        return readAndRemove();
+    }
+
+    @Override
+    protected synchronized boolean evict(long cost) {
+        if (cost > maxRecordCost) {
+            return false;
+        }
+        while (!hasRoomFor(cost) && !segments.isEmpty()) {
+            evictOldestSegment();
+        }
+        return true;
+    }
+
+    private Segment nextSegment() {
+        Segment segment = freeSegments.pollFirst();
+        while (segment == null && allocatedBytes + segmentSize > getCapacity()) {
+            // Evicting an oversized segment frees its memory rather than a segment to reuse
+            evictOldestSegment();
+            segment = freeSegments.pollFirst();
+        }
+        if (segment != null) {
+            return segment;
+        }
+        allocatedBytes += segmentSize;
+        return new Segment(ByteBuffer.allocateDirect(segmentSize));
+    }
+
+    private Segment oversizedSegment(int size) {
+        while (allocatedBytes + size > getCapacity()) {
+            Segment free = freeSegments.pollFirst();
+            if (free != null) {
+                allocatedBytes -= segmentSize;
+            } else {
+                evictOldestSegment();
+            }
+        }
+        allocatedBytes += size;
+        return new Segment(ByteBuffer.allocateDirect(size));
+    }
+
+    private void evictOldestSegment() {
+        Segment oldest = segments.pollFirst();
+        logger.warn("Message buffer is full, evicting {} oldest messages", oldest.records);
+        count -= oldest.records;
+        cost -= oldest.writePosition - oldest.readPosition;
+        evicted(oldest.records, oldest.writePosition - oldest.readPosition);
+        recycle(oldest);
+    }
+
+    private String readAndRemove() {
+        Segment head = segments.peekFirst();
+        int length = head.data.getInt(head.readPosition);
+        if (scratch.length < length) {
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+        }
+        ((Buffer) head.data).position(head.readPosition + HEADER_BYTES);
+        head.data.get(scratch, 0, length);
+        head.readPosition += HEADER_BYTES + length;
+        head.records--;
+        cost -= HEADER_BYTES + length;
+        count--;
+        if (head.records == 0) {
+            segments.pollFirst();
+            recycle(head);
+        }
+        return new String(scratch, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private void recycle(Segment segment) {
+        if (segment.data.capacity() > segmentSize) {
+            // Oversized segments are not reused
+            allocatedBytes -= segment.data.capacity();
+            return;
+        }
+        segment.readPosition = 0;
+        segment.writePosition = 0;
+        segment.records = 0;
+        freeSegments.addLast(segment);
+    }
+
+    private static final class Segment {
+        private final ByteBuffer data;
+        private int readPosition;
+        private int writePosition;
+        private int records;
+
+        private Segment(ByteBuffer data) {
+            this.data = data;
+        }
+
+        private int remaining() {
+            return data.capacity() - writePosition;
+        }
+    }
+}
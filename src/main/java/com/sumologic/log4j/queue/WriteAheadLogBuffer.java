@@ -0,0 +1,261 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j.queue;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.status.StatusLogger;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Message buffer that appends every message to a {@link MappedSegmentStore} before it is sent, and
+ * removes it only once it has been acknowledged, so that messages queued or in flight when the JVM
+ * dies are sent after the next start.
+ * <p>
+ * How often the log is forced to disk depends on the {@link FsyncPolicy}. Forcing is done by a commit
+ * thread, which forces everything appended since the previous fsync at once; with {@link FsyncPolicy#BATCH}
+ * appending threads wait for the fsync that covers their message, but share it with every other thread
+ * that appended in the meantime.
+ */
+public class WriteAheadLogBuffer extends EncodedMessageBuffer implements DurableBuffer, Closeable {
+
+    private static final Logger logger = StatusLogger.getLogger();
+
+    private final MappedSegmentStore store;
+    private final FsyncPolicy fsyncPolicy;
+    private final long fsyncIntervalMs;
+    private final AtomicLong appended = new AtomicLong();
+    private final ReentrantLock commitLock = new ReentrantLock();
+    private final Condition appendedCondition = commitLock.newCondition();
+    private final Condition committedCondition = commitLock.newCondition();
+    private long committed;
+    private final ArrayDeque<PendingReceipt> pending = new ArrayDeque<PendingReceipt>();
+    private volatile boolean running;
+    private Thread committer;
+
+    public WriteAheadLogBuffer(String name, File directory, long capacity, FsyncPolicy fsyncPolicy,
+                               long fsyncIntervalMs) throws IOException {
+        super(capacity);
+        this.store = new MappedSegmentStore(directory, capacity, MappedSegmentStore.segmentSizeFor(capacity),
+                fsyncPolicy != FsyncPolicy.NEVER);
+        this.fsyncPolicy = fsyncPolicy;
+        this.fsyncIntervalMs = fsyncIntervalMs;
+        if (fsyncPolicy != FsyncPolicy.NEVER) {
+            running = true;
+            committer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    commitLoop();
+                }
+            }, "SumoWalCommit-" + name);
+            committer.setDaemon(true);
+            committer.start();
+        }
+    }
+
+    @Override
+    public boolean add(byte[] bytes, int offset, int length) {
+        try {
+            if (!store.append(bytes, offset, length)) {
+                return false;
+            }
+        } catch (IOException e) {
+            logger.error("Unable to append to the write-ahead log", e);
+            return false;
+        }
+        if (fsyncPolicy != FsyncPolicy.NEVER) {
+            long ticket = appended.incrementAndGet();
+            if (fsyncPolicy == FsyncPolicy.BATCH) {
+                awaitCommit(ticket);
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int size() {
+        return store.unreadMessages();
+    }
+
+    @Override
+    public long cost() {
+        return store.unreadBytes();
+    }
+
+    @Override
+    public void setEvictionListener(EvictionListener listener) {
+        store.setEvictionListener(listener);
+    }
+
+    @Override
+    public int drainTo(Collection<String> collection, int maxElements) {
+        List<String> drained = collection instanceof List ? (List<String>) collection : new ArrayList<String>();
+        int before = drained.size();
+        drainUnacknowledged(drained, maxElements).acknowledge();
+        if (drained != collection) {
+            collection.addAll(drained);
+        }
+        return drained.size() - before;
+    }
+
+    @Override
+    public synchronized Receipt drainUnacknowledged(List<String> target, int maxElements) {
+        PendingReceipt receipt = new PendingReceipt(store.read(target, maxElements, Long.MAX_VALUE));
+        pending.addLast(receipt);
+        return receipt;
+    }
+
+    // The store deletes whole segments itself when it reaches its quota
+    @Override
+    protected String evict() {
+        return null;
+    }
+
+    @Override
+    protected boolean evict(long cost) {
+        return true;
+    }
+
+    /**
+     * Stops the commit thread and forces whatever was not forced yet to disk.
+     */
+    @Override
+    public void close() {
+        running = false;
+        if (committer != null) {
+            commitLock.lock();
+            try {
+                appendedCondition.signalAll();
+                committedCondition.signalAll();
+            } finally {
+                commitLock.unlock();
+            }
+            committer.interrupt();
+            try {
+                committer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            committer = null;
+        }
+        store.close();
+    }
+
+    private synchronized void acknowledged(PendingReceipt receipt) {
+        receipt.acknowledged = true;
+        MappedSegmentStore.Position position = null;
+        while (!pending.isEmpty() && pending.peekFirst().acknowledged) {
+            position = pending.pollFirst().position;
+        }
+        if (position != null) {
+            store.acknowledge(position);
+        }
+    }
+
+    private void awaitCommit(long ticket) {
+        commitLock.lock();
+        try {
+            appendedCondition.signal();
+            while (committed < ticket && running) {
+                committedCondition.await();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            commitLock.unlock();
+        }
+    }
+
+    private void commitLoop() {
+        while (running) {
+            long target;
+            try {
+                target = fsyncPolicy == FsyncPolicy.BATCH ? awaitAppended() : sleepInterval();
+            } catch (InterruptedException e) {
+                break;
+            }
+            if (target == committed) {
+                continue;
+            }
+            try {
+                store.force();
+            } catch (Exception e) {
+                logger.warn("Exception while forcing the write-ahead log to disk", e);
+            } finally {
+                // Waiting threads are released even if forcing failed
+                commitLock.lock();
+                try {
+                    committed = target;
+                    committedCondition.signalAll();
+                } finally {
+                    commitLock.unlock();
+                }
+            }
+        }
+    }
+
+    private long awaitAppended() throws InterruptedException {
+        commitLock.lock();
+        try {
+            while (appended.get() == committed && running) {
+                appendedCondition.await();
+            }
+            return appended.get();
+        } finally {
+            commitLock.unlock();
+        }
+    }
+
+    private long sleepInterval() throws InterruptedException {
+        TimeUnit.MILLISECONDS.sleep(fsyncIntervalMs);
+        return appended.get();
+    }
+
+    private final class PendingReceipt implements Receipt {
+        final MappedSegmentStore.Position position;
+        boolean acknowledged;
+
+        PendingReceipt(MappedSegmentStore.Position position) {
+            this.position = position;
+        }
+
+        @Override
+        public void acknowledge() {
+            acknowledged(this);
+        }
+    }
+}
@@ -0,0 +1,428 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j.sender;
+
+import com.sumologic.http.sender.ProxySettings;
+import com.sumologic.log4j.metrics.MetricsListener;
+import com.sumologic.log4j.queue.Utf8;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.status.StatusLogger;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+
+/**
+ * Settings and helpers shared by the {@link Transport} implementations: where to send, which headers to
+ * set, when to retry and how to compress.
+ * <p>
+ * Retries back off exponentially with full jitter: the n-th retry waits a random time of up to
+ * {@code retryIntervalMs * 2^(n-1)}, capped at {@code maxRetryIntervalMs} or {@code retryIntervalMs} if larger. A {@code Retry-After} header on
+ * a 429 or 503 response sets the minimum wait instead, within the same cap.
+ * <p>
+ * With a {@link #setRetryQueueSizeBytes retry queue}, a body whose first attempt failed waits for its
+ * retries in the queue instead of holding up the bodies sent after it. A body that does not fit into the
+ * queue is retried in line instead, which holds up its sender and so slows down sending until there is
+ * room again.
+ */
+public abstract class AbstractTransport implements Transport {
+
+    private static final Logger logger = StatusLogger.getLogger();
+
+    protected static final String SUMO_SOURCE_NAME_HEADER = "X-Sumo-Name";
+    protected static final String SUMO_SOURCE_CATEGORY_HEADER = "X-Sumo-Category";
+    protected static final String SUMO_SOURCE_HOST_HEADER = "X-Sumo-Host";
+    protected static final String SUMO_CLIENT_HEADER = "X-Sumo-Client";
+    protected static final String SUMO_FIELDS_HEADER = "X-Sumo-Fields";
+    protected static final String CONTENT_ENCODING_HEADER = "Content-Encoding";
+    protected static final String RETRY_AFTER_HEADER = "Retry-After";
+
+    protected long retryIntervalMs = 10000L;
+    protected long maxRetryIntervalMs = 60000L;
+    protected int maxNumberOfRetries = 10;
+    protected int connectionTimeoutMs = 1000;
+    protected int socketTimeoutMs = 60000;
+    protected volatile String url = null;
+    protected volatile String sourceName = null;
+    protected volatile String sourceCategory = null;
+    protected String sourceHost = null;
+    protected ProxySettings proxySettings = null;
+    protected String clientHeaderValue = null;
+    protected String fieldsHeaderValue = null;
+    protected String retryableHttpCodeRegex = "^(5..|429)$";
+    protected Compression compression = Compression.NONE;
+    protected int maxConnections = 2;
+    protected LoadBalancing loadBalancing = LoadBalancing.ROUND_ROBIN;
+    private volatile EndpointBalancer balancer = null;
+    private volatile MetricsListener metrics = null;
+    private volatile CircuitBreaker circuitBreaker = null;
+    private volatile RetryQueue retryQueue = null;
+    private Pattern retryableHttpCodeRegexPattern;
+    private final ConcurrentLinkedQueue<Compressor> compressors = new ConcurrentLinkedQueue<Compressor>();
+
+    public void setRetryIntervalMs(long retryIntervalMs) {
+        this.retryIntervalMs = retryIntervalMs;
+    }
+
+    public void setMaxRetryIntervalMs(long maxRetryIntervalMs) {
+        this.maxRetryIntervalMs = maxRetryIntervalMs;
+    }
+
+    public void setMaxNumberOfRetries(int maxNumberOfRetries) {
+        this.maxNumberOfRetries = maxNumberOfRetries;
+    }
+
+    public void setConnectionTimeoutMs(int connectionTimeoutMs) {
+        this.connectionTimeoutMs = connectionTimeoutMs;
+    }
+
+    public void setSocketTimeoutMs(int socketTimeoutMs) {
+        this.socketTimeoutMs = socketTimeoutMs;
+    }
+
+    /**
+     * @param url collector URL, or several separated by commas to spread requests over them
+     */
+    public void setUrl(String url) {
+        this.url = url;
+        this.balancer = EndpointBalancer.of(url, loadBalancing);
+    }
+
+    public void setLoadBalancing(LoadBalancing loadBalancing) {
+        this.loadBalancing = loadBalancing == null ? LoadBalancing.ROUND_ROBIN : loadBalancing;
+        this.balancer = EndpointBalancer.of(url, this.loadBalancing);
+    }
+
+    public void setSourceName(String sourceName) {
+        this.sourceName = sourceName;
+    }
+
+    public void setSourceCategory(String sourceCategory) {
+        this.sourceCategory = sourceCategory;
+    }
+
+    public void setSourceHost(String sourceHost) {
+        this.sourceHost = sourceHost;
+    }
+
+    public void setProxySettings(ProxySettings proxySettings) {
+        this.proxySettings = proxySettings;
+    }
+
+    public void setClientHeaderValue(String clientHeaderValue) {
+        this.clientHeaderValue = clientHeaderValue;
+    }
+
+    public void setFieldsHeaderValue(String fieldsHeaderValue) {
+        this.fieldsHeaderValue = fieldsHeaderValue;
+    }
+
+    public void setRetryableHttpCodeRegex(String retryableHttpCodeRegex) {
+        this.retryableHttpCodeRegex = retryableHttpCodeRegex;
+    }
+
+    public void setCompression(Compression compression) {
+        this.compression = compression == null ? Compression.NONE : compression;
+    }
+
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    public void setMetrics(MetricsListener metrics) {
+        this.metrics = metrics;
+        CircuitBreaker breaker = circuitBreaker;
+        if (breaker != null) {
+            breaker.setMetrics(metrics);
+        }
+    }
+
+    /**
+     * @param circuitBreaker pauses sending while attempts keep failing, or null to always send
+     */
+    public void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+        if (circuitBreaker != null) {
+            circuitBreaker.setMetrics(metrics);
+        }
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * @param retryQueueSizeBytes budget of bodies waiting to be retried, or 0 to retry them in line, in order.
+     *                            Set before {@link #init()}.
+     */
+    public void setRetryQueueSizeBytes(long retryQueueSizeBytes) {
+        this.retryQueue = retryQueueSizeBytes > 0 ? new RetryQueue(retryQueueSizeBytes) : null;
+    }
+
+    /**
+     * @return the bodies waiting to be retried, or null if they are retried in line
+     */
+    public RetryQueue getRetryQueue() {
+        return retryQueue;
+    }
+
+    @Override
+    public void init() {
+        retryableHttpCodeRegexPattern = Pattern.compile(retryableHttpCodeRegex);
+    }
+
+    /**
+     * Resolves the collector hosts, so that the first connection does not wait for DNS. Nothing is resolved
+     * when a proxy connects to the collector instead.
+     */
+    @Override
+    public void prewarm() {
+        EndpointBalancer endpoints = balancer;
+        if (endpoints == null || usesProxy()) {
+            return;
+        }
+        for (String endpoint : endpoints.urls()) {
+            String host = hostOf(endpoint);
+            if (host == null) {
+                continue;
+            }
+            try {
+                InetAddress.getAllByName(host);
+            } catch (UnknownHostException e) {
+                logger.warn("Unable to resolve collector host {}", host);
+            }
+        }
+    }
+
+    @Override
+    public void send(CharSequence body, Callback callback) {
+        send(body, null, callback);
+    }
+
+    @Override
+    public void close() throws IOException {
+        Compressor compressor;
+        while ((compressor = compressors.poll()) != null) {
+            compressor.end();
+        }
+    }
+
+    /**
+     * Reports a request attempt that was started at {@code startNanos}, with 0 for {@code statusCode}
+     * if no response was received.
+     */
+    protected void requestCompleted(int statusCode, long startNanos) {
+        MetricsListener listener = metrics;
+        if (listener != null) {
+            listener.requestCompleted(statusCode, System.nanoTime() - startNanos);
+        }
+    }
+
+    protected void retrying() {
+        MetricsListener listener = metrics;
+        if (listener != null) {
+            listener.retried();
+        }
+    }
+
+    /**
+     * Queues a failed body for its next attempt.
+     *
+     * @return whether it was queued, as opposed to the retry queue being full, in which case the caller
+     * retries it in line
+     */
+    protected boolean deferRetry(RetryQueue queue, RetryQueue.Entry entry, Callback callback, long retryAt) {
+        boolean firstDeferral = !entry.failing;
+        if (!queue.offer(entry, retryAt)) {
+            logger.debug("Retry queue is full, retrying in line");
+            return false;
+        }
+        if (firstDeferral && callback instanceof DeferrableCallback) {
+            ((DeferrableCallback) callback).retryDeferred();
+        }
+        return true;
+    }
+
+    protected String sourceNameFor(SourceMetadata metadata) {
+        return metadata == null ? sourceName : metadata.getName();
+    }
+
+    protected String sourceCategoryFor(SourceMetadata metadata) {
+        return metadata == null ? sourceCategory : metadata.getCategory();
+    }
+
+    protected String sourceHostFor(SourceMetadata metadata) {
+        return metadata == null ? sourceHost : metadata.getHost();
+    }
+
+    /**
+     * @return the endpoints requests are spread over, or null if no URL is set
+     */
+    protected EndpointBalancer balancer() {
+        return balancer;
+    }
+
+    /**
+     * @param tries        attempts made so far
+     * @param retryAfterMs wait requested by the collector, or a negative value if none
+     * @return how long to wait before the next attempt
+     */
+    protected long retryDelayMs(int tries, long retryAfterMs) {
+        long cap = Math.max(Math.max(maxRetryIntervalMs, retryIntervalMs), 0);
+        long ceiling = Math.min(retryIntervalMs << Math.min(Math.max(tries - 1, 0), 30), cap);
+        long delay = ceiling > 0 ? ThreadLocalRandom.current().nextLong(ceiling + 1) : 0;
+        if (retryAfterMs > delay) {
+            delay = Math.min(retryAfterMs, cap);
+        }
+        return delay;
+    }
+
+    /**
+     * @return the wait requested by a {@code Retry-After} header in seconds or as an HTTP date, or -1 if
+     * the response is not a 429 or 503 or the header is missing or invalid
+     */
+    protected static long retryAfterMs(int statusCode, String value) {
+        if ((statusCode != 429 && statusCode != 503) || value == null) {
+            return -1;
+        }
+        String trimmed = value.trim();
+        try {
+            return Math.max(Long.parseLong(trimmed), 0) * 1000;
+        } catch (NumberFormatException e) {
+            // Not delta-seconds, try an HTTP date
+        }
+        try {
+            ZonedDateTime date = ZonedDateTime.parse(trimmed, DateTimeFormatter.RFC_1123_DATE_TIME);
+            return Math.max(date.toInstant().toEpochMilli() - System.currentTimeMillis(), 0);
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+
+    protected boolean isRetryable(int statusCode) {
+        return retryableHttpCodeRegexPattern.matcher(String.valueOf(statusCode)).find();
+    }
+
+    /**
+     * @return whether a body that failed on its {@code tries}-th attempt should be dropped
+     */
+    protected boolean retriesExhausted(int tries, CharSequence body) {
+        if (tries - 1 == maxNumberOfRetries && maxNumberOfRetries >= 0) {
+            logger.warn("Dropping message, because max number of retries has been reached. Message: {}", body);
+            return true;
+        }
+        return false;
+    }
+
+    private Compressor borrowCompressor() {
+        Compressor compressor = compressors.poll();
+        return compressor != null ? compressor : new Compressor(compression, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    private void returnCompressor(Compressor compressor) {
+        compressors.offer(compressor);
+    }
+
+    /**
+     * @return the body as it is sent, compressed if configured, to be handed to {@link #releaseBody}
+     * once no further attempt needs it
+     */
+    protected EncodedBody encodeBody(CharSequence body) {
+        if (compression == Compression.NONE) {
+            if (body instanceof String) {
+                byte[] bytes = ((String) body).getBytes(StandardCharsets.UTF_8);
+                return new EncodedBody(bytes, bytes.length, null);
+            }
+            // Encoded straight from the messages of a batch, without joining them first
+            byte[] bytes = new byte[(int) Utf8.encodedLength(body)];
+            return new EncodedBody(bytes, Utf8.encode(body, bytes, 0), null);
+        }
+        Compressor compressor = borrowCompressor();
+        try {
+            int length = compressor.compress(body);
+            // Sent from the compressor's own buffer, which stays with the body until it is released
+            return new EncodedBody(compressor.buffer(), length, compressor);
+        } catch (RuntimeException e) {
+            returnCompressor(compressor);
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the compressor holding the bytes of {@code body}, if any, to the pool.
+     */
+    protected void releaseBody(EncodedBody body) {
+        if (body.compressor != null) {
+            returnCompressor(body.compressor);
+        }
+    }
+
+    protected boolean usesProxy() {
+        return proxySettings != null && proxySettings.getHostname() != null;
+    }
+
+    /**
+     * @return the host of the URL, or null if it is not a valid URL
+     */
+    protected static String hostOf(String url) {
+        try {
+            return new URI(url).getHost();
+        } catch (URISyntaxException e) {
+            return null;
+        }
+    }
+
+    protected static boolean isBlank(String value) {
+        return value == null || value.trim().isEmpty();
+    }
+
+    /**
+     * The first {@code length} bytes of {@code bytes} are a request body as it is sent.
+     */
+    protected static final class EncodedBody {
+        final byte[] bytes;
+        final int length;
+        // Owner of bytes for a compressed body
+        final Compressor compressor;
+
+        EncodedBody(byte[] bytes, int length, Compressor compressor) {
+            this.bytes = bytes;
+            this.length = length;
+            this.compressor = compressor;
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j.sender;
+
+import com.sumologic.log4j.metrics.MetricsListener;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.status.StatusLogger;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stops sending while the collector keeps failing. After {@code failureThreshold} failed attempts in a
+ * row the circuit opens and no attempt is made for {@code openIntervalMs}. It then becomes half-open and
+ * lets a single probe through: if the probe succeeds the circuit closes, otherwise it opens again.
+ * <p>
+ * Senders ask for permission before every attempt and report its outcome with {@link #succeeded()},
+ * {@link #failed()} or, for attempts that say nothing about the collector, {@link #released()}.
+ * Thread-safe.
+ */
+public final class CircuitBreaker {
+
+    private static final Logger logger = StatusLogger.getLogger();
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final long openIntervalNanos;
+    private State state = State.CLOSED;
+    private int failures;
+    private long openUntil;
+    private boolean probing;
+    private volatile MetricsListener metrics;
+
+    public CircuitBreaker(int failureThreshold, long openIntervalMs) {
+        this.failureThreshold = Math.max(failureThreshold, 1);
+        this.openIntervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(openIntervalMs, 0));
+    }
+
+    void setMetrics(MetricsListener metrics) {
+        this.metrics = metrics;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * @return whether an attempt may be made now; in the half-open state only the first caller is let through
+     */
+    synchronized boolean tryAcquire(long now) {
+        if (state == State.OPEN && openUntil - now <= 0) {
+            transition(State.HALF_OPEN);
+        }
+        if (state == State.CLOSED) {
+            return true;
+        }
+        if (state == State.HALF_OPEN && !probing) {
+            probing = true;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return how long until {@link #tryAcquire} may succeed, or {@link Long#MAX_VALUE} while a probe is
+     * in flight
+     */
+    synchronized long nanosUntilPermitted(long now) {
+        switch (state) {
+            case OPEN:
+                return Math.max(openUntil - now, 0);
+            case HALF_OPEN:
+                return probing ? Long.MAX_VALUE : 0;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Blocks until an attempt may be made.
+     */
+    synchronized void awaitPermission() throws InterruptedException {
+        while (true) {
+            long now = System.nanoTime();
+            if (tryAcquire(now)) {
+                return;
+            }
+            long wait = nanosUntilPermitted(now);
+            if (wait == Long.MAX_VALUE) {
+                wait();
+            } else {
+                TimeUnit.NANOSECONDS.timedWait(this, wait);
+            }
+        }
+    }
+
+    synchronized void succeeded() {
+        failures = 0;
+        probing = false;
+        if (state != State.CLOSED) {
+            logger.info("Collector is reachable again, resuming sending");
+            transition(State.CLOSED);
+        }
+    }
+
+    synchronized void failed() {
+        probing = false;
+        failures++;
+        if (state == State.HALF_OPEN || (state == State.CLOSED && failures >= failureThreshold)) {
+            if (state == State.CLOSED) {
+                logger.warn("{} attempts in a row failed, pausing sending for {} ms",
+                        failures, TimeUnit.NANOSECONDS.toMillis(openIntervalNanos));
+            }
+            openUntil = System.nanoTime() + openIntervalNanos;
+            transition(State.OPEN);
+        }
+    }
+
+    synchronized void released() {
+        if (probing) {
+            probing = false;
+            notifyAll();
+        }
+    }
+
+    private void transition(State next) {
+        if (state == next) {
+            return;
+        }
+        state = next;
+        notifyAll();
+        MetricsListener listener = metrics;
+        if (listener != null) {
+            listener.circuitBreakerStateChanged(next);
+        }
+    }
+}
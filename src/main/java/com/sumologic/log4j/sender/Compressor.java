@@ -0,0 +1,145 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j.sender;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses request bodies with a {@link Deflater} that is reset and reused for every body.
+ * Characters are encoded to UTF-8 in small chunks and fed to the deflater as they are encoded,
+ * so the uncompressed body is never materialized as a byte array. The compressed output stays
+ * in a buffer that is retained between bodies. Instances are not thread-safe.
+ */
+final class Compressor {
+
+    private static final int CHUNK_SIZE = 8192;
+    // Magic number, CM=deflate, no flags, no mtime, no extra flags, OS unknown
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    private final Compression compression;
+    private final Deflater deflater;
+    private final CRC32 crc = new CRC32();
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final ByteBuffer encoded = ByteBuffer.allocate(CHUNK_SIZE);
+    private final byte[] deflated = new byte[CHUNK_SIZE];
+    private final OutputBuffer output = new OutputBuffer();
+
+    Compressor(Compression compression, int level) {
+        if (compression == Compression.NONE) {
+            throw new IllegalArgumentException("Nothing to compress with " + compression);
+        }
+        this.compression = compression;
+        // gzip frames the raw deflate stream itself, deflate is the zlib format
+        this.deflater = new Deflater(level, compression == Compression.GZIP);
+    }
+
+    /**
+     * Compresses the body into the retained output buffer.
+     *
+     * @return number of compressed bytes in {@link #buffer()}
+     */
+    int compress(CharSequence body) {
+        output.reset();
+        deflater.reset();
+        crc.reset();
+        encoder.reset();
+        if (compression == Compression.GZIP) {
+            output.write(GZIP_HEADER, 0, GZIP_HEADER.length);
+        }
+
+        CharBuffer chars = CharBuffer.wrap(body);
+        long inputBytes = 0;
+        boolean done = false;
+        while (!done) {
+            CoderResult result = encoder.encode(chars, encoded, true);
+            if (result.isUnderflow()) {
+                encoder.flush(encoded);
+                done = true;
+            }
+            inputBytes += deflateEncoded();
+        }
+        deflater.finish();
+        while (!deflater.finished()) {
+            output.write(deflated, 0, deflater.deflate(deflated));
+        }
+
+        if (compression == Compression.GZIP) {
+            writeIntLittleEndian((int) crc.getValue());
+            writeIntLittleEndian((int) inputBytes);
+        }
+        return output.size();
+    }
+
+    byte[] buffer() {
+        return output.buffer();
+    }
+
+    void end() {
+        deflater.end();
+    }
+
+    private int deflateEncoded() {
+        int length = encoded.position();
+        byte[] bytes = encoded.array();
+        crc.update(bytes, 0, length);
+        deflater.setInput(bytes, 0, length);
+        while (!deflater.needsInput()) {
+            output.write(deflated, 0, deflater.deflate(deflated));
+        }
+        // Cast for Java 8, where Buffer.clear does not return ByteBuffer
+        ((Buffer) encoded).clear();
+        return length;
+    }
+
+    private void writeIntLittleEndian(int value) {
+        output.write(value & 0xff);
+        output.write((value >>> 8) & 0xff);
+        output.write((value >>> 16) & 0xff);
+        output.write((value >>> 24) & 0xff);
+    }
+
+    private static final class OutputBuffer extends ByteArrayOutputStream {
+        OutputBuffer() {
+            super(CHUNK_SIZE);
+        }
+
+        byte[] buffer() {
+            return buf;
+        }
+    }
+}
@@ -0,0 +1,193 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j.sender;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.status.StatusLogger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Picks the collector URL for each request attempt according to a {@link LoadBalancing} strategy and
+ * tracks the health of every endpoint. An endpoint becomes unhealthy after
+ * {@value #FAILURES_BEFORE_UNHEALTHY} consecutive failed attempts and is skipped for
+ * {@link #UNHEALTHY_MILLIS} ms, after which it is tried again. If every endpoint is unhealthy, the one
+ * that is due to recover first is used. Thread-safe.
+ */
+final class EndpointBalancer {
+
+    private static final Logger logger = StatusLogger.getLogger();
+
+    static final int FAILURES_BEFORE_UNHEALTHY = 3;
+    static final long UNHEALTHY_MILLIS = 10000;
+
+    private final Target[] targets;
+    private final LoadBalancing strategy;
+    private final AtomicInteger next = new AtomicInteger();
+
+    private EndpointBalancer(Target[] targets, LoadBalancing strategy) {
+        this.targets = targets;
+        this.strategy = strategy;
+    }
+
+    /**
+     * @param urls one or more URLs separated by commas
+     * @return the balancer, or null if there is no URL
+     */
+    static EndpointBalancer of(String urls, LoadBalancing strategy) {
+        if (urls == null) {
+            return null;
+        }
+        List<Target> targets = new ArrayList<Target>();
+        for (String url : urls.split(",")) {
+            if (!url.trim().isEmpty()) {
+                targets.add(new Target(url.trim()));
+            }
+        }
+        if (targets.isEmpty()) {
+            return null;
+        }
+        return new EndpointBalancer(targets.toArray(new Target[0]), strategy);
+    }
+
+    int size() {
+        return targets.length;
+    }
+
+    List<String> urls() {
+        List<String> urls = new ArrayList<String>(targets.length);
+        for (Target target : targets) {
+            urls.add(target.url);
+        }
+        return urls;
+    }
+
+    /**
+     * @return the endpoint for the next attempt; call {@link #started} if the attempt is made
+     */
+    Target select() {
+        if (targets.length == 1) {
+            return targets[0];
+        }
+        long now = System.nanoTime();
+        int start = strategy == LoadBalancing.FAILOVER ? 0 : (next.getAndIncrement() & Integer.MAX_VALUE) % targets.length;
+        Target selected = null;
+        for (int i = 0; i < targets.length; i++) {
+            Target candidate = targets[(start + i) % targets.length];
+            if (!candidate.isHealthy(now)) {
+                continue;
+            }
+            if (strategy != LoadBalancing.LEAST_OUTSTANDING) {
+                return candidate;
+            }
+            if (selected == null || candidate.outstanding.get() < selected.outstanding.get()) {
+                selected = candidate;
+            }
+        }
+        if (selected != null) {
+            return selected;
+        }
+        // Nothing is healthy; probe the endpoint that is due to recover first
+        selected = targets[0];
+        for (Target candidate : targets) {
+            if (candidate.unhealthyUntil - selected.unhealthyUntil < 0) {
+                selected = candidate;
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * @return whether an endpoint other than {@code target} is healthy, so that a retry need not wait
+     */
+    boolean hasHealthyAlternative(Target target) {
+        long now = System.nanoTime();
+        for (Target candidate : targets) {
+            if (candidate != target && candidate.isHealthy(now)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    void started(Target target) {
+        target.outstanding.incrementAndGet();
+    }
+
+    /**
+     * Ends an attempt without judging the endpoint, e.g. when a kept-alive connection had gone stale.
+     */
+    void released(Target target) {
+        target.outstanding.decrementAndGet();
+    }
+
+    /**
+     * @param healthy whether the endpoint handled the attempt, as opposed to failing or asking for a retry
+     */
+    void completed(Target target, boolean healthy) {
+        target.outstanding.decrementAndGet();
+        if (targets.length == 1) {
+            return;
+        }
+        if (healthy) {
+            if (target.failures.getAndSet(0) >= FAILURES_BEFORE_UNHEALTHY) {
+                logger.info("Collector endpoint {} has recovered", target.url);
+            }
+            return;
+        }
+        int failures = target.failures.incrementAndGet();
+        if (failures >= FAILURES_BEFORE_UNHEALTHY) {
+            target.unhealthyUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(UNHEALTHY_MILLIS);
+            if (failures == FAILURES_BEFORE_UNHEALTHY) {
+                logger.warn("Collector endpoint {} failed {} times in a row, skipping it for {} ms",
+                        target.url, failures, UNHEALTHY_MILLIS);
+            }
+        }
+    }
+
+    static final class Target {
+        final String url;
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private final AtomicInteger failures = new AtomicInteger();
+        private volatile long unhealthyUntil;
+
+        Target(String url) {
+            this.url = url;
+        }
+
+        boolean isHealthy(long now) {
+            return failures.get() < FAILURES_BEFORE_UNHEALTHY || unhealthyUntil - now <= 0;
+        }
+
+        int outstanding() {
+            return outstanding.get();
+        }
+    }
+}
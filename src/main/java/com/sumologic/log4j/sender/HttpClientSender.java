@@ -0,0 +1,478 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j.sender;
+
+import com.sumologic.http.sender.HttpProxySettingsCreator;
+import com.sumologic.log4j.queue.Utf8;
+import org.apache.http.Header;
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.config.CookieSpecs;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.conn.HttpClientConnectionManager;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.status.StatusLogger;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends request bodies to a Sumo Logic HTTP source with Apache HttpClient, blocking the calling
+ * thread until the body is delivered, dropped, or the thread is interrupted. Behaves like
+ * {@link com.sumologic.http.sender.SumoHttpSender}, and can additionally compress bodies.
+ */
+public class HttpClientSender extends AbstractTransport {
+
+    private static final Logger logger = StatusLogger.getLogger();
+
+    // How long a connection opened ahead of time stays in the pool
+    private static final long PREWARMED_CONNECTION_KEEP_ALIVE_MS = 30000;
+
+    private static final ContentType CONTENT_TYPE = ContentType.create("text/plain", StandardCharsets.UTF_8);
+
+    private enum Outcome {
+        DELIVERED, DROPPED, RETRY_LATER
+    }
+
+    private final String name;
+    private CloseableHttpClient httpClient = null;
+    private Thread retryThread = null;
+    private boolean retryThreadStopped;
+    private HttpClientConnectionManager sharedConnectionManager;
+    private volatile HttpClientConnectionManager connectionManager;
+
+    public HttpClientSender() {
+        this(null);
+    }
+
+    /**
+     * @param name name of the appender, used in the name of the retry thread
+     */
+    public HttpClientSender(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Uses a connection manager shared with other senders, which is left open on {@link #close()}, instead of a pool
+     * of its own sized by {@code maxConnections}. Set before {@link #init()}.
+     */
+    public void setSharedConnectionManager(HttpClientConnectionManager sharedConnectionManager) {
+        this.sharedConnectionManager = sharedConnectionManager;
+    }
+
+    @Override
+    public boolean isInitialized() {
+        return httpClient != null;
+    }
+
+    @Override
+    public boolean isBlocking() {
+        return true;
+    }
+
+    @Override
+    public void init() {
+        super.init();
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setSocketTimeout(socketTimeoutMs)
+                .setConnectTimeout(connectionTimeoutMs)
+                .setCookieSpec(CookieSpecs.STANDARD)
+                .build();
+        HttpClientBuilder builder = HttpClients.custom()
+                .setDefaultRequestConfig(requestConfig);
+        if (sharedConnectionManager != null) {
+            builder.setConnectionManager(sharedConnectionManager).setConnectionManagerShared(true);
+            connectionManager = sharedConnectionManager;
+        } else {
+            PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+            // Every endpoint is a route of its own
+            EndpointBalancer balancer = balancer();
+            int endpoints = balancer == null ? 1 : balancer.size();
+            // The retry thread needs a connection of its own
+            int connections = getRetryQueue() == null ? maxConnections : maxConnections + 1;
+            connectionManager.setDefaultMaxPerRoute(connections);
+            connectionManager.setMaxTotal(Math.max(connections * endpoints, connectionManager.getMaxTotal()));
+            builder.setConnectionManager(connectionManager);
+            this.connectionManager = connectionManager;
+        }
+        if (proxySettings != null) {
+            new HttpProxySettingsCreator(proxySettings).configureProxySettings(builder);
+        }
+        httpClient = builder.build();
+        synchronized (this) {
+            retryThreadStopped = false;
+        }
+    }
+
+    /**
+     * Resolves the collector hosts and opens a connection to each of them, including the TLS handshake for
+     * https, which is left in the pool for the first requests. Without a proxy only.
+     */
+    @Override
+    public void prewarm() {
+        super.prewarm();
+        EndpointBalancer balancer = balancer();
+        HttpClientConnectionManager manager = connectionManager;
+        if (balancer == null || manager == null || usesProxy()) {
+            return;
+        }
+        for (String endpoint : balancer.urls()) {
+            try {
+                URI uri = new URI(endpoint);
+                if (uri.getHost() == null) {
+                    continue;
+                }
+                // The route HttpClient plans for the requests, so that they find the connection in the pool
+                HttpRoute route = new HttpRoute(new HttpHost(uri.getHost(), uri.getPort(), uri.getScheme()), null,
+                        "https".equalsIgnoreCase(uri.getScheme()));
+                HttpClientConnection connection = manager.requestConnection(route, null)
+                        .get(connectionTimeoutMs, TimeUnit.MILLISECONDS);
+                long keepAliveMs = 0;
+                try {
+                    if (!connection.isOpen()) {
+                        HttpClientContext context = HttpClientContext.create();
+                        manager.connect(connection, route, connectionTimeoutMs, context);
+                        manager.routeComplete(connection, route, context);
+                    }
+                    keepAliveMs = PREWARMED_CONNECTION_KEEP_ALIVE_MS;
+                } finally {
+                    manager.releaseConnection(connection, null, keepAliveMs, TimeUnit.MILLISECONDS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                logger.warn("Unable to connect to collector endpoint {} ahead of time: {}", endpoint, e.toString());
+            }
+        }
+    }
+
+    // Started with the first deferred retry, so that senders that never fail have no retry thread
+    private synchronized void startRetryThread(RetryQueue retryQueue) {
+        if (retryThread == null && !retryThreadStopped) {
+            retryThread = new Thread(new RetrySender(retryQueue),
+                    name == null ? "SumoRetrySender" : "SumoRetrySender-" + name);
+            retryThread.setDaemon(true);
+            retryThread.start();
+        }
+    }
+
+    /**
+     * Stops retrying; bodies waiting in the retry queue are dropped.
+     */
+    @Override
+    public void close() throws IOException {
+        Thread retrying;
+        synchronized (this) {
+            retrying = retryThread;
+            retryThread = null;
+            retryThreadStopped = true;
+        }
+        if (retrying != null) {
+            retrying.interrupt();
+            try {
+                retrying.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        // Nothing to close when the initialization failed
+        if (httpClient != null) {
+            httpClient.close();
+            httpClient = null;
+        }
+        super.close();
+    }
+
+    @Override
+    public void send(CharSequence body, SourceMetadata metadata, Callback callback) {
+        RetryQueue retryQueue = getRetryQueue();
+        Request request = new Request(body, metadata, callback);
+        Outcome outcome = Outcome.DROPPED;
+        try {
+            if (compression == Compression.NONE) {
+                request.entity = new StreamingBodyEntity(body, CONTENT_TYPE);
+                outcome = keepTrying(request, retryQueue == null);
+            } else {
+                // Compressed once, the same bytes are sent on every retry
+                request.content = encodeBody(body);
+                request.entity = new ByteArrayEntity(request.content.bytes, 0, request.content.length, CONTENT_TYPE);
+                outcome = keepTrying(request, retryQueue == null);
+            }
+        } finally {
+            if (outcome != Outcome.RETRY_LATER) {
+                finish(request, outcome == Outcome.DELIVERED);
+            } else if (deferRetry(retryQueue, request, callback, request.retryAt)) {
+                startRetryThread(retryQueue);
+            } else {
+                finish(request, retryInline(request));
+            }
+        }
+    }
+
+    private void finish(Request request, boolean delivered) {
+        // No further attempt needs the compressed body
+        if (request.content != null) {
+            releaseBody(request.content);
+        }
+        request.callback.done(delivered);
+    }
+
+    /**
+     * Retries a request that did not fit into the retry queue on the calling thread.
+     *
+     * @return whether it was delivered
+     */
+    private boolean retryInline(Request request) {
+        long delayNanos = request.retryAt - System.nanoTime();
+        if (delayNanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(delayNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return keepTrying(request, true) == Outcome.DELIVERED;
+    }
+
+    /**
+     * @param inline whether to wait for retries on this thread rather than return after a failed attempt
+     */
+    private Outcome keepTrying(Request request, boolean inline) {
+        boolean delivered = false;
+        boolean success = false;
+        do {
+            CircuitBreaker breaker = getCircuitBreaker();
+            try {
+                if (breaker != null) {
+                    breaker.awaitPermission();
+                }
+            } catch (InterruptedException e) {
+                // Keep the flag, so that the caller stops sending as well
+                Thread.currentThread().interrupt();
+                break;
+            }
+            request.tries++;
+            EndpointBalancer balancer = balancer();
+            EndpointBalancer.Target target = balancer == null ? null : balancer.select();
+            long retryAfterMs = -1;
+            try {
+                delivered = trySend(balancer, target, breaker, request.metadata, request.entity);
+                success = true;
+            } catch (RetryableStatusException e) {
+                retryAfterMs = e.retryAfterMs;
+            } catch (Exception e) {
+                // Retried below
+            }
+            if (!success) {
+                if (retriesExhausted(request.tries, request.body)) {
+                    break;
+                }
+                retrying();
+                // Another endpoint can take the retry right away
+                long delayMs = target == null || !balancer.hasHealthyAlternative(target)
+                        ? retryDelayMs(request.tries, retryAfterMs) : 0;
+                if (!inline) {
+                    long length = request.entity.getContentLength();
+                    request.bytes = length >= 0 ? length : Utf8.encodedLength(request.body);
+                    request.retryAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMs);
+                    return Outcome.RETRY_LATER;
+                }
+                try {
+                    Thread.sleep(delayMs);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        } while (!success && !Thread.currentThread().isInterrupted());
+        return delivered ? Outcome.DELIVERED : Outcome.DROPPED;
+    }
+
+    private boolean trySend(EndpointBalancer balancer, EndpointBalancer.Target target, CircuitBreaker breaker,
+                            SourceMetadata metadata, HttpEntity entity) throws IOException {
+        if (target == null) {
+            if (breaker != null) {
+                breaker.released();
+            }
+            throw new IOException("Unknown endpoint");
+        }
+        HttpPost post = null;
+        long start = System.nanoTime();
+        int statusCode = 0;
+        boolean healthy = false;
+        balancer.started(target);
+        try {
+            post = new HttpPost(target.url);
+            safeSetHeader(post, SUMO_SOURCE_NAME_HEADER, sourceNameFor(metadata));
+            safeSetHeader(post, SUMO_SOURCE_CATEGORY_HEADER, sourceCategoryFor(metadata));
+            safeSetHeader(post, SUMO_SOURCE_HOST_HEADER, sourceHostFor(metadata));
+            safeSetHeader(post, SUMO_CLIENT_HEADER, clientHeaderValue);
+            safeSetHeader(post, SUMO_FIELDS_HEADER, fieldsHeaderValue);
+            safeSetHeader(post, CONTENT_ENCODING_HEADER, compression.getContentEncoding());
+            post.setEntity(entity);
+            HttpResponse response = httpClient.execute(post);
+            statusCode = response.getStatusLine().getStatusCode();
+            requestCompleted(statusCode, start);
+            healthy = !isRetryable(statusCode);
+            if (statusCode != 200) {
+                logger.warn("Received non-200 response code from Sumo Service: {}", statusCode);
+                if (isRetryable(statusCode)) {
+                    EntityUtils.consume(response.getEntity());
+                    Header retryAfter = response.getFirstHeader(RETRY_AFTER_HEADER);
+                    throw new RetryableStatusException(statusCode,
+                            retryAfterMs(statusCode, retryAfter == null ? null : retryAfter.getValue()));
+                }
+            } else {
+                logger.debug("Successfully sent log request to Sumo Logic");
+            }
+            EntityUtils.consume(response.getEntity());
+            return statusCode == 200;
+        } catch (ClientProtocolException e) {
+            requestCompleted(0, start);
+            logger.warn("Dropping message due to invalid URL: {}", target.url);
+            abortQuietly(post);
+            return false;
+        } catch (IOException e) {
+            if (statusCode == 0) {
+                requestCompleted(0, start);
+            }
+            logger.warn("Could not send log to Sumo Logic", e);
+            abortQuietly(post);
+            throw e;
+        } finally {
+            balancer.completed(target, healthy);
+            if (breaker != null) {
+                if (healthy) {
+                    breaker.succeeded();
+                } else {
+                    breaker.failed();
+                }
+            }
+        }
+    }
+
+    private void abortQuietly(HttpPost post) {
+        if (post == null) {
+            return;
+        }
+        try {
+            post.abort();
+        } catch (Exception ignore) {
+        }
+    }
+
+    private void safeSetHeader(HttpPost post, String name, String value) {
+        if (!isBlank(value)) {
+            post.setHeader(name, SourceMetadata.toHeaderValue(value));
+        }
+    }
+
+    private static final class RetryableStatusException extends IOException {
+        final long retryAfterMs;
+
+        RetryableStatusException(int statusCode, long retryAfterMs) {
+            super("Encountered retryable status code: " + statusCode);
+            this.retryAfterMs = retryAfterMs;
+        }
+    }
+
+    private static final class Request extends RetryQueue.Entry {
+        final CharSequence body;
+        final SourceMetadata metadata;
+        final Callback callback;
+        HttpEntity entity;
+        // Compressed body the entity is sent from
+        EncodedBody content;
+        int tries;
+
+        Request(CharSequence body, SourceMetadata metadata, Callback callback) {
+            this.body = body;
+            this.metadata = metadata;
+            this.callback = callback;
+        }
+    }
+
+    // Makes the attempts of requests in the retry queue as they fall due
+    private final class RetrySender implements Runnable {
+        private final RetryQueue queue;
+
+        RetrySender(RetryQueue queue) {
+            this.queue = queue;
+        }
+
+        @Override
+        public void run() {
+            while (!Thread.currentThread().isInterrupted()) {
+                Request request;
+                try {
+                    request = (Request) queue.awaitDue();
+                } catch (InterruptedException e) {
+                    break;
+                }
+                Outcome outcome = Outcome.DROPPED;
+                try {
+                    outcome = keepTrying(request, false);
+                } catch (Exception e) {
+                    logger.warn("Exception while attempting to send", e);
+                } finally {
+                    if (outcome != Outcome.RETRY_LATER) {
+                        finish(request, outcome == Outcome.DELIVERED);
+                    } else if (!deferRetry(queue, request, request.callback, request.retryAt)) {
+                        // Waiting here would hold up every other retry that is due
+                        logger.warn("Retry queue is full, dropping a request that is due for another retry");
+                        finish(request, false);
+                    }
+                }
+            }
+            int dropped = 0;
+            for (RetryQueue.Entry entry : queue.drain()) {
+                finish((Request) entry, false);
+                dropped++;
+            }
+            if (dropped > 0) {
+                logger.warn("Dropped {} requests that were waiting to be retried", dropped);
+            }
+        }
+    }
+}
@@ -0,0 +1,244 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j.sender;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+/**
+ * Incremental parser for HTTP/1.1 responses, fed with whatever bytes have arrived so far.
+ * Only the status code, {@code Retry-After} and the headers that frame the body are kept; the body itself is
+ * skipped.
+ */
+final class HttpResponseParser {
+
+    private static final int MAX_LINE_LENGTH = 8192;
+
+    private enum State {
+        STATUS_LINE, HEADERS, BODY, CHUNK_SIZE, CHUNK_DATA, CHUNK_END, TRAILERS, BODY_UNTIL_CLOSE, DONE
+    }
+
+    private final StringBuilder line = new StringBuilder();
+    private State state = State.STATUS_LINE;
+    private int statusCode;
+    private long contentLength;
+    private boolean chunked;
+    private boolean connectionClose;
+    private String retryAfter;
+    private long remaining;
+
+    HttpResponseParser() {
+        reset();
+    }
+
+    void reset() {
+        line.setLength(0);
+        state = State.STATUS_LINE;
+        statusCode = 0;
+        contentLength = -1;
+        chunked = false;
+        connectionClose = false;
+        retryAfter = null;
+        remaining = 0;
+    }
+
+    /**
+     * Consumes bytes from {@code in} up to the end of the response.
+     *
+     * @return whether the response is complete
+     */
+    boolean parse(ByteBuffer in) throws IOException {
+        while (state != State.DONE && in.hasRemaining()) {
+            switch (state) {
+                case BODY:
+                case CHUNK_DATA:
+                    int skipped = (int) Math.min(remaining, in.remaining());
+                    // Cast for Java 8, where Buffer.position does not return ByteBuffer
+                    ((Buffer) in).position(in.position() + skipped);
+                    remaining -= skipped;
+                    if (remaining == 0) {
+                        state = state == State.BODY ? State.DONE : State.CHUNK_END;
+                    }
+                    break;
+                case BODY_UNTIL_CLOSE:
+                    ((Buffer) in).position(in.limit());
+                    break;
+                default:
+                    if (readLine(in)) {
+                        lineComplete();
+                    }
+            }
+        }
+        return state == State.DONE;
+    }
+
+    /**
+     * Called when the connection was closed by the server.
+     *
+     * @return whether the response is complete, because its body extends to the end of the connection
+     */
+    boolean closed() {
+        if (state == State.BODY_UNTIL_CLOSE) {
+            state = State.DONE;
+        }
+        return state == State.DONE;
+    }
+
+    /**
+     * @return whether any part of the response has arrived
+     */
+    boolean started() {
+        return state != State.STATUS_LINE || line.length() > 0;
+    }
+
+    int statusCode() {
+        return statusCode;
+    }
+
+    /**
+     * @return the value of the {@code Retry-After} header, or null if there is none
+     */
+    String retryAfter() {
+        return retryAfter;
+    }
+
+    /**
+     * @return whether the connection cannot be reused for another request
+     */
+    boolean connectionClose() {
+        return connectionClose;
+    }
+
+    private boolean readLine(ByteBuffer in) throws IOException {
+        while (in.hasRemaining()) {
+            char c = (char) (in.get() & 0xff);
+            if (c == '\n') {
+                int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == '\r') {
+                    line.setLength(length - 1);
+                }
+                return true;
+            }
+            if (line.length() >= MAX_LINE_LENGTH) {
+                throw new IOException("Response line too long");
+            }
+            line.append(c);
+        }
+        return false;
+    }
+
+    private void lineComplete() throws IOException {
+        String text = line.toString();
+        line.setLength(0);
+        switch (state) {
+            case STATUS_LINE:
+                statusCode = parseStatusCode(text);
+                state = State.HEADERS;
+                break;
+            case HEADERS:
+                if (text.isEmpty()) {
+                    headersComplete();
+                } else {
+                    header(text);
+                }
+                break;
+            case CHUNK_SIZE:
+                int extension = text.indexOf(';');
+                String size = (extension >= 0 ? text.substring(0, extension) : text).trim();
+                try {
+                    remaining = Long.parseLong(size, 16);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Invalid chunk size: " + size);
+                }
+                state = remaining == 0 ? State.TRAILERS : State.CHUNK_DATA;
+                break;
+            case CHUNK_END:
+                state = State.CHUNK_SIZE;
+                break;
+            case TRAILERS:
+                if (text.isEmpty()) {
+                    state = State.DONE;
+                }
+                break;
+            default:
+                throw new IllegalStateException(state.name());
+        }
+    }
+
+    private void headersComplete() {
+        if (statusCode >= 100 && statusCode < 200) {
+            // Interim response, the final one follows
+            state = State.STATUS_LINE;
+        } else if (statusCode == 204 || statusCode == 304) {
+            state = State.DONE;
+        } else if (chunked) {
+            state = State.CHUNK_SIZE;
+        } else if (contentLength >= 0) {
+            remaining = contentLength;
+            state = remaining == 0 ? State.DONE : State.BODY;
+        } else {
+            state = State.BODY_UNTIL_CLOSE;
+            connectionClose = true;
+        }
+    }
+
+    private void header(String text) throws IOException {
+        int colon = text.indexOf(':');
+        if (colon <= 0) {
+            throw new IOException("Invalid response header: " + text);
+        }
+        String name = text.substring(0, colon).trim();
+        String value = text.substring(colon + 1).trim();
+        if (name.equalsIgnoreCase("Content-Length")) {
+            try {
+                contentLength = Long.parseLong(value);
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid Content-Length: " + value);
+            }
+        } else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+            chunked = value.toLowerCase().endsWith("chunked");
+        } else if (name.equalsIgnoreCase("Connection")) {
+            connectionClose = value.equalsIgnoreCase("close");
+        } else if (name.equalsIgnoreCase("Retry-After")) {
+            retryAfter = value;
+        }
+    }
+
+    private static int parseStatusCode(String statusLine) throws IOException {
+        // HTTP/1.1 200 OK
+        int start = statusLine.indexOf(' ');
+        if (!statusLine.startsWith("HTTP/") || start < 0 || statusLine.length() < start + 4) {
+            throw new IOException("Invalid status line: " + statusLine);
+        }
+        try {
+            return Integer.parseInt(statusLine.substring(start + 1, start + 4));
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid status line: " + statusLine);
+        }
+    }
+}
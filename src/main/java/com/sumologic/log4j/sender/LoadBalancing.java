@@ -0,0 +1,46 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j.sender;
+
+/**
+ * How requests are spread over several collector URLs. Endpoints that keep failing are skipped by every
+ * strategy until they have had time to recover.
+ */
+public enum LoadBalancing {
+    /**
+     * Each request goes to the next endpoint in turn.
+     */
+    ROUND_ROBIN,
+    /**
+     * Each request goes to the endpoint with the fewest requests in flight.
+     */
+    LEAST_OUTSTANDING,
+    /**
+     * All requests go to the first endpoint, and to the next ones only while those before them fail.
+     */
+    FAILOVER
+}
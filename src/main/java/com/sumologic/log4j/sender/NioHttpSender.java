@@ -0,0 +1,1015 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j.sender;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.status.StatusLogger;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.UnknownHostException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends request bodies without blocking the caller. A single I/O thread multiplexes up to
+ * {@code maxConnections} keep-alive connections with a {@link Selector}, sends one request at a time on
+ * each connection, and completes callbacks as responses arrive. Failed requests wait for their retry
+ * without holding a thread or a connection in the meantime, and with a retry queue they are no longer
+ * counted as in flight either, unless the retry queue is full.
+ * <p>
+ * Supports {@code http} and {@code https} URLs, the latter through an {@link SSLEngine}. Proxies are not
+ * supported. A request whose kept-alive connection turns out to have been closed by the server before
+ * any response arrived is resent on another connection without counting as a retry.
+ * <p>
+ * Collector hosts are resolved on a small pool of resolver threads rather than the I/O thread. A request
+ * that needs a new connection to a host that was not resolved yet waits for the lookup without holding
+ * back other requests. Addresses are kept per endpoint and looked up again in the background after 30 s,
+ * or after a connection attempt failed, while the previous address stays in use; a failed lookup is
+ * repeated after 10 s at the earliest, like the JVM's own cache does.
+ * <p>
+ * Experimental. The HTTP/1.1 client and the TLS handshake over the {@link SSLEngine} are implemented
+ * here and have only been tested against local plain-text servers, so {@link HttpClientSender} remains
+ * the default transport.
+ */
+public class NioHttpSender extends AbstractTransport implements Runnable {
+
+    private static final Logger logger = StatusLogger.getLogger();
+
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    private static final int MAX_CACHED_ENDPOINTS = 64;
+    private static final int RESOLVER_THREADS = 2;
+    // Same as the JVM's defaults for successful and failed lookups
+    private static final long ADDRESS_TTL_NANOS = TimeUnit.SECONDS.toNanos(30);
+    private static final long UNRESOLVABLE_TTL_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private final String name;
+    private final ConcurrentLinkedQueue<Request> submitted = new ConcurrentLinkedQueue<Request>();
+    private final ConcurrentLinkedQueue<Endpoint> resolved = new ConcurrentLinkedQueue<Endpoint>();
+    private SSLContext sslContext;
+    private Selector selector;
+    private ExecutorService resolver;
+    private volatile Thread thread;
+    private volatile boolean running;
+
+    // Only accessed by the I/O thread
+    private final ArrayDeque<Request> pending = new ArrayDeque<Request>();
+    // Retries that still count as in flight, and those set aside in the retry queue, if any
+    private final RetryQueue inlineRetries = new RetryQueue(Long.MAX_VALUE);
+    private RetryQueue deferredRetries;
+    private final List<Connection> connections = new ArrayList<Connection>();
+    private final ArrayDeque<Connection> idle = new ArrayDeque<Connection>();
+    private final Map<String, Endpoint> endpoints = new HashMap<String, Endpoint>();
+
+    public NioHttpSender(String name) {
+        this.name = name;
+    }
+
+    // Visible for tests that talk to a server with a self-signed certificate
+    void setSslContext(SSLContext sslContext) {
+        this.sslContext = sslContext;
+    }
+
+    @Override
+    public void init() {
+        super.init();
+        try {
+            selector = Selector.open();
+        } catch (IOException e) {
+            logger.error("Unable to open selector for sending to Sumo Logic", e);
+            return;
+        }
+        ThreadPoolExecutor resolverPool = new ThreadPoolExecutor(RESOLVER_THREADS, RESOLVER_THREADS,
+                60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread resolverThread = new Thread(runnable, "SumoNioResolver-" + name);
+                resolverThread.setDaemon(true);
+                return resolverThread;
+            }
+        });
+        resolverPool.allowCoreThreadTimeOut(true);
+        resolver = resolverPool;
+        deferredRetries = getRetryQueue();
+        running = true;
+        Thread ioThread = new Thread(this, "SumoNioSender-" + name);
+        ioThread.setDaemon(true);
+        thread = ioThread;
+        ioThread.start();
+    }
+
+    @Override
+    public boolean isInitialized() {
+        return running;
+    }
+
+    @Override
+    public boolean isBlocking() {
+        return false;
+    }
+
+    @Override
+    public void send(CharSequence body, SourceMetadata metadata, Callback callback) {
+        if (!running) {
+            callback.done(false);
+            return;
+        }
+        submitted.add(new Request(body, encodeBody(body), compression.getContentEncoding(), metadata, callback));
+        selector.wakeup();
+    }
+
+    /**
+     * Stops the I/O thread. Requests that have not been delivered yet are dropped.
+     */
+    @Override
+    public void close() throws IOException {
+        running = false;
+        Thread ioThread = thread;
+        if (ioThread != null) {
+            selector.wakeup();
+            try {
+                ioThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            thread = null;
+        }
+        if (resolver != null) {
+            resolver.shutdownNow();
+        }
+        // Anything submitted while the I/O thread was shutting down
+        dropAll();
+        if (selector != null) {
+            selector.close();
+        }
+        super.close();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                long now = System.nanoTime();
+                checkDeadlines(now);
+                resumeResolved();
+                acceptSubmitted();
+                dispatch(now);
+                selector.select(millisUntilNextDeadline(now));
+                processSelectedKeys();
+            } catch (Exception e) {
+                logger.warn("Exception while attempting to send", e);
+            }
+        }
+        dropAll();
+    }
+
+    private void acceptSubmitted() {
+        Request request;
+        while ((request = submitted.poll()) != null) {
+            pending.add(request);
+        }
+    }
+
+    // Puts the requests that waited for the host of their endpoint to be looked up back in front, in order
+    private void resumeResolved() {
+        Endpoint endpoint;
+        while ((endpoint = resolved.poll()) != null) {
+            Request request;
+            while ((request = endpoint.waiting.pollLast()) != null) {
+                pending.addFirst(request);
+            }
+        }
+    }
+
+    private void dispatch(long now) {
+        while (!pending.isEmpty()) {
+            EndpointBalancer balancer = balancer();
+            Request next = pending.peek();
+            EndpointBalancer.Target target = balancer == null ? null
+                    : next.selected != null ? next.selected : balancer.select();
+            Endpoint current = target == null ? null : endpointFor(target.url);
+            if (current == null) {
+                if (target != null) {
+                    balancer.started(target);
+                    balancer.completed(target, false);
+                    if (balancer.hasHealthyAlternative(target)) {
+                        continue;
+                    }
+                }
+                logger.warn("Dropping message due to invalid URL: {}", target == null ? url : target.url);
+                complete(pending.poll(), false);
+                continue;
+            }
+            if (!permitted(now)) {
+                break;
+            }
+            Connection connection = takeIdle(current);
+            if (connection != null) {
+                Request request = pending.poll();
+                startAttempt(request, balancer, target);
+                assign(connection, request, now);
+                try {
+                    progress(connection, now);
+                } catch (Exception e) {
+                    connectionFailed(connection, e, now);
+                }
+            } else if (connections.size() < Math.max(maxConnections, 1)) {
+                InetSocketAddress address = addressOf(current, now);
+                if (address == null && !current.unresolvable) {
+                    // Waits for the lookup, which wakes up the selector once done
+                    release();
+                    Request request = pending.poll();
+                    request.selected = target;
+                    current.waiting.add(request);
+                    continue;
+                }
+                Request request = pending.poll();
+                startAttempt(request, balancer, target);
+                try {
+                    open(current, address, request, now);
+                } catch (Exception e) {
+                    logger.warn("Could not send log to Sumo Logic", e);
+                    requestCompleted(0, now);
+                    endAttempt(request, false);
+                    attemptFailed(request, now, -1);
+                }
+            } else {
+                // The permission is taken again on the next pass
+                release();
+                if (idle.isEmpty()) {
+                    break;
+                }
+                // Make room for a connection to the selected endpoint
+                close(idle.poll());
+            }
+        }
+    }
+
+    private boolean permitted(long now) {
+        CircuitBreaker breaker = getCircuitBreaker();
+        return breaker == null || breaker.tryAcquire(now);
+    }
+
+    private void release() {
+        CircuitBreaker breaker = getCircuitBreaker();
+        if (breaker != null) {
+            breaker.released();
+        }
+    }
+
+    private Connection takeIdle(Endpoint target) {
+        Iterator<Connection> iterator = idle.iterator();
+        while (iterator.hasNext()) {
+            Connection connection = iterator.next();
+            if (connection.endpoint == target) {
+                iterator.remove();
+                return connection;
+            }
+        }
+        return null;
+    }
+
+    private void startAttempt(Request request, EndpointBalancer balancer, EndpointBalancer.Target target) {
+        // Counted here, so that an attempt that fails before it is assigned a connection is a try too
+        request.tries++;
+        request.selected = null;
+        request.balancer = balancer;
+        request.target = target;
+        balancer.started(target);
+    }
+
+    /**
+     * @param healthy whether the endpoint handled the attempt, or null if it was not judged
+     */
+    private void endAttempt(Request request, Boolean healthy) {
+        EndpointBalancer balancer = request.balancer;
+        if (balancer == null) {
+            return;
+        }
+        CircuitBreaker breaker = getCircuitBreaker();
+        if (healthy == null) {
+            balancer.released(request.target);
+            release();
+        } else {
+            balancer.completed(request.target, healthy);
+            if (breaker != null) {
+                if (healthy) {
+                    breaker.succeeded();
+                } else {
+                    breaker.failed();
+                }
+            }
+        }
+        request.balancer = null;
+    }
+
+    private void processSelectedKeys() {
+        long now = System.nanoTime();
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            Connection connection = (Connection) key.attachment();
+            if (!key.isValid()) {
+                continue;
+            }
+            try {
+                if (!connection.connected) {
+                    if (connection.channel.finishConnect()) {
+                        connected(connection, now);
+                    }
+                } else {
+                    progress(connection, now);
+                }
+            } catch (Exception e) {
+                connectionFailed(connection, e, now);
+            }
+        }
+    }
+
+    private void checkDeadlines(long now) {
+        RetryQueue.Entry due;
+        while ((due = inlineRetries.pollDue(now)) != null) {
+            pending.add((Request) due);
+        }
+        while (deferredRetries != null && (due = deferredRetries.pollDue(now)) != null) {
+            pending.add((Request) due);
+        }
+        for (Connection connection : new ArrayList<Connection>(connections)) {
+            if (connection.deadline != 0 && connection.deadline - now <= 0) {
+                connectionFailed(connection, new SocketTimeoutException(
+                        connection.connected && !connection.handshaking ? "Read timed out" : "Connect timed out"), now);
+            }
+        }
+    }
+
+    private long millisUntilNextDeadline(long now) {
+        long next = inlineRetries.nanosUntilNextDue(now);
+        if (deferredRetries != null) {
+            next = Math.min(next, deferredRetries.nanosUntilNextDue(now));
+        }
+        for (Connection connection : connections) {
+            if (connection.deadline != 0) {
+                next = Math.min(next, connection.deadline - now);
+            }
+        }
+        CircuitBreaker breaker = getCircuitBreaker();
+        if (breaker != null && !pending.isEmpty()) {
+            // Pending requests wait for the circuit to become half-open
+            next = Math.min(next, breaker.nanosUntilPermitted(now));
+        }
+        if (next == Long.MAX_VALUE) {
+            // Nothing to wait for until a request is submitted
+            return 0;
+        }
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(next) + 1);
+    }
+
+    private Endpoint endpointFor(String endpointUrl) {
+        if (!endpoints.containsKey(endpointUrl)) {
+            if (endpoints.size() >= MAX_CACHED_ENDPOINTS) {
+                // URLs were changed many times; connections to the old endpoints are closed when idle
+                for (Endpoint endpoint : endpoints.values()) {
+                    if (endpoint != null) {
+                        pending.addAll(endpoint.waiting);
+                    }
+                }
+                endpoints.clear();
+            }
+            endpoints.put(endpointUrl, Endpoint.parse(endpointUrl));
+        }
+        return endpoints.get(endpointUrl);
+    }
+
+    /**
+     * @return the last address the host of the endpoint resolved to, or null if it was not resolved yet or
+     * could not be resolved; a lookup is started in the background if the result is out of date
+     */
+    private InetSocketAddress addressOf(Endpoint target, long now) {
+        InetSocketAddress address = target.address;
+        boolean lookUp;
+        if (address != null) {
+            lookUp = target.expired || now - target.resolvedAt >= ADDRESS_TTL_NANOS;
+        } else {
+            lookUp = !target.unresolvable || now - target.resolvedAt >= UNRESOLVABLE_TTL_NANOS;
+        }
+        if (lookUp) {
+            resolve(target);
+        }
+        return address;
+    }
+
+    private void resolve(final Endpoint target) {
+        if (target.resolving) {
+            return;
+        }
+        target.resolving = true;
+        try {
+            resolver.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        target.address = new InetSocketAddress(InetAddress.getByName(target.host), target.port);
+                        target.unresolvable = false;
+                        target.expired = false;
+                    } catch (UnknownHostException e) {
+                        target.unresolvable = true;
+                    } finally {
+                        target.resolvedAt = System.nanoTime();
+                        target.resolving = false;
+                        resolved.add(target);
+                        selector.wakeup();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Closing
+            target.resolving = false;
+        }
+    }
+
+    /**
+     * @param address resolved address of the endpoint, or null if its host could not be resolved
+     */
+    private void open(Endpoint target, InetSocketAddress address, Request request, long now) throws IOException {
+        if (address == null) {
+            throw new IOException("Unknown host: " + target.host);
+        }
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            Connection connection = new Connection(target, channel, target.secure ? newEngine(target) : null);
+            boolean connected = channel.connect(address);
+            connection.key = channel.register(selector, connected ? 0 : SelectionKey.OP_CONNECT, connection);
+            connections.add(connection);
+            connection.deadline = deadline(now, connectionTimeoutMs);
+            assign(connection, request, now);
+            if (connected) {
+                try {
+                    connected(connection, now);
+                } catch (Exception e) {
+                    // The request belongs to the connection now
+                    connectionFailed(connection, e, now);
+                }
+            }
+        } catch (IOException e) {
+            closeQuietly(channel);
+            throw e;
+        }
+    }
+
+    private SSLEngine newEngine(Endpoint target) throws IOException {
+        if (sslContext == null) {
+            try {
+                sslContext = SSLContext.getDefault();
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException("TLS is not available", e);
+            }
+        }
+        SSLEngine engine = sslContext.createSSLEngine(target.host, target.port);
+        engine.setUseClientMode(true);
+        SSLParameters parameters = engine.getSSLParameters();
+        parameters.setEndpointIdentificationAlgorithm("HTTPS");
+        engine.setSSLParameters(parameters);
+        return engine;
+    }
+
+    private void connected(Connection connection, long now) throws IOException {
+        connection.connected = true;
+        if (connection.engine != null) {
+            connection.engine.beginHandshake();
+            connection.handshaking = true;
+        }
+        progress(connection, now);
+    }
+
+    private void assign(Connection connection, Request request, long now) {
+        request.sentAt = now;
+        connection.request = request;
+        connection.parser.reset();
+        connection.out = requestBuffers(connection.endpoint, request);
+        if (connection.connected) {
+            connection.deadline = deadline(now, socketTimeoutMs);
+        }
+    }
+
+    // Moves the connection as far as its socket allows without blocking
+    private void progress(Connection connection, long now) throws IOException {
+        if (connection.handshaking) {
+            if (!handshake(connection)) {
+                return;
+            }
+            connection.handshaking = false;
+        }
+        if (connection.request == null) {
+            // Idle; reading only notices the server closing the connection
+            if (readIn(connection) < 0) {
+                close(connection);
+            } else {
+                clear(connection.appIn);
+                interest(connection, SelectionKey.OP_READ);
+            }
+            return;
+        }
+        connection.deadline = deadline(now, socketTimeoutMs);
+        if (connection.out != null) {
+            if (!writeOut(connection)) {
+                interest(connection, SelectionKey.OP_WRITE);
+                return;
+            }
+            connection.out = null;
+        }
+        while (true) {
+            int read = readIn(connection);
+            flip(connection.appIn);
+            boolean complete = connection.parser.parse(connection.appIn);
+            connection.appIn.compact();
+            if (!complete && read < 0) {
+                complete = connection.parser.closed();
+                if (!complete) {
+                    throw new EOFException("Connection closed before the response was received");
+                }
+            }
+            if (complete) {
+                responseReceived(connection, now);
+                return;
+            }
+            if (read == 0) {
+                interest(connection, SelectionKey.OP_READ);
+                return;
+            }
+        }
+    }
+
+    private void responseReceived(Connection connection, long now) {
+        Request request = connection.request;
+        connection.request = null;
+        connection.deadline = 0;
+        connection.reused = true;
+        if (connection.parser.connectionClose()) {
+            close(connection);
+        } else {
+            clear(connection.appIn);
+            interest(connection, SelectionKey.OP_READ);
+            idle.add(connection);
+        }
+        int statusCode = connection.parser.statusCode();
+        requestCompleted(statusCode, request.sentAt);
+        endAttempt(request, !isRetryable(statusCode));
+        if (statusCode == 200) {
+            logger.debug("Successfully sent log request to Sumo Logic");
+            complete(request, true);
+        } else {
+            logger.warn("Received non-200 response code from Sumo Service: {}", statusCode);
+            if (isRetryable(statusCode)) {
+                attemptFailed(request, now, retryAfterMs(statusCode, connection.parser.retryAfter()));
+            } else {
+                complete(request, false);
+            }
+        }
+    }
+
+    private void connectionFailed(Connection connection, Exception e, long now) {
+        Request request = connection.request;
+        boolean stale = connection.reused && !connection.parser.started();
+        connection.request = null;
+        close(connection);
+        if (!connection.connected) {
+            // The host may have moved; look it up again before the next connection
+            connection.endpoint.expired = true;
+        }
+        if (request == null) {
+            return;
+        }
+        if (stale) {
+            logger.debug("Kept-alive connection was closed by the server, resending request");
+            request.tries--;
+            endAttempt(request, null);
+            pending.addFirst(request);
+        } else {
+            logger.warn("Could not send log to Sumo Logic", e);
+            requestCompleted(0, request.sentAt);
+            endAttempt(request, false);
+            attemptFailed(request, now, -1);
+        }
+    }
+
+    private void attemptFailed(Request request, long now, long retryAfterMs) {
+        if (retriesExhausted(request.tries, request.body)) {
+            complete(request, false);
+        } else {
+            EndpointBalancer balancer = balancer();
+            boolean alternative = balancer != null && request.target != null
+                    && balancer.hasHealthyAlternative(request.target);
+            // Another endpoint can take the retry right away
+            long retryAt = alternative ? now
+                    : now + TimeUnit.MILLISECONDS.toNanos(retryDelayMs(request.tries, retryAfterMs));
+            retrying();
+            if (deferredRetries == null || !deferRetry(deferredRetries, request, request.callback, retryAt)) {
+                inlineRetries.offer(request, retryAt);
+            }
+        }
+    }
+
+    private void complete(Request request, boolean delivered) {
+        // No further attempt needs the body
+        releaseBody(request.content);
+        try {
+            request.callback.done(delivered);
+        } catch (Exception e) {
+            logger.warn("Exception in send callback", e);
+        }
+    }
+
+    private void dropAll() {
+        int dropped = 0;
+        for (Connection connection : new ArrayList<Connection>(connections)) {
+            if (connection.request != null) {
+                complete(connection.request, false);
+                connection.request = null;
+                dropped++;
+            }
+            close(connection);
+        }
+        acceptSubmitted();
+        for (Endpoint endpoint : endpoints.values()) {
+            if (endpoint != null) {
+                pending.addAll(endpoint.waiting);
+                endpoint.waiting.clear();
+            }
+        }
+        List<RetryQueue.Entry> retried = inlineRetries.drain();
+        if (deferredRetries != null) {
+            retried.addAll(deferredRetries.drain());
+        }
+        dropped += pending.size() + retried.size();
+        for (Request request : pending) {
+            complete(request, false);
+        }
+        for (RetryQueue.Entry entry : retried) {
+            complete((Request) entry, false);
+        }
+        pending.clear();
+        if (dropped > 0) {
+            logger.warn("Dropped {} requests that were not sent", dropped);
+        }
+    }
+
+    private void close(Connection connection) {
+        connections.remove(connection);
+        idle.remove(connection);
+        if (connection.key != null) {
+            connection.key.cancel();
+        }
+        closeQuietly(connection.channel);
+    }
+
+    private ByteBuffer[] requestBuffers(Endpoint target, Request request) {
+        StringBuilder head = new StringBuilder(256);
+        head.append("POST ").append(target.requestTarget).append(" HTTP/1.1\r\n");
+        appendHeader(head, "Host", target.hostHeader);
+        appendHeader(head, "Content-Type", "text/plain; charset=UTF-8");
+        appendHeader(head, "Content-Length", String.valueOf(request.content.length));
+        appendHeader(head, CONTENT_ENCODING_HEADER, request.contentEncoding);
+        appendHeader(head, SUMO_SOURCE_NAME_HEADER, sourceNameFor(request.metadata));
+        appendHeader(head, SUMO_SOURCE_CATEGORY_HEADER, sourceCategoryFor(request.metadata));
+        appendHeader(head, SUMO_SOURCE_HOST_HEADER, sourceHostFor(request.metadata));
+        appendHeader(head, SUMO_CLIENT_HEADER, clientHeaderValue);
+        appendHeader(head, SUMO_FIELDS_HEADER, fieldsHeaderValue);
+        head.append("\r\n");
+        return new ByteBuffer[]{
+                ByteBuffer.wrap(head.toString().getBytes(StandardCharsets.ISO_8859_1)),
+                ByteBuffer.wrap(request.content.bytes, 0, request.content.length)};
+    }
+
+    private static void appendHeader(StringBuilder head, String name, String value) {
+        if (!isBlank(value)) {
+            head.append(name).append(": ").append(SourceMetadata.toHeaderValue(value)).append("\r\n");
+        }
+    }
+
+    // Plain text and TLS I/O
+
+    /**
+     * @return whether the whole request has been written
+     */
+    private boolean writeOut(Connection connection) throws IOException {
+        ByteBuffer[] out = connection.out;
+        ByteBuffer last = out[out.length - 1];
+        if (connection.engine == null) {
+            while (last.hasRemaining()) {
+                if (connection.channel.write(out) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        while (true) {
+            if (connection.netOut.hasRemaining()) {
+                connection.channel.write(connection.netOut);
+                if (connection.netOut.hasRemaining()) {
+                    return false;
+                }
+            }
+            if (!last.hasRemaining()) {
+                return true;
+            }
+            clear(connection.netOut);
+            SSLEngineResult result = connection.engine.wrap(out, connection.netOut);
+            flip(connection.netOut);
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                throw new SSLException("TLS session was closed");
+            }
+        }
+    }
+
+    /**
+     * Reads what is available into the connection's plain text buffer.
+     *
+     * @return number of plain text bytes read, or -1 at the end of the stream
+     */
+    private int readIn(Connection connection) throws IOException {
+        if (connection.engine == null) {
+            return connection.channel.read(connection.appIn);
+        }
+        int read = connection.channel.read(connection.netIn);
+        int produced = 0;
+        while (true) {
+            flip(connection.netIn);
+            SSLEngineResult result = connection.engine.unwrap(connection.netIn, connection.appIn);
+            connection.netIn.compact();
+            runDelegatedTasks(connection.engine);
+            produced += result.bytesProduced();
+            SSLEngineResult.Status status = result.getStatus();
+            if (status == SSLEngineResult.Status.CLOSED) {
+                return produced > 0 ? produced : -1;
+            }
+            if (status == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                if (produced > 0) {
+                    // Let the parser make room first
+                    return produced;
+                }
+                connection.appIn = grow(connection.appIn, connection.engine.getSession().getApplicationBufferSize());
+                continue;
+            }
+            if (status == SSLEngineResult.Status.BUFFER_UNDERFLOW
+                    || (result.bytesConsumed() == 0 && result.bytesProduced() == 0)) {
+                break;
+            }
+        }
+        return produced == 0 && read < 0 ? -1 : produced;
+    }
+
+    /**
+     * @return whether the handshake is finished
+     */
+    private boolean handshake(Connection connection) throws IOException {
+        SSLEngine engine = connection.engine;
+        while (true) {
+            if (connection.netOut.hasRemaining()) {
+                connection.channel.write(connection.netOut);
+                if (connection.netOut.hasRemaining()) {
+                    interest(connection, SelectionKey.OP_WRITE);
+                    return false;
+                }
+            }
+            SSLEngineResult result;
+            switch (engine.getHandshakeStatus()) {
+                case NOT_HANDSHAKING:
+                case FINISHED:
+                    return true;
+                case NEED_TASK:
+                    runDelegatedTasks(engine);
+                    break;
+                case NEED_WRAP:
+                    clear(connection.netOut);
+                    result = engine.wrap(EMPTY, connection.netOut);
+                    flip(connection.netOut);
+                    if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                        throw new SSLException("TLS session was closed during the handshake");
+                    }
+                    break;
+                default:
+                    // NEED_UNWRAP, and NEED_UNWRAP_AGAIN on newer JDKs
+                    flip(connection.netIn);
+                    result = engine.unwrap(connection.netIn, connection.appIn);
+                    connection.netIn.compact();
+                    if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                        throw new SSLException("TLS session was closed during the handshake");
+                    }
+                    if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                        int read = connection.channel.read(connection.netIn);
+                        if (read < 0) {
+                            throw new EOFException("Connection closed during the TLS handshake");
+                        }
+                        if (read == 0) {
+                            interest(connection, SelectionKey.OP_READ);
+                            return false;
+                        }
+                    }
+            }
+        }
+    }
+
+    private static void runDelegatedTasks(SSLEngine engine) {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    private static void interest(Connection connection, int ops) {
+        connection.key.interestOps(ops);
+    }
+
+    private static long deadline(long now, int timeoutMs) {
+        if (timeoutMs <= 0) {
+            return 0;
+        }
+        long deadline = now + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        // Zero means no deadline
+        return deadline != 0 ? deadline : 1;
+    }
+
+    private static ByteBuffer grow(ByteBuffer buffer, int minimumCapacity) {
+        ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, minimumCapacity));
+        flip(buffer);
+        grown.put(buffer);
+        return grown;
+    }
+
+    // Casts for Java 8, where Buffer.flip and Buffer.clear do not return ByteBuffer
+    private static void flip(ByteBuffer buffer) {
+        ((Buffer) buffer).flip();
+    }
+
+    private static void clear(ByteBuffer buffer) {
+        ((Buffer) buffer).clear();
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException ignore) {
+        }
+    }
+
+    private static final class Request extends RetryQueue.Entry {
+        final CharSequence body;
+        final EncodedBody content;
+        final String contentEncoding;
+        final SourceMetadata metadata;
+        final Callback callback;
+        int tries;
+        long sentAt;
+        // Endpoint of the current attempt
+        EndpointBalancer balancer;
+        EndpointBalancer.Target target;
+        // Endpoint chosen for the next attempt, while it waits for the host to be looked up
+        EndpointBalancer.Target selected;
+
+        Request(CharSequence body, EncodedBody content, String contentEncoding, SourceMetadata metadata,
+                Callback callback) {
+            this.body = body;
+            this.content = content;
+            this.contentEncoding = contentEncoding;
+            this.metadata = metadata;
+            this.callback = callback;
+            this.bytes = content.length;
+        }
+    }
+
+    private static final class Connection {
+        final Endpoint endpoint;
+        final SocketChannel channel;
+        final SSLEngine engine;
+        final HttpResponseParser parser = new HttpResponseParser();
+        SelectionKey key;
+        ByteBuffer netIn;
+        ByteBuffer netOut;
+        ByteBuffer appIn;
+        ByteBuffer[] out;
+        Request request;
+        boolean connected;
+        boolean handshaking;
+        // Whether a previous request completed on this connection, so the server may since have closed it
+        boolean reused;
+        long deadline;
+
+        Connection(Endpoint endpoint, SocketChannel channel, SSLEngine engine) {
+            this.endpoint = endpoint;
+            this.channel = channel;
+            this.engine = engine;
+            if (engine != null) {
+                int packetSize = engine.getSession().getPacketBufferSize();
+                netIn = ByteBuffer.allocate(packetSize);
+                netOut = ByteBuffer.allocate(packetSize);
+                flip(netOut);
+                appIn = ByteBuffer.allocate(Math.max(READ_BUFFER_SIZE, engine.getSession().getApplicationBufferSize()));
+            } else {
+                appIn = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            }
+        }
+    }
+
+    private static final class Endpoint {
+        final boolean secure;
+        final String host;
+        final int port;
+        final String hostHeader;
+        final String requestTarget;
+        // Requests waiting for the lookup, only accessed by the I/O thread
+        final ArrayDeque<Request> waiting = new ArrayDeque<Request>();
+        // Result of the last lookup, written by a resolver thread
+        volatile InetSocketAddress address;
+        volatile long resolvedAt;
+        volatile boolean unresolvable;
+        volatile boolean resolving;
+        volatile boolean expired;
+
+        private Endpoint(boolean secure, String host, int port, String hostHeader, String requestTarget) {
+            this.secure = secure;
+            this.host = host;
+            this.port = port;
+            this.hostHeader = hostHeader;
+            this.requestTarget = requestTarget;
+        }
+
+        /**
+         * @return the endpoint, or null if the URL is not a valid http or https URL
+         */
+        static Endpoint parse(String url) {
+            URI uri;
+            try {
+                uri = new URI(url);
+            } catch (URISyntaxException e) {
+                return null;
+            }
+            String scheme = uri.getScheme();
+            boolean secure = "https".equalsIgnoreCase(scheme);
+            if ((!secure && !"http".equalsIgnoreCase(scheme)) || uri.getHost() == null) {
+                return null;
+            }
+            int port = uri.getPort() >= 0 ? uri.getPort() : (secure ? 443 : 80);
+            String hostHeader = uri.getPort() >= 0 ? uri.getHost() + ":" + uri.getPort() : uri.getHost();
+            String path = uri.getRawPath() == null || uri.getRawPath().isEmpty() ? "/" : uri.getRawPath();
+            String requestTarget = uri.getRawQuery() == null ? path : path + "?" + uri.getRawQuery();
+            return new Endpoint(secure, uri.getHost(), port, hostHeader, requestTarget);
+        }
+    }
+}
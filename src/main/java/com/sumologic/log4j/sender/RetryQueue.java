@@ -0,0 +1,166 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j.sender;
+
+import com.sumologic.log4j.metrics.AppenderMetrics;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Requests that failed and wait for their next attempt, ordered by when it is due. The queue holds at
+ * most {@code maxBytes} of request bodies, but always accepts a single request however large; a failed
+ * request that does not fit any more is retried in line by its sender, or dropped by the thread that
+ * retries the queue. Thread-safe.
+ */
+public final class RetryQueue implements AppenderMetrics.RetryGauge {
+
+    private static final Comparator<Entry> BY_RETRY_TIME = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            return Long.signum(a.retryAt - b.retryAt);
+        }
+    };
+
+    /**
+     * A request as seen by the queue.
+     */
+    abstract static class Entry {
+        long retryAt;
+        // Size of the request body
+        long bytes;
+        // Set once the entry is first queued
+        boolean failing;
+        private long failingSince;
+    }
+
+    private final long maxBytes;
+    private final PriorityQueue<Entry> entries = new PriorityQueue<Entry>(16, BY_RETRY_TIME);
+    private long bytes;
+
+    public RetryQueue(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return whether the entry was queued, as opposed to exceeding the queue's budget
+     */
+    synchronized boolean offer(Entry entry, long retryAt) {
+        if (!entries.isEmpty() && bytes + entry.bytes > maxBytes) {
+            return false;
+        }
+        if (!entry.failing) {
+            entry.failing = true;
+            entry.failingSince = System.nanoTime();
+        }
+        entry.retryAt = retryAt;
+        entries.add(entry);
+        bytes += entry.bytes;
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * @return the entry that is due first if it is due at {@code now}, or null
+     */
+    synchronized Entry pollDue(long now) {
+        Entry first = entries.peek();
+        if (first == null || first.retryAt - now > 0) {
+            return null;
+        }
+        return remove();
+    }
+
+    /**
+     * Blocks until an entry is due.
+     */
+    synchronized Entry awaitDue() throws InterruptedException {
+        while (true) {
+            Entry first = entries.peek();
+            if (first == null) {
+                wait();
+            } else {
+                long wait = first.retryAt - System.nanoTime();
+                if (wait <= 0) {
+                    return remove();
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, wait);
+            }
+        }
+    }
+
+    /**
+     * @return time until the first entry is due, or {@link Long#MAX_VALUE} if the queue is empty
+     */
+    synchronized long nanosUntilNextDue(long now) {
+        Entry first = entries.peek();
+        return first == null ? Long.MAX_VALUE : first.retryAt - now;
+    }
+
+    /**
+     * Removes all entries.
+     */
+    synchronized List<Entry> drain() {
+        List<Entry> drained = new ArrayList<Entry>(entries);
+        entries.clear();
+        bytes = 0;
+        return drained;
+    }
+
+    @Override
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    @Override
+    public synchronized long bytes() {
+        return bytes;
+    }
+
+    /**
+     * @return time since the first failure of the request that has been failing for the longest, or 0 if
+     * the queue is empty
+     */
+    @Override
+    public synchronized long oldestAgeNanos() {
+        long now = System.nanoTime();
+        long oldest = 0;
+        for (Entry entry : entries) {
+            oldest = Math.max(oldest, now - entry.failingSince);
+        }
+        return oldest;
+    }
+
+    private Entry remove() {
+        Entry entry = entries.poll();
+        bytes -= entry.bytes;
+        return entry;
+    }
+}
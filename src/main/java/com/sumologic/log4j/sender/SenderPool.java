@@ -0,0 +1,244 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j.sender;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.status.StatusLogger;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounds the number of requests in flight and, for a blocking {@link Transport}, sends them on a pool of
+ * sender threads, so that several requests can be in flight at once over pooled keep-alive connections.
+ * <p>
+ * {@link #send(CharSequence)} blocks the caller while {@code maxInFlightRequests} bodies are already being
+ * sent or waiting to be sent, which leaves further messages in the queue. When requests have to
+ * preserve order, a blocking transport sends them one after another on a single sender thread, in the
+ * order they were submitted, and a request that is being retried holds back the ones behind it; a
+ * non-blocking transport is only given the next request once the previous one is done. With one sender
+ * thread and one request in flight, a blocking transport sends on the calling thread, as if there were
+ * no pool.
+ * <p>
+ * A body that the transport sets aside in its {@link RetryQueue} stops counting as in flight, so that
+ * failing bodies do not hold back the ones sent after them.
+ */
+public class SenderPool {
+
+    private static final Logger logger = StatusLogger.getLogger();
+
+    // Sender threads are started as requests need them and exit after being idle this long
+    private static final long IDLE_THREAD_SECONDS = 60;
+
+    private static final Transport.Callback IGNORE = new Transport.Callback() {
+        @Override
+        public void done(boolean delivered) {
+        }
+    };
+
+    private final Transport transport;
+    private final ExecutorService executor;
+    private final Semaphore inFlight;
+    private final int maxInFlight;
+
+    public SenderPool(String name, Transport transport, int senderThreads, int maxInFlightRequests,
+                      boolean preserveOrder) {
+        this.transport = transport;
+        int threads = preserveOrder ? 1 : Math.max(senderThreads, 1);
+        int maxInFlight = maxInFlightRequests > 0 ? maxInFlightRequests : threads;
+        if (!transport.isBlocking()) {
+            executor = null;
+            maxInFlight = preserveOrder ? 1 : maxInFlight;
+        } else if (threads == 1 && maxInFlight == 1) {
+            executor = null;
+            maxInFlight = 0;
+        } else {
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, IDLE_THREAD_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new SenderThreadFactory(name));
+            pool.allowCoreThreadTimeOut(true);
+            executor = pool;
+        }
+        this.maxInFlight = maxInFlight;
+        this.inFlight = maxInFlight > 0 ? new Semaphore(maxInFlight) : null;
+    }
+
+    /**
+     * Number of connections the transport needs so that no request waits for one.
+     */
+    public static int connectionsNeeded(boolean blocking, int senderThreads, int maxInFlightRequests,
+                                        boolean preserveOrder) {
+        int threads = preserveOrder ? 1 : Math.max(senderThreads, 1);
+        if (blocking || preserveOrder) {
+            return threads;
+        }
+        return maxInFlightRequests > 0 ? maxInFlightRequests : threads;
+    }
+
+    public void send(CharSequence body) {
+        send(body, null, IGNORE);
+    }
+
+    public void send(CharSequence body, SourceMetadata metadata) {
+        send(body, metadata, IGNORE);
+    }
+
+    /**
+     * Sends the body, notifying the callback once the transport is done with it.
+     */
+    public void send(CharSequence body, Transport.Callback callback) {
+        send(body, null, callback);
+    }
+
+    /**
+     * Sends the body with the given source metadata, notifying the callback once the transport is done with it.
+     */
+    public void send(final CharSequence body, final SourceMetadata metadata, final Transport.Callback callback) {
+        if (inFlight == null) {
+            transport.send(body, metadata, callback);
+            return;
+        }
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            // Stopping; give the body the single attempt an interrupted sender makes
+            Thread.currentThread().interrupt();
+            transport.send(body, metadata, callback);
+            return;
+        }
+        final Transport.Callback release = new InFlightRequest(callback);
+        if (executor == null) {
+            transport.send(body, metadata, release);
+            return;
+        }
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        transport.send(body, metadata, release);
+                    } catch (Exception e) {
+                        logger.warn("Exception while attempting to send", e);
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            inFlight.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Stops the sender threads. Requests that were already submitted are completed first if
+     * {@code completeRequests} is set, otherwise requests waiting for a sender thread are dropped
+     * and requests waiting to be retried are abandoned.
+     */
+    public void close(boolean completeRequests) {
+        if (executor == null) {
+            if (inFlight != null && completeRequests) {
+                awaitRequests();
+            }
+            return;
+        }
+        if (completeRequests) {
+            executor.shutdown();
+        } else {
+            int dropped = executor.shutdownNow().size();
+            if (dropped > 0) {
+                logger.warn("Dropped {} requests that were waiting to be sent", dropped);
+            }
+        }
+        boolean interrupted = false;
+        while (true) {
+            try {
+                if (executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                    break;
+                }
+            } catch (InterruptedException e) {
+                interrupted = true;
+                executor.shutdownNow();
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Waits until a non-blocking transport has completed every request
+    private void awaitRequests() {
+        try {
+            inFlight.acquire(maxInFlight);
+            inFlight.release(maxInFlight);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Releases the in-flight permit of a request when it is done or waits for a retry, whichever comes first
+    private final class InFlightRequest implements Transport.DeferrableCallback {
+        private final Transport.Callback callback;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        InFlightRequest(Transport.Callback callback) {
+            this.callback = callback;
+        }
+
+        @Override
+        public void retryDeferred() {
+            if (released.compareAndSet(false, true)) {
+                inFlight.release();
+            }
+        }
+
+        @Override
+        public void done(boolean delivered) {
+            retryDeferred();
+            callback.done(delivered);
+        }
+    }
+
+    private static final class SenderThreadFactory implements ThreadFactory {
+        private final String name;
+        private final AtomicInteger count = new AtomicInteger();
+
+        SenderThreadFactory(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "SumoSender-" + name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
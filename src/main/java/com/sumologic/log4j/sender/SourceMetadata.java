@@ -0,0 +1,117 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j.sender;
+
+/**
+ * Source name, category and host sent with a request, overriding the values configured on the transport.
+ * A null or blank value leaves its header out, so the collector applies the source's default.
+ * <p>
+ * Values may come from per-event lookups and therefore from application data, so they are made safe to
+ * send as header values: control characters such as CR and LF become spaces and characters outside
+ * ISO-8859-1 become {@code ?}.
+ */
+public final class SourceMetadata {
+
+    private final String name;
+    private final String category;
+    private final String host;
+
+    public SourceMetadata(String name, String category, String host) {
+        this.name = toHeaderValue(name);
+        this.category = toHeaderValue(category);
+        this.host = toHeaderValue(host);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getCategory() {
+        return category;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof SourceMetadata)) {
+            return false;
+        }
+        SourceMetadata other = (SourceMetadata) o;
+        return equal(name, other.name) && equal(category, other.category) && equal(host, other.host);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = name != null ? name.hashCode() : 0;
+        result = 31 * result + (category != null ? category.hashCode() : 0);
+        result = 31 * result + (host != null ? host.hashCode() : 0);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "SourceMetadata{name=" + name + ", category=" + category + ", host=" + host + "}";
+    }
+
+    /**
+     * @return the value with control characters replaced by spaces and characters outside ISO-8859-1 by
+     * {@code ?}, so that it cannot end the header or add another one
+     */
+    static String toHeaderValue(String value) {
+        if (value == null) {
+            return null;
+        }
+        int i = 0;
+        while (i < value.length() && isSafe(value.charAt(i))) {
+            i++;
+        }
+        if (i == value.length()) {
+            return value;
+        }
+        StringBuilder safe = new StringBuilder(value.length());
+        safe.append(value, 0, i);
+        for (; i < value.length(); i++) {
+            char c = value.charAt(i);
+            safe.append(isSafe(c) ? c : c > 0xff ? '?' : ' ');
+        }
+        return safe.toString();
+    }
+
+    private static boolean isSafe(char c) {
+        return (c >= 0x20 && c < 0x7f) || (c >= 0xa0 && c <= 0xff);
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
@@ -0,0 +1,145 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j.sender;
+
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Uncompressed request body that is encoded to UTF-8 while it is written to the connection, in chunks of
+ * {@value #CHUNK_SIZE} bytes, and sent with chunked transfer encoding. The body is never held as a byte
+ * array, so a batch costs a constant amount of memory on top of its messages, and it is encoded again
+ * for every retry. A {@link ConcatenatedBody} is encoded one string at a time. The chunk is allocated
+ * on the first write and reused by the retries, so writes must not overlap.
+ */
+final class StreamingBodyEntity extends AbstractHttpEntity {
+
+    static final int CHUNK_SIZE = 8192;
+    // Longest encoding of a character, or of an unpaired surrogate replacement followed by one
+    private static final int MAX_CHARACTER_BYTES = 4;
+
+    private final CharSequence body;
+    private byte[] chunk;
+    private int position;
+    // High surrogate waiting for the low one, which may be the first character of the next string
+    private char highSurrogate;
+
+    StreamingBodyEntity(CharSequence body, ContentType contentType) {
+        this.body = body;
+        setContentType(contentType.toString());
+        setChunked(true);
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    @Override
+    public long getContentLength() {
+        return -1;
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream(body.length());
+        writeTo(content);
+        return new ByteArrayInputStream(content.toByteArray());
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        if (chunk == null) {
+            chunk = new byte[CHUNK_SIZE];
+        }
+        position = 0;
+        highSurrogate = 0;
+        if (body instanceof ConcatenatedBody) {
+            ConcatenatedBody parts = (ConcatenatedBody) body;
+            for (int i = 0; i < parts.parts(); i++) {
+                encode(parts.part(i), out);
+            }
+        } else {
+            encode(body, out);
+        }
+        if (highSurrogate != 0) {
+            // Unpaired surrogates are replaced with '?', as String.getBytes does
+            chunk[position++] = '?';
+        }
+        out.write(chunk, 0, position);
+        out.flush();
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return false;
+    }
+
+    private void encode(CharSequence chars, OutputStream out) throws IOException {
+        int length = chars.length();
+        for (int i = 0; i < length; i++) {
+            if (CHUNK_SIZE - position < MAX_CHARACTER_BYTES) {
+                out.write(chunk, 0, position);
+                position = 0;
+            }
+            char c = chars.charAt(i);
+            if (highSurrogate != 0) {
+                char high = highSurrogate;
+                highSurrogate = 0;
+                if (Character.isLowSurrogate(c)) {
+                    int codePoint = Character.toCodePoint(high, c);
+                    chunk[position++] = (byte) (0xf0 | (codePoint >> 18));
+                    chunk[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                    chunk[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                    chunk[position++] = (byte) (0x80 | (codePoint & 0x3f));
+                    continue;
+                }
+                chunk[position++] = '?';
+            }
+            if (c < 0x80) {
+                chunk[position++] = (byte) c;
+            } else if (c < 0x800) {
+                chunk[position++] = (byte) (0xc0 | (c >> 6));
+                chunk[position++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c)) {
+                highSurrogate = c;
+            } else if (Character.isLowSurrogate(c)) {
+                chunk[position++] = '?';
+            } else {
+                chunk[position++] = (byte) (0xe0 | (c >> 12));
+                chunk[position++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                chunk[position++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j.sender;
+
+import java.io.IOException;
+
+/**
+ * Delivers request bodies to a Sumo Logic HTTP source.
+ * <p>
+ * A blocking transport delivers a body on the thread that calls {@link #send(CharSequence, Callback)},
+ * including any retries, and completes the callback before returning. A non-blocking transport returns
+ * right away and completes the callback later from its own thread.
+ */
+public interface Transport {
+
+    /**
+     * Notified once for every body passed to {@link #send(CharSequence, Callback)}.
+     */
+    interface Callback {
+        /**
+         * @param delivered whether the body was accepted by the collector, as opposed to dropped
+         */
+        void done(boolean delivered);
+    }
+
+    /**
+     * Callback that is also told when a failed body is set aside in a {@link RetryQueue}, after which the
+     * caller no longer needs to count it as in flight. {@link #done} still follows once it is delivered or
+     * dropped.
+     */
+    interface DeferrableCallback extends Callback {
+        void retryDeferred();
+    }
+
+    void init();
+
+    boolean isInitialized();
+
+    boolean isBlocking();
+
+    /**
+     * Prepares for the first request: resolves the collector hosts and, where the transport can, connects
+     * ahead of time. Blocks for up to the connection timeout per endpoint; failures are only logged.
+     */
+    void prewarm();
+
+    void send(CharSequence body, Callback callback);
+
+    /**
+     * Sends the body with the given source metadata instead of the configured one, if not null.
+     */
+    void send(CharSequence body, SourceMetadata metadata, Callback callback);
+
+    void close() throws IOException;
+}
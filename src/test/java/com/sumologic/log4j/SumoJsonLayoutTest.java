@@ -0,0 +1,156 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.Message;
+import org.apache.logging.log4j.message.ParameterizedMessage;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.apache.logging.log4j.util.SortedArrayStringMap;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class SumoJsonLayoutTest {
+
+    // 2024-05-01T12:00:00.123Z
+    private static final long TIME = 1714564800123L;
+
+    private final SumoJsonLayout layout = SumoJsonLayout.newBuilder().build();
+
+    @Test
+    public void writesEventFields() {
+        LogEvent event = event(new ParameterizedMessage("Processed {} in {} ms", "request", 17)).build();
+        assertEquals("{\"timestamp\":\"2024-05-01T12:00:00.123Z\",\"level\":\"INFO\",\"logger\":\"com.example.App\","
+                + "\"thread\":\"main\",\"message\":\"Processed request in 17 ms\"}\n", layout.toSerializable(event));
+    }
+
+    @Test
+    public void reusesTheTimestampPrefixOnlyWithinTheSameSecond() {
+        assertTrue(layout.toSerializable(event(new SimpleMessage("a")).setTimeMillis(TIME).build())
+                .startsWith("{\"timestamp\":\"2024-05-01T12:00:00.123Z\""));
+        assertTrue(layout.toSerializable(event(new SimpleMessage("a")).setTimeMillis(TIME + 5).build())
+                .startsWith("{\"timestamp\":\"2024-05-01T12:00:00.128Z\""));
+        assertTrue(layout.toSerializable(event(new SimpleMessage("a")).setTimeMillis(TIME + 86399876L).build())
+                .startsWith("{\"timestamp\":\"2024-05-02T11:59:59.999Z\""));
+    }
+
+    @Test
+    public void escapesStringsAndEncodesUtf8() {
+        String message = "quote \" backslash \\ newline \n tab \t bell \u0007 é € 😀 lone \uD800";
+        LogEvent event = event(new SimpleMessage(message)).setLevel(Level.forName("NOTICE", 350)).build();
+        String json = new String(layout.toByteArray(event), StandardCharsets.UTF_8);
+        assertTrue(json, json.contains("\"level\":\"NOTICE\""));
+        assertTrue(json, json.contains("\"message\":\"quote \\\" backslash \\\\ newline \\n tab \\t bell \\u0007 "
+                + "é € 😀 lone ?\"}"));
+    }
+
+    @Test
+    public void writesContextAndException() {
+        Map<String, String> context = new LinkedHashMap<String, String>();
+        context.put("user", "42");
+        context.put("request\"id", "a\nb");
+        LogEvent event = event(new SimpleMessage("failed"))
+                .setContextData(new SortedArrayStringMap(context))
+                .setThrown(new IllegalStateException("boom"))
+                .build();
+        String json = layout.toSerializable(event);
+        assertTrue(json, json.contains(",\"context\":{\"") && json.contains("\"user\":\"42\"")
+                && json.contains("\"request\\\"id\":\"a\\nb\""));
+        assertTrue(json, json.contains(",\"exception\":\"java.lang.IllegalStateException: boom\\n\\tat "));
+
+        String withoutDetails = SumoJsonLayout.newBuilder().setIncludeContext(false).setIncludeStackTrace(false)
+                .build().toSerializable(event);
+        assertTrue(withoutDetails, withoutDetails.endsWith(
+                "\"message\":\"failed\",\"exception\":\"java.lang.IllegalStateException: boom\"}\n"));
+    }
+
+    @Test
+    public void encodesLargeEventsIntoDestination() {
+        char[] large = new char[300 * 1024];
+        Arrays.fill(large, 'x');
+        LogEvent event = event(new SimpleMessage(new String(large))).build();
+        ReusableByteBufferDestination destination = new ReusableByteBufferDestination();
+        layout.encode(event, destination);
+        assertArrayEquals(layout.toByteArray(event), Arrays.copyOf(destination.array(), destination.length()));
+        assertEquals("{\"timestamp\":\"2024-05-01T12:00:00.123Z\",\"level\":\"INFO\",\"logger\":\"com.example.App\","
+                + "\"thread\":\"main\",\"message\":\"small\"}\n", layout.toSerializable(event(new SimpleMessage("small")).build()));
+    }
+
+    @Test
+    public void encodesEventLoggedWhileFormattingAnother() {
+        final LogEvent inner = event(new SimpleMessage("inner")).build();
+        final String[] innerJson = new String[1];
+        // A message whose formatting logs through the same layout on the same thread
+        Message outer = new SimpleMessage("outer") {
+            @Override
+            public void formatTo(StringBuilder buffer) {
+                innerJson[0] = layout.toSerializable(inner);
+                super.formatTo(buffer);
+            }
+        };
+        String outerJson = layout.toSerializable(event(outer).build());
+        assertEquals(layout.toSerializable(inner), innerJson[0]);
+        assertTrue(outerJson, outerJson.startsWith("{\"timestamp\":\"2024-05-01T12:00:00.123Z\""));
+        assertTrue(outerJson, outerJson.endsWith("\"message\":\"outer\"}\n"));
+        assertFalse(outerJson, outerJson.contains("inner"));
+    }
+
+    @Test
+    public void startsAfreshAfterFormattingFails() {
+        Message failing = new SimpleMessage("failing") {
+            @Override
+            public void formatTo(StringBuilder buffer) {
+                throw new IllegalStateException("Cannot format");
+            }
+        };
+        try {
+            layout.toSerializable(event(failing).build());
+            fail("Formatting should have failed");
+        } catch (IllegalStateException expected) {
+            // The encoder is left cleared
+        }
+        assertEquals("{\"timestamp\":\"2024-05-01T12:00:00.123Z\",\"level\":\"INFO\",\"logger\":\"com.example.App\","
+                + "\"thread\":\"main\",\"message\":\"next\"}\n", layout.toSerializable(event(new SimpleMessage("next")).build()));
+    }
+
+    private static Log4jLogEvent.Builder event(Message message) {
+        return Log4jLogEvent.newBuilder()
+                .setTimeMillis(TIME)
+                .setLevel(Level.INFO)
+                .setLoggerName("com.example.App")
+                .setThreadName("main")
+                .setMessage(message);
+    }
+}
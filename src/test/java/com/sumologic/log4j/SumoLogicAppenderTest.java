@@ -25,16 +25,38 @@
  */
 package com.sumologic.log4j;
 
+import com.sumologic.log4j.metrics.AppenderMetrics;
+import com.sumologic.log4j.queue.FsyncPolicy;
+import com.sumologic.log4j.queue.OverflowPolicy;
+import com.sumologic.log4j.queue.QueueType;
+import com.sumologic.log4j.queue.WriteAheadLogBuffer;
+import com.sumologic.log4j.sender.Compression;
 import com.sumologic.log4j.server.AggregatingHttpHandler;
 import com.sumologic.log4j.server.MaterializedHttpRequest;
 import com.sumologic.log4j.server.MockHttpServer;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
 import org.apache.logging.log4j.core.layout.PatternLayout;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.apache.logging.log4j.util.SortedArrayStringMap;
 import org.junit.After;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.*;
@@ -46,6 +68,9 @@ public class SumoLogicAppenderTest {
 	private static final String testLocalhostUrl = "http://localhost:8080";
 	private static final String testAppenderName = "TestAppender";
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     private MockHttpServer server;
     private AggregatingHttpHandler handler;
 
@@ -101,7 +126,9 @@ public class SumoLogicAppenderTest {
         int numMessages = 5;
         for (int i = 0; i < numMessages; i ++) {
             loggerInTest.info("info " + i);
-            Thread.sleep(300);
+            // Each message is older than maxFlushInterval by the time the next one is logged
+            awaitExchanges(i + 1);
+            Thread.sleep(200);
         }
         assertEquals(numMessages, handler.getExchanges().size());
         for(MaterializedHttpRequest request: handler.getExchanges()) {
@@ -112,6 +139,760 @@ public class SumoLogicAppenderTest {
         }
     }
 
+    @Test
+    public void testFullBatchIsSentBeforeMaxFlushInterval() throws Exception {
+        SumoLogicAppender appender = SumoLogicAppender.newBuilder()
+                .setName(testAppenderName)
+                .setUrl("http://localhost:" + PORT)
+                .setMessagesPerRequest(10)
+                .setMaxFlushInterval(60000)
+                .setLayout(PatternLayout.newBuilder().withPattern("%m%n").build())
+                .build();
+        assertNotNull(appender);
+        appender.start();
+        for (int i = 0; i < 10; i++) {
+            appender.append(Log4jLogEvent.newBuilder()
+                    .setLevel(Level.INFO)
+                    .setMessage(new SimpleMessage("batched" + i))
+                    .build());
+        }
+        awaitExchanges(1);
+        assertTrue(appender.stop(1L, TimeUnit.SECONDS));
+        assertEquals(1, handler.getExchanges().size());
+        assertTrue(handler.getExchanges().get(0).getBody().startsWith("batched0"));
+    }
+
+    @Test
+    public void testRequestsAreSplitByMaxBytesPerRequest() throws Exception {
+        SumoLogicAppender appender = SumoLogicAppender.newBuilder()
+                .setName(testAppenderName)
+                .setUrl("http://localhost:" + PORT)
+                .setMessagesPerRequest(1000)
+                .setMaxBytesPerRequest(100)
+                .setMaxFlushInterval(60000)
+                .setFlushAllBeforeStopping(true)
+                .setLayout(PatternLayout.newBuilder().withPattern("%m%n").build())
+                .build();
+        assertNotNull(appender);
+        appender.start();
+        for (int i = 0; i < 10; i++) {
+            // About 20 bytes per message, including the line separator
+            appender.append(Log4jLogEvent.newBuilder()
+                    .setLevel(Level.INFO)
+                    .setMessage(new SimpleMessage(String.format("message-%011d", i)))
+                    .build());
+        }
+        awaitExchanges(1);
+        assertTrue(appender.stop(1L, TimeUnit.SECONDS));
+
+        int messages = 0;
+        for (MaterializedHttpRequest request : handler.getExchanges()) {
+            assertTrue(request.getBody().length() <= 100);
+            messages += request.getBody().split(System.lineSeparator()).length;
+        }
+        assertEquals(10, messages);
+    }
+
+    @Test
+    public void testGzipCompressedRequests() throws Exception {
+        assertCompressedRequest(Compression.GZIP);
+    }
+
+    @Test
+    public void testDeflateCompressedRequests() throws Exception {
+        assertCompressedRequest(Compression.DEFLATE);
+    }
+
+    private void assertCompressedRequest(Compression compression) throws Exception {
+        SumoLogicAppender appender = SumoLogicAppender.newBuilder()
+                .setName(testAppenderName)
+                .setUrl("http://localhost:" + PORT)
+                .setMessagesPerRequest(3)
+                .setCompression(compression)
+                .setLayout(PatternLayout.newBuilder().withPattern("%m%n").build())
+                .build();
+        assertNotNull(appender);
+        appender.start();
+        for (int i = 0; i < 3; i++) {
+            appender.append(Log4jLogEvent.newBuilder()
+                    .setLevel(Level.INFO)
+                    .setMessage(new SimpleMessage("compressed message " + i))
+                    .build());
+        }
+        awaitExchanges(1);
+        assertTrue(appender.stop(1L, TimeUnit.SECONDS));
+
+        assertEquals(1, handler.getExchanges().size());
+        MaterializedHttpRequest request = handler.getExchanges().get(0);
+        assertEquals(compression.getContentEncoding(), request.getHeaders().getFirst("Content-Encoding"));
+        assertEquals("compressed message 0" + System.lineSeparator() +
+                "compressed message 1" + System.lineSeparator() +
+                "compressed message 2" + System.lineSeparator(), request.getBody());
+    }
+
+    @Test
+    public void testConcurrentRequestsWithSenderThreads() throws Exception {
+        restartServerWithThreads(8);
+        handler.setResponseDelayMs(200);
+        SumoLogicAppender appender = SumoLogicAppender.newBuilder()
+                .setName(testAppenderName)
+                .setUrl("http://localhost:" + PORT)
+                .setMessagesPerRequest(1)
+                .setSenderThreads(4)
+                .setFlushAllBeforeStopping(true)
+                .setLayout(PatternLayout.newBuilder().withPattern("%m%n").build())
+                .build();
+        assertNotNull(appender);
+        appender.start();
+        for (int i = 0; i < 8; i++) {
+            appender.append(Log4jLogEvent.newBuilder()
+                    .setLevel(Level.INFO)
+                    .setMessage(new SimpleMessage("concurrent" + i))
+                    .build());
+        }
+        awaitExchanges(8);
+        assertTrue(appender.stop(1L, TimeUnit.SECONDS));
+
+        assertEquals(8, handler.getExchanges().size());
+        assertTrue(handler.getMaxConcurrentRequests() > 1);
+        assertTrue(handler.getMaxConcurrentRequests() <= 4);
+    }
+
+    @Test
+    public void testPreserveOrderSendsOneRequestAtATime() throws Exception {
+        restartServerWithThreads(8);
+        handler.setResponseDelayMs(50);
+        SumoLogicAppender appender = SumoLogicAppender.newBuilder()
+                .setName(testAppenderName)
+                .setUrl("http://localhost:" + PORT)
+                .setMessagesPerRequest(1)
+                .setSenderThreads(4)
+                .setMaxInFlightRequests(8)
+                .setPreserveOrder(true)
+                .setFlushAllBeforeStopping(true)
+                .setLayout(PatternLayout.newBuilder().withPattern("%m").build())
+                .build();
+        assertNotNull(appender);
+        appender.start();
+        for (int i = 0; i < 8; i++) {
+            appender.append(Log4jLogEvent.newBuilder()
+                    .setLevel(Level.INFO)
+                    .setMessage(new SimpleMessage("ordered" + i))
+                    .build());
+        }
+        awaitExchanges(8);
+        assertTrue(appender.stop(1L, TimeUnit.SECONDS));
+
+        StringBuilder expected = new StringBuilder();
+        StringBuilder actual = new StringBuilder();
+        for (int i = 0; i < 8; i++) {
+            expected.append("ordered").append(i);
+        }
+        for (MaterializedHttpRequest request : handler.getExchanges()) {
+            actual.append(request.getBody());
+        }
+        assertEquals(expected.toString(), actual.toString());
+        assertEquals(1, handler.getMaxConcurrentRequests());
+    }
+
+    @Test
+    public void testSpilledMessagesAreReplayedAfterOutage() throws Exception {
+        server.stop();
+        SumoLogicAppender appender = SumoLogicAppender.newBuilder()
+                .setName(testAppenderName)
+                .setUrl("http://localhost:" + PORT)
+                .setMessagesPerRequest(10)
+                .setMaxFlushInterval(100)
+                .setRetryInterval(100)
+                .setCircuitBreakerOpenInterval(100)
+                .setMaxQueueSizeBytes(1000)
+                .setSpilloverDirectory(folder.getRoot().getPath())
+                .setSpilloverHighWaterMark(0.5)
+                .setSpilloverReplayBytesPerSecond(0)
+                .setLayout(PatternLayout.newBuilder().withPattern("%m%n").build())
+                .build();
+        assertNotNull(appender);
+        appender.start();
+        // Far more than the queue holds while the collector is down
+        Set<String> expected = new HashSet<String>();
+        for (int i = 0; i < 500; i++) {
+            String message = "spilled" + i;
+            expected.add(message);
+            appender.append(Log4jLogEvent.newBuilder()
+                    .setLevel(Level.INFO)
+                    .setMessage(new SimpleMessage(message))
+                    .build());
+            if (i % 10 == 9) {
+                // Gives the spillover thread a chance to keep up, which appending does not wait for
+                Thread.sleep(5);
+            }
+        }
+        server = new MockHttpServer(PORT, handler);
+        server.start();
+
+        Set<String> received = new HashSet<String>();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (received.size() < expected.size() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+            received.clear();
+            for (MaterializedHttpRequest request : handler.getExchanges()) {
+                received.addAll(Arrays.asList(request.getBody().split(System.lineSeparator())));
+            }
+        }
+        assertTrue(appender.stop(1L, TimeUnit.SECONDS));
+        assertEquals(expected, received);
+    }
+
+    @Test
+    public void testWriteAheadLogIsSentAfterRestart() throws Exception {
+        server.stop();
+        SumoLogicAppender appender = newWriteAheadLogAppender();
+        for (int i = 0; i < 20; i++) {
+            appender.append(Log4jLogEvent.newBuilder()
+                    .setLevel(Level.INFO)
+                    .setMessage(new SimpleMessage("logged" + i))
+                    .build());
+        }
+        // Stopped while the collector is down, with messages queued and in flight
+        assertTrue(appender.stop(1L, TimeUnit.SECONDS));
+
+        server = new MockHttpServer(PORT, handler);
+        server.start();
+        appender = newWriteAheadLogAppender();
+        Set<String> received = new HashSet<String>();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (received.size() < 20 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+            received.clear();
+            for (MaterializedHttpRequest request : handler.getExchanges()) {
+                received.addAll(Arrays.asList(request.getBody().split(System.lineSeparator())));
+            }
+        }
+        assertTrue(appender.stop(1L, TimeUnit.SECONDS));
+        assertEquals(20, received.size());
+    }
+
+    @Test
+    public void testRejectedWriteAheadLogBatchDoesNotHoldBackLaterBatches() throws Exception {
+        handler.failNextRequests(1, 400);
+        SumoLogicAppender appender = newWriteAheadLogAppender();
+        appendAt(appender, Level.INFO, "rejected");
+        // Flushed on its own after maxFlushInterval
+        Thread.sleep(300);
+        for (int i = 0; i < 3; i++) {
+            appendAt(appender, Level.INFO, "accepted" + i);
+            Thread.sleep(200);
+        }
+        awaitExchanges(3);
+        assertTrue(appender.stop(1L, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("accepted0", "accepted1", "accepted2"), receivedMessages());
+
+        // The rejected batch was released along with the delivered ones, so nothing is left to resend
+        WriteAheadLogBuffer log = new WriteAheadLogBuffer(testAppenderName, folder.getRoot(), 1000000,
+                FsyncPolicy.NEVER, 0);
+        try {
+            assertEquals(0, log.size());
+        } finally {
+            log.close();
+        }
+    }
+
+    private SumoLogicAppender newWriteAheadLogAppender() {
+        SumoLogicAppender appender = SumoLogicAppender.newBuilder()
+                .setName(testAppenderName)
+                .setUrl("http://localhost:" + PORT)
+                .setMessagesPerRequest(5)
+                .setMaxFlushInterval(100)
+                .setRetryInterval(100)
+                .setWalDirectory(folder.getRoot().getPath())
+                .setLayout(PatternLayout.newBuilder().withPattern("%m%n").build())
+                .build();
+        assertNotNull(appender);
+        appender.start();
+        return appender;
+    }
+
+    @Test
+    public void testDropNewestOverflowPolicyKeepsQueuedMessages() throws Exception {
+        SumoLogicAppender appender = newOverflowAppender(OverflowPolicy.DROP_NEWEST);
+        for (int i = 0; i < 10; i++) {
+            appendAt(appender, Level.INFO, "message" + i);
+        }
+        assertTrue(appender.stop(1L, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("message0", "message1", "message2"), receivedMessages());
+    }
+
+    @Test
+    public void testOffHeapQueueAcceptsMessagesLargerThanItsSegments() throws Exception {
+        SumoLogicAppender appender = SumoLogicAppender.newBuilder()
+                .setName(testAppenderName)
+                .setUrl("http://localhost:" + PORT)
+                .setMessagesPerRequest(1000)
+                .setMaxFlushInterval(60000)
+                .setQueueType(QueueType.OFFHEAP)
+                .setOverflowPolicy(OverflowPolicy.DROP_NEWEST)
+                .setFlushAllBeforeStopping(true)
+                .setLayout(PatternLayout.newBuilder().withPattern("%m%n").build())
+                .build();
+        assertNotNull(appender);
+        appender.start();
+        // Several times the segment size of the default queue
+        String large = new String(new char[300000]).replace('\0', 'x');
+        appendAt(appender, Level.INFO, "before");
+        appendAt(appender, Level.INFO, large);
+        appendAt(appender, Level.INFO, "after");
+        assertEquals(0, appender.getMetrics().getDroppedMessages());
+        assertTrue(appender.stop(1L, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("before", large, "after"), receivedMessages());
+    }
+
+    @Test
+    public void testDropNewestOverflowPolicyAccountsForOffHeapSegments() throws Exception {
+        SumoLogicAppender appender = SumoLogicAppender.newBuilder()
+                .setName(testAppenderName)
+                .setUrl("http://localhost:" + PORT)
+                .setMessagesPerRequest(1000)
+                .setMaxFlushInterval(60000)
+                // Two segments of 4096 bytes
+                .setMaxQueueSizeBytes(8192)
+                .setQueueType(QueueType.OFFHEAP)
+                .setOverflowPolicy(OverflowPolicy.DROP_NEWEST)
+                .setFlushAllBeforeStopping(true)
+                .setLayout(PatternLayout.newBuilder().withPattern("%m").build())
+                .build();
+        assertNotNull(appender);
+        appender.start();
+        String first = new String(new char[3000]).replace('\0', 'a');
+        String second = new String(new char[3000]).replace('\0', 'b');
+        appendAt(appender, Level.INFO, first);
+        appendAt(appender, Level.INFO, second);
+        // Less than the unused capacity, but more than is left in either segment
+        appendAt(appender, Level.INFO, new String(new char[1500]).replace('\0', 'c'));
+        assertEquals(1, appender.getMetrics().getDroppedMessages());
+        assertTrue(appender.stop(1L, TimeUnit.SECONDS));
+        assertEquals(first + second, handler.getExchanges().get(0).getBody().replace(System.lineSeparator(), ""));
+    }
+
+    @Test
+    public void testLevelPriorityOverflowPolicyKeepsSevereMessages() throws Exception {
+        SumoLogicAppender appender = newOverflowAppender(OverflowPolicy.LEVEL_PRIORITY);
+        appendAt(appender, Level.ERROR, "error0000");
+        for (int i = 0; i < 10; i++) {
+            appendAt(appender, Level.DEBUG, "debug" + i);
+        }
+        assertTrue(appender.stop(1L, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("error0000", "debug8", "debug9"), receivedMessages());
+    }
+
+    @Test
+    public void testBlockOverflowPolicyWaitsForFlush() throws Exception {
+        SumoLogicAppender appender = SumoLogicAppender.newBuilder()
+                .setName(testAppenderName)
+                .setUrl("http://localhost:" + PORT)
+                .setMessagesPerRequest(1)
+                .setMaxQueueSizeBytes(30)
+                .setOverflowPolicy(OverflowPolicy.BLOCK)
+                .setOverflowTimeout(5000)
+                .setFlushAllBeforeStopping(true)
+                .setLayout(PatternLayout.newBuilder().withPattern("%m%n").build())
+                .build();
+        assertNotNull(appender);
+        appender.start();
+        for (int i = 0; i < 50; i++) {
+            appendAt(appender, Level.INFO, "blocked" + i);
+        }
+        assertTrue(appender.stop(1L, TimeUnit.SECONDS));
+        assertEquals(50, receivedMessages().size());
+    }
+
+    @Test
+    public void testPriorityMessagesAreFlushedRightAway() throws Exception {
+        SumoLogicAppender appender = SumoLogicAppender.newBuilder()
+                .setName(testAppenderName)
+                .setUrl("http://localhost:" + PORT)
+                .setMessagesPerRequest(100)
+                .setMaxFlushInterval(60000)
+                .setPriorityLevel(Level.ERROR)
+                .setFlushAllBeforeStopping(true)
+                .setLayout(PatternLayout.newBuilder().withPattern("%m%n").build())
+                .build();
+        assertNotNull(appender);
+        appender.start();
+        appendAt(appender, Level.INFO, "bulk0");
+        appendAt(appender, Level.ERROR, "urgent");
+        appendAt(appender, Level.INFO, "bulk1");
+        appendAt(appender, Level.FATAL, "fatal");
+        long start = System.currentTimeMillis();
+        awaitExchanges(1);
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        Thread.sleep(200);
+        List<String> flushed = receivedMessages();
+        assertTrue(appender.stop(1L, TimeUnit.SECONDS));
+
+        assertTrue(flushed.contains("urgent"));
+        assertTrue(flushed.contains("fatal"));
+        assertFalse(flushed.contains("bulk0"));
+        assertEquals(4, receivedMessages().size());
+    }
+
+    @Test
+    public void testMetricsCountQueuedAndSentMessages() throws Exception {
+        SumoLogicAppender appender = newOverflowAppender(OverflowPolicy.DROP_NEWEST);
+        ObjectName objectName = new ObjectName("com.sumologic.log4j:type=SumoLogicAppender,name=\"" + testAppenderName + "\"");
+        MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        assertTrue(mBeanServer.isRegistered(objectName));
+        for (int i = 0; i < 10; i++) {
+            appendAt(appender, Level.INFO, "message" + i);
+        }
+        AppenderMetrics metrics = appender.getMetrics();
+        assertEquals(3, metrics.getEnqueuedMessages());
+        assertEquals(7, metrics.getDroppedMessages());
+        assertEquals(3, metrics.getQueueSize());
+        assertEquals(3, mBeanServer.getAttribute(objectName, "QueueSize"));
+        assertTrue(appender.stop(1L, TimeUnit.SECONDS));
+
+        assertEquals(1, metrics.getBatchesSent());
+        assertEquals(0, metrics.getQueueSize());
+        assertEquals(Long.valueOf(1), metrics.getStatusCodeCounts().get(200));
+        assertFalse(mBeanServer.isRegistered(objectName));
+    }
+
+    @Test
+    public void testFailedBatchDoesNotHoldBackNewMessages() throws Exception {
+        handler.failNextRequests(1, 503);
+        handler.setFailureRetryAfter("2");
+        SumoLogicAppender appender = SumoLogicAppender.newBuilder()
+                .setName(testAppenderName)
+                .setUrl("http://localhost:" + PORT)
+                .setMessagesPerRequest(1)
+                .setMaxFlushInterval(10)
+                .setRetryInterval(100)
+                .setLayout(PatternLayout.newBuilder().withPattern("%m").build())
+                .build();
+        assertNotNull(appender);
+        appender.start();
+        appendAt(appender, Level.INFO, "failing");
+        AppenderMetrics metrics = appender.getMetrics();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (metrics.getRetryQueueSize() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        appendAt(appender, Level.INFO, "fresh");
+        while (handler.getExchanges().isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals("fresh", handler.getExchanges().get(0).getBody());
+        assertEquals(1, metrics.getRetryQueueSize());
+        assertTrue(metrics.getOldestRetryAgeMs() > 0);
+
+        deadline = System.currentTimeMillis() + 5000;
+        while (handler.getExchanges().size() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals("failing", handler.getExchanges().get(1).getBody());
+        assertEquals(0, metrics.getRetryQueueSize());
+        assertTrue(appender.stop(1L, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testFailedBatchIsRetriedInLineWhenRetryQueueIsFull() throws Exception {
+        handler.failNextRequests(2, 503);
+        handler.setFailureRetryAfter("1");
+        SumoLogicAppender appender = SumoLogicAppender.newBuilder()
+                .setName(testAppenderName)
+                .setUrl("http://localhost:" + PORT)
+                .setMessagesPerRequest(1)
+                .setMaxFlushInterval(10)
+                .setRetryInterval(100)
+                .setRetryQueueSizeBytes(1)
+                .setLayout(PatternLayout.newBuilder().withPattern("%m").build())
+                .build();
+        assertNotNull(appender);
+        appender.start();
+        appendAt(appender, Level.INFO, "queued");
+        AppenderMetrics metrics = appender.getMetrics();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (metrics.getRetryQueueSize() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        boolean retryThreadNamed = false;
+        while (!retryThreadNamed && System.currentTimeMillis() < deadline) {
+            for (Thread thread : Thread.getAllStackTraces().keySet()) {
+                retryThreadNamed |= thread.getName().equals("SumoRetrySender-" + testAppenderName);
+            }
+            Thread.sleep(10);
+        }
+        assertTrue(retryThreadNamed);
+        // Fails as well, and does not fit into the retry queue next to the first one
+        appendAt(appender, Level.INFO, "in line");
+
+        deadline = System.currentTimeMillis() + 10000;
+        while (handler.getExchanges().size() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(new HashSet<String>(Arrays.asList("queued", "in line")), new HashSet<String>(receivedMessages()));
+        assertTrue(appender.stop(1L, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testRepeatedMessagesAreCollapsed() throws Exception {
+        SumoLogicAppender appender = SumoLogicAppender.newBuilder()
+                .setName(testAppenderName)
+                .setUrl("http://localhost:" + PORT)
+                .setMessagesPerRequest(1000)
+                .setMaxFlushInterval(60000)
+                .setCollapseRepeatedWindow(60000)
+                .setFlushAllBeforeStopping(true)
+                .setLayout(PatternLayout.newBuilder().withPattern("%m%n").build())
+                .build();
+        assertNotNull(appender);
+        appender.start();
+        for (int i = 0; i < 100; i++) {
+            appendAt(appender, Level.WARN, "Connection refused");
+        }
+        appendAt(appender, Level.INFO, "Something else");
+        assertEquals(99, appender.getMetrics().getCollapsedMessages());
+        assertTrue(appender.stop(1L, TimeUnit.SECONDS));
+
+        assertEquals(Arrays.asList("Connection refused", "Something else",
+                "Message repeated 99 more times within 60000 ms: Connection refused"), receivedMessages());
+    }
+
+    @Test
+    public void testSourceMetadataIsResolvedPerEvent() throws Exception {
+        SumoLogicAppender appender = SumoLogicAppender.newBuilder()
+                .setName(testAppenderName)
+                .setUrl("http://localhost:" + PORT)
+                .setMessagesPerRequest(1000)
+                .setMaxFlushInterval(60000)
+                .setSourceName("mySource")
+                .setSourceCategory("${ctx:module:-other}/logs")
+                .setFlushAllBeforeStopping(true)
+                .setLayout(PatternLayout.newBuilder().withPattern("%m%n").build())
+                .build();
+        assertNotNull(appender);
+        appender.start();
+        appendWithModule(appender, "billing", "b1");
+        appendWithModule(appender, "search", "s1");
+        appendWithModule(appender, null, "o1");
+        appendWithModule(appender, "billing", "b2");
+        assertTrue(appender.stop(1L, TimeUnit.SECONDS));
+
+        List<MaterializedHttpRequest> requests = handler.getExchanges();
+        assertEquals(3, requests.size());
+        assertEquals("billing/logs", requests.get(0).getHeaders().getFirst("X-Sumo-Category"));
+        assertEquals("b1" + System.lineSeparator() + "b2" + System.lineSeparator(), requests.get(0).getBody());
+        assertEquals("search/logs", requests.get(1).getHeaders().getFirst("X-Sumo-Category"));
+        assertEquals("s1" + System.lineSeparator(), requests.get(1).getBody());
+        assertEquals("other/logs", requests.get(2).getHeaders().getFirst("X-Sumo-Category"));
+        for (MaterializedHttpRequest request : requests) {
+            assertEquals("mySource", request.getHeaders().getFirst("X-Sumo-Name"));
+        }
+    }
+
+    private void appendWithModule(SumoLogicAppender appender, String module, String message) {
+        SortedArrayStringMap contextData = new SortedArrayStringMap();
+        if (module != null) {
+            contextData.putValue("module", module);
+        }
+        appender.append(Log4jLogEvent.newBuilder()
+                .setLevel(Level.INFO)
+                .setContextData(contextData)
+                .setMessage(new SimpleMessage(message))
+                .build());
+    }
+
+    // Holds about three 10 character messages and flushes only when stopped
+    private SumoLogicAppender newOverflowAppender(OverflowPolicy overflowPolicy) {
+        SumoLogicAppender appender = SumoLogicAppender.newBuilder()
+                .setName(testAppenderName)
+                .setUrl("http://localhost:" + PORT)
+                .setMessagesPerRequest(1000)
+                .setMaxFlushInterval(60000)
+                .setMaxQueueSizeBytes(30)
+                .setOverflowPolicy(overflowPolicy)
+                .setFlushAllBeforeStopping(true)
+                .setLayout(PatternLayout.newBuilder().withPattern("%m%n").build())
+                .build();
+        assertNotNull(appender);
+        appender.start();
+        return appender;
+    }
+
+    @Test
+    public void testEventsAboveTheRateLimitAreSuppressed() throws Exception {
+        SumoLogicAppender appender = SumoLogicAppender.newBuilder()
+                .setName(testAppenderName)
+                .setUrl("http://localhost:" + PORT)
+                .setMessagesPerRequest(1000)
+                .setMaxFlushInterval(60000)
+                .setRateLimitPerSecond(0.01)
+                .setRateLimitBurst(5)
+                .setRateLimitKey("storm")
+                .setFlushAllBeforeStopping(true)
+                .setLayout(PatternLayout.newBuilder().withPattern("%m%n").build())
+                .build();
+        assertNotNull(appender);
+        appender.start();
+        for (int i = 0; i < 20; i++) {
+            appendAt(appender, Level.WARN, "Message " + i);
+        }
+        assertEquals(15, appender.getMetrics().getRateLimitedMessages());
+        assertTrue(appender.stop(1L, TimeUnit.SECONDS));
+
+        assertEquals(Arrays.asList("Message 0", "Message 1", "Message 2", "Message 3", "Message 4",
+                "15 events suppressed by rate limit for storm in the last 60000 ms"), receivedMessages());
+    }
+
+    @Test
+    public void testAppendersShareFlushThreadsAndConnections() throws Exception {
+        List<SumoLogicAppender> appenders = new ArrayList<SumoLogicAppender>();
+        for (int i = 0; i < 5; i++) {
+            SumoLogicAppender appender = SumoLogicAppender.newBuilder()
+                    .setName("Shared" + i)
+                    .setUrl("http://localhost:" + PORT)
+                    .setMessagesPerRequest(10)
+                    .setMaxFlushInterval(50)
+                    .setShareResources(true)
+                    .setSharedFlushThreads(2)
+                    .setFlushAllBeforeStopping(true)
+                    .setLayout(PatternLayout.newBuilder().withPattern("%m%n").build())
+                    .setJmxEnabled(false)
+                    .build();
+            assertNotNull(appender);
+            appender.start();
+            appenders.add(appender);
+        }
+        for (int i = 0; i < 25; i++) {
+            // Full batches for some appenders, a flush after the interval for the others
+            appendAt(appenders.get(i % appenders.size()), Level.INFO, "message" + i);
+        }
+        long deadline = System.currentTimeMillis() + 10000;
+        while (receivedMessages().size() < 25 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(25, receivedMessages().size());
+        int flushThreads = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            assertFalse(thread.getName(), thread.getName().startsWith("SumoBufferFlusher-Shared"));
+            if (thread.getName().startsWith("SumoFlushScheduler-shared")) {
+                flushThreads++;
+            }
+        }
+        assertTrue(flushThreads >= 1 && flushThreads <= 2);
+
+        for (SumoLogicAppender appender : appenders) {
+            appendAt(appender, Level.INFO, "last");
+            assertTrue(appender.stop(1L, TimeUnit.SECONDS));
+        }
+        assertEquals(30, receivedMessages().size());
+        // The last appender to stop shut the shared threads down
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            assertFalse(thread.getName(), thread.getName().startsWith("SumoFlushScheduler-shared") && thread.isAlive());
+        }
+    }
+
+    @Test
+    public void testExperimentalNioTransportIsNotTheDefault() throws Exception {
+        SumoLogicAppender appender = SumoLogicAppender.newBuilder()
+                .setName(testAppenderName)
+                .setUrl("http://localhost:" + PORT)
+                .setMessagesPerRequest(1)
+                .setFlushAllBeforeStopping(true)
+                .setLayout(PatternLayout.newBuilder().withPattern("%m%n").build())
+                .build();
+        assertNotNull(appender);
+        appender.start();
+        appendAt(appender, Level.INFO, "blocking");
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            assertFalse(thread.getName(), thread.getName().startsWith("SumoNioSender-" + testAppenderName));
+        }
+        assertTrue(appender.stop(1L, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonList("blocking"), receivedMessages());
+    }
+
+    @Test
+    public void testLazyStartQueuesEventsUntilTheSenderIsReady() throws Exception {
+        SumoLogicAppender appender = SumoLogicAppender.newBuilder()
+                .setName("LazyStart")
+                .setUrl("http://localhost:" + PORT)
+                .setMessagesPerRequest(10)
+                .setMaxFlushInterval(50)
+                .setLazyStart(true)
+                .setPrewarmConnections(true)
+                .setFlushAllBeforeStopping(true)
+                .setLayout(PatternLayout.newBuilder().withPattern("%m%n").build())
+                .setJmxEnabled(false)
+                .build();
+        assertNotNull(appender);
+        appender.start();
+        // Appended while the sender may still be initializing in the background
+        for (int i = 0; i < 5; i++) {
+            appendAt(appender, Level.INFO, "message" + i);
+        }
+        long deadline = System.currentTimeMillis() + 10000;
+        while (receivedMessages().size() < 5 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(Arrays.asList("message0", "message1", "message2", "message3", "message4"),
+                receivedMessages());
+        assertTrue(appender.stop(1L, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testFailedLazyStartIsNotFlushedWhenStopping() throws Exception {
+        SumoLogicAppender appender = SumoLogicAppender.newBuilder()
+                .setName("FailedLazyStart")
+                .setUrl("http://localhost:" + PORT)
+                .setMessagesPerRequest(10)
+                .setMaxFlushInterval(50)
+                .setLazyStart(true)
+                // Fails to compile while the sender initializes
+                .setRetryableHttpCodeRegex("[")
+                .setFlushAllBeforeStopping(true)
+                .setLayout(PatternLayout.newBuilder().withPattern("%m%n").build())
+                .build();
+        assertNotNull(appender);
+        ObjectName objectName = new ObjectName("com.sumologic.log4j:type=SumoLogicAppender,name=\"FailedLazyStart\"");
+        MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        appender.start();
+        for (int i = 0; i < 5; i++) {
+            appendAt(appender, Level.INFO, "message" + i);
+        }
+        assertTrue(appender.stop(1L, TimeUnit.SECONDS));
+        assertEquals(0, handler.getExchanges().size());
+        // Neither the flushers that never started nor the sender that never initialized cut stopping short
+        assertFalse(mBeanServer.isRegistered(objectName));
+    }
+
+    private void appendAt(SumoLogicAppender appender, Level level, String message) {
+        appender.append(Log4jLogEvent.newBuilder()
+                .setLevel(level)
+                .setMessage(new SimpleMessage(message))
+                .build());
+    }
+
+    private List<String> receivedMessages() {
+        List<String> messages = new ArrayList<String>();
+        for (MaterializedHttpRequest request : handler.getExchanges()) {
+            messages.addAll(Arrays.asList(request.getBody().split(System.lineSeparator())));
+        }
+        return messages;
+    }
+
+    private void restartServerWithThreads(int threads) throws Exception {
+        server.stop();
+        server = new MockHttpServer(PORT, handler).withThreads(threads);
+        server.start();
+    }
+
+    private void awaitExchanges(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (handler.getExchanges().size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
     @Test
     public void setupAppenderWithoutRequiredFields() {
         SumoLogicAppender appender = SumoLogicAppender.newBuilder().build();
@@ -167,4 +948,44 @@ public class SumoLogicAppenderTest {
 		assertNull(appender.getFilter());
 		assertTrue(appender.stop(1L, TimeUnit.SECONDS));
 	}
+
+	@Test
+	public void garbageFreeAppendDoesNotAllocateInSteadyState() {
+		SumoLogicAppender appender = SumoLogicAppender.newBuilder()
+				.setName(testAppenderName)
+				.setUrl(testLocalhostUrl)
+				.setMessagesPerRequest(Integer.MAX_VALUE)
+				.setMaxFlushInterval(Long.MAX_VALUE / 2)
+				.setMaxQueueSizeBytes(64 * 1024)
+				.setGarbageFree(true)
+				.setLayout(PatternLayout.newBuilder().withPattern("%-5p %c - %m%n").build())
+				.build();
+		assertNotNull(appender);
+		LogEvent event = Log4jLogEvent.newBuilder()
+				.setLoggerName("GarbageFreeTest")
+				.setLevel(Level.INFO)
+				.setMessage(new SimpleMessage("steady state message"))
+				.build();
+
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long threadId = Thread.currentThread().getId();
+		// Warm up thread locals, the ring buffer and eviction of the oldest records
+		for (int i = 0; i < 100000; i++) {
+			appender.append(event);
+		}
+		// JIT compilation can allocate now and then, so keep the best of several rounds. Any per-event
+		// allocation would show up in every round as at least one object per event.
+		int iterations = 10000;
+		long minAllocated = Long.MAX_VALUE;
+		for (int round = 0; round < 10; round++) {
+			long before = threads.getThreadAllocatedBytes(threadId);
+			for (int i = 0; i < iterations; i++) {
+				appender.append(event);
+			}
+			minAllocated = Math.min(minAllocated, threads.getThreadAllocatedBytes(threadId) - before);
+		}
+
+		assertTrue(appender.stop(1L, TimeUnit.SECONDS));
+		assertTrue("Allocated " + minAllocated + " bytes for " + iterations + " events", minAllocated < iterations);
+	}
 }
@@ -0,0 +1,68 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j.aggregation;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MessageBatchTest {
+
+    @Test
+    public void readsMessagesInPlace() {
+        List<String> messages = Arrays.asList("skipped\n", "first\n", "", "sécond\n", "third\n");
+        MessageBatch batch = new MessageBatch(messages, 1, 5);
+        String expected = "first\nsécond\nthird\n";
+        assertEquals(expected.length(), batch.length());
+        for (int i = 0; i < expected.length(); i++) {
+            assertEquals(expected.charAt(i), batch.charAt(i));
+        }
+        // Out of order reads
+        assertEquals('d', batch.charAt(expected.length() - 2));
+        assertEquals('f', batch.charAt(0));
+        assertEquals('é', batch.charAt(7));
+        assertEquals(expected, batch.toString());
+        assertEquals("sécond", batch.subSequence(6, 12).toString());
+        assertEquals(4, batch.parts());
+        assertEquals("sécond\n", batch.part(2));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void rejectsReadsPastTheEnd() {
+        new MessageBatch(Arrays.asList("a", "b"), 0, 2).charAt(2);
+    }
+
+    @Test
+    public void emptyBatch() {
+        MessageBatch batch = new MessageBatch(Arrays.asList("a"), 1, 1);
+        assertEquals(0, batch.length());
+        assertEquals("", batch.toString());
+    }
+}
@@ -0,0 +1,142 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j.aggregation;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class RateLimiterTest {
+
+    private final List<LogEvent> summaries = Collections.synchronizedList(new ArrayList<LogEvent>());
+    private final RateLimiter.Output output = new RateLimiter.Output() {
+        @Override
+        public void append(LogEvent summary) {
+            summaries.add(summary);
+        }
+    };
+    private final RateLimiter.KeySelector byLogger = new RateLimiter.KeySelector() {
+        @Override
+        public String keyOf(LogEvent event) {
+            return event.getLoggerName();
+        }
+    };
+
+    @Test
+    public void allowsBurstsPerKeyAndSummarizesSuppressedEvents() {
+        // One event per minute, so that nothing is refilled while the test runs
+        RateLimiter limiter = new RateLimiter("test", 1.0 / 60, 3, 0, 60000, byLogger, output);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(limiter.tryAcquire(event("a")));
+        }
+        assertFalse(limiter.tryAcquire(event("a")));
+        assertFalse(limiter.tryAcquire(event("a")));
+        assertTrue(limiter.tryAcquire(event("b")));
+
+        limiter.stop();
+        assertEquals(1, summaries.size());
+        LogEvent summary = summaries.get(0);
+        assertEquals("2 events suppressed by rate limit for a in the last 60000 ms",
+                summary.getMessage().getFormattedMessage());
+        assertEquals("a", summary.getLoggerName());
+        assertEquals(Level.WARN, summary.getLevel());
+    }
+
+    @Test
+    public void refillsAtTheConfiguredRate() throws Exception {
+        RateLimiter limiter = new RateLimiter("test", 20, 1, 0, 60000, byLogger, output);
+        assertTrue(limiter.tryAcquire(event("a")));
+        assertFalse(limiter.tryAcquire(event("a")));
+        Thread.sleep(100);
+        assertTrue(limiter.tryAcquire(event("a")));
+    }
+
+    @Test
+    public void samplesEventsAboveTheLimit() {
+        RateLimiter limiter = new RateLimiter("test", 1.0 / 60, 1, 0.5, 60000, byLogger, output);
+        int accepted = 0;
+        for (int i = 0; i < 1000; i++) {
+            if (limiter.tryAcquire(event("a"))) {
+                accepted++;
+            }
+        }
+        assertTrue("accepted " + accepted, accepted > 400 && accepted < 600);
+    }
+
+    @Test
+    public void neverAcceptsMoreThanTheBurstFromConcurrentThreads() throws Exception {
+        final RateLimiter limiter = new RateLimiter("test", 1.0 / 60, 100, 0, 60000, byLogger, output);
+        final AtomicInteger accepted = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 4; t++) {
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < 1000; i++) {
+                        if (limiter.tryAcquire(event("a"))) {
+                            accepted.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(100, accepted.get());
+        limiter.stop();
+        assertEquals("3900 events suppressed by rate limit for a in the last 60000 ms",
+                summaries.get(0).getMessage().getFormattedMessage());
+    }
+
+    private static LogEvent event(String logger) {
+        return Log4jLogEvent.newBuilder()
+                .setLoggerName(logger)
+                .setLevel(Level.INFO)
+                .setMessage(new SimpleMessage("message"))
+                .build();
+    }
+}
@@ -0,0 +1,142 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j.aggregation;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.ParameterizedMessage;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class RepeatedMessageCollapserTest {
+
+    private final List<LogEvent> summaries = Collections.synchronizedList(new ArrayList<LogEvent>());
+    private final RepeatedMessageCollapser.Output output = new RepeatedMessageCollapser.Output() {
+        @Override
+        public void append(LogEvent summary) {
+            summaries.add(summary);
+        }
+    };
+
+    @Test
+    public void suppressesRepeatsOfTheSameTemplateWithinTheWindow() throws Exception {
+        RepeatedMessageCollapser collapser = new RepeatedMessageCollapser("test", 200, 100, output);
+        assertTrue(collapser.accept(event("a", Level.WARN, "Connection to {} refused", "host1")));
+        assertFalse(collapser.accept(event("a", Level.WARN, "Connection to {} refused", "host2")));
+        assertFalse(collapser.accept(event("a", Level.WARN, "Connection to {} refused", "host1")));
+        // Another logger or level is another fingerprint
+        assertTrue(collapser.accept(event("b", Level.WARN, "Connection to {} refused", "host1")));
+        assertTrue(collapser.accept(event("a", Level.ERROR, "Connection to {} refused", "host1")));
+        assertTrue(summaries.isEmpty());
+
+        Thread.sleep(250);
+        assertTrue(collapser.accept(event("a", Level.WARN, "Connection to {} refused", "host3")));
+        assertEquals(1, summaries.size());
+        LogEvent summary = summaries.get(0);
+        assertEquals("Message repeated 2 more times within 200 ms: Connection to host1 refused",
+                summary.getMessage().getFormattedMessage());
+        assertEquals("a", summary.getLoggerName());
+        assertEquals(Level.WARN, summary.getLevel());
+    }
+
+    @Test
+    public void summarizesEvictedAndOpenWindows() {
+        RepeatedMessageCollapser collapser = new RepeatedMessageCollapser("test", 60000, 1, output);
+        assertTrue(collapser.accept(event("a", Level.INFO, "first")));
+        assertFalse(collapser.accept(event("a", Level.INFO, "first")));
+        assertTrue(collapser.accept(event("a", Level.INFO, "second")));
+        assertEquals(1, summaries.size());
+        assertFalse(collapser.accept(event("a", Level.INFO, "second")));
+        assertFalse(collapser.accept(event("a", Level.INFO, "second")));
+
+        collapser.stop();
+        assertEquals(2, summaries.size());
+        assertEquals("Message repeated 2 more times within 60000 ms: second",
+                summaries.get(1).getMessage().getFormattedMessage());
+    }
+
+    @Test
+    public void emitsSummariesOfPassedWindowsInTheBackground() throws Exception {
+        RepeatedMessageCollapser collapser = new RepeatedMessageCollapser("test", 50, 100, output);
+        collapser.start();
+        try {
+            assertTrue(collapser.accept(event("a", Level.INFO, "storm")));
+            assertFalse(collapser.accept(event("a", Level.INFO, "storm")));
+            long deadline = System.currentTimeMillis() + 5000;
+            while (summaries.isEmpty() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(1, summaries.size());
+        } finally {
+            collapser.stop();
+        }
+        assertEquals(1, summaries.size());
+    }
+
+    @Test
+    public void countsEveryRepeatFromConcurrentThreads() throws Exception {
+        final RepeatedMessageCollapser collapser = new RepeatedMessageCollapser("test", 60000, 100, output);
+        final AtomicInteger accepted = new AtomicInteger();
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 10000; i++) {
+                        if (collapser.accept(event("a", Level.WARN, "Connection to {} refused", "host" + i))) {
+                            accepted.incrementAndGet();
+                        }
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        collapser.stop();
+        assertEquals(1, accepted.get());
+        assertEquals(1, summaries.size());
+        assertEquals("Message repeated 79999 more times within 60000 ms: Connection to host0 refused",
+                summaries.get(0).getMessage().getFormattedMessage());
+    }
+
+    private static LogEvent event(String logger, Level level, String format, Object... parameters) {
+        return Log4jLogEvent.newBuilder()
+                .setLoggerName(logger)
+                .setLevel(level)
+                .setMessage(new ParameterizedMessage(format, parameters))
+                .build();
+    }
+}
@@ -0,0 +1,68 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j.aggregation;
+
+import com.sumologic.log4j.sender.SourceMetadata;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class SourceRoutingTest {
+
+    @Test
+    public void groupsByPrefixInOrderOfFirstMessage() {
+        String a = SourceRouting.prefix("name", "a", null);
+        String b = SourceRouting.prefix(null, "b", "host");
+        Map<SourceMetadata, List<String>> groups = new SourceRouting().group(
+                Arrays.asList(a + "1\n", b + "2\n", a + "3\n", "plain\n"));
+
+        Iterator<Map.Entry<SourceMetadata, List<String>>> entries = groups.entrySet().iterator();
+        Map.Entry<SourceMetadata, List<String>> first = entries.next();
+        assertEquals(new SourceMetadata("name", "a", null), first.getKey());
+        assertEquals(Arrays.asList("1\n", "3\n"), first.getValue());
+        Map.Entry<SourceMetadata, List<String>> second = entries.next();
+        assertEquals(new SourceMetadata(null, "b", "host"), second.getKey());
+        assertEquals(Arrays.asList("2\n"), second.getValue());
+        Map.Entry<SourceMetadata, List<String>> third = entries.next();
+        assertNull(third.getKey());
+        assertEquals(Arrays.asList("plain\n"), third.getValue());
+        assertFalse(entries.hasNext());
+    }
+
+    @Test
+    public void separatorsInValuesDoNotBreakThePrefix() {
+        String prefix = SourceRouting.prefix("a\u001fb", "c\u001ed", "");
+        Map<SourceMetadata, List<String>> groups = new SourceRouting().group(Arrays.asList(prefix + "message"));
+        assertEquals(new SourceMetadata("a b", "c d", null), groups.keySet().iterator().next());
+        assertEquals(Arrays.asList("message"), groups.values().iterator().next());
+    }
+}
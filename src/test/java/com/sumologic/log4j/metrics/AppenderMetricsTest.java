@@ -0,0 +1,190 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j.metrics;
+
+import com.sumologic.http.queue.CostBoundedConcurrentQueue;
+import com.sumologic.log4j.queue.ByteArrayRingBuffer;
+import com.sumologic.log4j.queue.CostAwareFifoBuffer;
+import com.sumologic.log4j.sender.CircuitBreaker;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class AppenderMetricsTest {
+
+    private static final CostBoundedConcurrentQueue.CostAssigner<String> LENGTH =
+            new CostBoundedConcurrentQueue.CostAssigner<String>() {
+                @Override
+                public long cost(String e) {
+                    return e.length();
+                }
+            };
+
+    @Test
+    public void recordsHistogramsAndStatusCodes() {
+        AppenderMetrics metrics = new AppenderMetrics("test");
+        metrics.batchSent(1, 10);
+        metrics.batchSent(7, 70);
+        metrics.batchSent(20000, 200000);
+        metrics.requestCompleted(200, TimeUnit.MILLISECONDS.toNanos(3));
+        metrics.requestCompleted(503, TimeUnit.MILLISECONDS.toNanos(30));
+        metrics.requestCompleted(200, TimeUnit.SECONDS.toNanos(30));
+        metrics.retried();
+
+        assertEquals(3, metrics.getBatchesSent());
+        assertEquals(200080, metrics.getBatchBytesSent());
+        long[] batchSizes = metrics.getBatchSizeCounts();
+        assertEquals(metrics.getBatchSizeUpperBounds().length + 1, batchSizes.length);
+        assertEquals(1, batchSizes[0]);
+        assertEquals(1, batchSizes[1]);
+        assertEquals(1, batchSizes[batchSizes.length - 1]);
+        long[] latencies = metrics.getRequestLatencyCounts();
+        assertEquals(1, latencies[0]);
+        assertEquals(1, latencies[3]);
+        assertEquals(1, latencies[latencies.length - 1]);
+        assertEquals(Long.valueOf(2), metrics.getStatusCodeCounts().get(200));
+        assertEquals(Long.valueOf(1), metrics.getStatusCodeCounts().get(503));
+        assertEquals(1, metrics.getRetries());
+    }
+
+    @Test
+    public void queuesReportEvictions() {
+        AppenderMetrics metrics = new AppenderMetrics("test");
+        CostAwareFifoBuffer<String> fifo = new CostAwareFifoBuffer<String>(10, LENGTH);
+        fifo.setEvictionListener(metrics);
+        fifo.add("aaaa");
+        fifo.add("bbbb");
+        fifo.add("cccc");
+        assertEquals(1, metrics.getEvictedMessages());
+        assertEquals(4, metrics.getEvictedBytes());
+
+        ByteArrayRingBuffer ring = new ByteArrayRingBuffer(16);
+        ring.setEvictionListener(metrics);
+        byte[] message = "abcd".getBytes(StandardCharsets.UTF_8);
+        ring.add(message, 0, message.length);
+        ring.add(message, 0, message.length);
+        ring.add(message, 0, message.length);
+        assertEquals(2, metrics.getEvictedMessages());
+        assertEquals(12, metrics.getEvictedBytes());
+    }
+
+    @Test
+    public void forwardsToListenersAndReadsQueueGauge() {
+        AppenderMetrics metrics = new AppenderMetrics("test");
+        final AtomicLong enqueued = new AtomicLong();
+        MetricsListener listener = new MetricsListener() {
+            @Override
+            public void enqueued(long bytes) {
+                enqueued.addAndGet(bytes);
+            }
+
+            @Override
+            public void dropped(long bytes) {
+            }
+
+            @Override
+            public void collapsed() {
+            }
+
+            @Override
+            public void rateLimited() {
+            }
+
+            @Override
+            public void batchSent(int messages, long bytes) {
+            }
+
+            @Override
+            public void requestCompleted(int statusCode, long latencyNanos) {
+            }
+
+            @Override
+            public void retried() {
+            }
+
+            @Override
+            public void circuitBreakerStateChanged(CircuitBreaker.State state) {
+            }
+
+            @Override
+            public void evicted(int messages, long bytes) {
+            }
+        };
+        metrics.addListener(listener);
+        metrics.enqueued(5);
+        metrics.removeListener(listener);
+        metrics.enqueued(7);
+        metrics.dropped(3);
+        assertEquals(5, enqueued.get());
+        assertEquals(2, metrics.getEnqueuedMessages());
+        assertEquals(12, metrics.getEnqueuedBytes());
+        assertEquals(1, metrics.getDroppedMessages());
+        assertEquals(3, metrics.getDroppedBytes());
+
+        assertEquals(0, metrics.getQueueSize());
+        final CostAwareFifoBuffer<String> queue = new CostAwareFifoBuffer<String>(100, LENGTH);
+        queue.add("queued");
+        metrics.setQueueGauge(new AppenderMetrics.QueueGauge() {
+            @Override
+            public int size() {
+                return queue.size();
+            }
+
+            @Override
+            public long bytes() {
+                return queue.cost();
+            }
+        });
+        assertEquals(1, metrics.getQueueSize());
+        assertEquals(6, metrics.getQueueBytes());
+    }
+
+    @Test
+    public void replacedAppenderDoesNotUnregisterMBeanOfItsReplacement() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName objectName = new ObjectName("com.sumologic.log4j:type=SumoLogicAppender,name=\"replaced\"");
+        AppenderMetrics old = new AppenderMetrics("replaced");
+        AppenderMetrics replacement = new AppenderMetrics("replaced");
+        old.registerMBean();
+        replacement.registerMBean();
+        replacement.retried();
+
+        old.unregisterMBean();
+        assertTrue(server.isRegistered(objectName));
+        assertEquals(1L, server.getAttribute(objectName, "Retries"));
+
+        replacement.unregisterMBean();
+        assertFalse(server.isRegistered(objectName));
+    }
+}
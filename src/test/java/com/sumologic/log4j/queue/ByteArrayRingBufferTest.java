@@ -0,0 +1,84 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.sumologic.log4j.queue;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ByteArrayRingBufferTest {
+
+    @Test
+    public void drainsRecordsInOrder() {
+        ByteArrayRingBuffer buffer = new ByteArrayRingBuffer(1000);
+        buffer.add("first\n");
+        buffer.add("second\n");
+        byte[] third = "third\n".getBytes(StandardCharsets.UTF_8);
+        buffer.add(third, 0, third.length);
+        assertEquals(3, buffer.size());
+
+        List<String> drained = new ArrayList<String>();
+        assertEquals(2, buffer.drainTo(drained, 2));
+        assertEquals(Arrays.asList("first\n", "second\n"), drained);
+        assertEquals(1, buffer.size());
+    }
+
+    @Test
+    public void accountsForEncodedBytes() {
+        ByteArrayRingBuffer buffer = new ByteArrayRingBuffer(1000);
+        buffer.add("héllo");
+        assertEquals(ByteArrayRingBuffer.HEADER_BYTES + 6, buffer.cost());
+    }
+
+    @Test
+    public void evictsOldestWhenFullAndWrapsAround() {
+        // Room for three records of 6 bytes (header + 2 byte payload)
+        ByteArrayRingBuffer buffer = new ByteArrayRingBuffer(20);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(buffer.add("m" + i));
+        }
+        assertEquals(3, buffer.size());
+        assertTrue(buffer.cost() <= 20);
+
+        List<String> drained = new ArrayList<String>();
+        buffer.drainTo(drained, 10);
+        assertEquals(Arrays.asList("m7", "m8", "m9"), drained);
+        assertEquals(0, buffer.cost());
+    }
+
+    @Test
+    public void rejectsRecordsLargerThanCapacity() {
+        ByteArrayRingBuffer buffer = new ByteArrayRingBuffer(10);
+        buffer.add("ok");
+        assertFalse(buffer.add("this record does not fit"));
+        assertEquals(1, buffer.size());
+    }
+}
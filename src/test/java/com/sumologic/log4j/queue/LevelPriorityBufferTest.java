@@ -0,0 +1,99 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.sumologic.log4j.queue;
+
+import com.sumologic.http.queue.CostBoundedConcurrentQueue;
+import org.apache.logging.log4j.Level;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class LevelPriorityBufferTest {
+
+    private static final CostBoundedConcurrentQueue.CostAssigner<String> LENGTH =
+            new CostBoundedConcurrentQueue.CostAssigner<String>() {
+                @Override
+                public long cost(String e) {
+                    return e.length();
+                }
+            };
+
+    @Test
+    public void drainsInInsertionOrderAcrossLevels() {
+        LevelPriorityBuffer buffer = new LevelPriorityBuffer(100, LENGTH);
+        buffer.add("d1", Level.DEBUG);
+        buffer.add("e1", Level.ERROR);
+        buffer.add("i1", Level.INFO);
+        buffer.add("e2", Level.ERROR);
+        List<String> drained = new ArrayList<String>();
+        assertEquals(4, buffer.drainTo(drained, 10));
+        assertEquals(Arrays.asList("d1", "e1", "i1", "e2"), drained);
+        assertEquals(0, buffer.cost());
+    }
+
+    @Test
+    public void evictsLeastSevereMessagesFirst() {
+        LevelPriorityBuffer buffer = new LevelPriorityBuffer(8, LENGTH);
+        buffer.add("e1", Level.ERROR);
+        buffer.add("d1", Level.DEBUG);
+        buffer.add("i1", Level.INFO);
+        buffer.add("d2", Level.DEBUG);
+        assertTrue(buffer.add("w1", Level.WARN));
+        assertTrue(buffer.add("w2", Level.WARN));
+        List<String> drained = new ArrayList<String>();
+        buffer.drainTo(drained, 10);
+        assertEquals(Arrays.asList("e1", "i1", "w1", "w2"), drained);
+    }
+
+    @Test
+    public void dropsMessagesLessSevereThanEverythingQueued() {
+        LevelPriorityBuffer buffer = new LevelPriorityBuffer(4, LENGTH);
+        buffer.add("e1", Level.ERROR);
+        buffer.add("e2", Level.ERROR);
+        assertFalse(buffer.add("d1", Level.DEBUG));
+        assertTrue(buffer.add("f1", Level.FATAL));
+        List<String> drained = new ArrayList<String>();
+        buffer.drainTo(drained, 10);
+        assertEquals(Arrays.asList("e2", "f1"), drained);
+    }
+
+    @Test
+    public void accountsCostPerLevel() {
+        LevelPriorityBuffer buffer = new LevelPriorityBuffer(100, LENGTH);
+        buffer.add("error", Level.ERROR);
+        buffer.add("debug!", Level.DEBUG);
+        buffer.add("more debug", Level.DEBUG);
+        assertEquals(5, buffer.cost(Level.ERROR));
+        assertEquals(16, buffer.cost(Level.DEBUG));
+        assertEquals(0, buffer.cost(Level.INFO));
+        assertEquals(21, buffer.cost());
+        assertEquals(3, buffer.size());
+    }
+}
@@ -0,0 +1,127 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.sumologic.log4j.queue;
+
+import com.sumologic.http.queue.CostBoundedConcurrentQueue;
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class LockFreeRingBufferTest {
+
+    private static final CostBoundedConcurrentQueue.CostAssigner<String> LENGTH = new CostBoundedConcurrentQueue.CostAssigner<String>() {
+        @Override
+        public long cost(String e) {
+            return e.length();
+        }
+    };
+
+    @Test
+    public void evictsOldestWhenOverCapacity() {
+        LockFreeRingBuffer<String> buffer = new LockFreeRingBuffer<String>(6, 16, LENGTH);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(buffer.add("m" + i));
+        }
+        assertEquals(3, buffer.size());
+        assertEquals(6, buffer.cost());
+
+        List<String> drained = new ArrayList<String>();
+        buffer.drainTo(drained, 10);
+        assertEquals(Arrays.asList("m2", "m3", "m4"), drained);
+        assertEquals(0, buffer.cost());
+    }
+
+    @Test
+    public void evictsOldestWhenOutOfSlots() {
+        LockFreeRingBuffer<String> buffer = new LockFreeRingBuffer<String>(1000, 4, LENGTH);
+        for (int i = 0; i < 6; i++) {
+            buffer.add("m" + i);
+        }
+        List<String> drained = new ArrayList<String>();
+        buffer.drainTo(drained, 10);
+        assertEquals(Arrays.asList("m2", "m3", "m4", "m5"), drained);
+    }
+
+    @Test
+    public void dropsEntryWhenOldestSlotIsNeverPublished() throws Exception {
+        LockFreeRingBuffer<String> buffer = new LockFreeRingBuffer<String>(1000, 2, LENGTH);
+        assertTrue(buffer.add("m0"));
+        // A producer claims the second slot and stalls before publishing its entry
+        Field tail = LockFreeRingBuffer.class.getDeclaredField("tail");
+        tail.setAccessible(true);
+        ((AtomicLong) tail.get(buffer)).incrementAndGet();
+        // Evicts m0 and takes its slot
+        assertTrue(buffer.add("m1"));
+        // Nothing can be evicted until the stalled producer publishes
+        assertFalse(buffer.add("m2"));
+        assertEquals(2, buffer.cost());
+    }
+
+    @Test
+    public void deliversEveryMessageOnceWithConcurrentProducers() throws Exception {
+        final int producers = 8;
+        final int messagesPerProducer = 20000;
+        final LockFreeRingBuffer<String> buffer = new LockFreeRingBuffer<String>(Long.MAX_VALUE, 1024, LENGTH);
+        final CountDownLatch done = new CountDownLatch(producers);
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < messagesPerProducer; i++) {
+                        // Spin instead of evicting so that nothing is lost
+                        while (buffer.size() >= 1000) {
+                            Thread.yield();
+                        }
+                        buffer.add(producer + "-" + i);
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+
+        Set<String> received = new HashSet<String>();
+        List<String> batch = new ArrayList<String>();
+        while (done.getCount() > 0 || buffer.size() > 0) {
+            batch.clear();
+            buffer.drainTo(batch, 100);
+            for (String message : batch) {
+                assertTrue("Duplicate " + message, received.add(message));
+            }
+        }
+        assertEquals(producers * messagesPerProducer, received.size());
+        assertEquals(0, buffer.cost());
+    }
+}
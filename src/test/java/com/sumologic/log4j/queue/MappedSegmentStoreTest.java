@@ -0,0 +1,137 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.sumologic.log4j.queue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MappedSegmentStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void readsMessagesInOrderAcrossSegments() throws Exception {
+        // Segments holding three 8 byte records each
+        MappedSegmentStore store = new MappedSegmentStore(folder.getRoot(), 240, 24);
+        for (int i = 0; i < 7; i++) {
+            assertTrue(store.append("rec" + i));
+        }
+        List<String> read = new ArrayList<String>();
+        MappedSegmentStore.Position position = store.read(read, 5, Long.MAX_VALUE);
+        assertEquals(Arrays.asList("rec0", "rec1", "rec2", "rec3", "rec4"), read);
+        store.acknowledge(position);
+        assertEquals(2, segmentFiles().length);
+
+        read.clear();
+        store.acknowledge(store.read(read, 5, Long.MAX_VALUE));
+        assertEquals(Arrays.asList("rec5", "rec6"), read);
+        assertTrue(store.isEmpty());
+        store.close();
+    }
+
+    @Test
+    public void limitsBytesPerRead() throws Exception {
+        MappedSegmentStore store = new MappedSegmentStore(folder.getRoot(), 1000, 100);
+        store.append("12345");
+        store.append("12345");
+        store.append("12345");
+        List<String> read = new ArrayList<String>();
+        store.read(read, 10, 12);
+        assertEquals(2, read.size());
+        store.close();
+    }
+
+    @Test
+    public void startsOverOnceEverythingIsAcknowledged() throws Exception {
+        MappedSegmentStore store = new MappedSegmentStore(folder.getRoot(), 240, 24);
+        List<String> read = new ArrayList<String>();
+        for (int i = 0; i < 100; i++) {
+            store.append("rec" + i);
+            read.clear();
+            store.acknowledge(store.read(read, 10, Long.MAX_VALUE));
+            assertEquals(Arrays.asList("rec" + i), read);
+        }
+        assertEquals(1, segmentFiles().length);
+        store.close();
+    }
+
+    @Test
+    public void deletesOldestSegmentWhenQuotaIsReached() throws Exception {
+        MappedSegmentStore store = new MappedSegmentStore(folder.getRoot(), 48, 24);
+        for (int i = 0; i < 9; i++) {
+            store.append("rec" + i);
+        }
+        assertEquals(48, store.size());
+        List<String> read = new ArrayList<String>();
+        store.read(read, 10, Long.MAX_VALUE);
+        assertEquals(Arrays.asList("rec3", "rec4", "rec5", "rec6", "rec7", "rec8"), read);
+        store.close();
+    }
+
+    @Test
+    public void dropsMessagesLargerThanASegment() throws Exception {
+        MappedSegmentStore store = new MappedSegmentStore(folder.getRoot(), 48, 24);
+        assertFalse(store.append("this message does not fit"));
+        assertTrue(store.isEmpty());
+        store.close();
+    }
+
+    @Test
+    public void recoversUnacknowledgedMessagesAfterReopening() throws Exception {
+        MappedSegmentStore store = new MappedSegmentStore(folder.getRoot(), 240, 24);
+        for (int i = 0; i < 5; i++) {
+            store.append("rec" + i);
+        }
+        List<String> read = new ArrayList<String>();
+        store.acknowledge(store.read(read, 4, Long.MAX_VALUE));
+        // Read but not acknowledged
+        store.read(read, 4, Long.MAX_VALUE);
+        store.close();
+
+        store = new MappedSegmentStore(folder.getRoot(), 240, 24);
+        read.clear();
+        store.read(read, 10, Long.MAX_VALUE);
+        assertEquals(Arrays.asList("rec4"), read);
+        store.append("rec5");
+        read.clear();
+        store.read(read, 10, Long.MAX_VALUE);
+        assertEquals(Arrays.asList("rec5"), read);
+        store.close();
+    }
+
+    private File[] segmentFiles() {
+        return folder.getRoot().listFiles();
+    }
+}
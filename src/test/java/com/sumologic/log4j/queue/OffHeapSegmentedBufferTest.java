@@ -0,0 +1,170 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.sumologic.log4j.queue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class OffHeapSegmentedBufferTest {
+
+    @Test
+    public void drainsRecordsInOrderAcrossSegments() {
+        // Three segments holding two 12 byte records each
+        OffHeapSegmentedBuffer buffer = new OffHeapSegmentedBuffer(100, 30);
+        for (int i = 0; i < 6; i++) {
+            buffer.add("message" + i);
+        }
+        assertEquals(6, buffer.size());
+        assertEquals(6 * (EncodedMessageBuffer.HEADER_BYTES + 8), buffer.cost());
+
+        List<String> drained = new ArrayList<String>();
+        assertEquals(6, buffer.drainTo(drained, 10));
+        assertEquals(Arrays.asList("message0", "message1", "message2", "message3", "message4", "message5"), drained);
+        assertEquals(0, buffer.cost());
+    }
+
+    @Test
+    public void evictsOldestSegmentWhenFull() {
+        // Two segments holding two 8 byte records each
+        OffHeapSegmentedBuffer buffer = new OffHeapSegmentedBuffer(40, 20);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(buffer.add("rec" + i));
+        }
+        assertEquals(3, buffer.size());
+        assertEquals(40, buffer.allocatedBytes());
+
+        List<String> drained = new ArrayList<String>();
+        buffer.drainTo(drained, 10);
+        assertEquals(Arrays.asList("rec2", "rec3", "rec4"), drained);
+    }
+
+    @Test
+    public void reusesSegmentsAfterDraining() {
+        OffHeapSegmentedBuffer buffer = new OffHeapSegmentedBuffer(1000, 100);
+        List<String> drained = new ArrayList<String>();
+        for (int i = 0; i < 1000; i++) {
+            buffer.add("message" + i);
+            if (i % 10 == 9) {
+                drained.clear();
+                buffer.drainTo(drained, 10);
+            }
+        }
+        assertEquals(0, buffer.size());
+        assertEquals(200, buffer.allocatedBytes());
+    }
+
+    @Test
+    public void rejectsRecordsLargerThanCapacity() {
+        OffHeapSegmentedBuffer buffer = new OffHeapSegmentedBuffer(20, 10);
+        assertFalse(buffer.add("this record does not fit"));
+        assertEquals(0, buffer.size());
+        assertEquals(0, buffer.allocatedBytes());
+    }
+
+    @Test
+    public void keepsRecordsLargerThanSegmentInSegmentsOfTheirOwn() {
+        // The default queue of 1 MB has segments of 128 KB
+        OffHeapSegmentedBuffer buffer = new OffHeapSegmentedBuffer(1000000);
+        String large = new String(new char[500000]).replace('\0', 'x');
+        assertTrue(buffer.add("small0"));
+        assertTrue(buffer.add(large));
+        assertTrue(buffer.add("small1"));
+        assertEquals(3, buffer.size());
+        assertEquals(3 * EncodedMessageBuffer.HEADER_BYTES + 12 + 500000, buffer.cost());
+
+        List<String> drained = new ArrayList<String>();
+        assertEquals(3, buffer.drainTo(drained, 10));
+        assertEquals(Arrays.asList("small0", large, "small1"), drained);
+        // The oversized segment is released, the regular ones are kept for reuse
+        assertEquals(2 * OffHeapSegmentedBuffer.segmentSizeFor(1000000), buffer.allocatedBytes());
+    }
+
+    @Test
+    public void evictsOldestSegmentsToMakeRoomForLargeRecord() {
+        // Four segments holding two 9 byte records each
+        OffHeapSegmentedBuffer buffer = new OffHeapSegmentedBuffer(80, 20);
+        for (int i = 0; i < 8; i++) {
+            assertTrue(buffer.add("msg" + i + "x"));
+        }
+        String large = new String(new char[40]).replace('\0', 'x');
+        assertTrue(buffer.add(large));
+        // Three segments give way to a record of 44 bytes
+        assertEquals(3, buffer.size());
+        assertEquals(64, buffer.allocatedBytes());
+
+        List<String> drained = new ArrayList<String>();
+        buffer.drainTo(drained, 10);
+        assertEquals(Arrays.asList("msg6x", "msg7x", large), drained);
+        assertEquals(20, buffer.allocatedBytes());
+    }
+
+    @Test
+    public void hasNoRoomWhenRecordDoesNotFitTheRemainingSegments() {
+        // Two segments, each holding one 14 byte record with 6 bytes left over
+        OffHeapSegmentedBuffer buffer = new OffHeapSegmentedBuffer(40, 20);
+        assertTrue(buffer.add("message0xx"));
+        assertTrue(buffer.add("message1xx"));
+        // 12 bytes are left, but not in one piece
+        assertEquals(28, buffer.cost());
+        assertFalse(buffer.hasRoomFor(12));
+        assertTrue(buffer.hasRoomFor(6));
+
+        List<String> drained = new ArrayList<String>();
+        buffer.drainTo(drained, 1);
+        assertTrue(buffer.hasRoomFor(12));
+        assertTrue(buffer.hasRoomFor(20));
+        assertFalse(buffer.hasRoomFor(21));
+    }
+
+    @Test
+    public void evictsOnlyPartOfBufferWithDefaultSegmentSize() {
+        // Eight segments holding 81 records of 100 bytes each
+        OffHeapSegmentedBuffer buffer = new OffHeapSegmentedBuffer(64 * 1024);
+        String record = new String(new char[96]).replace('\0', 'x');
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(buffer.add(record));
+        }
+        assertTrue(buffer.size() > 7 * 81);
+        assertEquals(64 * 1024, buffer.allocatedBytes());
+    }
+
+    @Test
+    public void usesWholeCapacityThatIsNotMultipleOfSegmentSize() {
+        OffHeapSegmentedBuffer buffer = new OffHeapSegmentedBuffer(100000);
+        String record = new String(new char[96]).replace('\0', 'x');
+        for (int i = 0; i < 2000; i++) {
+            buffer.add(record);
+        }
+        assertEquals(100000, buffer.allocatedBytes());
+        assertEquals(1024 * 1024, OffHeapSegmentedBuffer.segmentSizeFor(64L * 1024 * 1024));
+        assertEquals(1000, OffHeapSegmentedBuffer.segmentSizeFor(1000));
+    }
+}
@@ -0,0 +1,55 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.sumologic.log4j.queue;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class Utf8Test {
+
+    @Test
+    public void matchesEncodedLength() {
+        String[] samples = {"", "plain ascii", "héllo wörld", "日本語のログ", "emoji 😀 in a line"};
+        for (String sample : samples) {
+            assertEquals(sample, sample.getBytes(StandardCharsets.UTF_8).length, Utf8.encodedLength(sample));
+        }
+    }
+
+    @Test
+    public void encodesLikeGetBytes() {
+        String[] samples = {"", "plain ascii", "héllo wörld", "日本語のログ", "emoji 😀 in a line", "lone \uD800 surrogate"};
+        for (String sample : samples) {
+            byte[] target = new byte[(int) Utf8.encodedLength(sample) + 1];
+            int end = Utf8.encode(new StringBuilder(sample), target, 1);
+            assertArrayEquals(sample, sample.getBytes(StandardCharsets.UTF_8), Arrays.copyOfRange(target, 1, end));
+        }
+    }
+}
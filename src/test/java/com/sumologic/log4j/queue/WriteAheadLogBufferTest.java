@@ -0,0 +1,132 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.sumologic.log4j.queue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class WriteAheadLogBufferTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void countsQueuedMessagesAndBytes() throws Exception {
+        WriteAheadLogBuffer buffer = open(FsyncPolicy.NEVER);
+        buffer.add("message0");
+        buffer.add("message1");
+        assertEquals(2, buffer.size());
+        assertEquals(2 * (EncodedMessageBuffer.HEADER_BYTES + 8), buffer.cost());
+
+        List<String> drained = new ArrayList<String>();
+        assertEquals(1, buffer.drainTo(drained, 1));
+        assertEquals(1, buffer.size());
+        assertEquals(EncodedMessageBuffer.HEADER_BYTES + 8, buffer.cost());
+        buffer.close();
+    }
+
+    @Test
+    public void unacknowledgedMessagesAreDrainedAgainAfterReopening() throws Exception {
+        WriteAheadLogBuffer buffer = open(FsyncPolicy.BATCH);
+        for (int i = 0; i < 4; i++) {
+            buffer.add("message" + i);
+        }
+        List<String> drained = new ArrayList<String>();
+        buffer.drainUnacknowledged(drained, 2).acknowledge();
+        // Drained but never acknowledged, as if the JVM had died while sending
+        buffer.drainUnacknowledged(drained, 2);
+        assertEquals(0, buffer.size());
+        buffer.close();
+
+        buffer = open(FsyncPolicy.BATCH);
+        assertEquals(2, buffer.size());
+        drained.clear();
+        buffer.drainTo(drained, 10);
+        assertEquals(Arrays.asList("message2", "message3"), drained);
+        buffer.close();
+    }
+
+    @Test
+    public void releasesMessagesUpToOldestUnacknowledgedReceipt() throws Exception {
+        WriteAheadLogBuffer buffer = open(FsyncPolicy.INTERVAL);
+        for (int i = 0; i < 3; i++) {
+            buffer.add("message" + i);
+        }
+        List<String> drained = new ArrayList<String>();
+        DurableBuffer.Receipt first = buffer.drainUnacknowledged(drained, 1);
+        DurableBuffer.Receipt second = buffer.drainUnacknowledged(drained, 1);
+        DurableBuffer.Receipt third = buffer.drainUnacknowledged(drained, 1);
+        third.acknowledge();
+        first.acknowledge();
+        buffer.close();
+
+        buffer = open(FsyncPolicy.INTERVAL);
+        drained.clear();
+        buffer.drainTo(drained, 10);
+        assertEquals(Arrays.asList("message1", "message2"), drained);
+        buffer.close();
+    }
+
+    @Test
+    public void concurrentAppendsShareFsyncs() throws Exception {
+        final WriteAheadLogBuffer buffer = open(FsyncPolicy.BATCH);
+        final int threads = 8;
+        final int messagesPerThread = 200;
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < messagesPerThread; i++) {
+                        buffer.add(thread + "-" + i);
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+        List<String> drained = new ArrayList<String>();
+        buffer.drainTo(drained, Integer.MAX_VALUE);
+        Set<String> unique = new HashSet<String>(drained);
+        assertEquals(threads * messagesPerThread, unique.size());
+        buffer.close();
+    }
+
+    private WriteAheadLogBuffer open(FsyncPolicy fsyncPolicy) throws Exception {
+        return new WriteAheadLogBuffer("test", folder.getRoot(), 100000, fsyncPolicy, 10);
+    }
+}
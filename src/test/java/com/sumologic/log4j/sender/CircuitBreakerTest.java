@@ -0,0 +1,94 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j.sender;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class CircuitBreakerTest {
+
+    @Test
+    public void opensAfterFailuresInARow() {
+        CircuitBreaker breaker = new CircuitBreaker(3, 1000);
+        long now = System.nanoTime();
+        breaker.failed();
+        breaker.failed();
+        breaker.succeeded();
+        breaker.failed();
+        breaker.failed();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.tryAcquire(now));
+        breaker.failed();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.tryAcquire(now));
+        assertTrue(breaker.nanosUntilPermitted(now) > TimeUnit.MILLISECONDS.toNanos(500));
+    }
+
+    @Test
+    public void halfOpenLetsOneProbeThrough() {
+        CircuitBreaker breaker = new CircuitBreaker(1, 0);
+        breaker.failed();
+        long now = System.nanoTime();
+        assertTrue(breaker.tryAcquire(now));
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertFalse(breaker.tryAcquire(now));
+        assertEquals(Long.MAX_VALUE, breaker.nanosUntilPermitted(now));
+
+        breaker.released();
+        assertTrue(breaker.tryAcquire(now));
+        breaker.failed();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+        assertTrue(breaker.tryAcquire(System.nanoTime()));
+        breaker.succeeded();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.tryAcquire(now));
+        assertTrue(breaker.tryAcquire(now));
+    }
+
+    @Test
+    public void retryDelayBacksOffWithJitterAndHonorsRetryAfter() {
+        HttpClientSender sender = new HttpClientSender();
+        sender.setRetryIntervalMs(100);
+        sender.setMaxRetryIntervalMs(1000);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(sender.retryDelayMs(1, -1) <= 100);
+            assertTrue(sender.retryDelayMs(3, -1) <= 400);
+            assertTrue(sender.retryDelayMs(30, -1) <= 1000);
+            assertTrue(sender.retryDelayMs(1, 500) >= 500);
+        }
+        assertEquals(1000, sender.retryDelayMs(1, 5000));
+
+        assertEquals(2000, AbstractTransport.retryAfterMs(503, " 2 "));
+        assertEquals(-1, AbstractTransport.retryAfterMs(500, "2"));
+        assertEquals(-1, AbstractTransport.retryAfterMs(429, "soon"));
+        assertEquals(0, AbstractTransport.retryAfterMs(429, "Wed, 21 Oct 2015 07:28:00 GMT"));
+    }
+}
@@ -0,0 +1,91 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j.sender;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CompressorTest {
+
+    @Test
+    public void gzipRoundTrip() throws IOException {
+        assertRoundTrips(Compression.GZIP);
+    }
+
+    @Test
+    public void deflateRoundTrip() throws IOException {
+        assertRoundTrips(Compression.DEFLATE);
+    }
+
+    private void assertRoundTrips(Compression compression) throws IOException {
+        Compressor compressor = new Compressor(compression, Deflater.DEFAULT_COMPRESSION);
+        try {
+            // The same compressor is reused for bodies smaller and larger than its chunk size
+            String[] bodies = {"", "single line\n", body(100000), "héllo wörld 日本語 😀\n", body(10)};
+            for (String body : bodies) {
+                int length = compressor.compress(body);
+                assertEquals(body, decompress(compression, compressor.buffer(), length));
+            }
+            String large = body(10000);
+            assertTrue(compressor.compress(large) * 5 < large.length());
+        } finally {
+            compressor.end();
+        }
+    }
+
+    private static String body(int lines) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            builder.append("2024-01-01 00:00:00,000 INFO [main] com.example.Service - Processed request ")
+                    .append(i).append('\n');
+        }
+        return builder.toString();
+    }
+
+    private static String decompress(Compression compression, byte[] bytes, int length) throws IOException {
+        InputStream in = new ByteArrayInputStream(bytes, 0, length);
+        in = compression == Compression.GZIP ? new GZIPInputStream(in) : new InflaterInputStream(in);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] chunk = new byte[4096];
+        int read;
+        while ((read = in.read(chunk)) != -1) {
+            out.write(chunk, 0, read);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,100 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j.sender;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class EndpointBalancerTest {
+
+    @Test
+    public void parsesCommaSeparatedUrls() {
+        assertNull(EndpointBalancer.of(null, LoadBalancing.ROUND_ROBIN));
+        assertNull(EndpointBalancer.of(" , ", LoadBalancing.ROUND_ROBIN));
+        EndpointBalancer balancer = EndpointBalancer.of("http://a, http://b,", LoadBalancing.ROUND_ROBIN);
+        assertEquals(2, balancer.size());
+    }
+
+    @Test
+    public void roundRobinAlternatesEndpoints() {
+        EndpointBalancer balancer = EndpointBalancer.of("http://a,http://b", LoadBalancing.ROUND_ROBIN);
+        assertEquals("http://a", balancer.select().url);
+        assertEquals("http://b", balancer.select().url);
+        assertEquals("http://a", balancer.select().url);
+    }
+
+    @Test
+    public void leastOutstandingPrefersIdleEndpoint() {
+        EndpointBalancer balancer = EndpointBalancer.of("http://a,http://b", LoadBalancing.LEAST_OUTSTANDING);
+        EndpointBalancer.Target first = balancer.select();
+        balancer.started(first);
+        EndpointBalancer.Target second = balancer.select();
+        assertNotSame(first, second);
+        balancer.started(second);
+        balancer.started(second);
+        assertSame(first, balancer.select());
+        assertSame(first, balancer.select());
+    }
+
+    @Test
+    public void failoverSkipsUnhealthyPrimary() {
+        EndpointBalancer balancer = EndpointBalancer.of("http://primary,http://secondary", LoadBalancing.FAILOVER);
+        EndpointBalancer.Target primary = balancer.select();
+        assertEquals("http://primary", primary.url);
+        for (int i = 0; i < EndpointBalancer.FAILURES_BEFORE_UNHEALTHY - 1; i++) {
+            balancer.started(primary);
+            balancer.completed(primary, false);
+            assertSame(primary, balancer.select());
+        }
+        balancer.started(primary);
+        balancer.completed(primary, false);
+        assertEquals("http://secondary", balancer.select().url);
+        assertTrue(balancer.hasHealthyAlternative(primary));
+        assertFalse(balancer.hasHealthyAlternative(balancer.select()));
+        assertEquals(0, primary.outstanding());
+    }
+
+    @Test
+    public void usesEndpointDueToRecoverFirstWhenAllAreUnhealthy() {
+        EndpointBalancer balancer = EndpointBalancer.of("http://a,http://b", LoadBalancing.ROUND_ROBIN);
+        EndpointBalancer.Target a = balancer.select();
+        EndpointBalancer.Target b = balancer.select();
+        for (EndpointBalancer.Target target : new EndpointBalancer.Target[]{a, b}) {
+            for (int i = 0; i < EndpointBalancer.FAILURES_BEFORE_UNHEALTHY; i++) {
+                balancer.started(target);
+                balancer.completed(target, false);
+            }
+        }
+        assertSame(a, balancer.select());
+        assertSame(a, balancer.select());
+
+        balancer.started(b);
+        balancer.completed(b, true);
+        assertSame(b, balancer.select());
+    }
+}
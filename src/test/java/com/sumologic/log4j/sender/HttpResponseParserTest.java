@@ -0,0 +1,98 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j.sender;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HttpResponseParserTest {
+
+    private final HttpResponseParser parser = new HttpResponseParser();
+
+    @Test
+    public void parsesResponseWithContentLength() throws IOException {
+        assertTrue(parseAll("HTTP/1.1 200 OK\r\nContent-Length: 5\r\n\r\nhello"));
+        assertEquals(200, parser.statusCode());
+        assertFalse(parser.connectionClose());
+    }
+
+    @Test
+    public void parsesChunkedResponseFedByteByByte() throws IOException {
+        byte[] response = ("HTTP/1.1 503 Service Unavailable\r\nTransfer-Encoding: chunked\r\n\r\n" +
+                "5;ext=1\r\nhello\r\nA\r\n0123456789\r\n0\r\nTrailer: x\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+        for (int i = 0; i < response.length; i++) {
+            boolean complete = parser.parse(ByteBuffer.wrap(response, i, 1));
+            assertEquals(i == response.length - 1, complete);
+        }
+        assertEquals(503, parser.statusCode());
+    }
+
+    @Test
+    public void skipsInterimResponses() throws IOException {
+        assertTrue(parseAll("HTTP/1.1 100 Continue\r\n\r\nHTTP/1.1 429 Too Many Requests\r\nContent-Length: 0\r\n\r\n"));
+        assertEquals(429, parser.statusCode());
+    }
+
+    @Test
+    public void bodyWithoutLengthEndsWithConnection() throws IOException {
+        assertFalse(parseAll("HTTP/1.0 200 OK\r\n\r\nsome body"));
+        assertTrue(parser.started());
+        assertTrue(parser.closed());
+        assertTrue(parser.connectionClose());
+    }
+
+    @Test
+    public void connectionCloseHeaderPreventsReuse() throws IOException {
+        assertTrue(parseAll("HTTP/1.1 204 No Content\r\nConnection: close\r\n\r\n"));
+        assertTrue(parser.connectionClose());
+    }
+
+    @Test
+    public void resetAllowsParsingAnotherResponse() throws IOException {
+        assertTrue(parseAll("HTTP/1.1 500 Internal Server Error\r\nContent-Length: 0\r\n\r\n"));
+        parser.reset();
+        assertFalse(parser.started());
+        assertTrue(parseAll("HTTP/1.1 200 OK\r\ncontent-length: 2\r\n\r\nok"));
+        assertEquals(200, parser.statusCode());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsInvalidStatusLine() throws IOException {
+        parseAll("garbage\r\n\r\n");
+    }
+
+    private boolean parseAll(String response) throws IOException {
+        return parser.parse(ByteBuffer.wrap(response.getBytes(StandardCharsets.US_ASCII)));
+    }
+}
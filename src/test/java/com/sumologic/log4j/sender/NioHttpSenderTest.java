@@ -0,0 +1,321 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j.sender;
+
+import com.sumologic.log4j.server.AggregatingHttpHandler;
+import com.sumologic.log4j.server.MaterializedHttpRequest;
+import com.sumologic.log4j.server.MockHttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class NioHttpSenderTest {
+
+    private static final int PORT = 26933;
+
+    private MockHttpServer server;
+    private AggregatingHttpHandler handler;
+    private NioHttpSender sender;
+    private final List<Boolean> results = Collections.synchronizedList(new ArrayList<Boolean>());
+
+    @Before
+    public void setUp() throws Exception {
+        handler = new AggregatingHttpHandler();
+        server = new MockHttpServer(PORT, handler).withThreads(8);
+        server.start();
+        sender = new NioHttpSender("test");
+        sender.setUrl("http://localhost:" + PORT + "/receiver/v1/http/token?x=1");
+        sender.setSourceName("name");
+        sender.setSourceCategory("category");
+        sender.setClientHeaderValue("client");
+        sender.setRetryIntervalMs(10);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        sender.close();
+        server.stop();
+    }
+
+    @Test
+    public void sendsBodiesWithHeaders() throws Exception {
+        sender.init();
+        send("first\n", "second\n");
+
+        assertEquals(2, handler.getExchanges().size());
+        MaterializedHttpRequest request = handler.getExchanges().get(0);
+        assertEquals("POST", request.getMethod());
+        assertEquals("name", request.getHeaders().getFirst("X-Sumo-Name"));
+        assertEquals("category", request.getHeaders().getFirst("X-Sumo-Category"));
+        assertEquals("client", request.getHeaders().getFirst("X-Sumo-Client"));
+        assertEquals(null, request.getHeaders().getFirst("X-Sumo-Host"));
+        assertEquals(Collections.nCopies(2, true), results);
+    }
+
+    @Test
+    public void metadataCannotInjectHeaders() throws Exception {
+        sender.init();
+        final CountDownLatch done = new CountDownLatch(1);
+        sender.send("body", new SourceMetadata("name\r\nX-Injected: yes", "caf\u00e9\u2603", null),
+                new Transport.Callback() {
+                    @Override
+                    public void done(boolean delivered) {
+                        results.add(delivered);
+                        done.countDown();
+                    }
+                });
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+
+        MaterializedHttpRequest request = handler.getExchanges().get(0);
+        assertEquals("name  X-Injected: yes", request.getHeaders().getFirst("X-Sumo-Name"));
+        assertEquals("caf\u00e9?", request.getHeaders().getFirst("X-Sumo-Category"));
+        assertEquals(null, request.getHeaders().getFirst("X-Injected"));
+        assertEquals("body", request.getBody());
+    }
+
+    @Test
+    public void sendsConcurrentlyOverSeveralConnections() throws Exception {
+        handler.setResponseDelayMs(200);
+        sender.setMaxConnections(4);
+        sender.init();
+        send("a", "b", "c", "d", "e", "f", "g", "h");
+
+        assertEquals(8, handler.getExchanges().size());
+        assertEquals(4, handler.getMaxConcurrentRequests());
+    }
+
+    @Test
+    public void retriesRetryableStatusCodes() throws Exception {
+        handler.failNextRequests(2, 503);
+        sender.init();
+        send("retried");
+
+        assertEquals(1, handler.getExchanges().size());
+        assertEquals("retried", handler.getExchanges().get(0).getBody());
+        assertEquals(Collections.singletonList(true), results);
+    }
+
+    @Test
+    public void dropsAfterMaxNumberOfRetries() throws Exception {
+        handler.failNextRequests(3, 503);
+        sender.setMaxNumberOfRetries(1);
+        sender.init();
+        send("dropped");
+        send("delivered");
+
+        assertEquals(1, handler.getExchanges().size());
+        assertEquals("delivered", handler.getExchanges().get(0).getBody());
+    }
+
+    @Test
+    public void dropsOnNonRetryableStatusCode() throws Exception {
+        handler.failNextRequests(1, 400);
+        sender.init();
+        send("rejected");
+
+        assertEquals(0, handler.getExchanges().size());
+        assertEquals(Collections.singletonList(false), results);
+    }
+
+    @Test
+    public void retriesWhenCollectorIsDown() throws Exception {
+        server.stop();
+        sender.setRetryIntervalMs(100);
+        sender.init();
+        CountDownLatch done = sendAsync("eventually");
+        Thread.sleep(300);
+        server = new MockHttpServer(PORT, handler);
+        server.start();
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals("eventually", handler.getExchanges().get(0).getBody());
+    }
+
+    @Test
+    public void compressesBodies() throws Exception {
+        sender.setCompression(Compression.GZIP);
+        sender.init();
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            large.append("compressed line ").append(i).append('\n');
+        }
+        // The compressor is reused, and its buffer grows for the second body
+        send("compressed body");
+        send(large.toString());
+
+        MaterializedHttpRequest request = handler.getExchanges().get(0);
+        assertEquals("gzip", request.getHeaders().getFirst("Content-Encoding"));
+        assertEquals("compressed body", request.getBody());
+        assertEquals(large.toString(), handler.getExchanges().get(1).getBody());
+    }
+
+    @Test
+    public void keepsCompressedBodiesOfRequestsInFlightApart() throws Exception {
+        handler.failNextRequests(2, 503);
+        handler.setResponseDelayMs(100);
+        sender.setCompression(Compression.GZIP);
+        sender.setMaxConnections(4);
+        sender.init();
+        // Each body stays in the buffer of its own compressor until it is done, retries included
+        send("first", "second", "third", "fourth");
+
+        Set<String> bodies = new HashSet<String>();
+        for (MaterializedHttpRequest request : handler.getExchanges()) {
+            bodies.add(request.getBody());
+        }
+        assertEquals(new HashSet<String>(Arrays.asList("first", "second", "third", "fourth")), bodies);
+        assertEquals(Collections.nCopies(4, true), results);
+    }
+
+    @Test
+    public void dropsOnInvalidUrl() throws Exception {
+        sender.setUrl("ftp://localhost");
+        sender.init();
+        send("nowhere");
+
+        assertEquals(Collections.singletonList(false), results);
+    }
+
+    @Test
+    public void dropsWhenHostCannotBeResolved() throws Exception {
+        sender.setUrl("http://collector.invalid/receiver");
+        sender.setMaxNumberOfRetries(1);
+        sender.init();
+        send("nowhere");
+        send("still nowhere");
+
+        assertEquals(Arrays.asList(false, false), results);
+    }
+
+    @Test
+    public void honorsRetryAfter() throws Exception {
+        handler.failNextRequests(1, 429);
+        handler.setFailureRetryAfter("1");
+        sender.init();
+        long start = System.nanoTime();
+        send("later");
+
+        assertEquals("later", handler.getExchanges().get(0).getBody());
+        assertTrue(System.nanoTime() - start >= TimeUnit.SECONDS.toNanos(1));
+    }
+
+    @Test
+    public void circuitBreakerPausesSendingWhileCollectorIsDown() throws Exception {
+        server.stop();
+        sender.setRetryIntervalMs(1);
+        CircuitBreaker breaker = new CircuitBreaker(3, 300);
+        sender.setCircuitBreaker(breaker);
+        sender.init();
+        CountDownLatch done = sendAsync("eventually");
+        Thread.sleep(150);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        server = new MockHttpServer(PORT, handler);
+        server.start();
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertEquals("eventually", handler.getExchanges().get(0).getBody());
+    }
+
+    @Test
+    public void spreadsRequestsOverEndpoints() throws Exception {
+        AggregatingHttpHandler secondHandler = new AggregatingHttpHandler();
+        MockHttpServer second = new MockHttpServer(PORT + 1, secondHandler);
+        second.start();
+        try {
+            sender.setUrl("http://localhost:" + PORT + "/receiver, http://localhost:" + (PORT + 1) + "/receiver");
+            sender.init();
+            send("a", "b", "c", "d");
+
+            // A failed attempt moves to the other endpoint, so the split is not always even
+            assertEquals(Collections.nCopies(4, true), results);
+            assertEquals(4, handler.getExchanges().size() + secondHandler.getExchanges().size());
+            assertTrue(handler.getExchanges().size() >= 1);
+            assertTrue(secondHandler.getExchanges().size() >= 1);
+        } finally {
+            second.stop();
+        }
+    }
+
+    @Test
+    public void failsOverFromUnreachableEndpoint() throws Exception {
+        sender.setLoadBalancing(LoadBalancing.FAILOVER);
+        sender.setUrl("http://localhost:" + (PORT + 1) + "/receiver,http://localhost:" + PORT + "/receiver");
+        sender.setRetryIntervalMs(10000);
+        sender.init();
+        long start = System.nanoTime();
+        send("first", "second");
+
+        assertEquals(2, handler.getExchanges().size());
+        assertEquals(Collections.nCopies(2, true), results);
+        // Retries went to the healthy endpoint without waiting for the retry interval
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+    }
+
+    @Test
+    public void closeDropsUndeliveredRequests() throws Exception {
+        server.stop();
+        sender.init();
+        CountDownLatch done = sendAsync("undelivered");
+        sender.close();
+
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonList(false), results);
+        assertFalse(sender.isInitialized());
+    }
+
+    private void send(String... bodies) throws InterruptedException {
+        assertTrue(sendAsync(bodies).await(10, TimeUnit.SECONDS));
+    }
+
+    private CountDownLatch sendAsync(String... bodies) {
+        final CountDownLatch done = new CountDownLatch(bodies.length);
+        for (String body : bodies) {
+            sender.send(body, new Transport.Callback() {
+                @Override
+                public void done(boolean delivered) {
+                    results.add(delivered);
+                    done.countDown();
+                }
+            });
+        }
+        return done;
+    }
+}
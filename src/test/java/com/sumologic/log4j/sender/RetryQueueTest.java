@@ -0,0 +1,84 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j.sender;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RetryQueueTest {
+
+    @Test
+    public void pollsEntriesWhenDue() {
+        RetryQueue queue = new RetryQueue(100);
+        Entry late = new Entry(10);
+        Entry early = new Entry(20);
+        assertTrue(queue.offer(late, 200));
+        assertTrue(queue.offer(early, 100));
+        assertEquals(2, queue.size());
+        assertEquals(30, queue.bytes());
+
+        assertNull(queue.pollDue(50));
+        assertEquals(50, queue.nanosUntilNextDue(50));
+        assertSame(early, queue.pollDue(100));
+        assertNull(queue.pollDue(150));
+        assertSame(late, queue.pollDue(250));
+        assertEquals(Long.MAX_VALUE, queue.nanosUntilNextDue(250));
+        assertEquals(0, queue.bytes());
+    }
+
+    @Test
+    public void keepsWithinBudgetButAcceptsOneLargeEntry() {
+        RetryQueue queue = new RetryQueue(100);
+        assertTrue(queue.offer(new Entry(150), 0));
+        assertFalse(queue.offer(new Entry(1), 0));
+        queue.pollDue(0);
+        assertTrue(queue.offer(new Entry(60), 0));
+        assertFalse(queue.offer(new Entry(60), 0));
+        assertTrue(queue.offer(new Entry(40), 0));
+    }
+
+    @Test
+    public void reportsAgeOfLongestFailingEntry() throws Exception {
+        RetryQueue queue = new RetryQueue(100);
+        assertEquals(0, queue.oldestAgeNanos());
+        Entry entry = new Entry(1);
+        queue.offer(entry, 0);
+        Thread.sleep(20);
+        queue.pollDue(0);
+        // Requeued after another failure, the age counts from the first one
+        queue.offer(entry, 0);
+        queue.offer(new Entry(1), 0);
+        assertTrue(queue.oldestAgeNanos() >= 20000000L);
+    }
+
+    private static final class Entry extends RetryQueue.Entry {
+        Entry(long bytes) {
+            this.bytes = bytes;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j.sender;
+
+import org.apache.http.entity.ContentType;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class StreamingBodyEntityTest {
+
+    @Test
+    public void encodesLikeGetBytes() throws IOException {
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; large.length() < 3 * StreamingBodyEntity.CHUNK_SIZE; i++) {
+            // Multi-byte characters end up on every side of the chunk boundaries
+            large.append("line ").append(i).append(" héllo 日本語 😀\n");
+        }
+        String[] bodies = {"", "single line\n", large.toString(), "unpaired \ud83d and \ude00\n", "ends with \ud83d"};
+        for (String body : bodies) {
+            StreamingBodyEntity entity = new StreamingBodyEntity(body, ContentType.TEXT_PLAIN);
+            assertArrayEquals(body.getBytes(StandardCharsets.UTF_8), write(entity));
+        }
+    }
+
+    @Test
+    public void encodesConcatenatedBodyOneStringAtATime() throws IOException {
+        // The surrogate pair of the emoji is split between two strings
+        final String[] parts = {"first ", "héllo \ud83d", "\ude00 日本語\n", "", "last \ud83d", "x\n"};
+        final String joined = "first héllo 😀 日本語\nlast \ud83dx\n";
+        ConcatenatedBody body = new ConcatenatedBody() {
+            @Override
+            public int parts() {
+                return parts.length;
+            }
+
+            @Override
+            public String part(int index) {
+                return parts[index];
+            }
+
+            @Override
+            public int length() {
+                return joined.length();
+            }
+
+            @Override
+            public char charAt(int index) {
+                throw new UnsupportedOperationException("Encoded one string at a time");
+            }
+
+            @Override
+            public CharSequence subSequence(int start, int end) {
+                return joined.subSequence(start, end);
+            }
+        };
+        StreamingBodyEntity entity = new StreamingBodyEntity(body, ContentType.TEXT_PLAIN);
+        byte[] expected = joined.getBytes(StandardCharsets.UTF_8);
+        assertArrayEquals(expected, write(entity));
+        // Written again for a retry, with the same chunk
+        assertArrayEquals(expected, write(entity));
+    }
+
+    private static byte[] write(StreamingBodyEntity entity) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        entity.writeTo(out);
+        return out.toByteArray();
+    }
+}
@@ -31,24 +31,42 @@ import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.status.StatusLogger;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.HttpURLConnection;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
 
 public class AggregatingHttpHandler implements HttpHandler {
     private static final Logger logger = StatusLogger.getLogger();
     private static String REQUEST_ENCODING = "UTF-8";
-    private List<MaterializedHttpRequest> exchanges = new ArrayList<MaterializedHttpRequest>();
+    private final List<MaterializedHttpRequest> exchanges = Collections.synchronizedList(new ArrayList<MaterializedHttpRequest>());
+    private final AtomicInteger concurrentRequests = new AtomicInteger();
+    private final AtomicInteger maxConcurrentRequests = new AtomicInteger();
+    private volatile long responseDelayMs;
+    private final AtomicInteger failuresLeft = new AtomicInteger();
+    private volatile int failureStatusCode;
+    private volatile String failureRetryAfter;
 
     // Extract and materialize HTTP Request Body into a String
     private String readRequestBody(HttpExchange httpExchange) throws IOException {
         StringBuilder content = new StringBuilder();
-        InputStreamReader is = new InputStreamReader(httpExchange.getRequestBody(), REQUEST_ENCODING);
-        int c;
-        while ((c = is.read()) != -1) {
-            content.append((char) c);
+        InputStream body = httpExchange.getRequestBody();
+        String contentEncoding = httpExchange.getRequestHeaders().getFirst("Content-Encoding");
+        if ("gzip".equals(contentEncoding)) {
+            body = new GZIPInputStream(body);
+        } else if ("deflate".equals(contentEncoding)) {
+            body = new InflaterInputStream(body);
+        }
+        InputStreamReader is = new InputStreamReader(body, REQUEST_ENCODING);
+        char[] buffer = new char[8192];
+        int read;
+        while ((read = is.read(buffer)) != -1) {
+            content.append(buffer, 0, read);
         }
 
         return content.toString();
@@ -67,7 +85,32 @@ public class AggregatingHttpHandler implements HttpHandler {
     @Override
     public void handle(HttpExchange httpExchange) throws IOException {
         logger.debug("Handling exchange " + httpExchange);
-        exchanges.add(requestFor(httpExchange));
+        int concurrent = concurrentRequests.incrementAndGet();
+        try {
+            int max;
+            while (concurrent > (max = maxConcurrentRequests.get())
+                    && !maxConcurrentRequests.compareAndSet(max, concurrent)) {
+            }
+            MaterializedHttpRequest request = requestFor(httpExchange);
+            if (takeFailure()) {
+                if (failureRetryAfter != null) {
+                    httpExchange.getResponseHeaders().set("Retry-After", failureRetryAfter);
+                }
+                httpExchange.sendResponseHeaders(failureStatusCode, -1);
+                httpExchange.close();
+                return;
+            }
+            if (responseDelayMs > 0) {
+                try {
+                    Thread.sleep(responseDelayMs);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            exchanges.add(request);
+        } finally {
+            concurrentRequests.decrementAndGet();
+        }
 
         // Thanks; come again!
         httpExchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, 0);
@@ -75,11 +118,42 @@ public class AggregatingHttpHandler implements HttpHandler {
     }
 
     public List<MaterializedHttpRequest> getExchanges() {
-        return Collections.unmodifiableList(exchanges);
+        synchronized (exchanges) {
+            return Collections.unmodifiableList(new ArrayList<MaterializedHttpRequest>(exchanges));
+        }
     }
 
     public void clearExchanges() {
         exchanges.clear();
+        maxConcurrentRequests.set(0);
+    }
+
+    // Simulates collector latency by holding every response back
+    public void setResponseDelayMs(long responseDelayMs) {
+        this.responseDelayMs = responseDelayMs;
+    }
+
+    private boolean takeFailure() {
+        int left;
+        do {
+            left = failuresLeft.get();
+        } while (left > 0 && !failuresLeft.compareAndSet(left, left - 1));
+        return left > 0;
+    }
+
+    // Responds to the next requests with the given status code, without recording them
+    public void failNextRequests(int count, int statusCode) {
+        failureStatusCode = statusCode;
+        failuresLeft.set(count);
+    }
+
+    // Sends a Retry-After header with failure responses
+    public void setFailureRetryAfter(String retryAfter) {
+        this.failureRetryAfter = retryAfter;
+    }
+
+    public int getMaxConcurrentRequests() {
+        return maxConcurrentRequests.get();
     }
 
 }
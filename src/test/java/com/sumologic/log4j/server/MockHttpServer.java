@@ -30,24 +30,38 @@ import com.sun.net.httpserver.HttpServer;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class MockHttpServer {
 
     private int port;
     private HttpHandler handler;
     private HttpServer server;
-
+    private int threads = 1;
+    private ExecutorService executor;
 
     public MockHttpServer(int port, HttpHandler handler) {
         this.port = port;
         this.handler = handler;
     }
 
+    // Handle requests on this many threads, so that concurrent requests can be observed
+    public MockHttpServer withThreads(int threads) {
+        this.threads = threads;
+        return this;
+    }
+
     public void start() throws IOException {
         InetSocketAddress addr = new InetSocketAddress(port);
         server = HttpServer.create(addr, 0);
         server.createContext("/", handler);
-        server.setExecutor(null); // default executor
+        if (threads > 1) {
+            executor = Executors.newFixedThreadPool(threads);
+            server.setExecutor(executor);
+        } else {
+            server.setExecutor(null); // default executor
+        }
 
         server.start();
 
@@ -58,5 +72,8 @@ public class MockHttpServer {
         if (server != null) {
             server.stop(0);
         }
+        if (executor != null) {
+            executor.shutdownNow();
+        }
     }
 }
\ No newline at end of file